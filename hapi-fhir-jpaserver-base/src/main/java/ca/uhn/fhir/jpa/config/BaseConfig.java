@@ -37,9 +37,16 @@ import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
 import org.springframework.scheduling.concurrent.ScheduledExecutorFactoryBean;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 
+import ca.uhn.fhir.jpa.dao.InMemoryResourceMatcher;
+import ca.uhn.fhir.jpa.dao.ParsedResourceCache;
+import ca.uhn.fhir.jpa.dao.ResourceIndexStatistics;
+import ca.uhn.fhir.jpa.dao.ResourceParsingExecutor;
 import ca.uhn.fhir.jpa.search.*;
 import ca.uhn.fhir.jpa.sp.ISearchParamPresenceSvc;
 import ca.uhn.fhir.jpa.sp.SearchParamPresenceSvcImpl;
+import ca.uhn.fhir.jpa.subscription.IRestHookDeliverySvc;
+import ca.uhn.fhir.jpa.subscription.ResourceChangeEventBus;
+import ca.uhn.fhir.jpa.subscription.RestHookDeliverySvcImpl;
 
 @Configuration
 @EnableScheduling
@@ -70,6 +77,36 @@ public class BaseConfig implements SchedulingConfigurer {
 		return b;
 	}
 	
+	@Bean(autowire=Autowire.BY_TYPE)
+	public InMemoryResourceMatcher inMemoryResourceMatcher() {
+		return new InMemoryResourceMatcher();
+	}
+
+	@Bean(autowire=Autowire.BY_TYPE)
+	public ParsedResourceCache parsedResourceCache() {
+		return new ParsedResourceCache();
+	}
+
+	@Bean
+	public ResourceChangeEventBus resourceChangeEventBus() {
+		return new ResourceChangeEventBus();
+	}
+
+	@Bean
+	public ResourceIndexStatistics resourceIndexStatistics() {
+		return new ResourceIndexStatistics();
+	}
+
+	@Bean(autowire=Autowire.BY_TYPE)
+	public ResourceParsingExecutor resourceParsingExecutor() {
+		return new ResourceParsingExecutor();
+	}
+
+	@Bean(autowire=Autowire.BY_TYPE)
+	public IRestHookDeliverySvc restHookDeliverySvc() {
+		return new RestHookDeliverySvcImpl();
+	}
+
 	@Bean(autowire=Autowire.BY_TYPE)
 	public ISearchCoordinatorSvc searchCoordinatorSvc() {
 		return new SearchCoordinatorSvcImpl();
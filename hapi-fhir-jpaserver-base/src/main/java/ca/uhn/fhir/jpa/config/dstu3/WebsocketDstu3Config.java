@@ -33,9 +33,7 @@ import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 import org.springframework.web.socket.handler.PerConnectionWebSocketHandler;
 
-import ca.uhn.fhir.jpa.interceptor.WebSocketSubscriptionDstu3Interceptor;
 import ca.uhn.fhir.jpa.subscription.SubscriptionWebsocketHandlerDstu3;
-import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
 
 @Configuration
 @EnableWebSocket()
@@ -71,10 +69,5 @@ public class WebsocketDstu3Config implements WebSocketConfigurer {
 		return retVal;
 	}
 
-	@Bean
-	public IServerInterceptor webSocketSubscriptionDstu3Interceptor(){
-		return new WebSocketSubscriptionDstu3Interceptor();
-	}
-
 	
 }
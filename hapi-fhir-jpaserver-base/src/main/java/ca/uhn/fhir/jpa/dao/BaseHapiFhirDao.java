@@ -24,7 +24,6 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.apache.commons.lang3.StringUtils.trim;
 
-import java.io.UnsupportedEncodingException;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -39,6 +38,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
@@ -75,7 +75,6 @@ import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.PlatformTransactionManager;
 
-import com.google.common.base.Charsets;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashFunction;
@@ -231,6 +230,15 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@Autowired()
 	protected IResourceIndexedSearchParamUriDao myResourceIndexedSearchParamUriDao;
 
+	@Autowired
+	private ParsedResourceCache myParsedResourceCache;
+
+	@Autowired
+	private ResourceIndexStatistics myResourceIndexStatistics;
+
+	@Autowired
+	private ResourceParsingExecutor myResourceParsingExecutor;
+
 	private Map<Class<? extends IBaseResource>, IFhirResourceDao<?>> myResourceTypeToDao;
 
 	@Autowired
@@ -577,18 +585,18 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@SuppressWarnings("unchecked")
 	private <T extends BaseResourceIndexedSearchParam> void findMissingSearchParams(ResourceTable theEntity, Set<Entry<String, RuntimeSearchParam>> activeSearchParams, RestSearchParameterTypeEnum type,
 			Set<T> paramCollection) {
+		Set<String> populatedParamNames = null;
 		for (Entry<String, RuntimeSearchParam> nextEntry : activeSearchParams) {
 			String nextParamName = nextEntry.getKey();
 			if (nextEntry.getValue().getParamType() == type) {
-				boolean haveParam = false;
-				for (BaseResourceIndexedSearchParam nextParam : paramCollection) {
-					if (nextParam.getParamName().equals(nextParamName)) {
-						haveParam = true;
-						break;
+				if (populatedParamNames == null) {
+					populatedParamNames = new HashSet<String>();
+					for (BaseResourceIndexedSearchParam nextParam : paramCollection) {
+						populatedParamNames.add(nextParam.getParamName());
 					}
 				}
 
-				if (!haveParam) {
+				if (!populatedParamNames.contains(nextParamName)) {
 					BaseResourceIndexedSearchParam param;
 					switch (type) {
 						case DATE:
@@ -900,20 +908,10 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 		IParser parser = encoding.newParser(myContext);
 		parser.setDontEncodeElements(EXCLUDE_ELEMENTS_IN_ENCODED);
-		String encoded = parser.encodeResourceToString(theResource);
+		byte[] bytes = encoding.encodeResource(parser, theResource);
 
 		theEntity.setEncoding(encoding);
 		theEntity.setFhirVersion(myContext.getVersion().getVersion());
-		byte[] bytes;
-		switch (encoding) {
-			case JSON:
-				bytes = encoded.getBytes(Charsets.UTF_8);
-				break;
-			default:
-			case JSONC:
-				bytes = GZipUtil.compress(encoded);
-				break;
-		}
 
 		boolean changed = false;
 
@@ -1195,9 +1193,56 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		myPlatformTransactionManager = thePlatformTransactionManager;
 	}
 
+	/**
+	 * Persists any index rows which aren't already stored
+	 * 
+	 * @return The number of rows inserted
+	 */
+	private int persistNewIndexRows(Collection<?> theRows) {
+		int retVal = 0;
+		for (Object next : theRows) {
+			if (!myEntityManager.contains(next)) {
+				myEntityManager.persist(next);
+				retVal++;
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return The number of rows deleted
+	 */
+	private int removeIndexRows(Collection<?> theRows) {
+		for (Object next : theRows) {
+			myEntityManager.remove(next);
+		}
+		return theRows.size();
+	}
+
 	private void setUpdatedTime(Collection<? extends BaseResourceIndexedSearchParam> theParams, Date theUpdateTime) {
 		for (BaseResourceIndexedSearchParam nextSearchParam : theParams) {
-			nextSearchParam.setUpdated(theUpdateTime);
+			// Rows kept from the previous version are left alone, so they aren't dirtied
+			if (nextSearchParam.getUpdated() == null) {
+				nextSearchParam.setUpdated(theUpdateTime);
+			}
+		}
+	}
+
+	/**
+	 * Where a wanted index row is equal to one which is already stored, the
+	 * stored row is kept (and removed from <code>theExisting</code>) in place of
+	 * the new one, so that unchanged rows are neither deleted nor re-inserted
+	 */
+	static <T> void reuseUnchangedIndexRows(Collection<T> theExisting, Set<T> theNew) {
+		if (theExisting.isEmpty() || theNew.isEmpty()) {
+			return;
+		}
+		for (Iterator<T> existingIter = theExisting.iterator(); existingIter.hasNext();) {
+			T nextExisting = existingIter.next();
+			if (theNew.remove(nextExisting)) {
+				existingIter.remove();
+				theNew.add(nextExisting);
+			}
 		}
 	}
 
@@ -1238,26 +1283,68 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return toResource(resourceType, theEntity, theForHistoryOperation);
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public <R extends IBaseResource> R toResource(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation) {
-		String resourceText = null;
-		switch (theEntity.getEncoding()) {
-			case JSON:
-				try {
-					resourceText = new String(theEntity.getResource(), "UTF-8");
-				} catch (UnsupportedEncodingException e) {
-					throw new Error("Should not happen", e);
-				}
-				break;
-			case JSONC:
-				resourceText = GZipUtil.decompress(theEntity.getResource());
-				break;
+		Class<R> resourceType = determineResourceType(theResourceType, theEntity);
+
+		R retVal = myParsedResourceCache.get(theEntity, resourceType);
+		if (retVal == null) {
+			retVal = parseResource(resourceType, theEntity);
+			myParsedResourceCache.put(myContext, theEntity, retVal);
 		}
 
+		return populateResourceMetadata(resourceType, theEntity, theForHistoryOperation, retVal);
+	}
+
+	@Override
+	public List<IBaseResource> toResources(List<? extends BaseHasResource> theEntities, boolean theForHistoryOperation) {
+		List<IBaseResource> retVal = new ArrayList<IBaseResource>(theEntities.size());
+		List<Class<? extends IBaseResource>> resourceTypes = new ArrayList<Class<? extends IBaseResource>>(theEntities.size());
+		List<Integer> parseIndexes = new ArrayList<Integer>();
+		List<Callable<IBaseResource>> parseTasks = new ArrayList<Callable<IBaseResource>>();
+
 		/*
-		 * Use the appropriate custom type if one is specified in the context
+		 * Anything which uses the entity manager (e.g. looking at tags to find
+		 * the custom type to use) happens on this thread, but the resource
+		 * bodies themselves may be parsed in parallel
 		 */
+		for (int i = 0; i < theEntities.size(); i++) {
+			final BaseHasResource nextEntity = theEntities.get(i);
+			Class<? extends IBaseResource> type = myContext.getResourceDefinition(nextEntity.getResourceType()).getImplementingClass();
+			final Class<? extends IBaseResource> resourceType = determineResourceType(type, nextEntity);
+			resourceTypes.add(resourceType);
+
+			IBaseResource cached = myParsedResourceCache.get(nextEntity, resourceType);
+			retVal.add(cached);
+			if (cached == null) {
+				parseIndexes.add(i);
+				parseTasks.add(new Callable<IBaseResource>() {
+					@Override
+					public IBaseResource call() throws Exception {
+						return parseResource(resourceType, nextEntity);
+					}
+				});
+			}
+		}
+
+		List<IBaseResource> parsed = myResourceParsingExecutor.invokeAll(parseTasks);
+		for (int i = 0; i < parseIndexes.size(); i++) {
+			int index = parseIndexes.get(i);
+			retVal.set(index, parsed.get(i));
+			myParsedResourceCache.put(myContext, theEntities.get(index), parsed.get(i));
+		}
+
+		for (int i = 0; i < retVal.size(); i++) {
+			retVal.set(i, populateResourceMetadata(resourceTypes.get(i), theEntities.get(i), theForHistoryOperation, retVal.get(i)));
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the appropriate custom type for the given entity if one is specified in the context
+	 */
+	@SuppressWarnings("unchecked")
+	private <R extends IBaseResource> Class<R> determineResourceType(Class<R> theResourceType, BaseHasResource theEntity) {
 		Class<R> resourceType = theResourceType;
 		if (myContext.hasDefaultTypeForProfile()) {
 			for (BaseTag nextTag : theEntity.getTags()) {
@@ -1274,17 +1361,23 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 				}
 			}
 		}
+		return resourceType;
+	}
 
+	/**
+	 * Parses the stored body of the given entity. This does not use the entity
+	 * manager, so it is safe to call from any thread.
+	 */
+	private <R extends IBaseResource> R parseResource(Class<R> theResourceType, BaseHasResource theEntity) {
 		IParser parser = theEntity.getEncoding().newParser(getContext(theEntity.getFhirVersion()));
 		parser.setParserErrorHandler(new LenientErrorHandler(false).setErrorOnInvalidValue(false));
 
-		R retVal;
 		try {
-			retVal = parser.parseResource(resourceType, resourceText);
+			return theEntity.getEncoding().parseResource(parser, theResourceType, theEntity.getResource());
 		} catch (Exception e) {
 			StringBuilder b = new StringBuilder();
 			b.append("Failed to parse database resource[");
-			b.append(resourceType);
+			b.append(theResourceType);
 			b.append("/");
 			b.append(theEntity.getIdDt().getIdPart());
 			b.append(" (pid ");
@@ -1297,15 +1390,14 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			ourLog.error(msg, e);
 			throw new DataFormatException(msg, e);
 		}
+	}
 
-		if (retVal instanceof IResource) {
-			IResource res = (IResource) retVal;
-			retVal = populateResourceMetadataHapi(resourceType, theEntity, theForHistoryOperation, res);
+	private <R extends IBaseResource> R populateResourceMetadata(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation, IBaseResource theResource) {
+		if (theResource instanceof IResource) {
+			return populateResourceMetadataHapi(theResourceType, theEntity, theForHistoryOperation, (IResource) theResource);
 		} else {
-			IAnyResource res = (IAnyResource) retVal;
-			retVal = populateResourceMetadataRi(resourceType, theEntity, theForHistoryOperation, res);
+			return populateResourceMetadataRi(theResourceType, theEntity, theForHistoryOperation, (IAnyResource) theResource);
 		}
-		return retVal;
 	}
 
 	protected String toResourceName(Class<? extends IBaseResource> theResourceType) {
@@ -1452,6 +1544,19 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 				findMissingSearchParams(theEntity, activeSearchParams, RestSearchParameterTypeEnum.URI, uriParams);
 				findMissingSearchParams(theEntity, activeSearchParams, RestSearchParameterTypeEnum.TOKEN, tokenParams);
 
+				/*
+				 * Index rows whose values are the same as an existing row's are replaced
+				 * by the existing row, so that only the rows which actually changed are
+				 * deleted and inserted below
+				 */
+				reuseUnchangedIndexRows(paramsString, stringParams);
+				reuseUnchangedIndexRows(paramsToken, tokenParams);
+				reuseUnchangedIndexRows(paramsNumber, numberParams);
+				reuseUnchangedIndexRows(paramsQuantity, quantityParams);
+				reuseUnchangedIndexRows(paramsDate, dateParams);
+				reuseUnchangedIndexRows(paramsUri, uriParams);
+				reuseUnchangedIndexRows(paramsCoords, coordsParams);
+
 				setUpdatedTime(stringParams, theUpdateTime);
 				setUpdatedTime(numberParams, theUpdateTime);
 				setUpdatedTime(quantityParams, theUpdateTime);
@@ -1516,13 +1621,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 				/*
 				 * If the existing resource already has links and those match links we still want, use them instead of removing them and re adding them
 				 */
-				for (Iterator<ResourceLink> existingLinkIter = existingResourceLinks.iterator(); existingLinkIter.hasNext();) {
-					ResourceLink nextExisting = existingLinkIter.next();
-					if (links.remove(nextExisting)) {
-						existingLinkIter.remove();
-						links.add(nextExisting);
-					}
-				}
+				reuseUnchangedIndexRows(existingResourceLinks, links);
 
 				changed = populateResourceIntoEntity(theResource, theEntity, true);
 
@@ -1575,6 +1674,14 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			theEntity.setVersion(theEntity.getVersion() + 1);
 		}
 
+		/*
+		 * Cached searches for this type can't be reused once the write commits
+		 */
+		mySearchCoordinatorSvc.notifyResourceWritten(theEntity.getResourceType());
+		if (theEntity.getId() != null) {
+			myParsedResourceCache.notifyResourceWritten(theEntity.getId());
+		}
+
 		/*
 		 * Save the resource itself
 		 */
@@ -1630,72 +1737,40 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		}
 
 		/*
-		 * Indexing
+		 * Indexing: at this point the existing index collections hold only the rows
+		 * which are no longer wanted, and the new ones hold the rows which are
+		 * unchanged (already persisted) as well as the rows to add
 		 */
 		if (thePerformIndexing) {
 
-			for (ResourceIndexedSearchParamString next : paramsString) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamString next : stringParams) {
-				myEntityManager.persist(next);
-			}
-
-			for (ResourceIndexedSearchParamToken next : paramsToken) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamToken next : tokenParams) {
-				myEntityManager.persist(next);
-			}
+			int removed = 0;
+			removed += removeIndexRows(paramsString);
+			removed += removeIndexRows(paramsToken);
+			removed += removeIndexRows(paramsNumber);
+			removed += removeIndexRows(paramsQuantity);
+			removed += removeIndexRows(paramsDate);
+			removed += removeIndexRows(paramsUri);
+			removed += removeIndexRows(paramsCoords);
+			removed += removeIndexRows(existingResourceLinks);
+
+			int added = 0;
+			added += persistNewIndexRows(stringParams);
+			added += persistNewIndexRows(tokenParams);
+			added += persistNewIndexRows(numberParams);
+			added += persistNewIndexRows(quantityParams);
+			added += persistNewIndexRows(dateParams);
+			added += persistNewIndexRows(uriParams);
+			added += persistNewIndexRows(coordsParams);
+			added += persistNewIndexRows(links);
 
-			for (ResourceIndexedSearchParamNumber next : paramsNumber) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamNumber next : numberParams) {
-				myEntityManager.persist(next);
-			}
-
-			for (ResourceIndexedSearchParamQuantity next : paramsQuantity) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamQuantity next : quantityParams) {
-				myEntityManager.persist(next);
-			}
-
-			// Store date SP's
-			for (ResourceIndexedSearchParamDate next : paramsDate) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamDate next : dateParams) {
-				myEntityManager.persist(next);
-			}
-
-			// Store URI SP's
-			for (ResourceIndexedSearchParamUri next : paramsUri) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamUri next : uriParams) {
-				myEntityManager.persist(next);
-			}
-
-			// Store Coords SP's
-			for (ResourceIndexedSearchParamCoords next : paramsCoords) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamCoords next : coordsParams) {
-				myEntityManager.persist(next);
-			}
-
-			// Store resource links
-			for (ResourceLink next : existingResourceLinks) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceLink next : links) {
-				myEntityManager.persist(next);
-			}
 			// make sure links are indexed
 			theEntity.setResourceLinks(links);
 
+			if (ourLog.isDebugEnabled()) {
+				ourLog.debug("Updated index rows for {} - {} added, {} removed", new Object[] { theEntity.getIdDt().toUnqualifiedVersionless().getValue(), added, removed });
+			}
+			myResourceIndexStatistics.recordUpdate(added, removed);
+
 			theEntity.toString();
 
 		} // if thePerformIndexing
@@ -48,6 +48,7 @@ import ca.uhn.fhir.jpa.dao.data.IResourceTableDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
 import ca.uhn.fhir.jpa.entity.*;
 import ca.uhn.fhir.jpa.interceptor.IJpaServerInterceptor;
+import ca.uhn.fhir.jpa.subscription.ResourceChangeEventBus;
 import ca.uhn.fhir.jpa.term.IHapiTerminologySvc;
 import ca.uhn.fhir.jpa.util.DeleteConflict;
 import ca.uhn.fhir.jpa.util.StopWatch;
@@ -79,6 +80,8 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 	@Autowired
 	protected PlatformTransactionManager myPlatformTransactionManager;
 	@Autowired
+	private ResourceChangeEventBus myResourceChangeEventBus;
+	@Autowired
 	private IResourceHistoryTableDao myResourceHistoryTableDao;
 	@Autowired
 	private IResourceLinkDao myResourceLinkDao;
@@ -223,6 +226,7 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 				((IServerOperationInterceptor) next).resourceDeleted(theRequestDetails, resourceToDelete);
 			}
 		}
+		myResourceChangeEventBus.publish(getContext(), resourceToDelete, RestOperationTypeEnum.DELETE, savedEntity.getUpdatedDate());
 
 		DaoMethodOutcome outcome = toMethodOutcome(savedEntity, resourceToDelete).setCreated(true);
 
@@ -293,6 +297,7 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 					((IServerOperationInterceptor) next).resourceDeleted(theRequestDetails, resourceToDelete);
 				}
 			}
+			myResourceChangeEventBus.publish(getContext(), resourceToDelete, RestOperationTypeEnum.DELETE, entity.getUpdatedDate());
 		}
 
 		IBaseOperationOutcome oo;
@@ -409,6 +414,7 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 				((IServerOperationInterceptor) next).resourceCreated(theRequestDetails, theResource);
 			}
 		}
+		myResourceChangeEventBus.publish(getContext(), theResource, RestOperationTypeEnum.CREATE, entity.getUpdatedDate());
 
 		DaoMethodOutcome outcome = toMethodOutcome(entity, theResource).setCreated(true);
 		if (!thePerformIndexing) {
@@ -917,7 +923,7 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 		
 		}
 		
-		return mySearchCoordinatorSvc.registerSearch(this, theParams, getResourceName());
+		return mySearchCoordinatorSvc.registerSearch(this, theParams, getResourceName(), theRequestDetails);
 	}
 
 
@@ -1154,6 +1160,9 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 				((IServerOperationInterceptor) next).resourceUpdated(theRequestDetails, theResource);
 			}
 		}
+		if (!savedEntity.isUnchangedInCurrentOperation()) {
+			myResourceChangeEventBus.publish(getContext(), theResource, RestOperationTypeEnum.UPDATE, savedEntity.getUpdatedDate());
+		}
 		
 		DaoMethodOutcome outcome = toMethodOutcome(savedEntity, theResource).setCreated(false);
 
@@ -64,6 +64,67 @@ public class DaoConfig {
 	 */
 	public static final Long DEFAULT_REUSE_CACHED_SEARCH_RESULTS_FOR_MILLIS = DateUtils.MILLIS_PER_MINUTE;
 
+	/**
+	 * Default value for {@link #setResourceParsingThreadCount(int)}: 4
+	 */
+	public static final int DEFAULT_RESOURCE_PARSING_THREAD_COUNT = 4;
+
+	/**
+	 * Default value for {@link #setRestHookDeliveryBatchSize(int)}: 20
+	 */
+	public static final int DEFAULT_REST_HOOK_DELIVERY_BATCH_SIZE = 20;
+
+	/**
+	 * Default value for {@link #setRestHookDeliveryMaxAttempts(int)}: 10
+	 */
+	public static final int DEFAULT_REST_HOOK_DELIVERY_MAX_ATTEMPTS = 10;
+
+	/**
+	 * Default value for {@link #setRestHookDeliveryMaxConcurrentPerEndpoint(int)}: 1
+	 */
+	public static final int DEFAULT_REST_HOOK_DELIVERY_MAX_CONCURRENT_PER_ENDPOINT = 1;
+
+	/**
+	 * Default value for {@link #setRestHookDeliveryMaxRetryDelayMillis(long)}: 3600000ms (one hour)
+	 */
+	public static final long DEFAULT_REST_HOOK_DELIVERY_MAX_RETRY_DELAY_MILLIS = DateUtils.MILLIS_PER_HOUR;
+
+	/**
+	 * Default value for {@link #setRestHookDeliveryRetryDelayMillis(long)}: 1000ms (one second)
+	 */
+	public static final long DEFAULT_REST_HOOK_DELIVERY_RETRY_DELAY_MILLIS = DateUtils.MILLIS_PER_SECOND;
+
+	/**
+	 * Default value for {@link #setRestHookDeliveryThreadCount(int)}: 10
+	 */
+	public static final int DEFAULT_REST_HOOK_DELIVERY_THREAD_COUNT = 10;
+
+	/**
+	 * Default value for {@link #setSearchFetchSize(int)}: 500
+	 */
+	public static final int DEFAULT_SEARCH_FETCH_SIZE = 500;
+
+	/**
+	 * Default value for {@link #setSearchThreadCount(int)}: 3, which leaves most of
+	 * a connection pool of the default size (8) for everything else
+	 */
+	public static final int DEFAULT_SEARCH_THREAD_COUNT = 3;
+
+	/**
+	 * Default value for {@link #setSearchQueueSize(int)}: 200
+	 */
+	public static final int DEFAULT_SEARCH_QUEUE_SIZE = 200;
+
+	/**
+	 * Default value for {@link #setSearchQueueSizePerClient(int)}: 20
+	 */
+	public static final int DEFAULT_SEARCH_QUEUE_SIZE_PER_CLIENT = 20;
+
+	/**
+	 * Default value for {@link #setSearchRetryAfterSeconds(int)}: 5
+	 */
+	public static final int DEFAULT_SEARCH_RETRY_AFTER_SECONDS = 5;
+
 	// ***
 	// update setter javadoc if default changes
 	// ***
@@ -104,9 +165,22 @@ public class DaoConfig {
 	// ***
 	private int myMaximumExpansionSize = 5000;
 	private int myMaximumSearchResultCountInTransaction = DEFAULT_MAXIMUM_SEARCH_RESULT_COUNT_IN_TRANSACTION;
+	private long myParsedResourceCacheMaxBytes = 0;
 	private ResourceEncodingEnum myResourceEncoding = ResourceEncodingEnum.JSONC;
+	private int myResourceParsingThreadCount = DEFAULT_RESOURCE_PARSING_THREAD_COUNT;
+	private int myRestHookDeliveryBatchSize = DEFAULT_REST_HOOK_DELIVERY_BATCH_SIZE;
+	private int myRestHookDeliveryMaxAttempts = DEFAULT_REST_HOOK_DELIVERY_MAX_ATTEMPTS;
+	private int myRestHookDeliveryMaxConcurrentPerEndpoint = DEFAULT_REST_HOOK_DELIVERY_MAX_CONCURRENT_PER_ENDPOINT;
+	private long myRestHookDeliveryMaxRetryDelayMillis = DEFAULT_REST_HOOK_DELIVERY_MAX_RETRY_DELAY_MILLIS;
+	private long myRestHookDeliveryRetryDelayMillis = DEFAULT_REST_HOOK_DELIVERY_RETRY_DELAY_MILLIS;
+	private int myRestHookDeliveryThreadCount = DEFAULT_REST_HOOK_DELIVERY_THREAD_COUNT;
 	private Long myReuseCachedSearchResultsForMillis = DEFAULT_REUSE_CACHED_SEARCH_RESULTS_FOR_MILLIS;
 	private boolean mySchedulingDisabled;
+	private int mySearchFetchSize = DEFAULT_SEARCH_FETCH_SIZE;
+	private int mySearchQueueSize = DEFAULT_SEARCH_QUEUE_SIZE;
+	private int mySearchQueueSizePerClient = DEFAULT_SEARCH_QUEUE_SIZE_PER_CLIENT;
+	private int mySearchRetryAfterSeconds = DEFAULT_SEARCH_RETRY_AFTER_SECONDS;
+	private int mySearchThreadCount = DEFAULT_SEARCH_THREAD_COUNT;
 	private boolean mySubscriptionEnabled;
 	private long mySubscriptionPollDelay = 1000;
 	private Long mySubscriptionPurgeInactiveAfterMillis;
@@ -202,10 +276,98 @@ public class DaoConfig {
 		return myMaximumSearchResultCountInTransaction;
 	}
 
+	/**
+	 * Returns the approximate size limit of the cache of parsed resources (default is <code>0</code>,
+	 * meaning the cache is disabled)
+	 * 
+	 * @see #setParsedResourceCacheMaxBytes(long)
+	 */
+	public long getParsedResourceCacheMaxBytes() {
+		return myParsedResourceCacheMaxBytes;
+	}
+
+	/**
+	 * Returns the encoding used to store new resource versions (default is {@link ResourceEncodingEnum#JSONC})
+	 * 
+	 * @see #setResourceEncoding(ResourceEncodingEnum)
+	 */
 	public ResourceEncodingEnum getResourceEncoding() {
 		return myResourceEncoding;
 	}
 
+	/**
+	 * Returns the number of threads used to parse resources when a page of search
+	 * results (or other large group of resources) is loaded (default is
+	 * {@link #DEFAULT_RESOURCE_PARSING_THREAD_COUNT})
+	 * 
+	 * @see #setResourceParsingThreadCount(int)
+	 */
+	public int getResourceParsingThreadCount() {
+		return myResourceParsingThreadCount;
+	}
+
+	/**
+	 * Returns the maximum number of rest-hook notifications for the same endpoint
+	 * which are sent together by one delivery thread (default is
+	 * {@link #DEFAULT_REST_HOOK_DELIVERY_BATCH_SIZE})
+	 * 
+	 * @see #setRestHookDeliveryBatchSize(int)
+	 */
+	public int getRestHookDeliveryBatchSize() {
+		return myRestHookDeliveryBatchSize;
+	}
+
+	/**
+	 * Returns the number of times delivery of a rest-hook notification is attempted
+	 * before it is abandoned (default is {@link #DEFAULT_REST_HOOK_DELIVERY_MAX_ATTEMPTS})
+	 * 
+	 * @see #setRestHookDeliveryMaxAttempts(int)
+	 */
+	public int getRestHookDeliveryMaxAttempts() {
+		return myRestHookDeliveryMaxAttempts;
+	}
+
+	/**
+	 * Returns the maximum number of deliveries which may be in progress at the same
+	 * time for a single rest-hook endpoint (default is
+	 * {@link #DEFAULT_REST_HOOK_DELIVERY_MAX_CONCURRENT_PER_ENDPOINT})
+	 * 
+	 * @see #setRestHookDeliveryMaxConcurrentPerEndpoint(int)
+	 */
+	public int getRestHookDeliveryMaxConcurrentPerEndpoint() {
+		return myRestHookDeliveryMaxConcurrentPerEndpoint;
+	}
+
+	/**
+	 * Returns the longest time to wait before retrying a failed rest-hook delivery
+	 * (default is {@link #DEFAULT_REST_HOOK_DELIVERY_MAX_RETRY_DELAY_MILLIS})
+	 * 
+	 * @see #setRestHookDeliveryMaxRetryDelayMillis(long)
+	 */
+	public long getRestHookDeliveryMaxRetryDelayMillis() {
+		return myRestHookDeliveryMaxRetryDelayMillis;
+	}
+
+	/**
+	 * Returns the time to wait before retrying a rest-hook delivery which has failed
+	 * once (default is {@link #DEFAULT_REST_HOOK_DELIVERY_RETRY_DELAY_MILLIS})
+	 * 
+	 * @see #setRestHookDeliveryRetryDelayMillis(long)
+	 */
+	public long getRestHookDeliveryRetryDelayMillis() {
+		return myRestHookDeliveryRetryDelayMillis;
+	}
+
+	/**
+	 * Returns the number of threads used to deliver rest-hook notifications
+	 * (default is {@link #DEFAULT_REST_HOOK_DELIVERY_THREAD_COUNT})
+	 * 
+	 * @see #setRestHookDeliveryThreadCount(int)
+	 */
+	public int getRestHookDeliveryThreadCount() {
+		return myRestHookDeliveryThreadCount;
+	}
+
 	/**
 	 * If set to a non {@literal null} value (default is {@link #DEFAULT_REUSE_CACHED_SEARCH_RESULTS_FOR_MILLIS non null})
 	 * if an identical search is requested multiple times within this window, the same results will be returned
@@ -221,6 +383,73 @@ public class DaoConfig {
 		return myReuseCachedSearchResultsForMillis;
 	}
 
+	/**
+	 * Returns the number of matching resource IDs fetched from the database in
+	 * each round trip while a search is loading (default is
+	 * {@link #DEFAULT_SEARCH_FETCH_SIZE}). Search results are read through a
+	 * forward-only cursor, so this is also roughly the number of IDs held in
+	 * memory by the JDBC driver at any time.
+	 */
+	public int getSearchFetchSize() {
+		return mySearchFetchSize;
+	}
+
+	/**
+	 * Returns the maximum number of new searches which may wait for a search
+	 * thread (default is {@link #DEFAULT_SEARCH_QUEUE_SIZE}). When this many are
+	 * waiting, further searches are refused with an HTTP 503 (Service Unavailable)
+	 * response.
+	 * 
+	 * @see #setSearchThreadCount(int)
+	 */
+	public int getSearchQueueSize() {
+		return mySearchQueueSize;
+	}
+
+	/**
+	 * Returns the maximum number of new searches from one client (by remote
+	 * address) which may wait for a search thread (default is
+	 * {@link #DEFAULT_SEARCH_QUEUE_SIZE_PER_CLIENT}). When this many are
+	 * waiting, further searches from that client are refused with an HTTP 503
+	 * (Service Unavailable) response.
+	 */
+	public int getSearchQueueSizePerClient() {
+		return mySearchQueueSizePerClient;
+	}
+
+	/**
+	 * Returns the number of seconds a client is asked to wait (in the
+	 * <code>Retry-After</code> header) before retrying a search which was refused
+	 * because the search queue is full (default is {@link #DEFAULT_SEARCH_RETRY_AFTER_SECONDS})
+	 */
+	public int getSearchRetryAfterSeconds() {
+		return mySearchRetryAfterSeconds;
+	}
+
+	/**
+	 * Returns the number of threads used to load search results (default is
+	 * {@link #DEFAULT_SEARCH_THREAD_COUNT}). Each loading search holds a database
+	 * connection while it reads a batch of results, and the requests paging
+	 * through its results, and every other request, need connections of their
+	 * own. This should therefore be well under half the size of the connection
+	 * pool. Searches beyond this number wait in a queue, where loading the first
+	 * page of a new search goes ahead of continuing to load searches whose first
+	 * page has already been returned, unless the continuation has already waited
+	 * for longer than
+	 * {@link ca.uhn.fhir.jpa.search.SearchScheduler#DEFAULT_CONTINUATION_MAX_WAIT_MILLIS}.
+	 * A loading search makes way for a waiting new search after each batch of
+	 * results, and a request which waits too long for the first page of a
+	 * queued search is answered with an HTTP 503 and a Retry-After header (see
+	 * {@link #getSearchRetryAfterSeconds()}).
+	 * <p>
+	 * This setting is read when the first search is performed, so changing it
+	 * afterward has no effect.
+	 * </p>
+	 */
+	public int getSearchThreadCount() {
+		return mySearchThreadCount;
+	}
+
 	public long getSubscriptionPollDelay() {
 		return mySubscriptionPollDelay;
 	}
@@ -624,10 +853,122 @@ public class DaoConfig {
 		myMaximumSearchResultCountInTransaction = theMaximumSearchResultCountInTransaction;
 	}
 
+	/**
+	 * If set to a value greater than <code>0</code> (default is <code>0</code>), resources
+	 * which are read from the database are kept in a cache of parsed resources, so that
+	 * reading the same version of a resource again does not need it to be decompressed
+	 * and parsed again. The cache holds up to approximately this many bytes of parsed
+	 * resources, using an estimate of the heap size of each one (based on the number of
+	 * populated elements and the length of their values) rather than a measurement.
+	 * <p>
+	 * Only resources using the DSTU2 HL7.org and DSTU3 structures are cached.
+	 * </p>
+	 */
+	public void setParsedResourceCacheMaxBytes(long theParsedResourceCacheMaxBytes) {
+		myParsedResourceCacheMaxBytes = theParsedResourceCacheMaxBytes;
+	}
+
+	/**
+	 * Sets the encoding used to store new resource versions (default is {@link ResourceEncodingEnum#JSONC}).
+	 * Each version records the encoding it was stored with, so changing this setting
+	 * does not affect the ability to read existing resources.
+	 * <p>
+	 * {@link ResourceEncodingEnum#JSOND} generally stores resources in less space than
+	 * the default, but it should not be used if older versions of HAPI FHIR (which
+	 * can not read it) share the same database.
+	 * </p>
+	 */
 	public void setResourceEncoding(ResourceEncodingEnum theResourceEncoding) {
 		myResourceEncoding = theResourceEncoding;
 	}
 
+	/**
+	 * Sets the number of threads used to parse resources when a page of search
+	 * results (or other large group of resources) is loaded (default is
+	 * {@link #DEFAULT_RESOURCE_PARSING_THREAD_COUNT}). These threads are shared
+	 * by all requests. Set this to <code>1</code> to parse all resources on the
+	 * thread which is loading them.
+	 * <p>
+	 * This setting is read when resources are first loaded, so changing it
+	 * afterward has no effect.
+	 * </p>
+	 */
+	public void setResourceParsingThreadCount(int theResourceParsingThreadCount) {
+		myResourceParsingThreadCount = theResourceParsingThreadCount;
+	}
+
+	/**
+	 * Sets the maximum number of rest-hook notifications for the same endpoint
+	 * which are sent together by one delivery thread, reusing the same connection
+	 * (default is {@link #DEFAULT_REST_HOOK_DELIVERY_BATCH_SIZE}).
+	 */
+	public void setRestHookDeliveryBatchSize(int theRestHookDeliveryBatchSize) {
+		Validate.isTrue(theRestHookDeliveryBatchSize > 0, "theRestHookDeliveryBatchSize must be > 0");
+		myRestHookDeliveryBatchSize = theRestHookDeliveryBatchSize;
+	}
+
+	/**
+	 * Sets the number of times delivery of a rest-hook notification is attempted
+	 * before it is abandoned (default is {@link #DEFAULT_REST_HOOK_DELIVERY_MAX_ATTEMPTS}).
+	 * Abandoned notifications are kept in the delivery table with a status of
+	 * <code>FAILED</code>.
+	 */
+	public void setRestHookDeliveryMaxAttempts(int theRestHookDeliveryMaxAttempts) {
+		Validate.isTrue(theRestHookDeliveryMaxAttempts > 0, "theRestHookDeliveryMaxAttempts must be > 0");
+		myRestHookDeliveryMaxAttempts = theRestHookDeliveryMaxAttempts;
+	}
+
+	/**
+	 * Sets the maximum number of deliveries which may be in progress at the same
+	 * time for a single rest-hook endpoint (default is
+	 * {@link #DEFAULT_REST_HOOK_DELIVERY_MAX_CONCURRENT_PER_ENDPOINT}). This stops
+	 * a slow endpoint from using all of the delivery threads.
+	 * <p>
+	 * With the default of <code>1</code>, each endpoint receives its notifications in
+	 * the order they were queued, including across retries. If this is set higher,
+	 * batches for the same endpoint are sent in parallel and may arrive out of order,
+	 * so an endpoint could receive an older version of a resource after a newer one.
+	 * </p>
+	 */
+	public void setRestHookDeliveryMaxConcurrentPerEndpoint(int theRestHookDeliveryMaxConcurrentPerEndpoint) {
+		Validate.isTrue(theRestHookDeliveryMaxConcurrentPerEndpoint > 0, "theRestHookDeliveryMaxConcurrentPerEndpoint must be > 0");
+		myRestHookDeliveryMaxConcurrentPerEndpoint = theRestHookDeliveryMaxConcurrentPerEndpoint;
+	}
+
+	/**
+	 * Sets the longest time to wait before retrying a failed rest-hook delivery
+	 * (default is {@link #DEFAULT_REST_HOOK_DELIVERY_MAX_RETRY_DELAY_MILLIS})
+	 * 
+	 * @see #setRestHookDeliveryRetryDelayMillis(long)
+	 */
+	public void setRestHookDeliveryMaxRetryDelayMillis(long theRestHookDeliveryMaxRetryDelayMillis) {
+		myRestHookDeliveryMaxRetryDelayMillis = theRestHookDeliveryMaxRetryDelayMillis;
+	}
+
+	/**
+	 * Sets the time to wait before retrying a rest-hook delivery which has failed
+	 * once (default is {@link #DEFAULT_REST_HOOK_DELIVERY_RETRY_DELAY_MILLIS}). The
+	 * delay doubles after each further failure, up to
+	 * {@link #setRestHookDeliveryMaxRetryDelayMillis(long) the maximum}.
+	 */
+	public void setRestHookDeliveryRetryDelayMillis(long theRestHookDeliveryRetryDelayMillis) {
+		myRestHookDeliveryRetryDelayMillis = theRestHookDeliveryRetryDelayMillis;
+	}
+
+	/**
+	 * Sets the number of threads used to deliver rest-hook notifications
+	 * (default is {@link #DEFAULT_REST_HOOK_DELIVERY_THREAD_COUNT}). These
+	 * threads are shared by all endpoints.
+	 * <p>
+	 * This setting is read when the first notification is delivered, so changing it
+	 * afterward has no effect.
+	 * </p>
+	 */
+	public void setRestHookDeliveryThreadCount(int theRestHookDeliveryThreadCount) {
+		Validate.isTrue(theRestHookDeliveryThreadCount > 0, "theRestHookDeliveryThreadCount must be > 0");
+		myRestHookDeliveryThreadCount = theRestHookDeliveryThreadCount;
+	}
+
 	/**
 	 * If set to a non {@literal null} value (default is {@link #DEFAULT_REUSE_CACHED_SEARCH_RESULTS_FOR_MILLIS non null})
 	 * if an identical search is requested multiple times within this window, the same results will be returned
@@ -647,6 +988,85 @@ public class DaoConfig {
 		mySchedulingDisabled = theSchedulingDisabled;
 	}
 
+	/**
+	 * Sets the number of matching resource IDs fetched from the database in
+	 * each round trip while a search is loading (default is
+	 * {@link #DEFAULT_SEARCH_FETCH_SIZE}). Search results are read through a
+	 * forward-only cursor, so this is also roughly the number of IDs held in
+	 * memory by the JDBC driver at any time.
+	 */
+	public void setSearchFetchSize(int theSearchFetchSize) {
+		Validate.isTrue(theSearchFetchSize > 0, "theSearchFetchSize must be > 0");
+		mySearchFetchSize = theSearchFetchSize;
+	}
+
+	/**
+	 * Sets the maximum number of new searches which may wait for a search
+	 * thread (default is {@link #DEFAULT_SEARCH_QUEUE_SIZE}). When this many are
+	 * waiting, further searches are refused with an HTTP 503 (Service Unavailable)
+	 * response.
+	 * <p>
+	 * This setting is read when the first search is performed, so changing it
+	 * afterward has no effect.
+	 * </p>
+	 * 
+	 * @see #setSearchThreadCount(int)
+	 */
+	public void setSearchQueueSize(int theSearchQueueSize) {
+		Validate.isTrue(theSearchQueueSize >= 0, "theSearchQueueSize must be >= 0");
+		mySearchQueueSize = theSearchQueueSize;
+	}
+
+	/**
+	 * Sets the maximum number of new searches from one client (by remote
+	 * address) which may wait for a search thread (default is
+	 * {@link #DEFAULT_SEARCH_QUEUE_SIZE_PER_CLIENT}). When this many are
+	 * waiting, further searches from that client are refused with an HTTP 503
+	 * (Service Unavailable) response.
+	 * <p>
+	 * This setting is read when the first search is performed, so changing it
+	 * afterward has no effect.
+	 * </p>
+	 */
+	public void setSearchQueueSizePerClient(int theSearchQueueSizePerClient) {
+		Validate.isTrue(theSearchQueueSizePerClient >= 0, "theSearchQueueSizePerClient must be >= 0");
+		mySearchQueueSizePerClient = theSearchQueueSizePerClient;
+	}
+
+	/**
+	 * Sets the number of seconds a client is asked to wait (in the
+	 * <code>Retry-After</code> header) before retrying a search which was refused
+	 * because the search queue is full (default is {@link #DEFAULT_SEARCH_RETRY_AFTER_SECONDS})
+	 */
+	public void setSearchRetryAfterSeconds(int theSearchRetryAfterSeconds) {
+		mySearchRetryAfterSeconds = theSearchRetryAfterSeconds;
+	}
+
+	/**
+	 * Sets the number of threads used to load search results (default is
+	 * {@link #DEFAULT_SEARCH_THREAD_COUNT}). Each loading search holds a database
+	 * connection while it reads a batch of results, and the requests paging
+	 * through its results, and every other request, need connections of their
+	 * own. This should therefore be well under half the size of the connection
+	 * pool. Searches beyond this number wait in a queue, where loading the first
+	 * page of a new search goes ahead of continuing to load searches whose first
+	 * page has already been returned, unless the continuation has already waited
+	 * for longer than
+	 * {@link ca.uhn.fhir.jpa.search.SearchScheduler#DEFAULT_CONTINUATION_MAX_WAIT_MILLIS}.
+	 * A loading search makes way for a waiting new search after each batch of
+	 * results, and a request which waits too long for the first page of a
+	 * queued search is answered with an HTTP 503 and a Retry-After header (see
+	 * {@link #getSearchRetryAfterSeconds()}).
+	 * <p>
+	 * This setting is read when the first search is performed, so changing it
+	 * afterward has no effect.
+	 * </p>
+	 */
+	public void setSearchThreadCount(int theSearchThreadCount) {
+		Validate.isTrue(theSearchThreadCount > 0, "theSearchThreadCount must be > 0");
+		mySearchThreadCount = theSearchThreadCount;
+	}
+
 	/**
 	 * If set to true, the server will enable support for subscriptions. Subscriptions
 	 * will by default be handled via a polling task. Note that if this is enabled, you must also include Spring task scanning to your XML
@@ -146,7 +146,7 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 				@Override
 				public Integer doInTransaction(TransactionStatus theStatus) {
 					SubscriptionTable nextSubscriptionTable = mySubscriptionTableDao.findOne(nextSubscriptionTablePid);
-					return pollForNewUndeliveredResources(nextSubscriptionTable, resourceType);
+					return pollForNewUndeliveredResources(nextSubscriptionTable, resourceType, System.currentTimeMillis() - getConfig().getSubscriptionPollDelay());
 				}
 			});
 		}
@@ -154,7 +154,33 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 		return retVal;
 	}
 
-	private int pollForNewUndeliveredResources(SubscriptionTable theSubscriptionTable, String resourceType) {
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public synchronized int pollForNewUndeliveredResourcesForSubscription(final Long theSubscriptionPid) {
+		if (getConfig().isSubscriptionEnabled() == false) {
+			return 0;
+		}
+
+		/*
+		 * No poll delay here: a change which commits after this search has
+		 * started is sent to the client as it happens
+		 */
+		final long end = System.currentTimeMillis();
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		return txTemplate.execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus theStatus) {
+				SubscriptionTable subscriptionTable = mySubscriptionTableDao.findOne(theSubscriptionPid);
+				if (subscriptionTable == null) {
+					return 0;
+				}
+				return pollForNewUndeliveredResources(subscriptionTable, null, end);
+			}
+		});
+	}
+
+	private int pollForNewUndeliveredResources(SubscriptionTable theSubscriptionTable, String resourceType, long theEnd) {
 		Subscription subscription = toResource(Subscription.class, theSubscriptionTable.getSubscriptionResource(), false);
 		ourLog.info("subscription for " + resourceType + " with criteria " + subscription.getCriteria());
 
@@ -172,7 +198,7 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 		SearchParameterMap criteriaUrl = translateMatchUrl(this, getContext(), subscription.getCriteria(), resourceDef);
 
 		long start = theSubscriptionTable.getMostRecentMatch().getTime();
-		long end = System.currentTimeMillis() - getConfig().getSubscriptionPollDelay();
+		long end = theEnd;
 		if (end <= start) {
 			ourLog.trace("Skipping search for subscription");
 			return 0;
@@ -287,6 +313,19 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 		}
 	}
 
+	@Override
+	public void recordClientDelivery(Long theSubscriptionPid, Date theMostRecentMatch) {
+		SubscriptionTable subscriptionTable = mySubscriptionTableDao.findOne(theSubscriptionPid);
+		if (subscriptionTable == null) {
+			return;
+		}
+		subscriptionTable.setLastClientPoll(new Date());
+		if (theMostRecentMatch != null && theMostRecentMatch.after(subscriptionTable.getMostRecentMatch())) {
+			subscriptionTable.setMostRecentMatch(theMostRecentMatch);
+		}
+		mySubscriptionTableDao.save(subscriptionTable);
+	}
+
 	@Override
 	protected ResourceTable updateEntity(IBaseResource theResource, ResourceTable theEntity, Date theDeletedTimestampOrNull, boolean thePerformIndexing, boolean theUpdateVersion,
 			Date theUpdateTime, boolean theForceUpdate, boolean theCreateNewHistoryEntry) {
@@ -1,6 +1,7 @@
 package ca.uhn.fhir.jpa.dao;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 import org.hl7.fhir.instance.model.api.IAnyResource;
@@ -83,4 +84,10 @@ public interface IDao {
 
 	<R extends IBaseResource> R toResource(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation);
 
+	/**
+	 * Converts each of the given entities into a resource, as {@link #toResource(BaseHasResource, boolean)}
+	 * does, returning them in the same order. The resource bodies may be parsed in parallel.
+	 */
+	List<IBaseResource> toResources(List<? extends BaseHasResource> theEntities, boolean theForHistoryOperation);
+
 }
@@ -1,5 +1,6 @@
 package ca.uhn.fhir.jpa.dao;
 
+import java.util.Date;
 import java.util.List;
 
 /*
@@ -27,6 +28,11 @@ import org.hl7.fhir.instance.model.api.IIdType;
 
 public interface IFhirResourceDaoSubscription<T extends IBaseResource> extends IFhirResourceDao<T> {
 
+	/**
+	 * The most resources which are flagged for a subscription by one poll
+	 */
+	int MAX_RESOURCES_PER_POLL = 1000;
+
 	int pollForNewUndeliveredResources();
 
 	List<IBaseResource> getUndeliveredResourcesAndPurge(Long theSubscriptionPid);
@@ -38,4 +44,29 @@ public interface IFhirResourceDaoSubscription<T extends IBaseResource> extends I
 	void pollForNewUndeliveredResourcesScheduler();
 
 	int pollForNewUndeliveredResources(String resourceType);
+
+	/**
+	 * Catches up a single subscription, flagging every resource which has matched it
+	 * since its most recent match, up to now. This is used when a client connects,
+	 * after which the client is sent changes as they happen.
+	 * <p>
+	 * At most {@link #MAX_RESOURCES_PER_POLL} resources are looked at, so while this
+	 * returns that many it should be called again (once the flagged resources have
+	 * been purged) to carry on from where it stopped.
+	 * </p>
+	 * 
+	 * @return The number of matching resources found, which is
+	 *         {@link #MAX_RESOURCES_PER_POLL} if there may be more
+	 */
+	int pollForNewUndeliveredResourcesForSubscription(Long theSubscriptionPid);
+
+	/**
+	 * Records that a connected client has been sent the matching resources updated
+	 * up to the given time, so that catching up when it next connects starts from there.
+	 * This also counts as a client poll for the purpose of purging inactive subscriptions.
+	 * 
+	 * @param theMostRecentMatch
+	 *           The last updated time of the most recent resource sent, or <code>null</code>
+	 */
+	void recordClientDelivery(Long theSubscriptionPid, Date theMostRecentMatch);
 }
@@ -35,8 +35,28 @@ import ca.uhn.fhir.rest.param.DateRangeParam;
 
 public interface ISearchBuilder {
 
+	/**
+	 * Returns an iterator over the PIDs of the matching resources. When called
+	 * within a transaction the iterator may hold a database cursor open until it
+	 * has been exhausted, in which case it is also {@link java.io.Closeable} and
+	 * should be closed by callers which may stop reading early.
+	 */
 	Iterator<Long> createQuery(SearchParameterMap theParams, String theSearchUuid);
 
+	/**
+	 * Reads one range of rows of the query, in an order which is the same each
+	 * time the query is run (the requested sort, then the resource PID), so
+	 * that a search can be loaded a batch at a time, each in its own
+	 * transaction, without re-reading the rows before the range. PIDs may
+	 * repeat across ranges and are not removed here.
+	 *
+	 * @param theFromRow The index of the first row to read
+	 * @param theMaxRows The maximum number of rows to read
+	 * @param thePids The PIDs read are added to this collection
+	 * @return The number of rows read, which is less than <code>theMaxRows</code> only once the last row has been read
+	 */
+	int loadQueryRange(SearchParameterMap theParams, String theSearchUuid, int theFromRow, int theMaxRows, Collection<Long> thePids);
+
 	void setType(Class<? extends IBaseResource> theResourceType, String theResourceName);
 
 	void loadResourcesByPid(Collection<Long> theIncludePids, List<IBaseResource> theResourceListToPopulate, Set<Long> theRevIncludedPids, boolean theForHistoryOperation, EntityManager theEntityManager,
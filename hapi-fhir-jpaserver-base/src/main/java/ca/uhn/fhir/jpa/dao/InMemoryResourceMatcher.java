@@ -0,0 +1,567 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseExtension;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamNumber;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamUri;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.model.dstu.resource.BaseResource;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.NumberParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.QuantityParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
+
+/**
+ * Checks whether a single resource matches a set of search criteria in memory,
+ * using the same index values that are extracted when the resource is stored,
+ * instead of searching the database for it. This is used to check resources
+ * which have just been written against subscription criteria.
+ * <p>
+ * Only criteria which {@link #canMatch(String, SearchParameterMap)} accepts can
+ * be checked. These are string, token, date, number, quantity and URI parameters
+ * without modifiers, references without chains, and <code>_id</code>. Criteria
+ * which use anything else (chains, <code>_has</code>, modifiers, <code>:missing</code>,
+ * tags, <code>_lastUpdated</code>, etc.) need to be checked with a search.
+ * </p>
+ */
+public class InMemoryResourceMatcher {
+
+	@Autowired
+	private FhirContext myContext;
+	@Autowired
+	private DaoConfig myDaoConfig;
+	@Autowired
+	private ISearchParamExtractor mySearchParamExtractor;
+	@Autowired
+	private ISearchParamRegistry mySearchParamRegistry;
+
+	/**
+	 * Returns <code>true</code> if the given criteria can be checked using
+	 * {@link #match(String, SearchParameterMap, IndexedResource)}
+	 */
+	public boolean canMatch(String theResourceName, SearchParameterMap theCriteria) {
+		if (theCriteria.getLastUpdated() != null) {
+			return false;
+		}
+
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextEntry : theCriteria.entrySet()) {
+			String nextParamName = nextEntry.getKey();
+			RuntimeSearchParam nextParamDef = null;
+			if (!BaseResource.SP_RES_ID.equals(nextParamName)) {
+				if (nextParamName.startsWith("_")) {
+					return false;
+				}
+				nextParamDef = mySearchParamRegistry.getActiveSearchParam(theResourceName, nextParamName);
+				if (nextParamDef == null) {
+					return false;
+				}
+			}
+
+			for (List<? extends IQueryParameterType> nextAnd : nextEntry.getValue()) {
+				if (nextAnd.isEmpty()) {
+					return false;
+				}
+				for (IQueryParameterType nextOr : nextAnd) {
+					if (!canMatch(nextParamDef, nextOr)) {
+						return false;
+					}
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Extracts the index values for a resource so that it can be checked against
+	 * any number of criteria
+	 */
+	public IndexedResource index(String theResourceName, IBaseResource theResource) {
+		ResourceTable entity = new ResourceTable();
+		entity.setResourceType(theResourceName);
+
+		IndexedResource retVal = new IndexedResource(theResourceName, theResource);
+		retVal.addAll(mySearchParamExtractor.extractSearchParamStrings(entity, theResource));
+		retVal.addAll(mySearchParamExtractor.extractSearchParamTokens(entity, theResource));
+		retVal.addAll(mySearchParamExtractor.extractSearchParamDates(entity, theResource));
+		retVal.addAll(mySearchParamExtractor.extractSearchParamNumber(entity, theResource));
+		retVal.addAll(mySearchParamExtractor.extractSearchParamQuantity(entity, theResource));
+		retVal.addAll(mySearchParamExtractor.extractSearchParamUri(entity, theResource));
+		return retVal;
+	}
+
+	/**
+	 * Returns <code>true</code> if the given resource would be found by a search
+	 * using the given criteria. The criteria must be ones which
+	 * {@link #canMatch(String, SearchParameterMap) can be matched}.
+	 */
+	public boolean match(String theResourceName, SearchParameterMap theCriteria, IndexedResource theResource) {
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextEntry : theCriteria.entrySet()) {
+			String nextParamName = nextEntry.getKey();
+			RuntimeSearchParam nextParamDef = null;
+			if (!BaseResource.SP_RES_ID.equals(nextParamName)) {
+				nextParamDef = mySearchParamRegistry.getActiveSearchParam(theResourceName, nextParamName);
+			}
+
+			for (List<? extends IQueryParameterType> nextAnd : nextEntry.getValue()) {
+				boolean matched = false;
+				for (IQueryParameterType nextOr : nextAnd) {
+					if (matchParam(nextParamName, nextParamDef, nextOr, theResource)) {
+						matched = true;
+						break;
+					}
+				}
+				if (!matched) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean matchId(IQueryParameterType theParam, IndexedResource theResource) {
+		String value = theParam.getValueAsQueryToken(myContext);
+		if (value != null && value.startsWith("|")) {
+			value = value.substring(1);
+		}
+		if (isBlank(value)) {
+			return false;
+		}
+
+		IdDt valueAsId = new IdDt(value);
+		IIdType resourceId = theResource.getResource().getIdElement();
+		if (valueAsId.isIdPartValidLong() && resourceId.isIdPartValidLong()) {
+			return valueAsId.getIdPartAsLong().equals(resourceId.getIdPartAsLong());
+		}
+		return valueAsId.getIdPart().equals(resourceId.getIdPart());
+	}
+
+	private boolean matchParam(String theParamName, RuntimeSearchParam theParamDef, IQueryParameterType theParam, IndexedResource theResource) {
+		if (theParamDef == null) {
+			return matchId(theParam, theResource);
+		}
+
+		switch (theParamDef.getParamType()) {
+			case REFERENCE:
+				return matchReference(theParamDef, (ReferenceParam) theParam, theResource);
+			case STRING:
+				for (ResourceIndexedSearchParamString next : theResource.getValues(theParamName, ResourceIndexedSearchParamString.class)) {
+					if (matchString((StringParam) theParam, next)) {
+						return true;
+					}
+				}
+				return false;
+			case TOKEN:
+				for (ResourceIndexedSearchParamToken next : theResource.getValues(theParamName, ResourceIndexedSearchParamToken.class)) {
+					if (matchToken((TokenParam) theParam, next)) {
+						return true;
+					}
+				}
+				return false;
+			case DATE:
+				DateRangeParam range = theParam instanceof DateParam ? new DateRangeParam((DateParam) theParam) : (DateRangeParam) theParam;
+				for (ResourceIndexedSearchParamDate next : theResource.getValues(theParamName, ResourceIndexedSearchParamDate.class)) {
+					if (matchDate(range, next)) {
+						return true;
+					}
+				}
+				return false;
+			case NUMBER:
+				NumberParam number = (NumberParam) theParam;
+				ParamPrefixEnum numberPrefix = ObjectUtils.defaultIfNull(number.getPrefix(), ParamPrefixEnum.EQUAL);
+				for (ResourceIndexedSearchParamNumber next : theResource.getValues(theParamName, ResourceIndexedSearchParamNumber.class)) {
+					if (matchNumeric(numberPrefix, number.getValue(), next.getValue())) {
+						return true;
+					}
+				}
+				return false;
+			case QUANTITY:
+				QuantityParam quantity = (QuantityParam) theParam;
+				for (ResourceIndexedSearchParamQuantity next : theResource.getValues(theParamName, ResourceIndexedSearchParamQuantity.class)) {
+					if (matchQuantity(quantity, next)) {
+						return true;
+					}
+				}
+				return false;
+			case URI:
+				String uri = ((UriParam) theParam).getValue();
+				for (ResourceIndexedSearchParamUri next : theResource.getValues(theParamName, ResourceIndexedSearchParamUri.class)) {
+					if (uri.equals(next.getUri())) {
+						return true;
+					}
+				}
+				return false;
+			default:
+				throw new IllegalStateException("Can not match parameter " + theParamName + " of type " + theParamDef.getParamType() + " in memory");
+		}
+	}
+
+	private boolean matchReference(RuntimeSearchParam theParamDef, ReferenceParam theParam, IndexedResource theResource) {
+		if (theResource.getResource() instanceof IBaseBundle) {
+			// Links aren't indexed for bundles
+			return false;
+		}
+
+		for (PathAndRef next : mySearchParamExtractor.extractResourceLinks(theResource.getResource(), theParamDef)) {
+			IIdType nextId = toReferenceId(next.getRef());
+			if (nextId == null) {
+				continue;
+			}
+			if (nextId.hasBaseUrl()) {
+				if (!myDaoConfig.getTreatBaseUrlsAsLocal().contains(nextId.getBaseUrl())) {
+					continue;
+				}
+				nextId = nextId.toUnqualified();
+			}
+			if (!theParam.getIdPart().equals(nextId.getIdPart())) {
+				continue;
+			}
+			if (isNotBlank(theParam.getResourceType()) && !theParam.getResourceType().equals(nextId.getResourceType())) {
+				continue;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private static boolean canMatch(RuntimeSearchParam theParamDef, IQueryParameterType theParam) {
+		if (theParam.getMissing() != null) {
+			return false;
+		}
+
+		if (theParamDef == null) {
+			// _id
+			return theParam instanceof StringParam;
+		}
+
+		switch (theParamDef.getParamType()) {
+			case REFERENCE:
+				if (!(theParam instanceof ReferenceParam)) {
+					return false;
+				}
+				ReferenceParam ref = (ReferenceParam) theParam;
+				return isBlank(ref.getChain()) && isBlank(ref.getBaseUrl()) && isNotBlank(ref.getIdPart());
+			case STRING:
+				if (!(theParam instanceof StringParam)) {
+					return false;
+				}
+				StringParam string = (StringParam) theParam;
+				String value = string.getValue();
+				if (string.isContains() || value == null || value.length() > ResourceIndexedSearchParamString.MAX_LENGTH) {
+					return false;
+				}
+				// The database search uses a LIKE expression, where these are wildcards
+				return value.indexOf('%') == -1 && value.indexOf('_') == -1;
+			case TOKEN:
+				if (!(theParam instanceof TokenParam)) {
+					return false;
+				}
+				TokenParam token = (TokenParam) theParam;
+				if (token.getModifier() != null) {
+					return false;
+				}
+				return !isTooLong(token.getSystem(), ResourceIndexedSearchParamToken.MAX_LENGTH) && !isTooLong(token.getValue(), ResourceIndexedSearchParamToken.MAX_LENGTH);
+			case DATE:
+				if (theParam instanceof DateParam) {
+					DateParam date = (DateParam) theParam;
+					return !date.isEmpty() && date.getPrefix() != ParamPrefixEnum.APPROXIMATE && date.getPrefix() != ParamPrefixEnum.NOT_EQUAL;
+				}
+				if (theParam instanceof DateRangeParam) {
+					DateRangeParam range = (DateRangeParam) theParam;
+					return range.getLowerBoundAsInstant() != null || range.getUpperBoundAsInstant() != null;
+				}
+				return false;
+			case NUMBER:
+				if (!(theParam instanceof NumberParam)) {
+					return false;
+				}
+				NumberParam number = (NumberParam) theParam;
+				return number.getValue() != null && isSupportedNumericPrefix(number.getPrefix());
+			case QUANTITY:
+				if (!(theParam instanceof QuantityParam)) {
+					return false;
+				}
+				QuantityParam quantity = (QuantityParam) theParam;
+				return quantity.getValue() != null && isSupportedNumericPrefix(quantity.getPrefix());
+			case URI:
+				if (!(theParam instanceof UriParam)) {
+					return false;
+				}
+				UriParam uri = (UriParam) theParam;
+				return uri.getQualifier() == null && uri.getValue() != null;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean isSupportedNumericPrefix(ParamPrefixEnum thePrefix) {
+		if (thePrefix == null) {
+			return true;
+		}
+		switch (thePrefix) {
+			case GREATERTHAN:
+			case GREATERTHAN_OR_EQUALS:
+			case LESSTHAN:
+			case LESSTHAN_OR_EQUALS:
+			case APPROXIMATE:
+			case EQUAL:
+			case NOT_EQUAL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean isTooLong(String theValue, int theMaxLength) {
+		return theValue != null && theValue.length() > theMaxLength;
+	}
+
+	/**
+	 * See SearchBuilder#createPredicateDateFromRange
+	 */
+	private static boolean matchDate(DateRangeParam theRange, ResourceIndexedSearchParamDate theValue) {
+		Date low = theValue.getValueLow();
+		Date high = theValue.getValueHigh();
+
+		Date lowerBound = theRange.getLowerBoundAsInstant();
+		if (lowerBound != null) {
+			boolean lowInRange = low != null && !low.before(lowerBound);
+			boolean highInRange = high != null && !high.before(lowerBound);
+			ParamPrefixEnum prefix = theRange.getLowerBound().getPrefix();
+			if (prefix == ParamPrefixEnum.STARTS_AFTER || prefix == ParamPrefixEnum.EQUAL) {
+				if (!lowInRange) {
+					return false;
+				}
+			} else if (!lowInRange && !highInRange) {
+				return false;
+			}
+		}
+
+		Date upperBound = theRange.getUpperBoundAsInstant();
+		if (upperBound != null) {
+			boolean lowInRange = low != null && !low.after(upperBound);
+			boolean highInRange = high != null && !high.after(upperBound);
+			ParamPrefixEnum prefix = theRange.getUpperBound().getPrefix();
+			if (prefix == ParamPrefixEnum.ENDS_BEFORE || prefix == ParamPrefixEnum.EQUAL) {
+				if (!highInRange) {
+					return false;
+				}
+			} else if (!lowInRange && !highInRange) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * See SearchBuilder#createPredicateNumeric
+	 */
+	private static boolean matchNumeric(ParamPrefixEnum thePrefix, BigDecimal theValue, BigDecimal theIndexValue) {
+		if (theIndexValue == null) {
+			return false;
+		}
+
+		switch (thePrefix) {
+			case GREATERTHAN:
+				return theIndexValue.compareTo(theValue) > 0;
+			case GREATERTHAN_OR_EQUALS:
+				return theIndexValue.compareTo(theValue) >= 0;
+			case LESSTHAN:
+				return theIndexValue.compareTo(theValue) < 0;
+			case LESSTHAN_OR_EQUALS:
+				return theIndexValue.compareTo(theValue) <= 0;
+			case APPROXIMATE:
+			case EQUAL:
+			case NOT_EQUAL:
+				BigDecimal mul = SearchBuilder.calculateFuzzAmount(thePrefix, theValue);
+				BigDecimal low = theValue.subtract(mul, MathContext.DECIMAL64);
+				BigDecimal high = theValue.add(mul, MathContext.DECIMAL64);
+				if (thePrefix == ParamPrefixEnum.NOT_EQUAL) {
+					return theIndexValue.compareTo(low) < 0 || theIndexValue.compareTo(high) > 0;
+				}
+				return theIndexValue.compareTo(low) >= 0 && theIndexValue.compareTo(high) <= 0;
+			default:
+				throw new IllegalStateException("Can not match prefix " + thePrefix + " in memory");
+		}
+	}
+
+	private static boolean matchQuantity(QuantityParam theParam, ResourceIndexedSearchParamQuantity theValue) {
+		if (isNotBlank(theParam.getSystem()) && !theParam.getSystem().equals(theValue.getSystem())) {
+			return false;
+		}
+		if (isNotBlank(theParam.getUnits()) && !theParam.getUnits().equals(theValue.getUnits())) {
+			return false;
+		}
+		ParamPrefixEnum prefix = ObjectUtils.defaultIfNull(theParam.getPrefix(), ParamPrefixEnum.EQUAL);
+		return matchNumeric(prefix, theParam.getValue(), theValue.getValue());
+	}
+
+	/**
+	 * See SearchBuilder#createPredicateString
+	 */
+	private static boolean matchString(StringParam theParam, ResourceIndexedSearchParamString theValue) {
+		String normalized = BaseHapiFhirDao.normalizeString(theParam.getValue());
+		if (theValue.getValueNormalized() == null || !theValue.getValueNormalized().startsWith(normalized)) {
+			return false;
+		}
+		if (theParam.isExact()) {
+			return theParam.getValue().equals(theValue.getValueExact());
+		}
+		return true;
+	}
+
+	/**
+	 * See SearchBuilder#createPredicateToken
+	 */
+	private static boolean matchToken(TokenParam theParam, ResourceIndexedSearchParamToken theValue) {
+		String system = theParam.getSystem();
+		if (isNotBlank(system)) {
+			if (!system.equals(theValue.getSystem())) {
+				return false;
+			}
+		} else if (system != null) {
+			// If the system is "", we only match on null systems
+			if (theValue.getSystem() != null) {
+				return false;
+			}
+		}
+
+		String code = theParam.getValue();
+		if (isNotBlank(code) && !code.equals(theValue.getValue())) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * See BaseHapiFhirDao#extractResourceLinks
+	 */
+	private static IIdType toReferenceId(Object theRef) {
+		Object ref = theRef;
+		if (ref instanceof IBaseExtension<?, ?>) {
+			ref = ((IBaseExtension<?, ?>) ref).getValue();
+		}
+
+		IIdType retVal = null;
+		if (ref instanceof IBaseReference) {
+			IBaseReference reference = (IBaseReference) ref;
+			if (!reference.isEmpty()) {
+				retVal = reference.getReferenceElement();
+			}
+		} else if (ref instanceof IBaseResource) {
+			retVal = ((IBaseResource) ref).getIdElement();
+		}
+
+		if (retVal == null || retVal.isEmpty() || !retVal.hasIdPart() || retVal.getValue().startsWith("#")) {
+			return null;
+		}
+		return retVal;
+	}
+
+	/**
+	 * The index values extracted from a single resource
+	 */
+	public static class IndexedResource {
+
+		private final IBaseResource myResource;
+		private final String myResourceName;
+		private final ListMultimap<String, BaseResourceIndexedSearchParam> myValues = ArrayListMultimap.create();
+
+		IndexedResource(String theResourceName, IBaseResource theResource) {
+			myResourceName = theResourceName;
+			myResource = theResource;
+		}
+
+		private void addAll(Collection<? extends BaseResourceIndexedSearchParam> theValues) {
+			for (BaseResourceIndexedSearchParam next : theValues) {
+				myValues.put(next.getParamName(), next);
+			}
+		}
+
+		public IBaseResource getResource() {
+			return myResource;
+		}
+
+		public String getResourceName() {
+			return myResourceName;
+		}
+
+		/**
+		 * Returns all of the index values for the resource
+		 */
+		public Collection<BaseResourceIndexedSearchParam> getValues() {
+			return myValues.values();
+		}
+
+		/**
+		 * Returns the index values of the given type for the given parameter
+		 */
+		public <T extends BaseResourceIndexedSearchParam> List<T> getValues(String theParamName, Class<T> theType) {
+			List<BaseResourceIndexedSearchParam> values = myValues.get(theParamName);
+			List<T> retVal = new ArrayList<T>(values.size());
+			for (BaseResourceIndexedSearchParam next : values) {
+				if (theType.isInstance(next)) {
+					retVal.add(theType.cast(next));
+				}
+			}
+			return retVal;
+		}
+
+	}
+
+}
@@ -0,0 +1,260 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.entity.BaseHasResource;
+import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
+
+/**
+ * Holds resources which have recently been parsed from the database, so that
+ * reading the same resource version again doesn't need it to be decompressed
+ * and parsed again. This cache is disabled unless
+ * {@link DaoConfig#setParsedResourceCacheMaxBytes(long)} is set.
+ * <p>
+ * Entries are keyed on the resource PID and are only used for the version they
+ * were parsed from. Resources are copied both when they are cached and when they
+ * are returned, so callers are free to modify them. Only structures which can
+ * copy themselves (the DSTU2 HL7.org and DSTU3 structures) are cached.
+ * </p>
+ * <p>
+ * The size of each entry is estimated from the parsed resource itself, as a
+ * fixed overhead for each populated element plus the length of each primitive
+ * value, since a parsed resource takes up many times the space of its stored
+ * (compressed) form.
+ * </p>
+ */
+public class ParsedResourceCache {
+
+	/**
+	 * Approximate heap size of each populated element in a parsed resource
+	 * (the element object, its collections and the primitive value holders),
+	 * not including the characters of primitive values
+	 */
+	static final int ELEMENT_OVERHEAD_BYTES = 100;
+
+	private volatile CacheHolder myCacheHolder;
+	@Autowired
+	private DaoConfig myDaoConfig;
+	private final AtomicLong myHitCount = new AtomicLong();
+	private final AtomicLong myMissCount = new AtomicLong();
+
+	/**
+	 * Returns a copy of the cached resource parsed from the given entity, or
+	 * <code>null</code> if it isn't cached
+	 */
+	@SuppressWarnings("unchecked")
+	public <R extends IBaseResource> R get(BaseHasResource theEntity, Class<R> theResourceType) {
+		Cache<Long, CachedResource> cache = getCache();
+		if (cache == null) {
+			return null;
+		}
+
+		CachedResource cached = cache.getIfPresent(getResourcePid(theEntity));
+		if (cached == null || cached.myVersion != theEntity.getVersion() || cached.myResource.getClass() != theResourceType) {
+			myMissCount.incrementAndGet();
+			return null;
+		}
+
+		myHitCount.incrementAndGet();
+		return (R) copy(cached.myResource);
+	}
+
+	/**
+	 * Returns the cache for the current configuration. This is called on every
+	 * read so it doesn't lock unless the configured size has changed.
+	 */
+	private Cache<Long, CachedResource> getCache() {
+		long maxBytes = Math.max(0, myDaoConfig.getParsedResourceCacheMaxBytes());
+		CacheHolder holder = myCacheHolder;
+		if (holder != null && holder.myMaxBytes == maxBytes) {
+			return holder.myCache;
+		}
+		return rebuildCache(maxBytes);
+	}
+
+	private synchronized Cache<Long, CachedResource> rebuildCache(long theMaxBytes) {
+		CacheHolder holder = myCacheHolder;
+		if (holder == null || holder.myMaxBytes != theMaxBytes) {
+			Cache<Long, CachedResource> cache = null;
+			if (theMaxBytes > 0) {
+				cache = CacheBuilder.newBuilder().maximumWeight(theMaxBytes).weigher(new Weigher<Long, CachedResource>() {
+					@Override
+					public int weigh(Long theKey, CachedResource theValue) {
+						return theValue.myWeight;
+					}
+				}).build();
+			}
+			holder = new CacheHolder(theMaxBytes, cache);
+			myCacheHolder = holder;
+		}
+		return holder.myCache;
+	}
+
+	public long getHitCount() {
+		return myHitCount.get();
+	}
+
+	/**
+	 * Returns the proportion (0 to 1) of lookups which were answered from the cache
+	 */
+	public double getHitRatio() {
+		long hits = myHitCount.get();
+		long total = hits + myMissCount.get();
+		return total > 0 ? (double) hits / total : 0;
+	}
+
+	public long getMissCount() {
+		return myMissCount.get();
+	}
+
+	/**
+	 * Removes any cached version of the given resource
+	 */
+	public void invalidate(Long theResourcePid) {
+		CacheHolder holder = myCacheHolder;
+		Cache<Long, CachedResource> cache = holder != null ? holder.myCache : null;
+		if (cache != null && theResourcePid != null) {
+			cache.invalidate(theResourcePid);
+		}
+	}
+
+	/**
+	 * Called when an existing resource is written. Any cached version is removed
+	 * straight away, and again when the current transaction (if any) completes,
+	 * since the resource may be read (and cached) before then using a version
+	 * number which will not be kept if the transaction rolls back.
+	 */
+	public void notifyResourceWritten(final Long theResourcePid) {
+		invalidate(theResourcePid);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					invalidate(theResourcePid);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Caches a copy of a resource which has just been parsed from the given entity.
+	 * An older version never replaces a newer one which is already cached.
+	 */
+	public void put(FhirContext theContext, BaseHasResource theEntity, IBaseResource theResource) {
+		Cache<Long, CachedResource> cache = getCache();
+		if (cache == null || theEntity.getDeleted() != null || theEntity.getResource() == null) {
+			return;
+		}
+
+		IBaseResource copy = copy(theResource);
+		if (copy == null || copy.getClass() != theResource.getClass()) {
+			return;
+		}
+
+		Long pid = getResourcePid(theEntity);
+		CachedResource existing = cache.getIfPresent(pid);
+		if (existing != null && existing.myVersion > theEntity.getVersion()) {
+			return;
+		}
+		cache.put(pid, new CachedResource(theEntity.getVersion(), copy, estimateSize(theContext, copy)));
+	}
+
+	@VisibleForTesting
+	void setDaoConfigForUnitTest(DaoConfig theDaoConfig) {
+		myDaoConfig = theDaoConfig;
+	}
+
+	private static IBaseResource copy(IBaseResource theResource) {
+		if (theResource instanceof org.hl7.fhir.dstu3.model.Resource) {
+			return ((org.hl7.fhir.dstu3.model.Resource) theResource).copy();
+		}
+		if (theResource instanceof org.hl7.fhir.instance.model.Resource) {
+			return ((org.hl7.fhir.instance.model.Resource) theResource).copy();
+		}
+		return null;
+	}
+
+	/**
+	 * Estimates the heap size of a parsed resource, in bytes
+	 */
+	static int estimateSize(FhirContext theContext, IBaseResource theResource) {
+		long retVal = ELEMENT_OVERHEAD_BYTES;
+		for (IBase next : theContext.newTerser().getAllPopulatedChildElementsOfType(theResource, IBase.class)) {
+			retVal += ELEMENT_OVERHEAD_BYTES;
+			if (next instanceof IPrimitiveType) {
+				String value = ((IPrimitiveType<?>) next).getValueAsString();
+				if (value != null) {
+					retVal += 2L * value.length();
+				}
+			}
+		}
+		return (int) Math.min(retVal, Integer.MAX_VALUE);
+	}
+
+	private static Long getResourcePid(BaseHasResource theEntity) {
+		if (theEntity instanceof ResourceHistoryTable) {
+			return ((ResourceHistoryTable) theEntity).getResourceId();
+		}
+		return theEntity.getId();
+	}
+
+	private static class CacheHolder {
+
+		private final Cache<Long, CachedResource> myCache;
+		private final long myMaxBytes;
+
+		CacheHolder(long theMaxBytes, Cache<Long, CachedResource> theCache) {
+			myMaxBytes = theMaxBytes;
+			myCache = theCache;
+		}
+
+	}
+
+	private static class CachedResource {
+
+		private final IBaseResource myResource;
+		private final long myVersion;
+		private final int myWeight;
+
+		CachedResource(long theVersion, IBaseResource theResource, int theWeight) {
+			myVersion = theVersion;
+			myResource = theResource;
+			myWeight = theWeight;
+		}
+
+	}
+
+}
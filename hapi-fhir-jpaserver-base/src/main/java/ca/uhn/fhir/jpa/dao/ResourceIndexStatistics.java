@@ -0,0 +1,68 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the search index rows written when resources are stored, so that the
+ * effect of only writing the rows which changed can be monitored
+ */
+public class ResourceIndexStatistics {
+
+	private final AtomicLong myRowsAddedCount = new AtomicLong();
+	private final AtomicLong myRowsRemovedCount = new AtomicLong();
+	private final AtomicLong mySkippedUpdateCount = new AtomicLong();
+
+	/**
+	 * Returns the number of index rows (search parameter rows and resource links) which have been inserted
+	 */
+	public long getRowsAddedCount() {
+		return myRowsAddedCount.get();
+	}
+
+	/**
+	 * Returns the number of index rows (search parameter rows and resource links) which have been deleted
+	 */
+	public long getRowsRemovedCount() {
+		return myRowsRemovedCount.get();
+	}
+
+	/**
+	 * Returns the number of times a resource was indexed without any index rows being inserted or deleted
+	 */
+	public long getSkippedUpdateCount() {
+		return mySkippedUpdateCount.get();
+	}
+
+	/**
+	 * Records the index rows written when one resource was indexed
+	 */
+	public void recordUpdate(int theRowsAdded, int theRowsRemoved) {
+		if (theRowsAdded == 0 && theRowsRemoved == 0) {
+			mySkippedUpdateCount.incrementAndGet();
+			return;
+		}
+		myRowsAddedCount.addAndGet(theRowsAdded);
+		myRowsRemovedCount.addAndGet(theRowsRemoved);
+	}
+
+}
@@ -0,0 +1,154 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * Runs the work of parsing a group of resources (e.g. a page of search results)
+ * on a small pool of threads which is shared by all requests. The size of the
+ * pool is set using {@link DaoConfig#setResourceParsingThreadCount(int)}.
+ * <p>
+ * The calling thread also works through the group, running any task which no
+ * worker has started yet, so a request never waits on a busy pool for longer
+ * than it would have taken to do the work itself.
+ * </p>
+ */
+public class ResourceParsingExecutor {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ResourceParsingExecutor.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+	private ThreadPoolExecutor myExecutor;
+
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (myExecutor == null) {
+			int threadCount = myDaoConfig.getResourceParsingThreadCount();
+			if (threadCount <= 1) {
+				return null;
+			}
+			ourLog.info("Starting {} resource parsing threads", threadCount);
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("resource_parse_");
+			threadFactory.setDaemon(true);
+			myExecutor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+			myExecutor.allowCoreThreadTimeOut(true);
+		}
+		return myExecutor;
+	}
+
+	/**
+	 * Runs the given tasks and returns their results, in the same order. If
+	 * any task fails, its exception is thrown once all of the tasks have
+	 * finished.
+	 */
+	public <T> List<T> invokeAll(List<Callable<T>> theTasks) {
+		List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(theTasks.size());
+		for (Callable<T> next : theTasks) {
+			futures.add(new FutureTask<T>(next));
+		}
+
+		ThreadPoolExecutor executor = theTasks.size() > 1 ? getExecutor() : null;
+		if (executor != null) {
+			for (FutureTask<T> next : futures) {
+				executor.execute(next);
+			}
+		}
+
+		/*
+		 * Running a task which has already been started (or finished) by a
+		 * worker does nothing, so this only runs what the workers haven't
+		 * got to yet. Tasks run here are taken out of the queue so that the
+		 * workers don't have to work through them as no-ops.
+		 */
+		for (FutureTask<T> next : futures) {
+			next.run();
+			if (executor != null) {
+				executor.remove(next);
+			}
+		}
+
+		List<T> retVal = new ArrayList<T>(futures.size());
+		RuntimeException failure = null;
+		for (FutureTask<T> next : futures) {
+			try {
+				retVal.add(next.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException(e);
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = toRuntimeException(e.getCause());
+				}
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+		return retVal;
+	}
+
+	@VisibleForTesting
+	synchronized int getQueuedTaskCountForUnitTest() {
+		return myExecutor != null ? myExecutor.getQueue().size() : 0;
+	}
+
+	@VisibleForTesting
+	void setDaoConfigForUnitTest(DaoConfig theDaoConfig) {
+		myDaoConfig = theDaoConfig;
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		if (myExecutor != null) {
+			myExecutor.shutdownNow();
+			myExecutor = null;
+		}
+	}
+
+	private static RuntimeException toRuntimeException(Throwable theCause) {
+		if (theCause instanceof RuntimeException) {
+			return (RuntimeException) theCause;
+		}
+		if (theCause instanceof Error) {
+			throw (Error) theCause;
+		}
+		return new InternalErrorException(theCause);
+	}
+
+}
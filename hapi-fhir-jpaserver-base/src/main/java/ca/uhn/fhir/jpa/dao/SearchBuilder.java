@@ -25,6 +25,7 @@ import static org.apache.commons.lang3.StringUtils.defaultString;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
+import java.io.Closeable;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.ArrayList;
@@ -59,9 +60,12 @@ import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -102,6 +106,7 @@ import ca.uhn.fhir.jpa.entity.TagDefinition;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
 import ca.uhn.fhir.jpa.term.IHapiTerminologySvc;
 import ca.uhn.fhir.jpa.term.VersionIndependentConcept;
+import ca.uhn.fhir.jpa.util.LongHashSet;
 import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.model.api.IPrimitiveDatatype;
 import ca.uhn.fhir.model.api.IQueryParameterType;
@@ -1298,9 +1303,40 @@ public class SearchBuilder implements ISearchBuilder {
 		return new QueryIterator();
 	}
 
+	@Override
+	public int loadQueryRange(SearchParameterMap theParams, String theSearchUuid, int theFromRow, int theMaxRows, Collection<Long> thePids) {
+		myParams = theParams;
+		myBuilder = myEntityManager.getCriteriaBuilder();
+		mySearchUuid = theSearchUuid;
+
+		StopWatch sw = new StopWatch();
+		TypedQuery<Long> query = createQuery(theParams.getSort(), true);
+		query.setFirstResult(theFromRow);
+		query.setMaxResults(theMaxRows);
+		List<Long> rows = query.getResultList();
+
+		// Extra results requested by the query come before the first row
+		if (theFromRow == 0 && myAlsoIncludePids != null) {
+			thePids.addAll(myAlsoIncludePids);
+		}
+		for (Long next : rows) {
+			if (next != null) {
+				thePids.add(next);
+			}
+		}
+
+		ourLog.info("Query read {} rows from row {} in {}ms for query {}", new Object[] { rows.size(), theFromRow, sw.getMillis(), theSearchUuid });
+		return rows.size();
+	}
+
 	private List<Long> myAlsoIncludePids;
 
-	private TypedQuery<Long> createQuery(SortSpec sort) {
+	/**
+	 * @param theStableOrder If true, the rows are ordered by resource PID after any
+	 *          requested sort, so that the same query returns them in the same order
+	 *          each time and can be read a range at a time
+	 */
+	private TypedQuery<Long> createQuery(SortSpec sort, boolean theStableOrder) {
 		CriteriaQuery<Long> outerQuery;
 		/*
 		 * Sort
@@ -1317,6 +1353,9 @@ public class SearchBuilder implements ISearchBuilder {
 			List<Predicate> predicates = Lists.newArrayList();
 
 			createSort(myBuilder, outerQueryFrom, sort, orders, predicates);
+			if (theStableOrder) {
+				orders.add(myBuilder.asc(outerQueryFrom.get("myId")));
+			}
 			if (orders.size() > 0) {
 				outerQuery.orderBy(orders);
 			}
@@ -1341,6 +1380,9 @@ public class SearchBuilder implements ISearchBuilder {
 			myResourceTableQuery = outerQuery;
 			myResourceTableRoot = myResourceTableQuery.from(ResourceTable.class);
 			outerQuery.multiselect(myResourceTableRoot.get("myId").as(Long.class));
+			if (theStableOrder) {
+				outerQuery.orderBy(myBuilder.asc(myResourceTableRoot.get("myId")));
+			}
 
 		}
 
@@ -1573,15 +1615,30 @@ public class SearchBuilder implements ISearchBuilder {
 
 	private void doLoadPids(List<IBaseResource> theResourceListToPopulate, Set<Long> theRevIncludedPids, boolean theForHistoryOperation, EntityManager entityManager, FhirContext context, IDao theDao,
 			Map<Long, Integer> position, Collection<Long> pids) {
-		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
-		CriteriaQuery<ResourceTable> cq = builder.createQuery(ResourceTable.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.where(from.get("myId").in(pids));
-		TypedQuery<ResourceTable> q = entityManager.createQuery(cq);
 
+		/*
+		 * Fetch the forced IDs and tags along with the resources, since toResource
+		 * needs them and they would otherwise be loaded with separate queries for
+		 * each resource. The tag join means a resource can appear more than once
+		 * in the results.
+		 */
+		String sql = "SELECT r FROM ResourceTable r LEFT JOIN FETCH r.myForcedId LEFT JOIN FETCH r.myTags t LEFT JOIN FETCH t.myTag WHERE r.myId IN (:pids)";
+		TypedQuery<ResourceTable> q = entityManager.createQuery(sql, ResourceTable.class);
+		q.setParameter("pids", pids);
+
+		List<ResourceTable> entities = new ArrayList<ResourceTable>(pids.size());
+		Set<Long> seen = new HashSet<Long>();
 		for (ResourceTable next : q.getResultList()) {
-			Class<? extends IBaseResource> resourceType = context.getResourceDefinition(next.getResourceType()).getImplementingClass();
-			IBaseResource resource = theDao.toResource(resourceType, next, theForHistoryOperation);
+			if (seen.add(next.getId())) {
+				entities.add(next);
+			}
+		}
+
+		List<IBaseResource> resources = theDao.toResources(entities, theForHistoryOperation);
+
+		for (int i = 0; i < entities.size(); i++) {
+			ResourceTable next = entities.get(i);
+			IBaseResource resource = resources.get(i);
 			Integer index = position.get(next.getId());
 			if (index == null) {
 				ourLog.warn("Got back unexpected resource PID {}", next.getId());
@@ -1963,10 +2020,23 @@ public class SearchBuilder implements ISearchBuilder {
 		return thePredicates.toArray(new Predicate[thePredicates.size()]);
 	}
 
-	private final class QueryIterator implements Iterator<Long> {
+	/**
+	 * Iterates over the matching PIDs of a search, dropping duplicates.
+	 * <p>
+	 * When called within a transaction, the matches are read through a
+	 * forward-only {@link ScrollableResults} cursor, {@link DaoConfig#getSearchFetchSize()}
+	 * rows at a time, so a search matching millions of resources is handed to the
+	 * caller as it is read instead of being loaded into a list first. The cursor
+	 * is closed once the last match has been read, or by {@link #close()} if the
+	 * caller stops early. Outside a transaction (where a cursor would outlive its
+	 * connection) the whole result list is fetched up front, as before.
+	 * </p>
+	 */
+	private final class QueryIterator implements Iterator<Long>, Closeable {
 		private Long myNext;
-		private final Set<Long> myPidSet = new HashSet<Long>();
+		private final LongHashSet myPidSet = new LongHashSet();
 		private Iterator<Long> myResultsIterator;
+		private ScrollableResults myResultsScroll;
 		private SortSpec mySort;
 		private Iterator<Long> myPreResultsIterator;
 		private boolean myFirst = true;
@@ -1976,6 +2046,16 @@ public class SearchBuilder implements ISearchBuilder {
 			mySort = myParams.getSort();
 		}
 
+		@Override
+		public void close() {
+			if (myResultsScroll != null) {
+				myResultsScroll.close();
+				myResultsScroll = null;
+			}
+			myResultsIterator = Collections.<Long> emptyIterator();
+			myNext = NO_MORE;
+		}
+
 		private void fetchNext() {
 
 			if (myFirst) {
@@ -1983,9 +2063,15 @@ public class SearchBuilder implements ISearchBuilder {
 			}
 
 			// If we don't have a query yet, create one
-			if (myResultsIterator == null) {
-				final TypedQuery<Long> query = createQuery(mySort);
-				myResultsIterator = query.getResultList().iterator();
+			if (myResultsIterator == null && myResultsScroll == null) {
+				final TypedQuery<Long> query = createQuery(mySort, false);
+				if (TransactionSynchronizationManager.isActualTransactionActive()) {
+					org.hibernate.query.Query<?> hibernateQuery = query.unwrap(org.hibernate.query.Query.class);
+					hibernateQuery.setFetchSize(myCallingDao.getConfig().getSearchFetchSize());
+					myResultsScroll = hibernateQuery.scroll(ScrollMode.FORWARD_ONLY);
+				} else {
+					myResultsIterator = query.getResultList().iterator();
+				}
 
 				// If the query resulted in extra results being requested
 				if (myAlsoIncludePids != null) {
@@ -2005,7 +2091,15 @@ public class SearchBuilder implements ISearchBuilder {
 					}
 				}
 
-				if (myNext == null) {
+				if (myNext == null && myResultsScroll != null) {
+					while (myResultsScroll.next()) {
+						Long next = (Long) myResultsScroll.get(0);
+						if (next != null && myPidSet.add(next)) {
+							myNext = next;
+							break;
+						}
+					}
+				} else if (myNext == null) {
 					while (myResultsIterator.hasNext()) {
 						Long next = myResultsIterator.next();
 						if (next != null && myPidSet.add(next)) {
@@ -2017,6 +2111,7 @@ public class SearchBuilder implements ISearchBuilder {
 
 				if (myNext == null) {
 					myNext = NO_MORE;
+					close();
 				}
 
 			} // if we need to fetch the next result
@@ -122,12 +122,12 @@ public class SearchParameterMap extends LinkedHashMap<String, List<List<? extend
 		getIncludes().add(theInclude);
 	}
 
-	private void addLastUpdateParam(StringBuilder b, DateParam date) {
+	private void addLastUpdateParam(StringBuilder b, DateParam date, FhirContext theCtx) {
 		if (date != null && isNotBlank(date.getValueAsString())) {
 			addUrlParamSeparator(b);
 			b.append(Constants.PARAM_LASTUPDATED);
 			b.append('=');
-			b.append(date.getValueAsString());
+			b.append(date.getValueAsQueryToken(theCtx));
 		}
 	}
 
@@ -142,6 +142,9 @@ public class SearchParameterMap extends LinkedHashMap<String, List<List<? extend
 		for (Include nextInclude : list) {
 			addUrlParamSeparator(b);
 			b.append(paramName);
+			if (nextInclude.isRecurse()) {
+				b.append(Constants.PARAM_INCLUDE_QUALIFIER_RECURSE);
+			}
 			b.append('=');
 			b.append(UrlUtil.escape(nextInclude.getParamType()));
 			b.append(':');
@@ -371,9 +374,9 @@ public class SearchParameterMap extends LinkedHashMap<String, List<List<? extend
 		
 		if (getLastUpdated() != null) {
 			DateParam lb = getLastUpdated().getLowerBound();
-			addLastUpdateParam(b, lb);
+			addLastUpdateParam(b, lb, theCtx);
 			DateParam ub = getLastUpdated().getUpperBound();
-			addLastUpdateParam(b, ub);
+			addLastUpdateParam(b, ub, theCtx);
 		}
 		
 		if (getCount() != null) {
@@ -477,6 +480,9 @@ public class SearchParameterMap extends LinkedHashMap<String, List<List<? extend
 			if (retVal == 0) {
 				retVal = StringUtils.compare(theO1.getParamTargetType(), theO2.getParamTargetType());
 			}
+			if (retVal == 0) {
+				retVal = Boolean.compare(theO1.isRecurse(), theO2.isRecurse());
+			}
 			return retVal;
 		}
 
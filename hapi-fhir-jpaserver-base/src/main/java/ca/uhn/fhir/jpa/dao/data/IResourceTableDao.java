@@ -20,6 +20,10 @@ package ca.uhn.fhir.jpa.dao.data;
  * #L%
  */
 
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
@@ -33,4 +37,10 @@ public interface IResourceTableDao extends JpaRepository<ResourceTable, Long> {
 	@Query("UPDATE ResourceTable r SET r.myIndexStatus = null WHERE r.myResourceType = :restype")
 	int markResourcesOfTypeAsRequiringReindexing(@Param("restype") String theResourceType);
 
+	@Query("SELECT r.myId FROM ResourceTable r WHERE r.myUpdated > :cutoff")
+	List<Long> findIdsUpdatedSince(@Param("cutoff") Date theCutoff, Pageable thePageable);
+
+	@Query("SELECT r.myId FROM ResourceTable r WHERE r.myResourceType = :restype AND r.myUpdated > :cutoff")
+	List<Long> findIdsOfTypeUpdatedSince(@Param("restype") String theResourceType, @Param("cutoff") Date theCutoff, Pageable thePageable);
+
 }
@@ -46,6 +46,6 @@ public interface ISearchDao extends JpaRepository<Search, Long> {
 
 	@Modifying
 	@Query("UPDATE Search s SET s.mySearchLastReturned = :last WHERE s.myId = :pid")
-	public void updateSearchLastReturned(@Param("pid") long thePid, @Param("last") Date theDate);
+	public int updateSearchLastReturned(@Param("pid") long thePid, @Param("last") Date theDate);
 
 }
@@ -33,7 +33,7 @@ import org.springframework.data.repository.query.Param;
 import ca.uhn.fhir.jpa.entity.Search;
 import ca.uhn.fhir.jpa.entity.SearchResult;
 
-public interface ISearchResultDao  extends JpaRepository<SearchResult, Long> {
+public interface ISearchResultDao  extends JpaRepository<SearchResult, Long>, ISearchResultDaoCustom {
 	
 	@Query(value="SELECT r FROM SearchResult r WHERE r.mySearch = :search")
 	Collection<SearchResult> findWithSearchUuid(@Param("search") Search theSearch);
@@ -0,0 +1,47 @@
+package ca.uhn.fhir.jpa.dao.data;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.jpa.entity.Search;
+
+/**
+ * Bulk operations on {@link ca.uhn.fhir.jpa.entity.SearchResult} rows which
+ * bypass the persistence context, see {@link ISearchResultDaoImpl}
+ */
+public interface ISearchResultDaoCustom {
+
+	/**
+	 * Inserts one search result row for each of the given resource PIDs, using
+	 * JDBC batching rather than persisting an entity per result. Must be called
+	 * within a transaction, and the search must already have been saved.
+	 * 
+	 * @param theSearch
+	 *           The search the results belong to
+	 * @param theResourcePids
+	 *           Buffer holding the resource PIDs to save
+	 * @param theCount
+	 *           The number of PIDs to save, from the start of the buffer
+	 * @param theFirstOrder
+	 *           The order (position in the search results) of the first PID
+	 */
+	void saveResults(Search theSearch, long[] theResourcePids, int theCount, int theFirstOrder);
+
+}
@@ -0,0 +1,92 @@
+package ca.uhn.fhir.jpa.dao.data;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.apache.commons.lang3.Validate;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.jdbc.Work;
+
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchResult;
+
+/**
+ * Implementation of the custom operations of {@link ISearchResultDao} (found
+ * by Spring Data by its name).
+ * <p>
+ * A search which matches many resources saves one row per match, in batches of
+ * a few hundred while the search is loading. Persisting these as entities costs
+ * a persistence context entry, a dirty check and an insert statement per row,
+ * which for large searches is more than the search itself. Instead the rows are
+ * written here with a single JDBC batch per call, taking their IDs from the
+ * SearchResult sequence generator as usual.
+ * </p>
+ */
+public class ISearchResultDaoImpl implements ISearchResultDaoCustom {
+
+	static final String INSERT_SQL = "INSERT INTO HFJ_SEARCH_RESULT (PID, SEARCH_PID, RESOURCE_PID, SEARCH_ORDER) VALUES (?, ?, ?, ?)";
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Override
+	public void saveResults(Search theSearch, final long[] theResourcePids, final int theCount, final int theFirstOrder) {
+		Validate.notNull(theSearch.getId(), "Search has not been saved");
+		if (theCount == 0) {
+			return;
+		}
+
+		final long searchPid = theSearch.getId();
+		final SessionImplementor session = myEntityManager.unwrap(SessionImplementor.class);
+		final IdentifierGenerator idGenerator = session.getFactory().getIdentifierGenerator(SearchResult.class.getName());
+
+		// The search row may still be pending, and the results refer to it
+		session.flush();
+
+		session.doWork(new Work() {
+			@Override
+			public void execute(Connection theConnection) throws SQLException {
+				PreparedStatement statement = theConnection.prepareStatement(INSERT_SQL);
+				try {
+					for (int i = 0; i < theCount; i++) {
+						statement.setLong(1, (Long) idGenerator.generate(session, null));
+						statement.setLong(2, searchPid);
+						statement.setLong(3, theResourcePids[i]);
+						statement.setInt(4, theFirstOrder + i);
+						statement.addBatch();
+					}
+					statement.executeBatch();
+				} finally {
+					statement.close();
+				}
+			}
+		});
+	}
+
+}
@@ -0,0 +1,48 @@
+package ca.uhn.fhir.jpa.dao.data;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import ca.uhn.fhir.jpa.entity.SubscriptionDelivery;
+import ca.uhn.fhir.jpa.entity.SubscriptionDeliveryStatusEnum;
+
+public interface ISubscriptionDeliveryDao extends JpaRepository<SubscriptionDelivery, Long> {
+
+	@Query("SELECT COUNT(d) FROM SubscriptionDelivery d WHERE d.myStatus = :status")
+	long countWithStatus(@Param("status") SubscriptionDeliveryStatusEnum theStatus);
+
+	/**
+	 * Finds the notifications which are due to be sent, in the order they were
+	 * queued. A notification is held back while an earlier one for the same
+	 * endpoint is waiting for a retry, so that each endpoint receives its
+	 * notifications in order.
+	 */
+	@Query("SELECT d FROM SubscriptionDelivery d WHERE d.myStatus = :status AND d.myNextAttempt <= :now AND NOT EXISTS (SELECT e FROM SubscriptionDelivery e WHERE e.myEndpoint = d.myEndpoint AND e.myStatus = :status AND e.myId < d.myId AND e.myNextAttempt > :now) ORDER BY d.myId")
+	List<SubscriptionDelivery> findDue(@Param("status") SubscriptionDeliveryStatusEnum theStatus, @Param("now") Date theNow, Pageable thePageable);
+
+}
@@ -0,0 +1,45 @@
+package ca.uhn.fhir.jpa.dao.data;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Bulk operations on {@link ca.uhn.fhir.jpa.entity.TermConceptClosure} rows which
+ * bypass the persistence context, see {@link ITermConceptClosureDaoImpl}
+ */
+public interface ITermConceptClosureDaoCustom {
+
+	/**
+	 * Inserts one closure row for each ancestor/descendant pair, using JDBC
+	 * batching rather than persisting an entity per row. Must be called within a
+	 * transaction.
+	 * 
+	 * @param theCodeSystemVersionPid
+	 *           The code system version the concepts belong to
+	 * @param theAncestorPids
+	 *           Buffer holding the ancestor concept PIDs
+	 * @param theDescendantPids
+	 *           Buffer holding the descendant concept PIDs, in the same order
+	 * @param theCount
+	 *           The number of pairs to save, from the start of the buffers
+	 */
+	void saveClosure(Long theCodeSystemVersionPid, long[] theAncestorPids, long[] theDescendantPids, int theCount);
+
+}
@@ -0,0 +1,83 @@
+package ca.uhn.fhir.jpa.dao.data;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.jdbc.Work;
+
+import ca.uhn.fhir.jpa.entity.TermConceptClosure;
+
+/**
+ * Implementation of the custom operations of {@link ITermConceptClosureDao}
+ * (found by Spring Data by its name).
+ * <p>
+ * The closure of a large code system has many rows per concept, so as with
+ * {@link ISearchResultDaoImpl} they are written with JDBC batches instead of
+ * being persisted as entities, taking their IDs from the TermConceptClosure
+ * sequence generator as usual.
+ * </p>
+ */
+public class ITermConceptClosureDaoImpl implements ITermConceptClosureDaoCustom {
+
+	static final String INSERT_SQL = "INSERT INTO TRM_CONCEPT_CLOSURE (PID, CODESYSTEM_PID, ANCESTOR_PID, DESCENDANT_PID) VALUES (?, ?, ?, ?)";
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Override
+	public void saveClosure(final Long theCodeSystemVersionPid, final long[] theAncestorPids, final long[] theDescendantPids, final int theCount) {
+		if (theCount == 0) {
+			return;
+		}
+
+		final SessionImplementor session = myEntityManager.unwrap(SessionImplementor.class);
+		final IdentifierGenerator idGenerator = session.getFactory().getIdentifierGenerator(TermConceptClosure.class.getName());
+
+		session.doWork(new Work() {
+			@Override
+			public void execute(Connection theConnection) throws SQLException {
+				PreparedStatement statement = theConnection.prepareStatement(INSERT_SQL);
+				try {
+					for (int i = 0; i < theCount; i++) {
+						statement.setLong(1, (Long) idGenerator.generate(session, null));
+						statement.setLong(2, theCodeSystemVersionPid);
+						statement.setLong(3, theAncestorPids[i]);
+						statement.setLong(4, theDescendantPids[i]);
+						statement.addBatch();
+					}
+					statement.executeBatch();
+				} finally {
+					statement.close();
+				}
+			}
+		});
+	}
+
+}
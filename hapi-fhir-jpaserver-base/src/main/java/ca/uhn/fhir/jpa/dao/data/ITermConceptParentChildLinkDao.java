@@ -1,6 +1,7 @@
 package ca.uhn.fhir.jpa.dao.data;
 
 import java.util.Collection;
+import java.util.List;
 
 /*
  * #%L
@@ -37,5 +38,12 @@ public interface ITermConceptParentChildLinkDao extends JpaRepository<TermConcep
 
 	@Query("SELECT t FROM TermConceptParentChildLink t WHERE t.myChildPid = :child_pid")
 	Collection<TermConceptParentChildLink> findAllWithChild(@Param("child_pid") Long theConceptPid);
+
+	/**
+	 * Returns the parent and child PIDs of every link in the given code system version,
+	 * as two element arrays
+	 */
+	@Query("SELECT t.myParentPid, t.myChildPid FROM TermConceptParentChildLink t WHERE t.myCodeSystem.myId = :cs_pid")
+	List<Object[]> findParentAndChildPidsByCodeSystemVersion(@Param("cs_pid") Long thePid);
 	
 }
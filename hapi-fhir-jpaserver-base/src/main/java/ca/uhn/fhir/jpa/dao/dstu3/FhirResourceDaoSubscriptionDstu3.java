@@ -151,7 +151,7 @@ public class FhirResourceDaoSubscriptionDstu3 extends FhirResourceDaoDstu3<Subsc
 				@Override
 				public Integer doInTransaction(TransactionStatus theStatus) {
 					SubscriptionTable nextSubscriptionTable = mySubscriptionTableDao.findOne(nextSubscriptionTablePid);
-					return pollForNewUndeliveredResources(nextSubscriptionTable, resourceType);
+					return pollForNewUndeliveredResources(nextSubscriptionTable, resourceType, System.currentTimeMillis() - getConfig().getSubscriptionPollDelay());
 				}
 			});
 		}
@@ -159,7 +159,33 @@ public class FhirResourceDaoSubscriptionDstu3 extends FhirResourceDaoDstu3<Subsc
 		return retVal;
 	}
 
-	private int pollForNewUndeliveredResources(SubscriptionTable theSubscriptionTable, String resourceType) {
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public synchronized int pollForNewUndeliveredResourcesForSubscription(final Long theSubscriptionPid) {
+		if (getConfig().isSubscriptionEnabled() == false) {
+			return 0;
+		}
+
+		/*
+		 * No poll delay here: a change which commits after this search has
+		 * started is sent to the client as it happens
+		 */
+		final long end = System.currentTimeMillis();
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		return txTemplate.execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus theStatus) {
+				SubscriptionTable subscriptionTable = mySubscriptionTableDao.findOne(theSubscriptionPid);
+				if (subscriptionTable == null) {
+					return 0;
+				}
+				return pollForNewUndeliveredResources(subscriptionTable, null, end);
+			}
+		});
+	}
+
+	private int pollForNewUndeliveredResources(SubscriptionTable theSubscriptionTable, String resourceType, long theEnd) {
 		Subscription subscription = toResource(Subscription.class, theSubscriptionTable.getSubscriptionResource(), false);
 		if (subscription.getChannel().getType() != Subscription.SubscriptionChannelType.WEBSOCKET) {
 			ourLog.info("Skipping non web socket subscription");
@@ -174,10 +200,10 @@ public class FhirResourceDaoSubscriptionDstu3 extends FhirResourceDaoDstu3<Subsc
 
 		RuntimeResourceDefinition resourceDef = validateCriteriaAndReturnResourceDefinition(subscription);
 		SearchParameterMap criteriaUrl = translateMatchUrl(this, getContext(), subscription.getCriteria(), resourceDef);
-		criteriaUrl.setLoadSynchronousUpTo(1000);
+		criteriaUrl.setLoadSynchronousUpTo(MAX_RESOURCES_PER_POLL);
 
 		long start = theSubscriptionTable.getMostRecentMatch().getTime();
-		long end = System.currentTimeMillis() - getConfig().getSubscriptionPollDelay();
+		long end = theEnd;
 		if (end <= start) {
 			ourLog.trace("Skipping search for subscription");
 			return 0;
@@ -198,12 +224,33 @@ public class FhirResourceDaoSubscriptionDstu3 extends FhirResourceDaoDstu3<Subsc
 
 		ourLog.info("Found {} new results for Subscription {}", results.size(), subscription.getIdElement().getIdPart());
 
+		List<IBaseResource> resources = results.getResources(0, results.size());
+
+		/*
+		 * If the search stopped at the limit, there may be more resources updated in
+		 * the same millisecond as the last one, which the next poll wouldn't find since
+		 * it starts after the most recent match. Leave the ones from that millisecond
+		 * for the next poll to flag along with the rest (unless every resource found
+		 * is from that millisecond, in which case there's no way to get past them).
+		 */
+		long cutoff = Long.MAX_VALUE;
+		if (resources.size() >= MAX_RESOURCES_PER_POLL) {
+			long first = ((IAnyResource) resources.get(0)).getMeta().getLastUpdated().getTime();
+			long last = ((IAnyResource) resources.get(resources.size() - 1)).getMeta().getLastUpdated().getTime();
+			if (first < last) {
+				cutoff = last;
+			}
+		}
+
 		List<SubscriptionFlaggedResource> flags = new ArrayList<SubscriptionFlaggedResource>();
 		Date mostRecentMatch = null;
-		for (IBaseResource nextBase : results.getResources(0, results.size())) {
+		for (IBaseResource nextBase : resources) {
 			IAnyResource next = (IAnyResource) nextBase;
 
 			Date updated = next.getMeta().getLastUpdated();
+			if (updated.getTime() >= cutoff) {
+				break;
+			}
 			if (mostRecentMatch == null) {
 				mostRecentMatch = updated;
 			} else {
@@ -235,7 +282,12 @@ public class FhirResourceDaoSubscriptionDstu3 extends FhirResourceDaoDstu3<Subsc
 		return results.size();
 	}
 
-	@Scheduled(fixedDelay = 10 * DateUtils.MILLIS_PER_SECOND)
+	/**
+	 * This is no longer scheduled. Connected websocket clients are sent changes as
+	 * they happen, and each subscription is caught up using
+	 * {@link #pollForNewUndeliveredResourcesForSubscription(Long)} when a client
+	 * connects to it, so polling every subscription on a timer isn't needed.
+	 */
 	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	@Override
 	public synchronized void pollForNewUndeliveredResourcesScheduler() {
@@ -293,6 +345,19 @@ public class FhirResourceDaoSubscriptionDstu3 extends FhirResourceDaoDstu3<Subsc
 		}
 	}
 
+	@Override
+	public void recordClientDelivery(Long theSubscriptionPid, Date theMostRecentMatch) {
+		SubscriptionTable subscriptionTable = mySubscriptionTableDao.findOne(theSubscriptionPid);
+		if (subscriptionTable == null) {
+			return;
+		}
+		subscriptionTable.setLastClientPoll(new Date());
+		if (theMostRecentMatch != null && theMostRecentMatch.after(subscriptionTable.getMostRecentMatch())) {
+			subscriptionTable.setMostRecentMatch(theMostRecentMatch);
+		}
+		mySubscriptionTableDao.save(subscriptionTable);
+	}
+
 	@Override
 	protected ResourceTable updateEntity(IBaseResource theResource, ResourceTable theEntity, Date theDeletedTimestampOrNull, boolean thePerformIndexing, boolean theUpdateVersion,
 			Date theUpdateTime, boolean theForceUpdate, boolean theCreateNewHistoryEntry) {
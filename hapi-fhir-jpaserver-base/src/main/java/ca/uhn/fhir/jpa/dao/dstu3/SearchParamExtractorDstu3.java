@@ -24,6 +24,9 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.measure.unit.NonSI;
 import javax.measure.unit.Unit;
@@ -61,6 +64,17 @@ public class SearchParamExtractorDstu3 extends BaseSearchParamExtractor implemen
 	@Autowired
 	private org.hl7.fhir.dstu3.hapi.validation.IValidationSupport myValidationSupport;
 
+	/*
+	 * Creating a FHIRPath engine (which reads every StructureDefinition) and
+	 * parsing an expression both cost far more than evaluating one, so parsed
+	 * expressions are shared and engines are reused. An engine is not thread
+	 * safe, so each is borrowed from this pool for one extraction. The pool is
+	 * held by this bean rather than by each thread, so pooled container threads
+	 * don't keep engines (and their worker contexts) alive after it is gone.
+	 */
+	private final BlockingQueue<FHIRPathEngine> myFhirPathEngines = new ArrayBlockingQueue<FHIRPathEngine>(Runtime.getRuntime().availableProcessors());
+	private final ConcurrentHashMap<String, ExpressionNode> myParsedPaths = new ConcurrentHashMap<String, ExpressionNode>();
+
 	/**
 	 * Constructor
 	 */
@@ -690,20 +704,31 @@ public class SearchParamExtractorDstu3 extends BaseSearchParamExtractor implemen
 	 */
 	@Override
 	protected List<Object> extractValues(String thePaths, IBaseResource theResource) {
-		IWorkerContext worker = new org.hl7.fhir.dstu3.hapi.validation.HapiWorkerContext(getContext(), myValidationSupport);
-		FHIRPathEngine fp = new FHIRPathEngine(worker);
+		FHIRPathEngine fp = myFhirPathEngines.poll();
+		if (fp == null) {
+			IWorkerContext worker = new org.hl7.fhir.dstu3.hapi.validation.HapiWorkerContext(getContext(), myValidationSupport);
+			fp = new FHIRPathEngine(worker);
+		}
 
 		List<Object> values = new ArrayList<Object>();
 		try {
 			String[] nextPathsSplit = SPLIT.split(thePaths);
 			for (String nextPath : nextPathsSplit) {
-				List<Base> allValues = fp.evaluate((Base) theResource, nextPath);
+				ExpressionNode parsed = myParsedPaths.get(nextPath);
+				if (parsed == null) {
+					parsed = fp.parse(nextPath);
+					myParsedPaths.put(nextPath, parsed);
+				}
+				List<Base> allValues = fp.evaluate((Base) theResource, parsed);
 				if (allValues.isEmpty() == false) {
 					values.addAll(allValues);
 				}
 			}
 		} catch (FHIRException e) {
 			throw new InternalErrorException(e);
+		} finally {
+			// If the pool is already full this engine is dropped
+			myFhirPathEngines.offer(fp);
 		}
 
 		for (int i = 0; i < values.size(); i++) {
@@ -738,6 +763,7 @@ public class SearchParamExtractorDstu3 extends BaseSearchParamExtractor implemen
 	@VisibleForTesting
 	void setValidationSupportForTesting(org.hl7.fhir.dstu3.hapi.validation.IValidationSupport theValidationSupport) {
 		myValidationSupport = theValidationSupport;
+		myFhirPathEngines.clear();
 	}
 
 	private static <T extends Enum<?>> String extractSystem(Enumeration<T> theBoundCode) {
@@ -21,6 +21,7 @@ package ca.uhn.fhir.jpa.entity;
  */
 
 import java.io.Serializable;
+import java.math.BigDecimal;
 import java.util.Date;
 
 import javax.persistence.*;
@@ -104,4 +105,21 @@ public abstract class BaseResourceIndexedSearchParam implements Serializable {
 		myUpdated = theUpdated;
 	}
 
+	/**
+	 * Values read back from the database have the column's scale, so equality
+	 * (used to find index rows which are unchanged when a resource is updated)
+	 * compares numbers regardless of their scale
+	 */
+	static BigDecimal stripTrailingZeros(BigDecimal theValue) {
+		return theValue != null ? theValue.stripTrailingZeros() : null;
+	}
+
+	/**
+	 * Dates read back from the database are {@link java.sql.Timestamp}s, which
+	 * are never equal to a {@link Date}, so equality compares the instant
+	 */
+	static Long toMillis(Date theDate) {
+		return theDate != null ? theDate.getTime() : null;
+	}
+
 }
@@ -20,19 +20,251 @@ package ca.uhn.fhir.jpa.entity;
  * #L%
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import com.google.common.base.Charsets;
+
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
 
+/**
+ * The encodings (and compression) which may be used to store resource bodies. The
+ * encoding is stored alongside each resource version, so existing rows continue to be
+ * readable whichever encoding is configured in {@link ca.uhn.fhir.jpa.dao.DaoConfig#setResourceEncoding(ResourceEncodingEnum)}.
+ * <p>
+ * New encodings may be added by adding a constant which overrides {@link #newOutputStream(OutputStream)}
+ * and {@link #newInputStream(byte[])}. Note that constant names may not be more than 5 characters
+ * long, and that the format of an existing encoding must never change.
+ * </p>
+ */
 public enum ResourceEncodingEnum {
 
 	/** Json */
 	JSON,
-	
-	/** Json Compressed */
-	JSONC;
+
+	/** Json Compressed (GZip) */
+	JSONC {
+		@Override
+		OutputStream newOutputStream(OutputStream theOutputStream) throws IOException {
+			return new GZIPOutputStream(theOutputStream);
+		}
+
+		@Override
+		InputStream newInputStream(byte[] theBytes) throws IOException {
+			return new GZIPInputStream(new ByteArrayInputStream(theBytes));
+		}
+	},
+
+	/**
+	 * Json Compressed using Deflate with a preset dictionary of JSON fragments which are
+	 * common in FHIR resources. This is smaller than {@link #JSONC} for typical resources,
+	 * which are too small for the compressor to learn much from their own content.
+	 */
+	JSOND {
+		@Override
+		OutputStream newOutputStream(OutputStream theOutputStream) throws IOException {
+			final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+			deflater.setDictionary(JsonDictionary.BYTES);
+			return new DeflaterOutputStream(theOutputStream, deflater) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						deflater.end();
+					}
+				}
+			};
+		}
+
+		@Override
+		InputStream newInputStream(byte[] theBytes) throws IOException {
+			return new DictionaryInflaterInputStream(theBytes);
+		}
+	};
+
+	/**
+	 * Encodes a resource, streaming the parser output straight into the compressor
+	 */
+	public byte[] encodeResource(IParser theParser, IBaseResource theResource) {
+		try {
+			ByteArrayOutputStream retVal = new ByteArrayOutputStream(1024);
+			Writer writer = new OutputStreamWriter(newOutputStream(retVal), Charsets.UTF_8);
+			try {
+				theParser.encodeResourceToWriter(theResource, writer);
+			} finally {
+				writer.close();
+			}
+			return retVal.toByteArray();
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to encode resource contents", e);
+		}
+	}
 
 	public IParser newParser(FhirContext theContext) {
 		return theContext.newJsonParser();
 	}
-	
+
+	/**
+	 * Parses resource contents which were encoded using {@link #encodeResource(IParser, IBaseResource)},
+	 * decompressing them straight into the parser
+	 */
+	public <T extends IBaseResource> T parseResource(IParser theParser, Class<T> theResourceType, byte[] theBytes) {
+		try {
+			Reader reader = new InputStreamReader(newInputStream(theBytes), Charsets.UTF_8);
+			try {
+				return theParser.parseResource(theResourceType, reader);
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to decompress contents", e);
+		}
+	}
+
+	/**
+	 * Wraps a stream which the encoded contents will be written to. The
+	 * default implementation does not compress.
+	 */
+	OutputStream newOutputStream(OutputStream theOutputStream) throws IOException {
+		return theOutputStream;
+	}
+
+	/**
+	 * Returns a stream which reads the decoded contents of the given bytes. The
+	 * default implementation does not decompress.
+	 */
+	InputStream newInputStream(byte[] theBytes) throws IOException {
+		return new ByteArrayInputStream(theBytes);
+	}
+
+	/**
+	 * Inflates contents which were deflated using {@link JsonDictionary}. This doesn't
+	 * use {@link java.util.zip.InflaterInputStream}, since that treats a request for
+	 * the dictionary as the end of the stream.
+	 */
+	private static class DictionaryInflaterInputStream extends InputStream {
+
+		private final Inflater myInflater;
+		private byte[] mySingleByte;
+
+		DictionaryInflaterInputStream(byte[] theBytes) {
+			myInflater = new Inflater();
+			myInflater.setInput(theBytes);
+		}
+
+		@Override
+		public void close() {
+			myInflater.end();
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (mySingleByte == null) {
+				mySingleByte = new byte[1];
+			}
+			int count = read(mySingleByte, 0, 1);
+			return count == -1 ? -1 : mySingleByte[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] theBuffer, int theOffset, int theLength) throws IOException {
+			if (theLength == 0) {
+				return 0;
+			}
+			try {
+				while (true) {
+					int count = myInflater.inflate(theBuffer, theOffset, theLength);
+					if (count > 0) {
+						return count;
+					}
+					if (myInflater.finished()) {
+						return -1;
+					}
+					if (myInflater.needsDictionary()) {
+						if (myInflater.getAdler() != JsonDictionary.ADLER) {
+							throw new ZipException("Contents were compressed using an unknown dictionary");
+						}
+						myInflater.setDictionary(JsonDictionary.BYTES);
+					} else if (myInflater.needsInput()) {
+						throw new EOFException("Unexpected end of compressed contents");
+					}
+				}
+			} catch (java.util.zip.DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			}
+		}
+
+	}
+
+	/**
+	 * The preset dictionary used by {@link ResourceEncodingEnum#JSOND}. Resources
+	 * stored using this dictionary can only be read using exactly the same bytes,
+	 * so this must never be changed (a new encoding should be added instead).
+	 * Deflate finds matches most cheaply near the end of the dictionary, so the
+	 * most common fragments are last.
+	 */
+	private static class JsonDictionary {
+
+		private static final byte[] BYTES;
+		private static final int ADLER;
+
+		static {
+			StringBuilder b = new StringBuilder();
+			b.append("\"valueString\":\"\"valueBoolean\":true\"valueCode\":\"\"valueDateTime\":\"\"valueInteger\":");
+			b.append("\"extension\":[{\"url\":\"http://hl7.org/fhir/StructureDefinition/");
+			b.append("\"modifierExtension\":[{\"url\":\"");
+			b.append("\"contained\":[{\"resourceType\":\"");
+			b.append("\"meta\":{\"profile\":[\"http://hl7.org/fhir/StructureDefinition/\"],\"security\":[{\"system\":\"");
+			b.append("\"tag\":[{\"system\":\"");
+			b.append("\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">");
+			b.append("<table><tbody><tr><td></td></tr></tbody></table></div>\"},");
+			b.append("\"address\":[{\"use\":\"home\",\"line\":[\"\"],\"city\":\"\",\"state\":\"\",\"postalCode\":\"\",\"country\":\"\"}],");
+			b.append("\"telecom\":[{\"system\":\"phone\",\"value\":\"\",\"use\":\"work\"},{\"system\":\"email\",\"value\":\"\"}],");
+			b.append("\"name\":[{\"use\":\"official\",\"family\":\"\",\"given\":[\"\"],\"prefix\":[\"\"]}],");
+			b.append("\"gender\":\"female\",\"gender\":\"male\",\"birthDate\":\"");
+			b.append("\"managingOrganization\":{\"reference\":\"Organization/");
+			b.append("\"performer\":[{\"reference\":\"Practitioner/");
+			b.append("\"encounter\":{\"reference\":\"Encounter/");
+			b.append("\"period\":{\"start\":\"\",\"end\":\"\"},");
+			b.append("\"valueQuantity\":{\"value\":,\"unit\":\"\",\"system\":\"http://unitsofmeasure.org\",\"code\":\"\"},");
+			b.append("\"effectiveDateTime\":\"\",\"issued\":\"");
+			b.append("\"category\":[{\"coding\":[{\"system\":\"http://hl7.org/fhir/observation-category\",\"code\":\"");
+			b.append("\"interpretation\":{\"coding\":[{\"system\":\"http://hl7.org/fhir/v2/0078\",\"code\":\"");
+			b.append("\"type\":{\"coding\":[{\"system\":\"http://hl7.org/fhir/v2/0203\",\"code\":\"");
+			b.append("\"status\":\"active\",\"status\":\"final\",\"active\":true,");
+			b.append("\"code\":{\"coding\":[{\"system\":\"http://snomed.info/sct\",\"code\":\"\",\"display\":\"\"}],\"text\":\"\"},");
+			b.append("\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"\",\"display\":\"\"}],\"text\":\"\"},");
+			b.append("\"identifier\":[{\"use\":\"official\",\"system\":\"urn:oid:\",\"value\":\"\"}],");
+			b.append("\"subject\":{\"reference\":\"Patient/\",\"display\":\"\"},");
+			b.append("\"patient\":{\"reference\":\"Patient/");
+			b.append("{\"resourceType\":\"");
+			BYTES = b.toString().getBytes(Charsets.UTF_8);
+
+			Adler32 adler = new Adler32();
+			adler.update(BYTES);
+			ADLER = (int) adler.getValue();
+		}
+
+	}
+
 }
@@ -99,8 +99,8 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 		EqualsBuilder b = new EqualsBuilder();
 		b.append(getParamName(), obj.getParamName());
 		b.append(getResource(), obj.getResource());
-		b.append(getValueHigh(), obj.getValueHigh());
-		b.append(getValueLow(), obj.getValueLow());
+		b.append(toMillis(getValueHigh()), toMillis(obj.getValueHigh()));
+		b.append(toMillis(getValueLow()), toMillis(obj.getValueLow()));
 		return b.isEquals();
 	}
 
@@ -122,8 +122,8 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 		HashCodeBuilder b = new HashCodeBuilder();
 		b.append(getParamName());
 		b.append(getResource());
-		b.append(getValueHigh());
-		b.append(getValueLow());
+		b.append(toMillis(getValueHigh()));
+		b.append(toMillis(getValueLow()));
 		return b.toHashCode();
 	}
 
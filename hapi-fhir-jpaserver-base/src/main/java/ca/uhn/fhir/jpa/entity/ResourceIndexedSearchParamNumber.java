@@ -90,7 +90,7 @@ public class ResourceIndexedSearchParamNumber extends BaseResourceIndexedSearchP
 		EqualsBuilder b = new EqualsBuilder();
 		b.append(getParamName(), obj.getParamName());
 		b.append(getResource(), obj.getResource());
-		b.append(getValue(), obj.getValue());
+		b.append(stripTrailingZeros(getValue()), stripTrailingZeros(obj.getValue()));
 		return b.isEquals();
 	}
 
@@ -108,7 +108,7 @@ public class ResourceIndexedSearchParamNumber extends BaseResourceIndexedSearchP
 		HashCodeBuilder b = new HashCodeBuilder();
 		b.append(getParamName());
 		b.append(getResource());
-		b.append(getValue());
+		b.append(stripTrailingZeros(getValue()));
 		return b.toHashCode();
 	}
 
@@ -105,7 +105,7 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 		b.append(getResource(), obj.getResource());
 		b.append(getSystem(), obj.getSystem());
 		b.append(getUnits(), obj.getUnits());
-		b.append(getValue(), obj.getValue());
+		b.append(stripTrailingZeros(getValue()), stripTrailingZeros(obj.getValue()));
 		return b.isEquals();
 	}
 
@@ -133,7 +133,7 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 		b.append(getResource());
 		b.append(getSystem());
 		b.append(getUnits());
-		b.append(getValue());
+		b.append(stripTrailingZeros(getValue()));
 		return b.toHashCode();
 	}
 
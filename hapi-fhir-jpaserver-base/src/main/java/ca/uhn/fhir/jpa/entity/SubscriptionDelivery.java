@@ -0,0 +1,201 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Lob;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A rest-hook notification which is waiting to be delivered. Rows are written
+ * in the same transaction as the resource change which triggered them, and are
+ * deleted once they have been delivered.
+ */
+//@formatter:off
+@Entity
+@Table(name = "HFJ_SUBS_DELIVERY", indexes = {
+	@Index(name = "IDX_SUBS_DELIVERY_NEXT", columnList = "DELIVERY_STATUS,NEXT_ATTEMPT")
+})
+//@formatter:on
+public class SubscriptionDelivery {
+
+	public static final int MAX_CONTENT_TYPE_LENGTH = 100;
+	public static final int MAX_ERROR_LENGTH = 500;
+	public static final int MAX_SUBSCRIPTION_ID_LENGTH = 200;
+	public static final int MAX_URL_LENGTH = 2000;
+
+	@Column(name = "ATTEMPTS", nullable = false)
+	private int myAttempts;
+
+	@Lob()
+	@Column(name = "BODY", length = Integer.MAX_VALUE - 1, nullable = true)
+	private byte[] myBody;
+
+	@Column(name = "CONTENT_TYPE", length = MAX_CONTENT_TYPE_LENGTH, nullable = true)
+	private String myContentType;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "CREATED", nullable = false, updatable = false)
+	private Date myCreated;
+
+	@Column(name = "ENDPOINT", length = MAX_URL_LENGTH, nullable = false, updatable = false)
+	private String myEndpoint;
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_SUBS_DELIVERY_ID")
+	@SequenceGenerator(name = "SEQ_SUBS_DELIVERY_ID", sequenceName = "SEQ_SUBS_DELIVERY_ID")
+	@Column(name = "PID")
+	private Long myId;
+
+	@Column(name = "LAST_ERROR", length = MAX_ERROR_LENGTH, nullable = true)
+	private String myLastError;
+
+	@Column(name = "HTTP_METHOD", length = 10, nullable = false, updatable = false)
+	private String myMethod;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "NEXT_ATTEMPT", nullable = false)
+	private Date myNextAttempt;
+
+	@Enumerated(EnumType.STRING)
+	@Column(name = "DELIVERY_STATUS", length = 10, nullable = false)
+	private SubscriptionDeliveryStatusEnum myStatus;
+
+	@Column(name = "SUBSCRIPTION_ID", length = MAX_SUBSCRIPTION_ID_LENGTH, nullable = false, updatable = false)
+	private String mySubscriptionId;
+
+	@Column(name = "URL", length = MAX_URL_LENGTH, nullable = false, updatable = false)
+	private String myUrl;
+
+	public int getAttempts() {
+		return myAttempts;
+	}
+
+	public byte[] getBody() {
+		return myBody;
+	}
+
+	public String getContentType() {
+		return myContentType;
+	}
+
+	public Date getCreated() {
+		return myCreated;
+	}
+
+	/**
+	 * The subscription endpoint. Deliveries are queued and limited separately
+	 * for each endpoint.
+	 */
+	public String getEndpoint() {
+		return myEndpoint;
+	}
+
+	public Long getId() {
+		return myId;
+	}
+
+	public String getLastError() {
+		return myLastError;
+	}
+
+	public String getMethod() {
+		return myMethod;
+	}
+
+	public Date getNextAttempt() {
+		return myNextAttempt;
+	}
+
+	public SubscriptionDeliveryStatusEnum getStatus() {
+		return myStatus;
+	}
+
+	public String getSubscriptionId() {
+		return mySubscriptionId;
+	}
+
+	/**
+	 * The URL the notification is sent to
+	 */
+	public String getUrl() {
+		return myUrl;
+	}
+
+	public void setAttempts(int theAttempts) {
+		myAttempts = theAttempts;
+	}
+
+	public void setBody(byte[] theBody) {
+		myBody = theBody;
+	}
+
+	public void setContentType(String theContentType) {
+		myContentType = theContentType;
+	}
+
+	public void setCreated(Date theCreated) {
+		myCreated = theCreated;
+	}
+
+	public void setEndpoint(String theEndpoint) {
+		myEndpoint = theEndpoint;
+	}
+
+	public void setLastError(String theLastError) {
+		myLastError = StringUtils.abbreviate(theLastError, MAX_ERROR_LENGTH);
+	}
+
+	public void setMethod(String theMethod) {
+		myMethod = theMethod;
+	}
+
+	public void setNextAttempt(Date theNextAttempt) {
+		myNextAttempt = theNextAttempt;
+	}
+
+	public void setStatus(SubscriptionDeliveryStatusEnum theStatus) {
+		myStatus = theStatus;
+	}
+
+	public void setSubscriptionId(String theSubscriptionId) {
+		mySubscriptionId = theSubscriptionId;
+	}
+
+	public void setUrl(String theUrl) {
+		myUrl = theUrl;
+	}
+
+}
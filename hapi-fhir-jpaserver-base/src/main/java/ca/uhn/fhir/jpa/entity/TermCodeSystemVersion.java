@@ -49,6 +49,21 @@ import ca.uhn.fhir.util.CoverageIgnore;
 public class TermCodeSystemVersion implements Serializable {
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Set once every {@link TermConceptClosure} row for this version has been
+	 * written, since they are written over several transactions
+	 */
+	@Column(name = "CLOSURE_BUILT", nullable = true)
+	private Boolean myClosureBuilt;
+
+	/**
+	 * Set while the {@link TermConceptClosure} rows for this version are still to
+	 * be written (or part written) by deferred saving, so that they are written
+	 * again from the start if the server restarts first
+	 */
+	@Column(name = "CLOSURE_PENDING", nullable = true)
+	private Boolean myClosurePending;
+
 	@OneToMany(fetch = FetchType.LAZY, mappedBy = "myCodeSystem")
 	private Collection<TermConcept> myConcepts;
 
@@ -129,6 +144,22 @@ public class TermCodeSystemVersion implements Serializable {
 		return myResourceVersionId;
 	}
 
+	public boolean isClosureBuilt() {
+		return Boolean.TRUE.equals(myClosureBuilt);
+	}
+
+	public void setClosureBuilt(boolean theClosureBuilt) {
+		myClosureBuilt = theClosureBuilt;
+	}
+
+	public boolean isClosurePending() {
+		return Boolean.TRUE.equals(myClosurePending);
+	}
+
+	public void setClosurePending(boolean theClosurePending) {
+		myClosurePending = theClosurePending;
+	}
+
 	public void setResource(ResourceTable theResource) {
 		myResource = theResource;
 	}
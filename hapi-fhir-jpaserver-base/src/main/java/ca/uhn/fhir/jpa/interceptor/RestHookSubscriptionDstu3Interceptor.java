@@ -21,15 +21,16 @@ package ca.uhn.fhir.jpa.interceptor;
  * #L%
  */
 
+import static org.apache.commons.lang3.StringUtils.defaultString;
+
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.lang3.time.DateUtils;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
@@ -43,14 +44,23 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.InMemoryResourceMatcher;
+import ca.uhn.fhir.jpa.dao.InMemoryResourceMatcher.IndexedResource;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.provider.ServletSubRequestDetails;
-import ca.uhn.fhir.jpa.thread.HttpRequestDstu3Job;
+import ca.uhn.fhir.jpa.subscription.IRestHookDeliverySvc;
+import ca.uhn.fhir.jpa.subscription.SubscriptionCriteriaIndex;
+import ca.uhn.fhir.jpa.subscription.SubscriptionCriteriaIndex.ActiveSubscription;
+import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.param.TokenParam;
@@ -60,20 +70,60 @@ import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.interceptor.IServerOperationInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
 
+/**
+ * Sends rest-hook notifications for resources which match an active rest-hook
+ * subscription.
+ * <p>
+ * The active subscriptions are loaded from the database when this interceptor is
+ * created as a Spring bean, and reloaded every {@link #REFRESH_INTERVAL_MILLIS} by
+ * a scheduled task (unless {@link DaoConfig#isSchedulingDisabled() scheduling is disabled})
+ * so that changes made by other servers sharing the database are picked up.
+ * Subscriptions created, updated or deleted through this server are applied once
+ * the transaction which wrote them commits. An instance which isn't created by Spring should call
+ * {@link #initSubscriptions()} itself.
+ * </p>
+ */
 public class RestHookSubscriptionDstu3Interceptor extends InterceptorAdapter implements IServerOperationInterceptor {
 
-	private static volatile ExecutorService executor;
-	private final static int MAX_THREADS = 1;
-
 	private static final Logger ourLog = LoggerFactory.getLogger(RestHookSubscriptionDstu3Interceptor.class);
 
+	/**
+	 * How often the subscriptions are reloaded from the database
+	 */
+	public static final long REFRESH_INTERVAL_MILLIS = DateUtils.MILLIS_PER_MINUTE;
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@Autowired
+	private IRestHookDeliverySvc myDeliverySvc;
+
 	@Autowired
 	private FhirContext myFhirContext;
 	
+	@Autowired
+	private InMemoryResourceMatcher myResourceMatcher;
+
+	/**
+	 * Sets the service which queues and sends notifications
+	 */
+	public void setDeliverySvc(IRestHookDeliverySvc theDeliverySvc) {
+		myDeliverySvc = theDeliverySvc;
+	}
+
 	public void setFhirContext(FhirContext theFhirContext) {
 		myFhirContext = theFhirContext;
 	}
 
+	/**
+	 * Sets the matcher used to check resources against subscription criteria
+	 * without searching the database. If this is <code>null</code>, a search is
+	 * used for every subscription.
+	 */
+	public void setResourceMatcher(InMemoryResourceMatcher theResourceMatcher) {
+		myResourceMatcher = theResourceMatcher;
+	}
+
 	public void setSubscriptionDao(IFhirResourceDao<Subscription> theSubscriptionDao) {
 		mySubscriptionDao = theSubscriptionDao;
 	}
@@ -84,28 +134,36 @@ public class RestHookSubscriptionDstu3Interceptor extends InterceptorAdapter imp
 	
 	private boolean notifyOnDelete = false;
 
-	private final List<Subscription> myRestHookSubscriptions = new ArrayList<Subscription>();
+	private final SubscriptionCriteriaIndex myRestHookSubscriptions = new SubscriptionCriteriaIndex();
 
 	/**
 	 * Check subscriptions and send notifications or payload
 	 *
-	 * @param idType
+	 * @param theResource
 	 * @param resourceType
 	 * @param theOperation 
 	 */
-	private void checkSubscriptions(IIdType idType, String resourceType, RestOperationTypeEnum theOperation) {
-		for (Subscription subscription : myRestHookSubscriptions) {
-			// see if the criteria matches the created object
-			ourLog.info("Checking subscription {} for {} with criteria {}", subscription.getIdElement().getIdPart(), resourceType, subscription.getCriteria());
-
-			String criteriaResource = subscription.getCriteria();
-			int index = criteriaResource.indexOf("?");
-			if (index != -1) {
-				criteriaResource = criteriaResource.substring(0, criteriaResource.indexOf("?"));
-			}
+	private void checkSubscriptions(IBaseResource theResource, String resourceType, RestOperationTypeEnum theOperation) {
+		if (!myRestHookSubscriptions.hasSubscriptions(resourceType)) {
+			ourLog.debug("No rest-hook subscriptions for {}", resourceType);
+			return;
+		}
+
+		IIdType idType = theResource.getIdElement();
+		IndexedResource indexedResource = null;
+		if (myResourceMatcher != null) {
+			indexedResource = myResourceMatcher.index(resourceType, theResource);
+		}
+
+		for (ActiveSubscription nextActive : myRestHookSubscriptions.getCandidates(resourceType, indexedResource)) {
+			Subscription subscription = (Subscription) nextActive.getSubscription();
+			ourLog.debug("Checking subscription {} for {} with criteria {}", subscription.getIdElement().getIdPart(), resourceType, subscription.getCriteria());
 
-			if (resourceType != null && subscription.getCriteria() != null && !criteriaResource.equals(resourceType)) {
-				ourLog.info("Skipping subscription search for {} because it does not match the criteria {}", resourceType , subscription.getCriteria());
+			// criteria which can be matched in memory don't need a search
+			if (indexedResource != null && nextActive.isMatchInMemory()) {
+				if (myResourceMatcher.match(resourceType, nextActive.getCriteriaMap(), indexedResource)) {
+					notifySubscription(subscription, (IAnyResource) theResource, theOperation);
+				}
 				continue;
 			}
 
@@ -122,16 +180,16 @@ public class RestHookSubscriptionDstu3Interceptor extends InterceptorAdapter imp
 
 			// should just be one resource as it was filtered by the id
 			for (IBaseResource nextBase : results.getResources(0, results.size())) {
-				IAnyResource next = (IAnyResource) nextBase;
-				ourLog.info("Found match: queueing rest-hook notification for resource: {}", next.getIdElement());
-				HttpUriRequest request = createRequest(subscription, next, theOperation);
-				if (request != null) {
-					executor.submit(new HttpRequestDstu3Job(request, subscription));
-				}
+				notifySubscription(subscription, (IAnyResource) nextBase, theOperation);
 			}
 		}
 	}
 
+	private ActiveSubscription createActiveSubscription(Subscription theSubscription) {
+		String criteria = defaultString(theSubscription.getCriteria());
+		return SubscriptionCriteriaIndex.createActiveSubscription(theSubscription, criteria, massageCriteria(criteria), mySubscriptionDao, myResourceMatcher);
+	}
+
 	/**
 	 * Creates an HTTP Post for a subscription
 	 */
@@ -210,27 +268,6 @@ public class RestHookSubscriptionDstu3Interceptor extends InterceptorAdapter imp
 		return responseResults;
 	}
 
-	/**
-	 * Get subscription from cache
-	 *
-	 * @param id
-	 * @return
-	 */
-	private Subscription getLocalSubscription(String id) {
-		if (id != null && !id.trim().isEmpty()) {
-			int size = myRestHookSubscriptions.size();
-			if (size > 0) {
-				for (Subscription restHookSubscription : myRestHookSubscriptions) {
-					if (id.equals(restHookSubscription.getIdElement().getIdPart())) {
-						return restHookSubscription;
-					}
-				}
-			}
-		}
-
-		return null;
-	}
-
 	private String getResourceName(IBaseResource theResource) {
 		return myFhirContext.getResourceDefinition(theResource).getName();
 	}
@@ -257,22 +294,56 @@ public class RestHookSubscriptionDstu3Interceptor extends InterceptorAdapter imp
 
 
 	/**
-	 * Read the existing subscriptions from the database
+	 * Runs a change to the held subscriptions once the current transaction (if
+	 * any) commits. A reload which searched before the commit then sees the
+	 * index change and loads again, instead of replacing the index with a
+	 * search result which is missing the change.
+	 */
+	private void afterCommit(final Runnable theChange) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					theChange.run();
+				}
+			});
+		} else {
+			theChange.run();
+		}
+	}
+
+	/**
+	 * Read the existing subscriptions from the database, replacing the ones
+	 * currently held
 	 */
 	public void initSubscriptions() {
-		SearchParameterMap map = new SearchParameterMap();
-		map.add(Subscription.SP_TYPE, new TokenParam(null, Subscription.SubscriptionChannelType.RESTHOOK.toCode()));
-		map.add(Subscription.SP_STATUS, new TokenParam(null, Subscription.SubscriptionStatus.ACTIVE.toCode()));
+		StopWatch sw = new StopWatch();
+		for (int i = 0; i < 3; i++) {
+			long modCount = myRestHookSubscriptions.getModCount();
 
-		RequestDetails req = new ServletSubRequestDetails();
-		req.setSubRequest(true);
+			SearchParameterMap map = new SearchParameterMap();
+			map.add(Subscription.SP_TYPE, new TokenParam(null, Subscription.SubscriptionChannelType.RESTHOOK.toCode()));
+			map.add(Subscription.SP_STATUS, new TokenParam(null, Subscription.SubscriptionStatus.ACTIVE.toCode()));
+			map.setLoadSynchronous(true);
+
+			RequestDetails req = new ServletSubRequestDetails();
+			req.setSubRequest(true);
 
-		IBundleProvider subscriptionBundleList = mySubscriptionDao.search(map, req);
-		List<IBaseResource> resourceList = subscriptionBundleList.getResources(0, subscriptionBundleList.size());
+			IBundleProvider subscriptionBundleList = mySubscriptionDao.search(map, req);
+			List<IBaseResource> resourceList = subscriptionBundleList.getResources(0, subscriptionBundleList.size());
+
+			List<ActiveSubscription> subscriptions = new ArrayList<ActiveSubscription>();
+			for (IBaseResource resource : resourceList) {
+				subscriptions.add(createActiveSubscription((Subscription) resource));
+			}
 
-		for (IBaseResource resource : resourceList) {
-			myRestHookSubscriptions.add((Subscription) resource);
+			// Subscriptions added or removed while searching would be lost, so try again
+			if (myRestHookSubscriptions.replaceAll(subscriptions, modCount)) {
+				ourLog.info("Loaded {} rest-hook subscriptions in {}ms", subscriptions.size(), sw.getMillis());
+				return;
+			}
 		}
+		ourLog.info("Rest-hook subscriptions changed while being loaded, will load again later");
 	}
 
 	public boolean isNotifyOnDelete() {
@@ -286,12 +357,28 @@ public class RestHookSubscriptionDstu3Interceptor extends InterceptorAdapter imp
 		return theCriteria;
 	}
 
-	@PostConstruct
-	public void postConstruct() {
+	private void notifySubscription(Subscription theSubscription, IAnyResource theResource, RestOperationTypeEnum theOperation) {
+		ourLog.info("Found match: queueing rest-hook notification for resource: {}", theResource.getIdElement());
+		HttpUriRequest request = createRequest(theSubscription, theResource, theOperation);
+		if (request != null) {
+			String subscriptionId = theSubscription.getIdElement().toUnqualifiedVersionless().getValue();
+			myDeliverySvc.queue(subscriptionId, theSubscription.getChannel().getEndpoint(), request);
+		}
+	}
+
+	/**
+	 * Reloads the subscriptions from the database, so that changes made by other
+	 * servers are picked up
+	 */
+	@Scheduled(fixedDelay = REFRESH_INTERVAL_MILLIS, initialDelay = REFRESH_INTERVAL_MILLIS)
+	public void refreshSubscriptions() {
+		if (myDaoConfig.isSchedulingDisabled()) {
+			return;
+		}
 		try {
-			executor = Executors.newFixedThreadPool(MAX_THREADS);
+			initSubscriptions();
 		} catch (Exception e) {
-			throw new RuntimeException("Unable to get DAO from PROXY");
+			ourLog.error("Failed to reload rest-hook subscriptions", e);
 		}
 	}
 
@@ -301,9 +388,7 @@ public class RestHookSubscriptionDstu3Interceptor extends InterceptorAdapter imp
 	 * @param subscriptionId
 	 */
 	private void removeLocalSubscription(String subscriptionId) {
-		Subscription localSubscription = getLocalSubscription(subscriptionId);
-		if (localSubscription != null) {
-			myRestHookSubscriptions.remove(localSubscription);
+		if (subscriptionId != null && myRestHookSubscriptions.remove(subscriptionId) != null) {
 			ourLog.info("Subscription removed: " + subscriptionId);
 		} else {
 			ourLog.info("Subscription not found in local list. Subscription id: " + subscriptionId);
@@ -317,20 +402,25 @@ public class RestHookSubscriptionDstu3Interceptor extends InterceptorAdapter imp
 	 */
 	@Override
 	public void resourceCreated(RequestDetails theRequest, IBaseResource theResource) {
-		IIdType idType = theResource.getIdElement();
 		ourLog.info("resource created type: {}", getResourceName(theResource));
 
 		if (theResource instanceof Subscription) {
-			Subscription subscription = (Subscription) theResource;
+			final Subscription subscription = (Subscription) theResource;
 			if (subscription.getChannel() != null
 					&& subscription.getChannel().getType() == Subscription.SubscriptionChannelType.RESTHOOK
 					&& subscription.getStatus() == Subscription.SubscriptionStatus.ACTIVE) {
-				removeLocalSubscription(subscription.getIdElement().getIdPart());
-				myRestHookSubscriptions.add(subscription);
-				ourLog.info("Subscription was added, id: {} - Have {}", subscription.getIdElement().getIdPart(), myRestHookSubscriptions.size());
+				final ActiveSubscription activeSubscription = createActiveSubscription(subscription);
+				afterCommit(new Runnable() {
+					@Override
+					public void run() {
+						removeLocalSubscription(subscription.getIdElement().getIdPart());
+						myRestHookSubscriptions.add(activeSubscription);
+						ourLog.info("Subscription was added, id: {} - Have {}", subscription.getIdElement().getIdPart(), myRestHookSubscriptions.size());
+					}
+				});
 			}
 		} else {
-			checkSubscriptions(idType, getResourceName(theResource), RestOperationTypeEnum.CREATE);
+			checkSubscriptions(theResource, getResourceName(theResource), RestOperationTypeEnum.CREATE);
 		}
 	}
 
@@ -354,11 +444,16 @@ public class RestHookSubscriptionDstu3Interceptor extends InterceptorAdapter imp
 		IIdType idType = theResource.getIdElement();
 
 		if (resourceType.equals(Subscription.class.getSimpleName())) {
-			String id = idType.getIdPart();
-			removeLocalSubscription(id);
+			final String id = idType.getIdPart();
+			afterCommit(new Runnable() {
+				@Override
+				public void run() {
+					removeLocalSubscription(id);
+				}
+			});
 		} else {
 			if (notifyOnDelete) {
-				checkSubscriptions(idType, resourceType, RestOperationTypeEnum.DELETE);
+				checkSubscriptions(theResource, resourceType, RestOperationTypeEnum.DELETE);
 			}
 		}
 	}
@@ -370,26 +465,44 @@ public class RestHookSubscriptionDstu3Interceptor extends InterceptorAdapter imp
 	@Override
 	public void resourceUpdated(RequestDetails theRequest, IBaseResource theResource) {
 		String resourceType = getResourceName(theResource);
-		IIdType idType = theResource.getIdElement();
 
 		ourLog.info("resource updated type: " + resourceType);
 
 		if (theResource instanceof Subscription) {
-			Subscription subscription = (Subscription) theResource;
+			final Subscription subscription = (Subscription) theResource;
 			if (subscription.getChannel() != null && subscription.getChannel().getType() == Subscription.SubscriptionChannelType.RESTHOOK) {
-				removeLocalSubscription(subscription.getIdElement().getIdPart());
-
-				if (subscription.getStatus() == Subscription.SubscriptionStatus.ACTIVE) {
-					myRestHookSubscriptions.add(subscription);
-					ourLog.info("Subscription was updated, id: {} - Have {}", subscription.getIdElement().getIdPart(), myRestHookSubscriptions.size());
-				}
+				final ActiveSubscription activeSubscription = subscription.getStatus() == Subscription.SubscriptionStatus.ACTIVE ? createActiveSubscription(subscription) : null;
+				afterCommit(new Runnable() {
+					@Override
+					public void run() {
+						removeLocalSubscription(subscription.getIdElement().getIdPart());
+						if (activeSubscription != null) {
+							myRestHookSubscriptions.add(activeSubscription);
+							ourLog.info("Subscription was updated, id: {} - Have {}", subscription.getIdElement().getIdPart(), myRestHookSubscriptions.size());
+						}
+					}
+				});
 			}
 		} else {
-			checkSubscriptions(idType, resourceType, RestOperationTypeEnum.UPDATE);
+			checkSubscriptions(theResource, resourceType, RestOperationTypeEnum.UPDATE);
 		}
 	}
 
 	public void setNotifyOnDelete(boolean notifyOnDelete) {
 		this.notifyOnDelete = notifyOnDelete;
 	}
+
+	/**
+	 * Loads the subscriptions when this interceptor is created. If this fails the
+	 * interceptor is still usable, and the subscriptions are loaded by the next
+	 * scheduled refresh.
+	 */
+	@PostConstruct
+	public void start() {
+		try {
+			initSubscriptions();
+		} catch (Exception e) {
+			ourLog.error("Failed to load rest-hook subscriptions", e);
+		}
+	}
 }
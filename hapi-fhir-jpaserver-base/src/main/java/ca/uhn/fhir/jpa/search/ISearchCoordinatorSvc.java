@@ -26,6 +26,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import ca.uhn.fhir.jpa.dao.IDao;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.IBundleProvider;
 
 public interface ISearchCoordinatorSvc {
@@ -34,6 +35,22 @@ public interface ISearchCoordinatorSvc {
 
 	IBundleProvider registerSearch(IDao theCallingDao, SearchParameterMap theParams, String theResourceType);
 
+	/**
+	 * As {@link #registerSearch(IDao, SearchParameterMap, String)}, for a search
+	 * made by a client request
+	 * 
+	 * @param theRequestDetails
+	 *           The request, used to share search threads fairly between clients. May be <code>null</code>.
+	 */
+	IBundleProvider registerSearch(IDao theCallingDao, SearchParameterMap theParams, String theResourceType, RequestDetails theRequestDetails);
+
 	void cancelAllActiveSearches();
 
+	/**
+	 * Called when a resource of the given type is created, updated or deleted so
+	 * that cached searches whose results it could change are no longer reused
+	 * once the current transaction (if any) commits
+	 */
+	void notifyResourceWritten(String theResourceType);
+
 }
@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.search;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Carries search progress from the thread (or server node) loading a search to
+ * requests waiting for later pages of it, so that a paging request can return
+ * as soon as the results it needs have been committed rather than
+ * re-reading the search on a fixed interval.
+ * <p>
+ * The default implementation, {@link LocalSearchProgressNotifier}, only reaches
+ * waiters in the same JVM. A clustered deployment may provide a bean of this
+ * type which also relays progress between nodes (for example over a message
+ * bus); it must still wake local waiters. Waiters always fall back to
+ * re-reading the search from the database periodically, so a lost
+ * notification only costs latency.
+ * </p>
+ */
+public interface ISearchProgressNotifier {
+
+	/**
+	 * Waits until progress beyond <code>theNumFoundSeen</code> has been published
+	 * for the given search, or it has finished, or the timeout expires. Returns
+	 * immediately if such progress was already published.
+	 * 
+	 * @param theSearchUuid
+	 *           The search UUID
+	 * @param theNumFoundSeen
+	 *           The number of results the caller has already seen committed
+	 * @param theTimeoutMillis
+	 *           The maximum time to wait
+	 * @return <code>true</code> if progress was published, <code>false</code> if the wait timed out
+	 */
+	boolean awaitProgress(String theSearchUuid, int theNumFoundSeen, long theTimeoutMillis) throws InterruptedException;
+
+	/**
+	 * Publishes that results for the given search have been committed.
+	 * 
+	 * @param theSearchUuid
+	 *           The search UUID
+	 * @param theNumFound
+	 *           The number of results now committed
+	 * @param theFinished
+	 *           <code>true</code> if the search has finished (or failed) and no more results will follow
+	 */
+	void notifyProgress(String theSearchUuid, int theNumFound, boolean theFinished);
+
+}
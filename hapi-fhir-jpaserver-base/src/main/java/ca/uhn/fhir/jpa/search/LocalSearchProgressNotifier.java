@@ -0,0 +1,113 @@
+package ca.uhn.fhir.jpa.search;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-process {@link ISearchProgressNotifier}: waiters block on a monitor per
+ * search, and are woken by notifications from search tasks in the same JVM.
+ */
+public class LocalSearchProgressNotifier implements ISearchProgressNotifier {
+
+	private final Map<String, Progress> myUuidToProgress = new HashMap<String, Progress>();
+
+	@Override
+	public boolean awaitProgress(String theSearchUuid, int theNumFoundSeen, long theTimeoutMillis) throws InterruptedException {
+		Progress progress;
+		synchronized (myUuidToProgress) {
+			progress = myUuidToProgress.get(theSearchUuid);
+			if (progress == null) {
+				progress = new Progress();
+				myUuidToProgress.put(theSearchUuid, progress);
+			}
+			progress.myWaiters++;
+		}
+
+		try {
+			long deadline = System.currentTimeMillis() + theTimeoutMillis;
+			synchronized (progress) {
+				while (progress.myFinished == false && progress.myNumFound <= theNumFoundSeen) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						return false;
+					}
+					progress.wait(remaining);
+				}
+				return true;
+			}
+		} finally {
+			synchronized (myUuidToProgress) {
+				progress.myWaiters--;
+				if (progress.myWaiters == 0 && progress.myPublished == false) {
+					/*
+					 * Nothing in this JVM is loading the search, so there is no
+					 * reason to keep track of it once nobody is waiting
+					 */
+					myUuidToProgress.remove(theSearchUuid);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of searches currently tracked (for unit tests)
+	 */
+	int getTrackedSearchCount() {
+		synchronized (myUuidToProgress) {
+			return myUuidToProgress.size();
+		}
+	}
+
+	@Override
+	public void notifyProgress(String theSearchUuid, int theNumFound, boolean theFinished) {
+		Progress progress;
+		synchronized (myUuidToProgress) {
+			if (theFinished) {
+				progress = myUuidToProgress.remove(theSearchUuid);
+			} else {
+				progress = myUuidToProgress.get(theSearchUuid);
+				if (progress == null) {
+					progress = new Progress();
+					myUuidToProgress.put(theSearchUuid, progress);
+				}
+				progress.myPublished = true;
+			}
+		}
+
+		if (progress != null) {
+			synchronized (progress) {
+				progress.myNumFound = Math.max(progress.myNumFound, theNumFound);
+				progress.myFinished |= theFinished;
+				progress.notifyAll();
+			}
+		}
+	}
+
+	private static class Progress {
+		private boolean myFinished;
+		private int myNumFound;
+		private boolean myPublished;
+		private int myWaiters;
+	}
+
+}
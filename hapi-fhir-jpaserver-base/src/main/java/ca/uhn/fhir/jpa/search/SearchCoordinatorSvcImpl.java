@@ -20,7 +20,9 @@ package ca.uhn.fhir.jpa.search;
  * #L%
  */
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -32,15 +34,16 @@ import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.persistence.EntityManager;
+import javax.servlet.http.HttpServletRequest;
 import javax.transaction.Transactional;
 import javax.transaction.Transactional.TxType;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.exception.ExceptionUtils;
@@ -51,22 +54,23 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.orm.jpa.JpaTransactionManager;
-import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.IDao;
 import ca.uhn.fhir.jpa.dao.ISearchBuilder;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.dao.data.IResourceTableDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchIncludeDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
@@ -75,16 +79,29 @@ import ca.uhn.fhir.jpa.entity.SearchInclude;
 import ca.uhn.fhir.jpa.entity.SearchResult;
 import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
 import ca.uhn.fhir.jpa.entity.SearchTypeEnum;
+import ca.uhn.fhir.jpa.search.SearchResultCache.CachedSearch;
+import ca.uhn.fhir.jpa.util.LongHashSet;
 import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.rest.method.PageMethodBinding;
+import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.*;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 
 public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 	static final int DEFAULT_SYNC_SIZE = 250;
 
+	/**
+	 * How long a request for a page of a search which is being loaded elsewhere
+	 * waits for a progress notification before re-reading the search anyway
+	 */
+	static final long DEFAULT_MAX_MILLIS_BETWEEN_REMOTE_POLLS = 500;
+
+	static final String HEADER_RETRY_AFTER = "Retry-After";
+	static final int STATUS_SERVICE_UNAVAILABLE = 503;
+
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchCoordinatorSvcImpl.class);
 
 	@Autowired
@@ -93,12 +110,19 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 	private DaoConfig myDaoConfig;
 	@Autowired
 	private EntityManager myEntityManager;
-	private ExecutorService myExecutor;
+	private SearchScheduler myScheduler;
 	private final ConcurrentHashMap<String, SearchTask> myIdToSearchTask = new ConcurrentHashMap<String, SearchTask>();
 	private Integer myLoadingThrottleForUnitTests = null;
+	private long myMaxMillisBetweenRemotePolls = DEFAULT_MAX_MILLIS_BETWEEN_REMOTE_POLLS;
+	/*
+	 * How long a request for a page waits for the search to load the results it
+	 * needs, whether it is being loaded on this server or another one
+	 */
 	private long myMaxMillisToWaitForRemoteResults = DateUtils.MILLIS_PER_MINUTE;
 	private boolean myNeverUseLocalSearchForUnitTests;
 	@Autowired
+	private IResourceTableDao myResourceTableDao;
+	@Autowired
 	private ISearchDao mySearchDao;
 	@Autowired
 	private ISearchIncludeDao mySearchIncludeDao;
@@ -106,6 +130,9 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 	private ISearchResultDao mySearchResultDao;
 	@Autowired
 	private PlatformTransactionManager myManagedTxManager;
+	@Autowired(required = false)
+	private ISearchProgressNotifier mySearchProgressNotifier = new LocalSearchProgressNotifier();
+	private final SearchResultCache mySearchResultCache = new SearchResultCache();
 
 	private int mySyncSize = DEFAULT_SYNC_SIZE;
 
@@ -120,8 +147,7 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 	 * Constructor
 	 */
 	public SearchCoordinatorSvcImpl() {
-		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("search_coord_");
-		myExecutor = Executors.newCachedThreadPool(threadFactory);
+		super();
 	}
 
 	@Override
@@ -176,12 +202,18 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 				break;
 			}
 
-			if (sw.getMillis() > myMaxMillisToWaitForRemoteResults) {
+			long remaining = myMaxMillisToWaitForRemoteResults - sw.getMillis();
+			if (remaining < 0) {
 				throw new InternalErrorException("Request timed out after " + sw.getMillis() + "ms");
 			}
 
+			/*
+			 * Wake up as soon as the task loading the search commits another
+			 * batch of results, re-reading the search periodically anyhow in
+			 * case it is being loaded on a node we don't hear from
+			 */
 			try {
-				Thread.sleep(500);
+				mySearchProgressNotifier.awaitProgress(theUuid, search.getNumFound(), Math.min(remaining, myMaxMillisBetweenRemotePolls));
 			} catch (InterruptedException e) {
 				// ignore
 			}
@@ -208,6 +240,58 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		return retVal;
 	}
 
+	/**
+	 * Returns the scheduler search tasks are run on, which provides queue depth,
+	 * wait time and run time statistics
+	 */
+	public synchronized SearchScheduler getSearchScheduler() {
+		if (myScheduler == null) {
+			myScheduler = new SearchScheduler("search_coord_", myDaoConfig.getSearchThreadCount(), myDaoConfig.getSearchQueueSize(), myDaoConfig.getSearchQueueSizePerClient());
+		}
+		return myScheduler;
+	}
+
+	/**
+	 * Returns the in-memory tier of the cache of reusable searches, which
+	 * provides hit, miss and invalidation statistics for both tiers
+	 */
+	public SearchResultCache getSearchResultCache() {
+		return mySearchResultCache;
+	}
+
+	/**
+	 * Returns <code>true</code> if any resource which could change the results
+	 * of the given search has been written since it was created, either on this
+	 * server or (as seen in the resource table) on any other
+	 */
+	private boolean isWrittenSince(CachedSearch theSearch) {
+		if (mySearchResultCache.isWrittenSince(theSearch)) {
+			return true;
+		}
+		Pageable first = new PageRequest(0, 1);
+		List<Long> updated;
+		if (theSearch.isDependsOnOtherTypes()) {
+			updated = myResourceTableDao.findIdsUpdatedSince(theSearch.getCreated(), first);
+		} else {
+			updated = myResourceTableDao.findIdsOfTypeUpdatedSince(theSearch.getResourceType(), theSearch.getCreated(), first);
+		}
+		return !updated.isEmpty();
+	}
+
+	@Override
+	public void notifyResourceWritten(final String theResourceType) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					mySearchResultCache.notifyResourceWritten(theResourceType);
+				}
+			});
+		} else {
+			mySearchResultCache.notifyResourceWritten(theResourceType);
+		}
+	}
+
 	private void populateBundleProvider(PersistedJpaBundleProvider theRetVal) {
 		theRetVal.setContext(myContext);
 		theRetVal.setEntityManager(myEntityManager);
@@ -218,8 +302,13 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 
 	@Override
 	public IBundleProvider registerSearch(final IDao theCallingDao, SearchParameterMap theParams, String theResourceType) {
+		return registerSearch(theCallingDao, theParams, theResourceType, null);
+	}
+
+	@Override
+	public IBundleProvider registerSearch(final IDao theCallingDao, final SearchParameterMap theParams, String theResourceType, RequestDetails theRequestDetails) {
 		StopWatch w = new StopWatch();
-		String searchUuid = UUID.randomUUID().toString();
+		final String searchUuid = UUID.randomUUID().toString();
 
 		Class<? extends IBaseResource> resourceTypeClass = myContext.getResourceDefinition(theResourceType).getImplementingClass();
 		final ISearchBuilder sb = theCallingDao.newSearchBuilder();
@@ -230,13 +319,29 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 			// Load the results synchronously
 			final List<Long> pids = new ArrayList<Long>();
 
-			Iterator<Long> resultIter = sb.createQuery(theParams, searchUuid);
-			while (resultIter.hasNext()) {
-				pids.add(resultIter.next());
-				if (theParams.getLoadSynchronousUpTo() != null && pids.size() >= theParams.getLoadSynchronousUpTo()) {
-					break;
+			/*
+			 * Read the matches within a transaction so that they are streamed
+			 * from the database rather than fetched as one list
+			 */
+			TransactionTemplate queryTxTemplate = new TransactionTemplate(myManagedTxManager);
+			queryTxTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
+			queryTxTemplate.setReadOnly(true);
+			queryTxTemplate.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					Iterator<Long> resultIter = sb.createQuery(theParams, searchUuid);
+					try {
+						while (resultIter.hasNext()) {
+							pids.add(resultIter.next());
+							if (theParams.getLoadSynchronousUpTo() != null && pids.size() >= theParams.getLoadSynchronousUpTo()) {
+								break;
+							}
+						}
+					} finally {
+						closeQuietly(resultIter);
+					}
 				}
-			}
+			});
 
 			/*
 			 * For synchronous queries, we load all the includes right away
@@ -266,9 +371,12 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 
 		/*
 		 * See if there are any cached searches whose results we can return
-		 * instead
+		 * instead. Searches are looked up in memory first and then in the
+		 * database, and are only reused if nothing which could change their
+		 * results has been written since they were created.
 		 */
 		final String queryString = theParams.toNormalizedQueryString(myContext);
+		final boolean dependsOnOtherTypes = SearchResultCache.dependsOnOtherTypes(theParams);
 		if (theParams.getEverythingMode() == null) {
 			if (myDaoConfig.getReuseCachedSearchResultsForMillis() != null) {
 
@@ -279,26 +387,45 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 				PersistedJpaBundleProvider foundSearchProvider = txTemplate.execute(new TransactionCallback<PersistedJpaBundleProvider>() {
 					@Override
 					public PersistedJpaBundleProvider doInTransaction(TransactionStatus theStatus) {
-						Search searchToUse = null;
-
-						int hashCode = queryString.hashCode();
-						Collection<Search> candidates = mySearchDao.find(resourceType, hashCode, createdCutoff);
-						for (Search nextCandidateSearch : candidates) {
-							if (queryString.equals(nextCandidateSearch.getSearchQueryString())) {
-								searchToUse = nextCandidateSearch;
+						CachedSearch searchToUse = mySearchResultCache.get(SearchResultCache.createFingerprint(resourceType, queryString));
+						boolean inMemory = searchToUse != null && searchToUse.getCreated().after(createdCutoff);
+
+						if (!inMemory) {
+							searchToUse = null;
+							int hashCode = queryString.hashCode();
+							Collection<Search> candidates = mySearchDao.find(resourceType, hashCode, createdCutoff);
+							for (Search nextCandidateSearch : candidates) {
+								if (queryString.equals(nextCandidateSearch.getSearchQueryString()) && nextCandidateSearch.getStatus() != SearchStatusEnum.FAILED) {
+									mySearchResultCache.put(nextCandidateSearch, dependsOnOtherTypes);
+									searchToUse = mySearchResultCache.get(SearchResultCache.createFingerprint(resourceType, queryString));
+								}
 							}
 						}
 
-						PersistedJpaBundleProvider retVal = null;
-						if (searchToUse != null) {
-							ourLog.info("Reusing search {} from cache", searchToUse.getUuid());
-							searchToUse.setSearchLastReturned(new Date());
-							mySearchDao.updateSearchLastReturned(searchToUse.getId(), new Date());
+						if (searchToUse == null) {
+							mySearchResultCache.recordMiss();
+							return null;
+						}
 
-							retVal = new PersistedJpaBundleProvider(searchToUse.getUuid(), theCallingDao);
-							populateBundleProvider(retVal);
+						/*
+						 * The search row may also have been expired and deleted since
+						 * we cached it, in which case nothing is updated here
+						 */
+						if (isWrittenSince(searchToUse) || mySearchDao.updateSearchLastReturned(searchToUse.getId(), new Date()) == 0) {
+							ourLog.debug("Not reusing search {} as its results may have changed", searchToUse.getUuid());
+							mySearchResultCache.recordInvalidated(searchToUse);
+							return null;
 						}
 
+						if (inMemory) {
+							mySearchResultCache.recordMemoryHit();
+						} else {
+							mySearchResultCache.recordDatabaseHit();
+						}
+
+						ourLog.info("Reusing search {} from cache", searchToUse.getUuid());
+						PersistedJpaBundleProvider retVal = new PersistedJpaBundleProvider(searchToUse.getUuid(), theCallingDao);
+						populateBundleProvider(retVal);
 						return retVal;
 					}
 				});
@@ -332,9 +459,17 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 			search.getIncludes().add(new SearchInclude(search, next.getValue(), true, next.isRecurse()));
 		}
 
-		SearchTask task = new SearchTask(search, theCallingDao, theParams, theResourceType, searchUuid);
+		String clientKey = getClientKey(theRequestDetails);
+		SearchTask task = new SearchTask(search, theCallingDao, theParams, theResourceType, searchUuid, dependsOnOtherTypes, clientKey);
 		myIdToSearchTask.put(search.getUuid(), task);
-		myExecutor.submit(task);
+		try {
+			getSearchScheduler().submit(task, SearchScheduler.PriorityEnum.FIRST_PAGE, clientKey);
+		} catch (RejectedExecutionException e) {
+			myIdToSearchTask.remove(search.getUuid());
+			ourLog.warn("Refusing search: {}", e.getMessage());
+			throw new UnclassifiedServerFailureException(STATUS_SERVICE_UNAVAILABLE, "Too many searches are in progress, please try again later")
+				.addResponseHeader(HEADER_RETRY_AFTER, Integer.toString(myDaoConfig.getSearchRetryAfterSeconds()));
+		}
 
 		PersistedJpaSearchFirstPageBundleProvider retVal = new PersistedJpaSearchFirstPageBundleProvider(search, theCallingDao, task, sb, myManagedTxManager);
 		populateBundleProvider(retVal);
@@ -364,6 +499,11 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		myLoadingThrottleForUnitTests = theLoadingThrottleForUnitTests;
 	}
 
+	@VisibleForTesting
+	void setMaxMillisBetweenRemotePollsForUnitTest(long theMaxMillisBetweenRemotePolls) {
+		myMaxMillisBetweenRemotePolls = theMaxMillisBetweenRemotePolls;
+	}
+
 	@VisibleForTesting
 	void setMaxMillisToWaitForRemoteResultsForUnitTest(long theMaxMillisToWaitForRemoteResults) {
 		myMaxMillisToWaitForRemoteResults = theMaxMillisToWaitForRemoteResults;
@@ -373,6 +513,11 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		myNeverUseLocalSearchForUnitTests = theNeverUseLocalSearchForUnitTests;
 	}
 
+	@VisibleForTesting
+	void setResourceTableDaoForUnitTest(IResourceTableDao theResourceTableDao) {
+		myResourceTableDao = theResourceTableDao;
+	}
+
 	@VisibleForTesting
 	void setSearchDaoForUnitTest(ISearchDao theSearchDao) {
 		mySearchDao = theSearchDao;
@@ -388,6 +533,11 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		mySearchResultDao = theSearchResultDao;
 	}
 
+	@VisibleForTesting
+	void setSearchProgressNotifierForUnitTest(ISearchProgressNotifier theSearchProgressNotifier) {
+		mySearchProgressNotifier = theSearchProgressNotifier;
+	}
+
 	@VisibleForTesting
 	void setSyncSizeForUnitTests(int theSyncSize) {
 		mySyncSize = theSyncSize;
@@ -398,6 +548,28 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		myManagedTxManager = theTxManager;
 	}
 
+	/**
+	 * Closes a result iterator which may be holding a database cursor open
+	 */
+	private static void closeQuietly(Iterator<Long> theResultIter) {
+		if (theResultIter instanceof Closeable) {
+			IOUtils.closeQuietly((Closeable) theResultIter);
+		}
+	}
+
+	/**
+	 * Returns the key search tasks are queued fairly by: the client's address
+	 */
+	static String getClientKey(RequestDetails theRequestDetails) {
+		if (theRequestDetails instanceof ServletRequestDetails) {
+			HttpServletRequest servletRequest = ((ServletRequestDetails) theRequestDetails).getServletRequest();
+			if (servletRequest != null) {
+				return servletRequest.getRemoteAddr();
+			}
+		}
+		return null;
+	}
+
 	static Pageable toPage(final int theFromIndex, int theToIndex) {
 		int pageSize = theToIndex - theFromIndex;
 		if (pageSize < 1) {
@@ -430,20 +602,36 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 
 	public class SearchTask implements Callable<Void> {
 
-		private boolean myAbortRequested;
+		private volatile boolean myAbortRequested;
 		private final IDao myCallingDao;
+		private final String myClientKey;
 		private final CountDownLatch myCompletionLatch;
 		private int myCountSaved = 0;
+		private final boolean myDependsOnOtherTypes;
 		private final CountDownLatch myInitialCollectionLatch = new CountDownLatch(1);
 		private final SearchParameterMap myParams;
 		private final String myResourceType;
 		private final Search mySearch;
-		private final ArrayList<Long> mySyncedPids = new ArrayList<Long>();
-		private final ArrayList<Long> myUnsyncedPids = new ArrayList<Long>();
+		/*
+		 * PIDs are buffered in primitive arrays: mySyncedPids holds every PID
+		 * saved so far (guarded by mySyncedPidsLock, which is also notified as
+		 * each batch is saved) and myUnsyncedPids the batch being collected.
+		 * mySyncedPidSet holds the same PIDs as mySyncedPids, so that a PID the
+		 * query returns again in a later batch is skipped.
+		 */
+		private long[] mySyncedPids = new long[mySyncSize];
+		private int mySyncedPidCount;
+		private final LongHashSet mySyncedPidSet = new LongHashSet();
+		private final Object mySyncedPidsLock = new Object();
+		private long[] myUnsyncedPids = new long[mySyncSize];
+		private int myUnsyncedPidCount;
+		private int myRowsRead;
 		private String mySearchUuid;
 
-		public SearchTask(Search theSearch, IDao theCallingDao, SearchParameterMap theParams, String theResourceType, String theSearchUuid) {
+		public SearchTask(Search theSearch, IDao theCallingDao, SearchParameterMap theParams, String theResourceType, String theSearchUuid, boolean theDependsOnOtherTypes, String theClientKey) {
 			mySearch = theSearch;
+			myClientKey = theClientKey;
+			myDependsOnOtherTypes = theDependsOnOtherTypes;
 			myCallingDao = theCallingDao;
 			myParams = theParams;
 			myResourceType = theResourceType;
@@ -451,11 +639,24 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 			mySearchUuid = theSearchUuid;
 		}
 
+		/**
+		 * Waits for the first batch of results to be saved. A search may be
+		 * queued behind others for a thread, so this gives up after the same
+		 * time as {@link #getResourcePids(int, int)}, asking the client to try
+		 * again later.
+		 */
 		public void awaitInitialSync() {
 			ourLog.trace("Awaiting initial sync");
+			long deadline = System.currentTimeMillis() + myMaxMillisToWaitForRemoteResults;
 			do {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					ourLog.warn("Timed out waiting for search {} to load its first page", mySearchUuid);
+					throw new UnclassifiedServerFailureException(STATUS_SERVICE_UNAVAILABLE, "Search results are still loading, please try again later")
+						.addResponseHeader(HEADER_RETRY_AFTER, Integer.toString(myDaoConfig.getSearchRetryAfterSeconds()));
+				}
 				try {
-					if (myInitialCollectionLatch.await(250, TimeUnit.MILLISECONDS)) {
+					if (myInitialCollectionLatch.await(Math.min(250, remaining), TimeUnit.MILLISECONDS)) {
 						break;
 					}
 				} catch (InterruptedException e) {
@@ -472,16 +673,36 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 			try {
 				saveSearch();
 				
+				/*
+				 * Each batch of results is read and saved in its own transaction,
+				 * which holds one connection, and becomes visible to other nodes
+				 * when it commits. The next batch carries on from the row the last
+				 * one stopped at, so nothing is read twice, and between batches the
+				 * search makes way for any new search waiting for a thread.
+				 */
 				TransactionTemplate txTemplate = new TransactionTemplate(myManagedTxManager);
 				txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
-				txTemplate.execute(new TransactionCallbackWithoutResult() {
-					@Override
-					protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
-						doSearch();
+				while (mySearch.getStatus() == SearchStatusEnum.LOADING) {
+					txTemplate.execute(new TransactionCallbackWithoutResult() {
+						@Override
+						protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+							doSearch();
+						}
+					});
+					Validate.isTrue(myAbortRequested == false, "Abort has been requested");
+
+					if (mySearch.getStatus() == SearchStatusEnum.LOADING && getSearchScheduler().isFirstPageWorkWaiting()) {
+						/*
+						 * Our first page has been returned and new searches are waiting
+						 * for a thread, so let them go first and carry on afterward
+						 */
+						ourLog.info("Search {} yielding after {} results in {}ms", mySearchUuid, mySyncedPidCount, sw.getMillis());
+						getSearchScheduler().submit(this, SearchScheduler.PriorityEnum.CONTINUATION, myClientKey);
+						return null;
 					}
-				});
+				}
 
-				ourLog.info("Completed search for {} resources in {}ms", mySyncedPids.size(), sw.getMillis());
+				ourLog.info("Completed search for {} resources in {}ms", mySyncedPidCount, sw.getMillis());
 
 			} catch (Throwable t) {
 				
@@ -500,7 +721,7 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 				if (!logged) {
 					ourLog.error("Failed during search loading after {}ms", sw.getMillis(), t);
 				}
-				myUnsyncedPids.clear();
+				myUnsyncedPidCount = 0;
 
 				Throwable rootCause = ExceptionUtils.getRootCause(t);
 				rootCause = ObjectUtils.defaultIfNull(rootCause, t);
@@ -512,11 +733,17 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 					failureCode = ((BaseServerResponseException) t).getStatusCode();
 				}
 
-				mySearch.setFailureMessage(failureMessage);
-				mySearch.setFailureCode(failureCode);
-				mySearch.setStatus(SearchStatusEnum.FAILED);
+				mySearchResultCache.remove(mySearch);
+
+				synchronized (mySyncedPidsLock) {
+					mySearch.setFailureMessage(failureMessage);
+					mySearch.setFailureCode(failureCode);
+					mySearch.setStatus(SearchStatusEnum.FAILED);
+					mySyncedPidsLock.notifyAll();
+				}
 
 				saveSearch();
+				mySearchProgressNotifier.notifyProgress(mySearch.getUuid(), myCountSaved, true);
 
 			}
 
@@ -536,16 +763,24 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 			}
 		}
 
+		/**
+		 * Reads and saves the next batch of results
+		 */
 		private void doSearch() {
 			Class<? extends IBaseResource> resourceTypeClass = myContext.getResourceDefinition(myResourceType).getImplementingClass();
 			ISearchBuilder sb = myCallingDao.newSearchBuilder();
 			sb.setType(resourceTypeClass, myResourceType);
-			Iterator<Long> theResultIter = sb.createQuery(myParams, mySearchUuid);
 
-			while (theResultIter.hasNext()) {
-				myUnsyncedPids.add(theResultIter.next());
-				if (myUnsyncedPids.size() >= mySyncSize) {
-					saveUnsynced(theResultIter);
+			List<Long> pids = new ArrayList<Long>(mySyncSize);
+			int rows = sb.loadQueryRange(myParams, mySearchUuid, myRowsRead, mySyncSize, pids);
+			myRowsRead += rows;
+
+			if (myUnsyncedPids.length < pids.size()) {
+				myUnsyncedPids = new long[pids.size()];
+			}
+			for (Long nextPid : pids) {
+				if (mySyncedPidSet.add(nextPid)) {
+					myUnsyncedPids[myUnsyncedPidCount++] = nextPid;
 				}
 				if (myLoadingThrottleForUnitTests != null) {
 					try {
@@ -556,7 +791,8 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 				}
 				Validate.isTrue(myAbortRequested == false, "Abort has been requested");
 			}
-			saveUnsynced(theResultIter);
+
+			saveUnsynced(rows < mySyncSize);
 		}
 
 		public CountDownLatch getCompletionLatch() {
@@ -566,36 +802,36 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		public List<Long> getResourcePids(int theFromIndex, int theToIndex) {
 			ourLog.info("Requesting search PIDs from {}-{}", theFromIndex, theToIndex);
 
-			CountDownLatch latch = null;
-			synchronized (mySyncedPids) {
-				if (mySyncedPids.size() < theToIndex && mySearch.getStatus() == SearchStatusEnum.LOADING) {
-					int latchSize = theToIndex - mySyncedPids.size();
-					ourLog.trace("Registering latch to await {} results (want {} total)", latchSize, theToIndex);
-					latch = new CountDownLatch(latchSize);
-				}
-			}
-
-			if (latch != null) {
-				while (latch.getCount() > 0 && mySearch.getStatus() == SearchStatusEnum.LOADING) {
+			ArrayList<Long> retVal = new ArrayList<Long>();
+			long deadline = System.currentTimeMillis() + myMaxMillisToWaitForRemoteResults;
+			synchronized (mySyncedPidsLock) {
+				/*
+				 * Each batch of results synced, and the search finishing or
+				 * failing, notifies waiters on mySyncedPidsLock
+				 */
+				while (mySyncedPidCount < theToIndex && mySearch.getStatus() == SearchStatusEnum.LOADING) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						ourLog.warn("Timed out waiting for search {} to load results {}-{} (have {})", new Object[] { mySearchUuid, theFromIndex, theToIndex, mySyncedPidCount });
+						throw new UnclassifiedServerFailureException(STATUS_SERVICE_UNAVAILABLE, "Search results are still loading, please try again later")
+							.addResponseHeader(HEADER_RETRY_AFTER, Integer.toString(myDaoConfig.getSearchRetryAfterSeconds()));
+					}
+					ourLog.trace("Awaiting {} results (have {})", theToIndex, mySyncedPidCount);
 					try {
-						ourLog.trace("Awaiting latch with {}", latch.getCount());
-						latch.await(500, TimeUnit.MILLISECONDS);
+						mySyncedPidsLock.wait(remaining);
 					} catch (InterruptedException e) {
-						// ok
+						throw new InternalErrorException(e);
 					}
 				}
-			}
 
-			ArrayList<Long> retVal = new ArrayList<Long>();
-			synchronized (mySyncedPids) {
 				verifySearchHasntFailedOrThrowInternalErrorException(mySearch);
 
 				int toIndex = theToIndex;
-				if (mySyncedPids.size() < toIndex) {
-					toIndex = mySyncedPids.size();
+				if (mySyncedPidCount < toIndex) {
+					toIndex = mySyncedPidCount;
 				}
 				for (int i = theFromIndex; i < toIndex; i++) {
-					retVal.add(mySyncedPids.get(i));
+					retVal.add(mySyncedPids[i]);
 				}
 			}
 
@@ -610,6 +846,7 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		}
 
 		private void saveSearch() {
+			boolean firstSave = mySearch.getId() == null;
 			TransactionTemplate txTemplate = new TransactionTemplate(myManagedTxManager);
 			txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
 			txTemplate.execute(new TransactionCallbackWithoutResult() {
@@ -619,9 +856,22 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 				}
 
 			});
+
+			// Now that it's committed, identical searches on this server can find it without a query
+			if (firstSave && mySearch.getId() != null && mySearch.getStatus() != SearchStatusEnum.FAILED) {
+				mySearchResultCache.put(mySearch, myDependsOnOtherTypes);
+			}
 		}
 
-		private void saveUnsynced(final Iterator<Long> theResultIter) {
+		/**
+		 * Saves the results collected since the last call. This joins the
+		 * transaction the batch is being read in rather than starting a new one,
+		 * so that a loading search never holds more than one connection. Other
+		 * nodes are told about the results once that transaction commits.
+		 *
+		 * @param theFinished Whether the query has no more results
+		 */
+		private void saveUnsynced(final boolean theFinished) {
 			TransactionTemplate txTemplate = new TransactionTemplate(myManagedTxManager);
 			txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
 			txTemplate.execute(new TransactionCallbackWithoutResult() {
@@ -631,25 +881,24 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 						doSaveSearch();
 					}
 
-					List<SearchResult> resultsToSave = Lists.newArrayList();
-					for (Long nextPid : myUnsyncedPids) {
-						SearchResult nextResult = new SearchResult(mySearch);
-						nextResult.setResourcePid(nextPid);
-						nextResult.setOrder(myCountSaved++);
-						resultsToSave.add(nextResult);
-					}
-					mySearchResultDao.save(resultsToSave);
+					int numSyncedThisPass = myUnsyncedPidCount;
+					mySearchResultDao.saveResults(mySearch, myUnsyncedPids, numSyncedThisPass, myCountSaved);
+					myCountSaved += numSyncedThisPass;
 
-					synchronized (mySyncedPids) {
-						int numSyncedThisPass = myUnsyncedPids.size();
+					synchronized (mySyncedPidsLock) {
 						ourLog.trace("Syncing {} search results", numSyncedThisPass);
-						mySyncedPids.addAll(myUnsyncedPids);
-						myUnsyncedPids.clear();
+						if (mySyncedPidCount + numSyncedThisPass > mySyncedPids.length) {
+							mySyncedPids = Arrays.copyOf(mySyncedPids, Math.max(mySyncedPids.length * 2, mySyncedPidCount + numSyncedThisPass));
+						}
+						System.arraycopy(myUnsyncedPids, 0, mySyncedPids, mySyncedPidCount, numSyncedThisPass);
+						mySyncedPidCount += numSyncedThisPass;
+						myUnsyncedPidCount = 0;
 
-						if (theResultIter.hasNext() == false) {
+						if (theFinished) {
 							mySearch.setStatus(SearchStatusEnum.FINISHED);
 							mySearch.setTotalCount(myCountSaved);
 						}
+						mySyncedPidsLock.notifyAll();
 					}
 					mySearch.setNumFound(myCountSaved);
 					doSaveSearch();
@@ -657,6 +906,18 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 				}
 			});
 
+			final int countSaved = myCountSaved;
+			final boolean finished = mySearch.getStatus() != SearchStatusEnum.LOADING;
+			if (TransactionSynchronizationManager.isSynchronizationActive()) {
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+					@Override
+					public void afterCommit() {
+						mySearchProgressNotifier.notifyProgress(mySearch.getUuid(), countSaved, finished);
+					}
+				});
+			} else {
+				mySearchProgressNotifier.notifyProgress(mySearch.getUuid(), countSaved, finished);
+			}
 			myInitialCollectionLatch.countDown();
 		}
 
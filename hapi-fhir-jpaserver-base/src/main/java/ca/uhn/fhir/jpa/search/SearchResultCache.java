@@ -0,0 +1,265 @@
+package ca.uhn.fhir.jpa.search;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.Validate;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.HasParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+
+/**
+ * In-memory tier of the search result cache, which sits in front of the
+ * searches persisted in the HFJ_SEARCH table.
+ * <p>
+ * Searches are keyed on a fingerprint made from their resource type and
+ * {@link SearchParameterMap#toNormalizedQueryString(ca.uhn.fhir.context.FhirContext) normalized query string},
+ * so equivalent queries share an entry however their parameters were ordered.
+ * </p>
+ * <p>
+ * This class also records when resources of each type were last written
+ * on this server, so that a cached search can be rejected as soon as a write
+ * which could change its results has been committed. Searches with chained
+ * or <code>_has</code> parameters can match on other resource types, so
+ * those are rejected by a write to any type.
+ * </p>
+ */
+public class SearchResultCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	private final Cache<String, CachedSearch> myCache;
+	private final AtomicLong myDatabaseHitCount = new AtomicLong();
+	private final AtomicLong myInvalidatedCount = new AtomicLong();
+	private volatile long myLastWriteToAnyType;
+	private final ConcurrentHashMap<String, Long> myLastWriteToType = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong myMemoryHitCount = new AtomicLong();
+	private final AtomicLong myMissCount = new AtomicLong();
+
+	/**
+	 * Constructor
+	 */
+	public SearchResultCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theMaxSize
+	 *           The maximum number of searches to hold, after which the least recently used are dropped
+	 */
+	public SearchResultCache(int theMaxSize) {
+		Validate.isTrue(theMaxSize > 0, "theMaxSize must be > 0");
+		myCache = CacheBuilder.newBuilder().maximumSize(theMaxSize).build();
+	}
+
+	/**
+	 * Returns the cached search with the given fingerprint, or <code>null</code>
+	 */
+	public CachedSearch get(String theFingerprint) {
+		return myCache.getIfPresent(theFingerprint);
+	}
+
+	public long getDatabaseHitCount() {
+		return myDatabaseHitCount.get();
+	}
+
+	/**
+	 * Returns the proportion (0 to 1) of lookups which were answered from
+	 * either tier of the cache
+	 */
+	public double getHitRatio() {
+		long hits = myMemoryHitCount.get() + myDatabaseHitCount.get();
+		long total = hits + myMissCount.get();
+		return total > 0 ? (double) hits / total : 0;
+	}
+
+	/**
+	 * Returns the number of cached searches which were found but rejected
+	 * because resources had been written since they were created. These
+	 * are also counted as misses.
+	 */
+	public long getInvalidatedCount() {
+		return myInvalidatedCount.get();
+	}
+
+	public long getMemoryHitCount() {
+		return myMemoryHitCount.get();
+	}
+
+	public long getMissCount() {
+		return myMissCount.get();
+	}
+
+	/**
+	 * Returns <code>true</code> if a write which could change the results of the
+	 * given search has been committed on this server since it was created
+	 */
+	public boolean isWrittenSince(CachedSearch theSearch) {
+		long created = theSearch.getCreated().getTime();
+		if (theSearch.isDependsOnOtherTypes()) {
+			return myLastWriteToAnyType >= created;
+		}
+		Long lastWrite = myLastWriteToType.get(theSearch.getResourceType());
+		return lastWrite != null && lastWrite >= created;
+	}
+
+	/**
+	 * Records that resources of the given type have been written, rejecting any
+	 * cached search which might have been affected
+	 */
+	public void notifyResourceWritten(String theResourceType) {
+		long now = System.currentTimeMillis();
+		myLastWriteToType.put(theResourceType, now);
+		myLastWriteToAnyType = now;
+	}
+
+	public void put(Search theSearch, boolean theDependsOnOtherTypes) {
+		Validate.notNull(theSearch.getId(), "theSearch has not been saved");
+		CachedSearch cached = new CachedSearch(theSearch, theDependsOnOtherTypes);
+		myCache.put(createFingerprint(theSearch.getResourceType(), theSearch.getSearchQueryString()), cached);
+	}
+
+	void recordDatabaseHit() {
+		myDatabaseHitCount.incrementAndGet();
+	}
+
+	void recordInvalidated(CachedSearch theSearch) {
+		remove(theSearch);
+		myInvalidatedCount.incrementAndGet();
+		myMissCount.incrementAndGet();
+	}
+
+	void recordMemoryHit() {
+		myMemoryHitCount.incrementAndGet();
+	}
+
+	void recordMiss() {
+		myMissCount.incrementAndGet();
+	}
+
+	/**
+	 * Removes the given search from the cache, unless it has already been
+	 * replaced by a newer one for the same query
+	 */
+	public void remove(CachedSearch theSearch) {
+		String fingerprint = createFingerprint(theSearch.getResourceType(), theSearch.getQueryString());
+		myCache.asMap().remove(fingerprint, theSearch);
+	}
+
+	/**
+	 * Removes the given search from the cache if it is there
+	 */
+	public void remove(Search theSearch) {
+		String fingerprint = createFingerprint(theSearch.getResourceType(), theSearch.getSearchQueryString());
+		CachedSearch cached = myCache.getIfPresent(fingerprint);
+		if (cached != null && cached.getUuid().equals(theSearch.getUuid())) {
+			myCache.asMap().remove(fingerprint, cached);
+		}
+	}
+
+	public static String createFingerprint(String theResourceType, String theNormalizedQueryString) {
+		return theResourceType + theNormalizedQueryString;
+	}
+
+	/**
+	 * Returns <code>true</code> if the results of a search with the given parameters
+	 * can be changed by writes to resource types other than the one being searched
+	 * for, because it has chained or <code>_has</code> parameters
+	 */
+	public static boolean dependsOnOtherTypes(SearchParameterMap theParams) {
+		for (List<List<? extends IQueryParameterType>> nextAnds : theParams.values()) {
+			for (List<? extends IQueryParameterType> nextOrs : nextAnds) {
+				for (IQueryParameterType next : nextOrs) {
+					if (next instanceof HasParam) {
+						return true;
+					}
+					if (next instanceof ReferenceParam && isNotBlank(((ReferenceParam) next).getChain())) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A search held in the cache. Only the details needed to validate and reuse
+	 * the search are held, not the entity itself.
+	 */
+	public static class CachedSearch {
+
+		private final Date myCreated;
+		private final boolean myDependsOnOtherTypes;
+		private final long myId;
+		private final String myQueryString;
+		private final String myResourceType;
+		private final String myUuid;
+
+		CachedSearch(Search theSearch, boolean theDependsOnOtherTypes) {
+			myId = theSearch.getId();
+			myUuid = theSearch.getUuid();
+			myCreated = theSearch.getCreated();
+			myResourceType = theSearch.getResourceType();
+			myQueryString = theSearch.getSearchQueryString();
+			myDependsOnOtherTypes = theDependsOnOtherTypes;
+		}
+
+		public Date getCreated() {
+			return myCreated;
+		}
+
+		public long getId() {
+			return myId;
+		}
+
+		public String getQueryString() {
+			return myQueryString;
+		}
+
+		public String getResourceType() {
+			return myResourceType;
+		}
+
+		public String getUuid() {
+			return myUuid;
+		}
+
+		public boolean isDependsOnOtherTypes() {
+			return myDependsOnOtherTypes;
+		}
+
+	}
+
+}
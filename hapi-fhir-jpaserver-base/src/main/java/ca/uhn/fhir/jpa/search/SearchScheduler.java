@@ -0,0 +1,349 @@
+package ca.uhn.fhir.jpa.search;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.time.DateUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Runs search tasks on a fixed number of worker threads.
+ * <p>
+ * Tasks waiting for a worker are ordered by {@link PriorityEnum priority}, so
+ * that loading the first page of a new search goes ahead of continuing to load
+ * searches whose first page has already been returned. Within a priority,
+ * tasks from a client with fewer tasks queued go first, so one client
+ * submitting a burst of searches can not hold up everyone else; otherwise
+ * tasks run in the order they were submitted.
+ * </p>
+ * <p>
+ * So that a steady stream of new searches can not hold continuations back
+ * forever, a continuation which has been waiting for longer than
+ * {@link #setContinuationMaxWaitMillis(long) the maximum wait} is promoted
+ * to first page priority when more first page work is submitted.
+ * </p>
+ * <p>
+ * New ({@link PriorityEnum#FIRST_PAGE}) work is refused with a
+ * {@link RejectedExecutionException} once the queue, or the client's share of
+ * it, is full. Continuations are always accepted, since a client is already
+ * paging through their results.
+ * </p>
+ */
+public class SearchScheduler {
+
+	/**
+	 * Default value for {@link #setContinuationMaxWaitMillis(long)}: 10 seconds
+	 */
+	public static final long DEFAULT_CONTINUATION_MAX_WAIT_MILLIS = 10 * DateUtils.MILLIS_PER_SECOND;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchScheduler.class);
+
+	private final Map<String, Integer> myClientToQueuedCount = new HashMap<String, Integer>();
+	private final AtomicLong myCompletedCount = new AtomicLong();
+	private long myContinuationMaxWaitMillis = DEFAULT_CONTINUATION_MAX_WAIT_MILLIS;
+	private final ThreadPoolExecutor myExecutor;
+	private final int myMaxQueued;
+	private final int myMaxQueuedPerClient;
+	private final AtomicLong myMaxRunMillis = new AtomicLong();
+	private final AtomicLong myMaxWaitMillis = new AtomicLong();
+	private final AtomicLong myPromotedCount = new AtomicLong();
+	private final AtomicLong myRejectedCount = new AtomicLong();
+	private long mySequence;
+	private final AtomicLong mySubmittedCount = new AtomicLong();
+	private final AtomicLong myTotalRunMillis = new AtomicLong();
+	private final AtomicLong myTotalWaitMillis = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theThreadNamePrefix
+	 *           Prefix for worker thread names
+	 * @param theThreadCount
+	 *           Number of worker threads
+	 * @param theMaxQueued
+	 *           Maximum number of first page tasks waiting for a worker
+	 * @param theMaxQueuedPerClient
+	 *           Maximum number of first page tasks from one client waiting for a worker
+	 */
+	public SearchScheduler(String theThreadNamePrefix, int theThreadCount, int theMaxQueued, int theMaxQueuedPerClient) {
+		Validate.isTrue(theThreadCount > 0, "theThreadCount must be > 0");
+		myMaxQueued = theMaxQueued;
+		myMaxQueuedPerClient = theMaxQueuedPerClient;
+		myExecutor = new ThreadPoolExecutor(theThreadCount, theThreadCount, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new CustomizableThreadFactory(theThreadNamePrefix));
+		myExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	public long getCompletedCount() {
+		return myCompletedCount.get();
+	}
+
+	public long getContinuationMaxWaitMillis() {
+		return myContinuationMaxWaitMillis;
+	}
+
+	/**
+	 * Returns the mean time tasks have spent waiting for a worker, in milliseconds
+	 */
+	public long getMeanWaitMillis() {
+		long completed = myCompletedCount.get();
+		return completed > 0 ? myTotalWaitMillis.get() / completed : 0;
+	}
+
+	/**
+	 * Returns the mean time tasks have spent running, in milliseconds
+	 */
+	public long getMeanRunMillis() {
+		long completed = myCompletedCount.get();
+		return completed > 0 ? myTotalRunMillis.get() / completed : 0;
+	}
+
+	public long getMaxRunMillis() {
+		return myMaxRunMillis.get();
+	}
+
+	public long getMaxWaitMillis() {
+		return myMaxWaitMillis.get();
+	}
+
+	/**
+	 * Returns the number of continuations which have been promoted to first
+	 * page priority after waiting too long
+	 */
+	public long getPromotedCount() {
+		return myPromotedCount.get();
+	}
+
+	/**
+	 * Returns the number of tasks waiting for a worker
+	 */
+	public int getQueueDepth() {
+		return myExecutor.getQueue().size();
+	}
+
+	public long getRejectedCount() {
+		return myRejectedCount.get();
+	}
+
+	/**
+	 * Returns the number of tasks currently running
+	 */
+	public int getRunningCount() {
+		return myExecutor.getActiveCount();
+	}
+
+	public long getSubmittedCount() {
+		return mySubmittedCount.get();
+	}
+
+	/**
+	 * Returns <code>true</code> if first page work is waiting for a worker, in
+	 * which case a running task which has already returned its first page
+	 * should make way for it if it can
+	 */
+	public boolean isFirstPageWorkWaiting() {
+		Runnable next = myExecutor.getQueue().peek();
+		return next != null && ((ScheduledTask<?>) next).myPriority == PriorityEnum.FIRST_PAGE;
+	}
+
+	/**
+	 * Sets the longest time a continuation waits behind first page work before
+	 * it is promoted to first page priority (default is
+	 * {@link #DEFAULT_CONTINUATION_MAX_WAIT_MILLIS})
+	 */
+	public void setContinuationMaxWaitMillis(long theContinuationMaxWaitMillis) {
+		Validate.isTrue(theContinuationMaxWaitMillis >= 0, "theContinuationMaxWaitMillis must be >= 0");
+		myContinuationMaxWaitMillis = theContinuationMaxWaitMillis;
+	}
+
+	/**
+	 * Stops accepting tasks and interrupts running ones
+	 */
+	public void shutdown() {
+		myExecutor.shutdownNow();
+	}
+
+	/**
+	 * Queues a task
+	 * 
+	 * @param theTask
+	 *           The task
+	 * @param thePriority
+	 *           The priority
+	 * @param theClientKey
+	 *           Identifies the client the work is for, or <code>null</code> if unknown
+	 * @throws RejectedExecutionException
+	 *            If the task is first page work and the queue or the client's share of it is full
+	 */
+	public <T> Future<T> submit(Callable<T> theTask, PriorityEnum thePriority, String theClientKey) {
+		Validate.notNull(thePriority, "thePriority must not be null");
+		String clientKey = theClientKey != null ? theClientKey : "";
+
+		ScheduledTask<T> task;
+		synchronized (myClientToQueuedCount) {
+			Integer queuedForClient = myClientToQueuedCount.get(clientKey);
+			int clientRank = queuedForClient != null ? queuedForClient : 0;
+			boolean willWait = myExecutor.getActiveCount() >= myExecutor.getMaximumPoolSize();
+			if (thePriority == PriorityEnum.FIRST_PAGE && willWait) {
+				if (getQueueDepth() >= myMaxQueued || clientRank >= myMaxQueuedPerClient) {
+					myRejectedCount.incrementAndGet();
+					throw new RejectedExecutionException("Search queue is full (" + getQueueDepth() + " waiting, " + clientRank + " for this client)");
+				}
+			}
+			myClientToQueuedCount.put(clientKey, clientRank + 1);
+			task = new ScheduledTask<T>(theTask, thePriority, clientKey, clientRank, mySequence++);
+		}
+
+		if (thePriority == PriorityEnum.FIRST_PAGE) {
+			promoteOverdueContinuations();
+		}
+
+		mySubmittedCount.incrementAndGet();
+		try {
+			myExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			dequeued(clientKey);
+			myRejectedCount.incrementAndGet();
+			throw e;
+		}
+		return task;
+	}
+
+	/**
+	 * Moves continuations which have waited too long up to first page priority,
+	 * so that they are not starved by a steady stream of new searches. They are
+	 * taken out of the queue while their priority changes, as the queue is
+	 * ordered by it.
+	 */
+	private void promoteOverdueContinuations() {
+		long cutoff = System.currentTimeMillis() - myContinuationMaxWaitMillis;
+		BlockingQueue<Runnable> queue = myExecutor.getQueue();
+		for (Runnable next : queue.toArray(new Runnable[0])) {
+			ScheduledTask<?> task = (ScheduledTask<?>) next;
+			if (task.myPriority == PriorityEnum.CONTINUATION && !task.myPromoted && task.mySubmitted <= cutoff) {
+				if (queue.remove(task)) {
+					task.myPromoted = true;
+					queue.offer(task);
+					myPromotedCount.incrementAndGet();
+					ourLog.debug("Continuation waited {}ms, promoting it to first page priority", System.currentTimeMillis() - task.mySubmitted);
+				}
+			}
+		}
+	}
+
+	private void dequeued(String theClientKey) {
+		synchronized (myClientToQueuedCount) {
+			Integer count = myClientToQueuedCount.get(theClientKey);
+			if (count == null || count <= 1) {
+				myClientToQueuedCount.remove(theClientKey);
+			} else {
+				myClientToQueuedCount.put(theClientKey, count - 1);
+			}
+		}
+	}
+
+	private static void updateMax(AtomicLong theMax, long theValue) {
+		long current;
+		do {
+			current = theMax.get();
+		} while (theValue > current && !theMax.compareAndSet(current, theValue));
+	}
+
+	public enum PriorityEnum {
+		/**
+		 * Work a client is waiting for: loading the first page of a new search
+		 */
+		FIRST_PAGE,
+
+		/**
+		 * Continuing to load a search whose first page has been returned
+		 */
+		CONTINUATION
+	}
+
+	private class ScheduledTask<T> extends FutureTask<T> implements Comparable<ScheduledTask<?>> {
+
+		private final String myClientKey;
+		private final int myClientRank;
+		private final PriorityEnum myPriority;
+		/*
+		 * Only changed while the task is out of the queue
+		 */
+		private volatile boolean myPromoted;
+		private final long mySequence;
+		private final long mySubmitted = System.currentTimeMillis();
+
+		ScheduledTask(Callable<T> theCallable, PriorityEnum thePriority, String theClientKey, int theClientRank, long theSequence) {
+			super(theCallable);
+			myPriority = thePriority;
+			myClientKey = theClientKey;
+			myClientRank = theClientRank;
+			mySequence = theSequence;
+		}
+
+		@Override
+		public int compareTo(ScheduledTask<?> theOther) {
+			int retVal = getEffectivePriority().compareTo(theOther.getEffectivePriority());
+			if (retVal == 0) {
+				retVal = Integer.compare(myClientRank, theOther.myClientRank);
+			}
+			if (retVal == 0) {
+				retVal = Long.compare(mySequence, theOther.mySequence);
+			}
+			return retVal;
+		}
+
+		private PriorityEnum getEffectivePriority() {
+			return myPromoted ? PriorityEnum.FIRST_PAGE : myPriority;
+		}
+
+		@Override
+		public void run() {
+			dequeued(myClientKey);
+			long started = System.currentTimeMillis();
+			long waited = started - mySubmitted;
+			try {
+				super.run();
+			} finally {
+				long ran = System.currentTimeMillis() - started;
+				myTotalWaitMillis.addAndGet(waited);
+				myTotalRunMillis.addAndGet(ran);
+				updateMax(myMaxWaitMillis, waited);
+				updateMax(myMaxRunMillis, ran);
+				myCompletedCount.incrementAndGet();
+				ourLog.debug("{} search task waited {}ms and ran for {}ms, {} tasks now queued", myPriority, waited, ran, getQueueDepth());
+			}
+		}
+
+	}
+
+}
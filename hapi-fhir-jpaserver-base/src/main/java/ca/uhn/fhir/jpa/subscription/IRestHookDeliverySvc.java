@@ -0,0 +1,108 @@
+package ca.uhn.fhir.jpa.subscription;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Delivers rest-hook subscription notifications.
+ * <p>
+ * Notifications are written to the HFJ_SUBS_DELIVERY table in the same
+ * transaction as the change which caused them, and are sent once that
+ * transaction commits. Each endpoint has its own queue, and a limited number of
+ * deliveries may be in progress for any one endpoint so that a slow or failing
+ * endpoint does not hold up the others. Failed deliveries are retried with an
+ * exponential backoff until the maximum number of attempts is reached.
+ * </p>
+ * 
+ * @see ca.uhn.fhir.jpa.dao.DaoConfig#setRestHookDeliveryThreadCount(int)
+ * @see ca.uhn.fhir.jpa.dao.DaoConfig#setRestHookDeliveryMaxAttempts(int)
+ */
+public interface IRestHookDeliverySvc {
+
+	/**
+	 * Returns the number of notifications which have been abandoned after
+	 * reaching the maximum number of attempts since this server started
+	 */
+	long getAbandonedCount();
+
+	/**
+	 * Returns the average time in milliseconds between a notification being
+	 * queued and it being delivered, or 0 if nothing has been delivered yet
+	 */
+	long getAverageLatencyMillis();
+
+	/**
+	 * Returns the number of notifications which have been delivered since
+	 * this server started
+	 */
+	long getDeliveredCount();
+
+	/**
+	 * Returns the number of failed delivery attempts since this server started.
+	 * A notification which is retried is counted once for each failure.
+	 */
+	long getFailedAttemptCount();
+
+	/**
+	 * Returns the number of notifications which are being sent right now
+	 */
+	int getInFlightCount();
+
+	/**
+	 * Returns the longest time in milliseconds between a notification being
+	 * queued and it being delivered
+	 */
+	long getMaxLatencyMillis();
+
+	/**
+	 * Returns the number of notifications which are waiting to be delivered
+	 * or retried
+	 */
+	long getQueueDepth();
+
+	/**
+	 * Sends any notifications which are due and which are not already being sent.
+	 * This is called automatically when a notification is queued or a retry
+	 * comes due, and every second by the scheduler to pick up notifications left
+	 * over from before a restart.
+	 */
+	void pollForDeliveries();
+
+	/**
+	 * Queues a notification. If a transaction is active, the notification is
+	 * saved as part of it and is not sent until it commits.
+	 * 
+	 * @param theSubscriptionId
+	 *           The ID of the subscription the notification is for
+	 * @param theEndpoint
+	 *           The endpoint of the subscription, which notifications are queued by
+	 * @param theRequest
+	 *           The request to send. Its method, URL, content type and body are saved.
+	 */
+	void queue(String theSubscriptionId, String theEndpoint, HttpUriRequest theRequest);
+
+	/**
+	 * Called by the scheduler
+	 */
+	void schedulePollForDeliveries();
+
+}
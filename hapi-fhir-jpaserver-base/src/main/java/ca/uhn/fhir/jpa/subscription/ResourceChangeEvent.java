@@ -0,0 +1,122 @@
+package ca.uhn.fhir.jpa.subscription;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Date;
+
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.InMemoryResourceMatcher;
+import ca.uhn.fhir.jpa.dao.InMemoryResourceMatcher.IndexedResource;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+
+/**
+ * A resource which has been created, updated or deleted.
+ * <p>
+ * The resource is copied when the event is created, so that later changes made
+ * by the caller don't leak into it. The copy is parsed (and indexed) once, the
+ * first time a listener asks for it, and is then shared by every listener so
+ * listeners must not modify it.
+ * </p>
+ */
+public class ResourceChangeEvent {
+
+	private final FhirContext myContext;
+	private final String myEncodedResource;
+	private final IIdType myId;
+	private IndexedResource myIndexedResource;
+	private final RestOperationTypeEnum myOperation;
+	private IBaseResource myResource;
+	private final String myResourceType;
+	private final Date myUpdated;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theOperation
+	 *           {@link RestOperationTypeEnum#CREATE}, {@link RestOperationTypeEnum#UPDATE} or {@link RestOperationTypeEnum#DELETE}
+	 * @param theUpdated
+	 *           The time the change was stored
+	 */
+	public ResourceChangeEvent(FhirContext theContext, IBaseResource theResource, RestOperationTypeEnum theOperation, Date theUpdated) {
+		myContext = theContext;
+		myResourceType = theContext.getResourceDefinition(theResource).getName();
+		myId = theResource.getIdElement().toUnqualified();
+		myEncodedResource = theContext.newJsonParser().encodeResourceToString(theResource);
+		myOperation = theOperation;
+		myUpdated = theUpdated;
+	}
+
+	/**
+	 * Returns the versioned ID of the resource, without a base URL
+	 */
+	public IIdType getId() {
+		return myId;
+	}
+
+	/**
+	 * Returns the resource's search parameter values, indexing it the first time
+	 * this is called
+	 */
+	public synchronized IndexedResource getIndexedResource(InMemoryResourceMatcher theMatcher) {
+		if (myIndexedResource == null) {
+			myIndexedResource = theMatcher.index(myResourceType, getResource());
+		}
+		return myIndexedResource;
+	}
+
+	public RestOperationTypeEnum getOperation() {
+		return myOperation;
+	}
+
+	/**
+	 * Returns the resource as it was saved, parsing it the first time this is
+	 * called. The returned instance is shared and must not be modified.
+	 */
+	public synchronized IBaseResource getResource() {
+		if (myResource == null) {
+			IBaseResource resource = myContext.newJsonParser().parseResource(myEncodedResource);
+			resource.setId(myId);
+			if (resource instanceof IAnyResource) {
+				((IAnyResource) resource).getMeta().setVersionId(myId.getVersionIdPart());
+				((IAnyResource) resource).getMeta().setLastUpdated(myUpdated);
+			}
+			myResource = resource;
+		}
+		return myResource;
+	}
+
+	public String getResourceType() {
+		return myResourceType;
+	}
+
+	/**
+	 * Returns the time the change was stored, which is the resource's
+	 * <code>_lastUpdated</code> value
+	 */
+	public Date getUpdated() {
+		return myUpdated;
+	}
+
+}
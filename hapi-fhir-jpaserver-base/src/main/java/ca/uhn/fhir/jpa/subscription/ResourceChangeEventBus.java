@@ -0,0 +1,302 @@
+package ca.uhn.fhir.jpa.subscription;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.subscription.SubscriptionCriteriaIndex.ActiveSubscription;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+
+/**
+ * In-process bus which passes resource changes from the DAOs to subscription
+ * listeners as they happen, so that listeners don't need to poll the database.
+ * <p>
+ * Changes are passed on once the transaction which made them has committed
+ * (changes which are rolled back are never seen). Each listener has its own
+ * queue of changes, which is worked through on a shared pool of dispatch
+ * threads, so each listener sees the changes one at a time in the order they
+ * were committed, but a listener which is slow to handle a change doesn't hold
+ * up the others. When no listeners are registered, publishing a change does
+ * nothing.
+ * </p>
+ * <p>
+ * Listeners for a subscription (e.g. a websocket connection) are held in a
+ * {@link SubscriptionCriteriaIndex}, and are only passed the creates and updates
+ * of resources of the type in their subscription's criteria. A change is only
+ * queued to the listeners whose subscriptions the index returns for it, so
+ * publishing doesn't get slower as clients connect for other resource types.
+ * </p>
+ * <p>
+ * Changes are not persisted, so a listener which needs to see every change
+ * across restarts must catch up from the database when it registers.
+ * </p>
+ */
+public class ResourceChangeEventBus {
+
+	/**
+	 * Number of threads which listeners are called on
+	 */
+	public static final int DISPATCH_THREAD_COUNT = 4;
+
+	/**
+	 * Most changes passed to one listener before its thread is handed to the
+	 * next listener waiting for one
+	 */
+	static final int MAX_EVENTS_PER_DISPATCH = 100;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ResourceChangeEventBus.class);
+
+	/**
+	 * Listeners which are passed every change
+	 */
+	private final List<ListenerQueue> myAllChangesListeners = new CopyOnWriteArrayList<ListenerQueue>();
+	private ThreadPoolExecutor myExecutor;
+	private final ConcurrentHashMap<IResourceChangeListener, ListenerQueue> myListeners = new ConcurrentHashMap<IResourceChangeListener, ListenerQueue>();
+	private final AtomicLong myPublishedCount = new AtomicLong();
+	private final SubscriptionCriteriaIndex mySubscriptions = new SubscriptionCriteriaIndex();
+
+	/**
+	 * The listeners for each subscription in {@link #mySubscriptions}, by
+	 * subscription ID. More than one client can connect to the same subscription.
+	 */
+	private final ConcurrentHashMap<String, List<ListenerQueue>> mySubscriptionListeners = new ConcurrentHashMap<String, List<ListenerQueue>>();
+
+	private void dispatch(ResourceChangeEvent theEvent) {
+		myPublishedCount.incrementAndGet();
+		for (ListenerQueue next : myAllChangesListeners) {
+			next.add(theEvent);
+		}
+		if (theEvent.getOperation() == RestOperationTypeEnum.DELETE) {
+			return;
+		}
+		for (ActiveSubscription nextSubscription : mySubscriptions.getCandidates(theEvent.getResourceType(), null)) {
+			List<ListenerQueue> listeners = mySubscriptionListeners.get(nextSubscription.getId());
+			if (listeners != null) {
+				for (ListenerQueue next : listeners) {
+					next.add(theEvent);
+				}
+			}
+		}
+	}
+
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (myExecutor == null) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("resource_change_");
+			threadFactory.setDaemon(true);
+			myExecutor = new ThreadPoolExecutor(DISPATCH_THREAD_COUNT, DISPATCH_THREAD_COUNT, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+			myExecutor.allowCoreThreadTimeOut(true);
+		}
+		return myExecutor;
+	}
+	public int getListenerCount() {
+		return myListeners.size();
+	}
+
+	/**
+	 * Returns the number of changes which have been passed to listeners (or
+	 * queued to be passed to them) since this server started
+	 */
+	public long getPublishedCount() {
+		return myPublishedCount.get();
+	}
+
+	/**
+	 * Publishes a change. If a transaction is active, the change is passed to
+	 * listeners once it commits. Changes which no listener would be passed are
+	 * dropped straight away.
+	 * 
+	 * @param theResource
+	 *           The resource, with its new versioned ID
+	 * @param theOperation
+	 *           {@link RestOperationTypeEnum#CREATE}, {@link RestOperationTypeEnum#UPDATE} or {@link RestOperationTypeEnum#DELETE}
+	 * @param theUpdated
+	 *           The time the change was stored
+	 */
+	public void publish(FhirContext theContext, IBaseResource theResource, RestOperationTypeEnum theOperation, Date theUpdated) {
+		if (myListeners.isEmpty()) {
+			return;
+		}
+
+		/*
+		 * Creating the event copies the resource, so don't create one for a change
+		 * which no listener would be passed. Listeners for a subscription catch up
+		 * from the database when they register, so one which registers after this
+		 * check doesn't miss the change.
+		 */
+		if (myAllChangesListeners.isEmpty()) {
+			if (theOperation == RestOperationTypeEnum.DELETE) {
+				return;
+			}
+			if (!mySubscriptions.hasSubscriptions(theContext.getResourceDefinition(theResource).getName())) {
+				return;
+			}
+		}
+
+		final ResourceChangeEvent event = new ResourceChangeEvent(theContext, theResource, theOperation, theUpdated);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					dispatch(event);
+				}
+			});
+		} else {
+			dispatch(event);
+		}
+	}
+
+	/**
+	 * Registers a listener which is passed every change
+	 */
+	public synchronized void register(IResourceChangeListener theListener) {
+		ListenerQueue queue = new ListenerQueue(theListener, null);
+		if (myListeners.putIfAbsent(theListener, queue) == null) {
+			myAllChangesListeners.add(queue);
+		}
+	}
+
+	/**
+	 * Registers a listener for a subscription, which is passed the creates and
+	 * updates of resources of the type in the subscription's criteria. The
+	 * listener checks the rest of the criteria itself.
+	 */
+	public synchronized void register(IResourceChangeListener theListener, ActiveSubscription theSubscription) {
+		ListenerQueue queue = new ListenerQueue(theListener, theSubscription.getId());
+		if (myListeners.putIfAbsent(theListener, queue) != null) {
+			return;
+		}
+		List<ListenerQueue> listeners = mySubscriptionListeners.get(theSubscription.getId());
+		if (listeners == null) {
+			listeners = new CopyOnWriteArrayList<ListenerQueue>();
+			mySubscriptionListeners.put(theSubscription.getId(), listeners);
+		}
+		listeners.add(queue);
+		mySubscriptions.add(theSubscription);
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		myListeners.clear();
+		myAllChangesListeners.clear();
+		mySubscriptionListeners.clear();
+		mySubscriptions.replaceAll(Collections.<ActiveSubscription> emptyList(), mySubscriptions.getModCount());
+		if (myExecutor != null) {
+			myExecutor.shutdownNow();
+			myExecutor = null;
+		}
+	}
+
+	/**
+	 * Stops passing changes to a listener. Changes which were queued for it but
+	 * not yet passed on are dropped.
+	 */
+	public synchronized void unregister(IResourceChangeListener theListener) {
+		ListenerQueue queue = myListeners.remove(theListener);
+		if (queue == null) {
+			return;
+		}
+		queue.myRemoved = true;
+		if (queue.mySubscriptionId == null) {
+			myAllChangesListeners.remove(queue);
+			return;
+		}
+		List<ListenerQueue> listeners = mySubscriptionListeners.get(queue.mySubscriptionId);
+		listeners.remove(queue);
+		if (listeners.isEmpty()) {
+			mySubscriptionListeners.remove(queue.mySubscriptionId);
+			mySubscriptions.remove(queue.mySubscriptionId);
+		}
+	}
+
+	/**
+	 * The changes waiting to be passed to one listener. At most one dispatch
+	 * thread works through them at a time.
+	 */
+	private class ListenerQueue implements Runnable {
+
+		private final ConcurrentLinkedQueue<ResourceChangeEvent> myEvents = new ConcurrentLinkedQueue<ResourceChangeEvent>();
+		private final IResourceChangeListener myListener;
+		private volatile boolean myRemoved;
+		private final AtomicBoolean myScheduled = new AtomicBoolean();
+		private final String mySubscriptionId;
+
+		private ListenerQueue(IResourceChangeListener theListener, String theSubscriptionId) {
+			myListener = theListener;
+			mySubscriptionId = theSubscriptionId;
+		}
+
+		private void add(ResourceChangeEvent theEvent) {
+			myEvents.add(theEvent);
+			schedule();
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (int i = 0; i < MAX_EVENTS_PER_DISPATCH && !myRemoved; i++) {
+					ResourceChangeEvent next = myEvents.poll();
+					if (next == null) {
+						break;
+					}
+					try {
+						myListener.resourceChanged(next);
+					} catch (Exception e) {
+						ourLog.error("Failure in resource change listener " + myListener + " for " + next.getId().getValue(), e);
+					}
+				}
+			} finally {
+				myScheduled.set(false);
+			}
+
+			// Changes added after the last poll, or left over after the limit
+			schedule();
+		}
+
+		private void schedule() {
+			if (myRemoved || myEvents.isEmpty()) {
+				return;
+			}
+			if (myScheduled.compareAndSet(false, true)) {
+				getExecutor().execute(this);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,531 @@
+package ca.uhn.fhir.jpa.subscription;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.data.ISubscriptionDeliveryDao;
+import ca.uhn.fhir.jpa.entity.SubscriptionDelivery;
+import ca.uhn.fhir.jpa.entity.SubscriptionDeliveryStatusEnum;
+import ca.uhn.fhir.rest.server.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+public class RestHookDeliverySvcImpl implements IRestHookDeliverySvc {
+
+	public static final long SCHEDULED_POLL_INTERVAL_MILLIS = DateUtils.MILLIS_PER_SECOND;
+	static final int CONNECT_TIMEOUT_MILLIS = 10 * (int) DateUtils.MILLIS_PER_SECOND;
+	static final int SOCKET_TIMEOUT_MILLIS = 30 * (int) DateUtils.MILLIS_PER_SECOND;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(RestHookDeliverySvcImpl.class);
+
+	private final AtomicLong myAbandonedCount = new AtomicLong();
+	private int myActiveBatches;
+	private CloseableHttpClient myClient;
+	@Autowired
+	private DaoConfig myDaoConfig;
+	private final AtomicLong myDeliveredCount = new AtomicLong();
+	@Autowired
+	private ISubscriptionDeliveryDao myDeliveryDao;
+	private ThreadPoolExecutor myExecutor;
+	private final AtomicLong myFailedAttemptCount = new AtomicLong();
+	private final Set<Long> myInFlightIds = new HashSet<Long>();
+	private final Map<String, Integer> myInFlightPerEndpoint = new HashMap<String, Integer>();
+	private final AtomicLong myMaxLatency = new AtomicLong();
+	private final AtomicBoolean myPollRequested = new AtomicBoolean();
+	private ScheduledThreadPoolExecutor myPollExecutor;
+	private volatile boolean myStopped;
+	private final AtomicLong myTotalLatency = new AtomicLong();
+	@Autowired
+	private PlatformTransactionManager myTransactionManager;
+
+	@Override
+	public long getAbandonedCount() {
+		return myAbandonedCount.get();
+	}
+
+	@Override
+	public long getAverageLatencyMillis() {
+		long delivered = myDeliveredCount.get();
+		return delivered > 0 ? myTotalLatency.get() / delivered : 0;
+	}
+
+	private synchronized CloseableHttpClient getClient() {
+		if (myClient == null) {
+			PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(5000, TimeUnit.MILLISECONDS);
+			connectionManager.setMaxTotal(myDaoConfig.getRestHookDeliveryThreadCount());
+			// endpoints on the same host share a route, so the per-endpoint limit is applied by the queue instead
+			connectionManager.setDefaultMaxPerRoute(myDaoConfig.getRestHookDeliveryThreadCount());
+
+			//@formatter:off
+			RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+				.setConnectionRequestTimeout(CONNECT_TIMEOUT_MILLIS)
+				.setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+				.build();
+			myClient = HttpClientBuilder.create()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.disableAutomaticRetries()
+				.build();
+			//@formatter:on
+		}
+		return myClient;
+	}
+
+	@Override
+	public long getDeliveredCount() {
+		return myDeliveredCount.get();
+	}
+
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (myExecutor == null) {
+			int threadCount = myDaoConfig.getRestHookDeliveryThreadCount();
+			ourLog.info("Starting {} rest-hook delivery threads", threadCount);
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("rest_hook_delivery_");
+			threadFactory.setDaemon(true);
+			myExecutor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+			myExecutor.allowCoreThreadTimeOut(true);
+		}
+		return myExecutor;
+	}
+
+	@Override
+	public long getFailedAttemptCount() {
+		return myFailedAttemptCount.get();
+	}
+
+	@Override
+	public synchronized int getInFlightCount() {
+		return myInFlightIds.size();
+	}
+
+	@Override
+	public long getMaxLatencyMillis() {
+		return myMaxLatency.get();
+	}
+
+	private synchronized ScheduledThreadPoolExecutor getPollExecutor() {
+		if (myPollExecutor == null) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("rest_hook_poll_");
+			threadFactory.setDaemon(true);
+			myPollExecutor = new ScheduledThreadPoolExecutor(1, threadFactory);
+		}
+		return myPollExecutor;
+	}
+
+	@Override
+	public long getQueueDepth() {
+		return myDeliveryDao.countWithStatus(SubscriptionDeliveryStatusEnum.PENDING);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public synchronized void pollForDeliveries() {
+		myPollRequested.set(false);
+
+		int threadCount = myDaoConfig.getRestHookDeliveryThreadCount();
+		int batchSize = myDaoConfig.getRestHookDeliveryBatchSize();
+		int maxPerEndpoint = myDaoConfig.getRestHookDeliveryMaxConcurrentPerEndpoint();
+		int capacity = threadCount - myActiveBatches;
+		if (capacity <= 0) {
+			return;
+		}
+
+		/*
+		 * Rows which are already being sent are still pending in the database, so
+		 * fetch enough to fill every free thread after skipping those
+		 */
+		int fetchSize = capacity * batchSize + myInFlightIds.size();
+		List<SubscriptionDelivery> due = myDeliveryDao.findDue(SubscriptionDeliveryStatusEnum.PENDING, new Date(), new PageRequest(0, fetchSize));
+
+		Map<String, List<SubscriptionDelivery>> byEndpoint = new LinkedHashMap<String, List<SubscriptionDelivery>>();
+		for (SubscriptionDelivery next : due) {
+			if (myInFlightIds.contains(next.getId())) {
+				continue;
+			}
+			List<SubscriptionDelivery> list = byEndpoint.get(next.getEndpoint());
+			if (list == null) {
+				list = new ArrayList<SubscriptionDelivery>();
+				byEndpoint.put(next.getEndpoint(), list);
+			}
+			list.add(next);
+		}
+
+		for (Map.Entry<String, List<SubscriptionDelivery>> nextEntry : byEndpoint.entrySet()) {
+			String endpoint = nextEntry.getKey();
+			List<SubscriptionDelivery> pending = nextEntry.getValue();
+			int index = 0;
+			while (index < pending.size() && capacity > 0 && getInFlightBatches(endpoint) < maxPerEndpoint) {
+				int end = Math.min(pending.size(), index + batchSize);
+				List<SubscriptionDelivery> batch = new ArrayList<SubscriptionDelivery>(pending.subList(index, end));
+				index = end;
+
+				for (SubscriptionDelivery next : batch) {
+					myInFlightIds.add(next.getId());
+				}
+				myInFlightPerEndpoint.put(endpoint, getInFlightBatches(endpoint) + 1);
+				myActiveBatches++;
+				capacity--;
+
+				ourLog.debug("Sending {} rest-hook notifications to {}", batch.size(), endpoint);
+				getExecutor().execute(new DeliveryTask(endpoint, batch));
+			}
+		}
+	}
+
+	private int getInFlightBatches(String theEndpoint) {
+		Integer retVal = myInFlightPerEndpoint.get(theEndpoint);
+		return retVal != null ? retVal : 0;
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public void queue(String theSubscriptionId, String theEndpoint, HttpUriRequest theRequest) {
+		SubscriptionDelivery delivery = new SubscriptionDelivery();
+		delivery.setSubscriptionId(theSubscriptionId);
+		delivery.setEndpoint(theEndpoint);
+		delivery.setMethod(theRequest.getMethod());
+		delivery.setUrl(theRequest.getURI().toString());
+		delivery.setStatus(SubscriptionDeliveryStatusEnum.PENDING);
+		delivery.setAttempts(0);
+		Date now = new Date();
+		delivery.setCreated(now);
+		delivery.setNextAttempt(now);
+
+		Header contentType = theRequest.getFirstHeader(Constants.HEADER_CONTENT_TYPE);
+		if (theRequest instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) theRequest).getEntity();
+			if (entity != null) {
+				try {
+					delivery.setBody(EntityUtils.toByteArray(entity));
+				} catch (IOException e) {
+					throw new InternalErrorException(e);
+				}
+				if (contentType == null) {
+					contentType = entity.getContentType();
+				}
+			}
+		}
+		if (contentType != null) {
+			delivery.setContentType(contentType.getValue());
+		}
+
+		myDeliveryDao.save(delivery);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					requestPoll();
+				}
+			});
+		} else {
+			requestPoll();
+		}
+	}
+
+	private void recordDelivered(SubscriptionDelivery theDelivery) {
+		long latency = System.currentTimeMillis() - theDelivery.getCreated().getTime();
+		myDeliveredCount.incrementAndGet();
+		myTotalLatency.addAndGet(latency);
+		long max;
+		do {
+			max = myMaxLatency.get();
+		} while (latency > max && !myMaxLatency.compareAndSet(max, latency));
+	}
+
+	private synchronized void release(String theEndpoint, List<SubscriptionDelivery> theBatch) {
+		for (SubscriptionDelivery next : theBatch) {
+			myInFlightIds.remove(next.getId());
+		}
+		int inFlight = getInFlightBatches(theEndpoint) - 1;
+		if (inFlight > 0) {
+			myInFlightPerEndpoint.put(theEndpoint, inFlight);
+		} else {
+			myInFlightPerEndpoint.remove(theEndpoint);
+		}
+		myActiveBatches--;
+	}
+
+	/**
+	 * Asks for a poll as soon as possible. Requests made while one is already
+	 * waiting to run are combined with it.
+	 */
+	private void requestPoll() {
+		if (myPollRequested.compareAndSet(false, true)) {
+			schedulePoll(0);
+		}
+	}
+
+	private void schedulePoll(long theDelayMillis) {
+		if (myStopped) {
+			return;
+		}
+		getPollExecutor().schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pollForDeliveries();
+				} catch (Exception e) {
+					ourLog.error("Failed to poll for rest-hook deliveries", e);
+				}
+			}
+		}, theDelayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Scheduled(fixedDelay = SCHEDULED_POLL_INTERVAL_MILLIS)
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	@Override
+	public void schedulePollForDeliveries() {
+		if (!myDaoConfig.isSchedulingDisabled()) {
+			pollForDeliveries();
+		}
+	}
+
+	/**
+	 * Sends one request, returning <code>null</code> if it succeeded or a description
+	 * of the failure if it didn't
+	 */
+	private String send(SubscriptionDelivery theDelivery) {
+		RequestBuilder builder = RequestBuilder.create(theDelivery.getMethod());
+		builder.setUri(theDelivery.getUrl());
+		if (isNotBlank(theDelivery.getContentType())) {
+			builder.addHeader(Constants.HEADER_CONTENT_TYPE, theDelivery.getContentType());
+		}
+		if (theDelivery.getBody() != null) {
+			builder.setEntity(new ByteArrayEntity(theDelivery.getBody()));
+		}
+
+		try {
+			CloseableHttpResponse response = getClient().execute(builder.build());
+			try {
+				EntityUtils.consume(response.getEntity());
+				int status = response.getStatusLine().getStatusCode();
+				if (status < 200 || status >= 300) {
+					return "HTTP " + response.getStatusLine();
+				}
+				return null;
+			} finally {
+				response.close();
+			}
+		} catch (IOException e) {
+			return e.toString();
+		}
+	}
+
+	@VisibleForTesting
+	void setDaoConfigForUnitTest(DaoConfig theDaoConfig) {
+		myDaoConfig = theDaoConfig;
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		myStopped = true;
+		if (myPollExecutor != null) {
+			myPollExecutor.shutdownNow();
+			myPollExecutor = null;
+		}
+		if (myExecutor != null) {
+			myExecutor.shutdownNow();
+			myExecutor = null;
+		}
+		if (myClient != null) {
+			try {
+				myClient.close();
+			} catch (IOException e) {
+				ourLog.warn("Failed to close rest-hook HTTP client", e);
+			}
+			myClient = null;
+		}
+	}
+
+	/**
+	 * Returns the time to wait before the next attempt at a delivery which has
+	 * failed the given number of times, doubling from the initial delay after
+	 * each failure up to the maximum
+	 */
+	static long calculateBackoffMillis(int theAttempts, long theInitialDelayMillis, long theMaxDelayMillis) {
+		long retVal = theInitialDelayMillis;
+		for (int i = 1; i < theAttempts && retVal < theMaxDelayMillis; i++) {
+			if (retVal > theMaxDelayMillis / 2) {
+				return theMaxDelayMillis;
+			}
+			retVal = retVal * 2;
+		}
+		return Math.min(retVal, theMaxDelayMillis);
+	}
+
+	/**
+	 * Sends a batch of notifications to one endpoint, in order, over the shared
+	 * connection pool. Once one fails the rest are put back without being tried,
+	 * since the endpoint is probably unavailable.
+	 */
+	private class DeliveryTask implements Runnable {
+
+		private final List<SubscriptionDelivery> myBatch;
+		private final String myEndpoint;
+
+		private DeliveryTask(String theEndpoint, List<SubscriptionDelivery> theBatch) {
+			myEndpoint = theEndpoint;
+			myBatch = theBatch;
+		}
+
+		@Override
+		public void run() {
+			long retryDelay = -1;
+			boolean completed = false;
+			try {
+				final Map<Long, String> errors = new HashMap<Long, String>();
+				final List<SubscriptionDelivery> delivered = new ArrayList<SubscriptionDelivery>();
+				String error = null;
+				for (SubscriptionDelivery next : myBatch) {
+					if (error != null) {
+						break;
+					}
+					error = send(next);
+					if (error == null) {
+						delivered.add(next);
+					} else {
+						ourLog.warn("Failed to deliver rest-hook notification {} for subscription {} to {}: {}", next.getId(), next.getSubscriptionId(), next.getUrl(), error);
+						errors.put(next.getId(), error);
+					}
+				}
+
+				final Date now = new Date();
+				final Date[] retryAt = new Date[1];
+				TransactionTemplate tt = new TransactionTemplate(myTransactionManager);
+				tt.execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+						for (SubscriptionDelivery next : delivered) {
+							myDeliveryDao.delete(next.getId());
+						}
+						for (Map.Entry<Long, String> nextError : errors.entrySet()) {
+							SubscriptionDelivery failed = myDeliveryDao.findOne(nextError.getKey());
+							if (failed == null) {
+								continue;
+							}
+							int attempts = failed.getAttempts() + 1;
+							failed.setAttempts(attempts);
+							failed.setLastError(nextError.getValue());
+							if (attempts >= myDaoConfig.getRestHookDeliveryMaxAttempts()) {
+								ourLog.error("Abandoning rest-hook notification {} for subscription {} to {} after {} attempts", failed.getId(), failed.getSubscriptionId(), failed.getUrl(), attempts);
+								failed.setStatus(SubscriptionDeliveryStatusEnum.FAILED);
+								myAbandonedCount.incrementAndGet();
+							} else {
+								long delay = calculateBackoffMillis(attempts, myDaoConfig.getRestHookDeliveryRetryDelayMillis(), myDaoConfig.getRestHookDeliveryMaxRetryDelayMillis());
+								retryAt[0] = new Date(now.getTime() + delay);
+								failed.setNextAttempt(retryAt[0]);
+							}
+							myDeliveryDao.save(failed);
+						}
+
+						/*
+						 * Notifications after a failure weren't tried, so they wait for the
+						 * retry without counting as an attempt
+						 */
+						if (retryAt[0] != null) {
+							for (SubscriptionDelivery next : myBatch.subList(delivered.size() + errors.size(), myBatch.size())) {
+								SubscriptionDelivery deferred = myDeliveryDao.findOne(next.getId());
+								if (deferred != null) {
+									deferred.setNextAttempt(retryAt[0]);
+									myDeliveryDao.save(deferred);
+								}
+							}
+						}
+					}
+				});
+
+				for (SubscriptionDelivery next : delivered) {
+					recordDelivered(next);
+				}
+				myFailedAttemptCount.addAndGet(errors.size());
+				if (retryAt[0] != null) {
+					retryDelay = retryAt[0].getTime() - now.getTime();
+				}
+				completed = true;
+			} catch (Exception e) {
+				ourLog.error("Failed to deliver rest-hook notifications to " + myEndpoint, e);
+			} finally {
+				release(myEndpoint, myBatch);
+			}
+
+			/*
+			 * If the outcome couldn't be saved the batch is left for the
+			 * scheduled poll, rather than being retried straight away
+			 */
+			if (completed) {
+				requestPoll();
+			}
+			if (retryDelay >= 0) {
+				schedulePoll(retryDelay);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,394 @@
+package ca.uhn.fhir.jpa.subscription;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.defaultString;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.InMemoryResourceMatcher;
+import ca.uhn.fhir.jpa.dao.InMemoryResourceMatcher.IndexedResource;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+/**
+ * Holds the active subscriptions, grouped by the resource type in their criteria
+ * so that a written resource is only checked against subscriptions for its type.
+ * <p>
+ * Subscriptions whose criteria can be matched in memory and which require one of
+ * a set of token values (e.g. <code>Observation?code=http://loinc.org|1234-5</code>)
+ * are also grouped by those values, so they are only checked against resources
+ * which have one of them.
+ * </p>
+ * <p>
+ * This class is thread safe. Subscriptions change rarely compared to how often
+ * they are looked up, so each change builds a new copy of the index which then
+ * replaces the old one. Lookups never lock, and always see a complete index.
+ * </p>
+ */
+public class SubscriptionCriteriaIndex {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SubscriptionCriteriaIndex.class);
+
+	private volatile Map<String, ActiveSubscription> myIdToSubscription = Collections.emptyMap();
+	private long myModCount;
+	private volatile Map<String, ResourceTypeSubscriptions> myResourceTypeToSubscriptions = Collections.emptyMap();
+
+	/**
+	 * Adds a subscription, replacing any existing one with the same ID
+	 */
+	public synchronized void add(ActiveSubscription theSubscription) {
+		Map<String, ActiveSubscription> idToSubscription = new LinkedHashMap<String, ActiveSubscription>(myIdToSubscription);
+		Map<String, ResourceTypeSubscriptions> resourceTypeToSubscriptions = new HashMap<String, ResourceTypeSubscriptions>(myResourceTypeToSubscriptions);
+
+		ActiveSubscription existing = idToSubscription.remove(theSubscription.getId());
+		if (existing != null) {
+			removeFromResourceType(resourceTypeToSubscriptions, existing);
+		}
+
+		idToSubscription.put(theSubscription.getId(), theSubscription);
+		List<ActiveSubscription> subscriptions = new ArrayList<ActiveSubscription>();
+		ResourceTypeSubscriptions forResourceType = resourceTypeToSubscriptions.get(theSubscription.getResourceType());
+		if (forResourceType != null) {
+			subscriptions.addAll(forResourceType.myAll);
+		}
+		subscriptions.add(theSubscription);
+		resourceTypeToSubscriptions.put(theSubscription.getResourceType(), new ResourceTypeSubscriptions(subscriptions));
+
+		publish(idToSubscription, resourceTypeToSubscriptions);
+	}
+
+	public ActiveSubscription get(String theId) {
+		return myIdToSubscription.get(theId);
+	}
+
+	public Collection<ActiveSubscription> getAll() {
+		return Collections.unmodifiableCollection(myIdToSubscription.values());
+	}
+
+	/**
+	 * Returns the subscriptions which could match a resource of the given type
+	 * 
+	 * @param theResource
+	 *           The index values of the resource, used to leave out subscriptions which require
+	 *           token values the resource does not have. May be <code>null</code>, in which case
+	 *           all subscriptions for the resource type are returned.
+	 */
+	public Collection<ActiveSubscription> getCandidates(String theResourceType, IndexedResource theResource) {
+		ResourceTypeSubscriptions subscriptions = myResourceTypeToSubscriptions.get(theResourceType);
+		if (subscriptions == null) {
+			return Collections.emptyList();
+		}
+		if (theResource == null || subscriptions.myTokenKeyToSubscriptions.isEmpty()) {
+			return subscriptions.myAll;
+		}
+
+		Set<ActiveSubscription> retVal = new HashSet<ActiveSubscription>(subscriptions.myUnkeyed);
+		for (BaseResourceIndexedSearchParam next : theResource.getValues()) {
+			if (next instanceof ResourceIndexedSearchParamToken) {
+				ResourceIndexedSearchParamToken token = (ResourceIndexedSearchParamToken) next;
+				addAll(retVal, subscriptions.myTokenKeyToSubscriptions.get(createTokenKey(token.getParamName(), token.getSystem(), token.getValue())));
+				addAll(retVal, subscriptions.myTokenKeyToSubscriptions.get(createTokenKey(token.getParamName(), null, token.getValue())));
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns a number which changes every time the contents of the index are
+	 * changed, for use with {@link #replaceAll(Collection, long)}
+	 */
+	public synchronized long getModCount() {
+		return myModCount;
+	}
+
+	/**
+	 * Returns <code>true</code> if there are any subscriptions for the given resource type
+	 */
+	public boolean hasSubscriptions(String theResourceType) {
+		return myResourceTypeToSubscriptions.containsKey(theResourceType);
+	}
+
+	private void publish(Map<String, ActiveSubscription> theIdToSubscription, Map<String, ResourceTypeSubscriptions> theResourceTypeToSubscriptions) {
+		myModCount++;
+		myResourceTypeToSubscriptions = Collections.unmodifiableMap(theResourceTypeToSubscriptions);
+		myIdToSubscription = Collections.unmodifiableMap(theIdToSubscription);
+	}
+
+	/**
+	 * Removes the subscription with the given ID if there is one
+	 * 
+	 * @return Returns the removed subscription, or <code>null</code>
+	 */
+	public synchronized ActiveSubscription remove(String theId) {
+		if (!myIdToSubscription.containsKey(theId)) {
+			return null;
+		}
+
+		Map<String, ActiveSubscription> idToSubscription = new LinkedHashMap<String, ActiveSubscription>(myIdToSubscription);
+		Map<String, ResourceTypeSubscriptions> resourceTypeToSubscriptions = new HashMap<String, ResourceTypeSubscriptions>(myResourceTypeToSubscriptions);
+
+		ActiveSubscription retVal = idToSubscription.remove(theId);
+		removeFromResourceType(resourceTypeToSubscriptions, retVal);
+
+		publish(idToSubscription, resourceTypeToSubscriptions);
+		return retVal;
+	}
+
+	/**
+	 * Replaces the contents of the index with the given subscriptions, unless
+	 * the index has been changed since <code>theExpectedModCount</code> was read
+	 * from {@link #getModCount()}. This allows a reload from the database to be
+	 * done without holding up lookups, and without losing changes made while the
+	 * reload was running, as long as changes are only made to the index once the
+	 * transaction which stored them has committed.
+	 * 
+	 * @return Returns <code>true</code> if the contents were replaced
+	 */
+	public synchronized boolean replaceAll(Collection<ActiveSubscription> theSubscriptions, long theExpectedModCount) {
+		if (myModCount != theExpectedModCount) {
+			return false;
+		}
+
+		Map<String, ActiveSubscription> idToSubscription = new LinkedHashMap<String, ActiveSubscription>();
+		for (ActiveSubscription next : theSubscriptions) {
+			idToSubscription.put(next.getId(), next);
+		}
+
+		Map<String, List<ActiveSubscription>> resourceTypeToList = new HashMap<String, List<ActiveSubscription>>();
+		for (ActiveSubscription next : idToSubscription.values()) {
+			List<ActiveSubscription> subscriptions = resourceTypeToList.get(next.getResourceType());
+			if (subscriptions == null) {
+				subscriptions = new ArrayList<ActiveSubscription>();
+				resourceTypeToList.put(next.getResourceType(), subscriptions);
+			}
+			subscriptions.add(next);
+		}
+
+		Map<String, ResourceTypeSubscriptions> resourceTypeToSubscriptions = new HashMap<String, ResourceTypeSubscriptions>();
+		for (Map.Entry<String, List<ActiveSubscription>> nextEntry : resourceTypeToList.entrySet()) {
+			resourceTypeToSubscriptions.put(nextEntry.getKey(), new ResourceTypeSubscriptions(nextEntry.getValue()));
+		}
+
+		publish(idToSubscription, resourceTypeToSubscriptions);
+		return true;
+	}
+
+	public int size() {
+		return myIdToSubscription.size();
+	}
+
+	private static void addAll(Set<ActiveSubscription> theTarget, List<ActiveSubscription> theSubscriptions) {
+		if (theSubscriptions != null) {
+			theTarget.addAll(theSubscriptions);
+		}
+	}
+
+	/**
+	 * Creates an entry for a subscription, parsing its criteria so that they can
+	 * be matched in memory if the matcher supports them. This is used for both
+	 * rest-hook and websocket subscriptions.
+	 * 
+	 * @param theSubscription
+	 *           The subscription resource
+	 * @param theCriteria
+	 *           The criteria of the subscription
+	 * @param theParseCriteria
+	 *           The criteria to parse, which may have been adjusted from <code>theCriteria</code>
+	 * @param theDao
+	 *           Any resource DAO, used to parse the criteria
+	 * @param theResourceMatcher
+	 *           The matcher. May be <code>null</code>, in which case the criteria are not parsed.
+	 */
+	public static ActiveSubscription createActiveSubscription(IBaseResource theSubscription, String theCriteria, String theParseCriteria, IFhirResourceDao<?> theDao, InMemoryResourceMatcher theResourceMatcher) {
+		String criteria = defaultString(theCriteria);
+		String resourceType = criteria;
+		int index = criteria.indexOf('?');
+		if (index != -1) {
+			resourceType = criteria.substring(0, index);
+		}
+
+		SearchParameterMap criteriaMap = null;
+		if (theResourceMatcher != null) {
+			try {
+				RuntimeResourceDefinition resourceDef = theDao.validateCriteriaAndReturnResourceDefinition(theParseCriteria);
+				criteriaMap = BaseHapiFhirDao.translateMatchUrl(theDao, theDao.getContext(), theParseCriteria, resourceDef);
+				if (!theResourceMatcher.canMatch(resourceType, criteriaMap)) {
+					criteriaMap = null;
+				}
+			} catch (RuntimeException e) {
+				ourLog.info("Subscription {} criteria {} will be checked using a search: {}", new Object[] { theSubscription.getIdElement().getIdPart(), criteria, e.toString() });
+				criteriaMap = null;
+			}
+		}
+
+		return new ActiveSubscription(theSubscription, criteria, resourceType, criteriaMap);
+	}
+
+	private static String createTokenKey(String theParamName, String theSystem, String theCode) {
+		return theParamName + '|' + defaultString(theSystem) + '|' + theCode;
+	}
+
+	private static void removeFromResourceType(Map<String, ResourceTypeSubscriptions> theResourceTypeToSubscriptions, ActiveSubscription theSubscription) {
+		List<ActiveSubscription> subscriptions = new ArrayList<ActiveSubscription>(theResourceTypeToSubscriptions.get(theSubscription.getResourceType()).myAll);
+		subscriptions.remove(theSubscription);
+		if (subscriptions.isEmpty()) {
+			theResourceTypeToSubscriptions.remove(theSubscription.getResourceType());
+		} else {
+			theResourceTypeToSubscriptions.put(theSubscription.getResourceType(), new ResourceTypeSubscriptions(subscriptions));
+		}
+	}
+
+	/**
+	 * Returns the token keys a resource must have one of in order to match
+	 * the given criteria, or <code>null</code> if there is no such set. The
+	 * first parameter whose values are all tokens with a code and either a
+	 * system or no system specified is used.
+	 */
+	static Set<String> determineTokenKeys(SearchParameterMap theCriteria) {
+		for (Map.Entry<String, List<List<? extends IQueryParameterType>>> nextEntry : theCriteria.entrySet()) {
+			for (List<? extends IQueryParameterType> nextAnd : nextEntry.getValue()) {
+				Set<String> keys = new HashSet<String>();
+				for (IQueryParameterType nextOr : nextAnd) {
+					if (!(nextOr instanceof TokenParam)) {
+						keys = null;
+						break;
+					}
+					TokenParam token = (TokenParam) nextOr;
+					if (token.getModifier() != null || token.getMissing() != null || isBlank(token.getValue()) || (token.getSystem() != null && isBlank(token.getSystem()))) {
+						keys = null;
+						break;
+					}
+					keys.add(createTokenKey(nextEntry.getKey(), token.getSystem(), token.getValue()));
+				}
+				if (keys != null && !keys.isEmpty()) {
+					return keys;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A subscription in the index
+	 */
+	public static class ActiveSubscription {
+
+		private final String myCriteria;
+		private final SearchParameterMap myCriteriaMap;
+		private final String myId;
+		private final String myResourceType;
+		private final IBaseResource mySubscription;
+		private final Set<String> myTokenKeys;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param theCriteriaMap
+		 *           The parsed criteria, if they can be matched in memory. Otherwise <code>null</code>.
+		 */
+		public ActiveSubscription(IBaseResource theSubscription, String theCriteria, String theResourceType, SearchParameterMap theCriteriaMap) {
+			mySubscription = theSubscription;
+			myId = theSubscription.getIdElement().getIdPart();
+			myCriteria = theCriteria;
+			myResourceType = theResourceType;
+			myCriteriaMap = theCriteriaMap;
+			myTokenKeys = theCriteriaMap != null ? determineTokenKeys(theCriteriaMap) : null;
+		}
+
+		public String getCriteria() {
+			return myCriteria;
+		}
+
+		/**
+		 * Returns the parsed criteria if they can be matched in memory, or
+		 * <code>null</code> if a search is needed
+		 */
+		public SearchParameterMap getCriteriaMap() {
+			return myCriteriaMap;
+		}
+
+		public String getId() {
+			return myId;
+		}
+
+		public String getResourceType() {
+			return myResourceType;
+		}
+
+		public IBaseResource getSubscription() {
+			return mySubscription;
+		}
+
+		public boolean isMatchInMemory() {
+			return myCriteriaMap != null;
+		}
+
+	}
+
+	/**
+	 * The subscriptions for one resource type. This is never modified once
+	 * created.
+	 */
+	private static class ResourceTypeSubscriptions {
+
+		private final List<ActiveSubscription> myAll;
+		private final Map<String, List<ActiveSubscription>> myTokenKeyToSubscriptions = new HashMap<String, List<ActiveSubscription>>();
+		private final List<ActiveSubscription> myUnkeyed = new ArrayList<ActiveSubscription>();
+
+		ResourceTypeSubscriptions(List<ActiveSubscription> theSubscriptions) {
+			myAll = Collections.unmodifiableList(theSubscriptions);
+			for (ActiveSubscription nextSubscription : theSubscriptions) {
+				if (nextSubscription.myTokenKeys == null) {
+					myUnkeyed.add(nextSubscription);
+					continue;
+				}
+				for (String next : nextSubscription.myTokenKeys) {
+					List<ActiveSubscription> subscriptions = myTokenKeyToSubscriptions.get(next);
+					if (subscriptions == null) {
+						subscriptions = new ArrayList<ActiveSubscription>();
+						myTokenKeyToSubscriptions.put(next, subscriptions);
+					}
+					subscriptions.add(nextSubscription);
+				}
+			}
+		}
+
+	}
+
+}
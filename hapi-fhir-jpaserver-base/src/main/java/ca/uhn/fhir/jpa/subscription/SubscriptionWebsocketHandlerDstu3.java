@@ -21,12 +21,18 @@ package ca.uhn.fhir.jpa.subscription;
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ScheduledFuture;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.apache.commons.lang3.time.DateUtils;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.hl7.fhir.dstu3.model.IdType;
@@ -41,33 +47,81 @@ import org.springframework.scheduling.TaskScheduler;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoSubscription;
+import ca.uhn.fhir.jpa.dao.InMemoryResourceMatcher;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.subscription.SubscriptionCriteriaIndex.ActiveSubscription;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.EncodingEnum;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 
-public class SubscriptionWebsocketHandlerDstu3 extends TextWebSocketHandler implements ISubscriptionWebsocketHandler, Runnable {
+/**
+ * Handles one websocket connection.
+ * <p>
+ * Once the client has bound to a subscription, the resources which have matched
+ * it since it was last connected are sent, and after that each matching change
+ * is sent as soon as it is committed, as published by the {@link ResourceChangeEventBus}.
+ * Criteria are checked in memory where possible, and otherwise by a search for
+ * the changed resource.
+ * </p>
+ */
+public class SubscriptionWebsocketHandlerDstu3 extends TextWebSocketHandler implements ISubscriptionWebsocketHandler, Runnable, IResourceChangeListener {
+
+	/**
+	 * How often the time of the most recent resource sent is saved, which also
+	 * stops the subscription from being purged as inactive
+	 */
+	public static final long RECORD_DELIVERY_INTERVAL_MILLIS = DateUtils.MILLIS_PER_MINUTE;
+
+	/**
+	 * A client which can't keep up with this is disconnected, rather than holding
+	 * up delivery to the other clients
+	 */
+	static final int SEND_BUFFER_SIZE_LIMIT = 512 * 1024;
+	static final int SEND_TIME_LIMIT_MILLIS = 10 * (int) DateUtils.MILLIS_PER_SECOND;
+
 	private static FhirContext ourCtx;
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SubscriptionWebsocketHandlerDstu3.class);
 
 	private static IFhirResourceDaoSubscription<Subscription> ourSubscriptionDao;
 
+	private ActiveSubscription myActiveSubscription;
+
+	@Autowired
+	private ResourceChangeEventBus myEventBus;
+
+	private Date myMostRecentDelivered;
+
+	/**
+	 * Changes published while the subscription is being caught up, which are sent
+	 * once it has been. This is <code>null</code> once the subscription is live.
+	 */
+	private List<ResourceChangeEvent> myPendingEvents;
+
+	@Autowired(required = false)
+	private InMemoryResourceMatcher myResourceMatcher;
+
 	private ScheduledFuture<?> myScheduleFuture;
 
-	private IState myState = new InitialState();
+	private volatile IState myState = new InitialState();
 
 	private IIdType mySubscriptionId;
 
-	private Long mySubscriptionPid;
+	private volatile Long mySubscriptionPid;
 
 	@Autowired
 	@Qualifier("websocketTaskSchedulerDstu3")
 	private TaskScheduler myTaskScheduler;
+
 	@Override
 	public void afterConnectionClosed(WebSocketSession theSession, CloseStatus theStatus) throws Exception {
 		super.afterConnectionClosed(theSession, theStatus);
@@ -97,15 +151,89 @@ public class SubscriptionWebsocketHandlerDstu3 extends TextWebSocketHandler impl
 		ourLog.error("Transport error", theException);
 	}
 
+	/**
+	 * Sends the resources which matched the subscription while the client wasn't
+	 * connected, then starts sending changes as they happen. Changes published
+	 * while this is running are held and sent afterward, skipping any which were
+	 * already sent as part of catching up.
+	 */
+	private void catchUpAndGoLive() {
+		synchronized (this) {
+			myPendingEvents = new ArrayList<ResourceChangeEvent>();
+		}
+		myEventBus.register(this, myActiveSubscription);
+
+		/*
+		 * Each poll flags at most MAX_RESOURCES_PER_POLL resources, so keep polling
+		 * until one comes back short. Each round is sent before the next is loaded
+		 * so a client which missed a lot isn't all held in memory at once.
+		 */
+		Set<String> sent = new HashSet<String>();
+		try {
+			int flagged;
+			do {
+				flagged = ourSubscriptionDao.pollForNewUndeliveredResourcesForSubscription(mySubscriptionPid);
+				List<IBaseResource> next;
+				do {
+					next = ourSubscriptionDao.getUndeliveredResourcesAndPurge(mySubscriptionPid);
+					deliverMissed(next, sent);
+				} while (next.isEmpty() == false);
+			} while (flagged >= IFhirResourceDaoSubscription.MAX_RESOURCES_PER_POLL);
+		} catch (Exception e) {
+			handleFailure(e);
+		}
+
+		synchronized (this) {
+			List<IBaseResource> pending = new ArrayList<IBaseResource>();
+			for (ResourceChangeEvent nextEvent : myPendingEvents) {
+				if (sent.add(nextEvent.getId().getValue())) {
+					pending.add(nextEvent.getResource());
+					updateMostRecentDelivered(nextEvent);
+				}
+			}
+			if (pending.isEmpty() == false) {
+				myState.deliver(pending);
+			}
+			myPendingEvents = null;
+		}
+	}
+
+	private synchronized void deliverMissed(List<IBaseResource> theMissed, Set<String> theSent) {
+		if (theMissed.isEmpty()) {
+			return;
+		}
+		ourLog.info("Sending {} missed resources for subscription {}", theMissed.size(), mySubscriptionPid);
+		myState.deliver(theMissed);
+		for (IBaseResource nextResource : theMissed) {
+			theSent.add(nextResource.getIdElement().toUnqualified().getValue());
+		}
+	}
+
+	private boolean matches(ResourceChangeEvent theEvent) {
+		InMemoryResourceMatcher resourceMatcher = myResourceMatcher;
+		if (resourceMatcher != null && myActiveSubscription.isMatchInMemory()) {
+			return resourceMatcher.match(myActiveSubscription.getResourceType(), myActiveSubscription.getCriteriaMap(), theEvent.getIndexedResource(resourceMatcher));
+		}
+
+		String criteria = myActiveSubscription.getCriteria();
+		criteria += (criteria.contains("?") ? "&" : "?") + "_id=" + theEvent.getId().getIdPart();
+		RuntimeResourceDefinition resourceDef = ourSubscriptionDao.validateCriteriaAndReturnResourceDefinition(criteria);
+		SearchParameterMap map = BaseHapiFhirDao.translateMatchUrl(ourSubscriptionDao, ourCtx, criteria, resourceDef);
+		map.setLoadSynchronous(true);
+		IFhirResourceDao<? extends IBaseResource> dao = ourSubscriptionDao.getDao(resourceDef.getImplementingClass());
+		return dao.search(map).size() > 0;
+	}
+
 	@PostConstruct
 	public void postConstruct() {
 		ourLog.info("Creating scheduled task for subscription websocket connection");
-		myScheduleFuture = myTaskScheduler.scheduleWithFixedDelay(this, 1000);
+		myScheduleFuture = myTaskScheduler.scheduleWithFixedDelay(this, RECORD_DELIVERY_INTERVAL_MILLIS);
 	}
 
 	@PreDestroy
 	public void preDescroy() {
 		ourLog.info("Cancelling scheduled task for subscription websocket connection");
+		myEventBus.unregister(this);
 		myScheduleFuture.cancel(true);
 		IState state = myState;
 		if (state != null) {
@@ -113,18 +241,72 @@ public class SubscriptionWebsocketHandlerDstu3 extends TextWebSocketHandler impl
 		}
 	}
 
-	@Override
-	public void run() {
+	private void recordDelivery() {
 		Long subscriptionPid = mySubscriptionPid;
 		if (subscriptionPid == null) {
 			return;
 		}
+		Date mostRecentDelivered;
+		synchronized (this) {
+			mostRecentDelivered = myMostRecentDelivered;
+		}
+		try {
+			ourSubscriptionDao.recordClientDelivery(subscriptionPid, mostRecentDelivered);
+		} catch (Exception e) {
+			handleFailure(e);
+		}
+	}
+
+	/**
+	 * Called for creates and updates of resources of the subscription's
+	 * resource type
+	 */
+	@Override
+	public void resourceChanged(ResourceChangeEvent theEvent) {
+		if (!matches(theEvent)) {
+			return;
+		}
+
+		synchronized (this) {
+			if (myPendingEvents != null) {
+				myPendingEvents.add(theEvent);
+				return;
+			}
+			myState.deliver(Collections.singletonList(theEvent.getResource()));
+			updateMostRecentDelivered(theEvent);
+		}
+	}
 
-		ourLog.debug("Subscription {} websocket handler polling", subscriptionPid);
+	/**
+	 * Saves the time of the most recent resource sent, so that the next connection
+	 * to this subscription is caught up from there
+	 */
+	@Override
+	public void run() {
+		recordDelivery();
+	}
+
+	public void setEventBus(ResourceChangeEventBus theEventBus) {
+		myEventBus = theEventBus;
+	}
+
+	/**
+	 * Sets the matcher used to check changes against the subscription criteria
+	 * without searching the database. If this is <code>null</code>, a search is
+	 * used for every change.
+	 */
+	public void setResourceMatcher(InMemoryResourceMatcher theResourceMatcher) {
+		myResourceMatcher = theResourceMatcher;
+	}
 
-		List<IBaseResource> results = ourSubscriptionDao.getUndeliveredResourcesAndPurge(subscriptionPid);
-		if (results.isEmpty() == false) {
-			myState.deliver(results);
+	public void setTaskScheduler(TaskScheduler theTaskScheduler) {
+		myTaskScheduler = theTaskScheduler;
+	}
+
+	private void updateMostRecentDelivered(ResourceChangeEvent theEvent) {
+		Date updated = theEvent.getUpdated();
+		if (updated != null && (myMostRecentDelivered == null || updated.after(myMostRecentDelivered))) {
+			myMostRecentDelivered = updated;
 		}
 	}
 
@@ -142,7 +324,7 @@ public class SubscriptionWebsocketHandlerDstu3 extends TextWebSocketHandler impl
 		private WebSocketSession mySession;
 
 		public BoundDynamicSubscriptionState(WebSocketSession theSession, EncodingEnum theEncoding) {
-			mySession = theSession;
+			mySession = new ConcurrentWebSocketSessionDecorator(theSession, SEND_TIME_LIMIT_MILLIS, SEND_BUFFER_SIZE_LIMIT);
 			myEncoding = theEncoding;
 		}
 
@@ -186,12 +368,12 @@ public class SubscriptionWebsocketHandlerDstu3 extends TextWebSocketHandler impl
 		private WebSocketSession mySession;
 
 		public BoundStaticSubscipriptionState(WebSocketSession theSession) {
-			mySession = theSession;
+			mySession = new ConcurrentWebSocketSessionDecorator(theSession, SEND_TIME_LIMIT_MILLIS, SEND_BUFFER_SIZE_LIMIT);
 		}
 
 		@Override
 		public void closing() {
-			// nothing
+			recordDelivery();
 		}
 
 		@Override
@@ -238,6 +420,7 @@ public class SubscriptionWebsocketHandlerDstu3 extends TextWebSocketHandler impl
 
 			try {
 				Subscription subscription = ourSubscriptionDao.read(id, null);
+				myActiveSubscription = SubscriptionCriteriaIndex.createActiveSubscription(subscription, subscription.getCriteria(), subscription.getCriteria(), ourSubscriptionDao, myResourceMatcher);
 				mySubscriptionPid = ourSubscriptionDao.getSubscriptionTablePidForSubscriptionResource(id);
 				mySubscriptionId = subscription.getIdElement();
 				myState = new BoundStaticSubscipriptionState(theSession);
@@ -276,6 +459,7 @@ public class SubscriptionWebsocketHandlerDstu3 extends TextWebSocketHandler impl
 				
 				IIdType id = ourSubscriptionDao.create(subscription).getId();
 
+				myActiveSubscription = SubscriptionCriteriaIndex.createActiveSubscription(subscription, theRemaining, theRemaining, ourSubscriptionDao, myResourceMatcher);
 				mySubscriptionPid = ourSubscriptionDao.getSubscriptionTablePidForSubscriptionResource(id);
 				mySubscriptionId = subscription.getIdElement();
 				myState = new BoundDynamicSubscriptionState(theSession, encoding);
@@ -320,9 +504,10 @@ public class SubscriptionWebsocketHandlerDstu3 extends TextWebSocketHandler impl
 					subscriptionId = bingSearch(theSession, remaining);
 				} else {
 					subscriptionId = bindSimple(theSession, remaining);
-					if (subscriptionId == null) {
-						return;
-					}
+				}
+
+				if (subscriptionId == null) {
+					return;
 				}
 
 				try {
@@ -331,6 +516,8 @@ public class SubscriptionWebsocketHandlerDstu3 extends TextWebSocketHandler impl
 					handleFailure(e);
 				}
 
+				catchUpAndGoLive();
+
 			}
 		}
 
@@ -20,6 +20,7 @@ package ca.uhn.fhir.jpa.term;
  * #L%
  */
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -29,6 +30,7 @@ import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.persistence.EntityManager;
@@ -46,10 +48,15 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimaps;
 
@@ -58,11 +65,13 @@ import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.data.ITermCodeSystemDao;
 import ca.uhn.fhir.jpa.dao.data.ITermCodeSystemVersionDao;
+import ca.uhn.fhir.jpa.dao.data.ITermConceptClosureDao;
 import ca.uhn.fhir.jpa.dao.data.ITermConceptDao;
 import ca.uhn.fhir.jpa.dao.data.ITermConceptParentChildLinkDao;
 import ca.uhn.fhir.jpa.entity.TermCodeSystem;
 import ca.uhn.fhir.jpa.entity.TermCodeSystemVersion;
 import ca.uhn.fhir.jpa.entity.TermConcept;
+import ca.uhn.fhir.jpa.entity.TermConceptClosure;
 import ca.uhn.fhir.jpa.entity.TermConceptParentChildLink;
 import ca.uhn.fhir.jpa.entity.TermConceptParentChildLink.RelationshipTypeEnum;
 import ca.uhn.fhir.jpa.util.StopWatch;
@@ -72,16 +81,36 @@ import ca.uhn.fhir.util.ObjectUtil;
 import ca.uhn.fhir.util.ValidateUtil;
 
 public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
+	/**
+	 * The most codes which are held in the cache of codes above and below
+	 * other codes
+	 */
+	static final int HIERARCHY_CACHE_MAX_CODES = 1000000;
 	private static boolean ourForceSaveDeferredAlwaysForUnitTest;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseHapiTerminologySvc.class);
 	private static final Object PLACEHOLDER_OBJECT = new Object();
 
+	/**
+	 * Number of closure rows sent to the database in each JDBC batch
+	 */
+	private static final int CLOSURE_BATCH_SIZE = 1000;
+
+	/**
+	 * Closure rows written by one pass of {@link #saveDeferred()} (the rows for a
+	 * descendant are always written together, so a pass can go slightly over)
+	 */
+	static final int CLOSURE_ROWS_PER_PASS = 10000;
+	private static int ourClosureRowsPerPass = CLOSURE_ROWS_PER_PASS;
+
 	@Autowired
 	protected ITermCodeSystemDao myCodeSystemDao;
 
 	@Autowired
 	private ITermCodeSystemVersionDao myCodeSystemVersionDao;
 
+	@Autowired
+	private ITermConceptClosureDao myConceptClosureDao;
+
 	@Autowired
 	protected ITermConceptDao myConceptDao;
 
@@ -95,9 +124,45 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 	@Autowired
 	protected FhirContext myContext;
 
+	/**
+	 * Code system versions whose closure rows have been written
+	 */
+	private final Set<Long> myCodeSystemVersionsWithClosure = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+	/**
+	 * Code system versions whose closure rows will be written once their deferred
+	 * concepts and links have been saved. These are also marked as
+	 * {@link TermCodeSystemVersion#isClosurePending() pending} in the database.
+	 */
+	private List<Long> myCodeSystemVersionsToBuildClosureFor = new ArrayList<Long>();
+
+	/**
+	 * Set once the versions left with a pending closure by an earlier run of the
+	 * server have been added to {@link #myCodeSystemVersionsToBuildClosureFor}
+	 */
+	private boolean myPendingClosuresLoaded;
+
+	/**
+	 * The closure which {@link #saveDeferred()} is currently writing, a chunk of
+	 * descendants per pass
+	 */
+	private ClosureBuild myClosureBuild;
+
 	@Autowired
 	private DaoConfig myDaoConfig;
 
+	/**
+	 * The codes above or below a code in a code system version, keyed by
+	 * {@link #createHierarchyCacheKey(Long, boolean, String)}. Codes are held as a plain
+	 * array since an expansion of a large hierarchy can contain many thousands.
+	 */
+	private final Cache<String, String[]> myHierarchyCache = CacheBuilder.newBuilder().maximumWeight(HIERARCHY_CACHE_MAX_CODES).weigher(new Weigher<String, String[]>() {
+		@Override
+		public int weigh(String theKey, String[] theValue) {
+			return Math.max(1, theValue.length);
+		}
+	}).build();
+
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
 	protected EntityManager myEntityManager;
 	
@@ -118,6 +183,170 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		return retVal;
 	}
 
+	/**
+	 * Writes every {@link TermConceptClosure} row for a code system version in the
+	 * current transaction. This is only used for versions which were saved without
+	 * deferring, so the closure is of a bounded size.
+	 */
+	private void buildClosure(Long theCodeSystemVersionPid) {
+		ClosureBuild build = startClosure(theCodeSystemVersionPid);
+		writeClosureRows(build, Integer.MAX_VALUE);
+		finishClosure(build);
+	}
+
+	/**
+	 * Writes the next chunk of closure rows for the version being built by
+	 * {@link #saveDeferred()}, and marks the closure as built once the last chunk
+	 * has been written. If the transaction rolls back, the chunk is written again
+	 * by the next pass.
+	 */
+	private void buildNextClosureChunk() {
+		final ClosureBuild build = myClosureBuild;
+		final int previousNextChild = build.myNextChild;
+		final int previousRowCount = build.myRowCount;
+
+		if (build.myNextChild == 0) {
+			// Rows written before a restart are written again from the start
+			myConceptClosureDao.deleteByCodeSystemVersion(build.myCodeSystemVersionPid);
+		}
+		writeClosureRows(build, ourClosureRowsPerPass);
+		final boolean done = build.myNextChild >= build.myChildPids.size();
+		if (done) {
+			finishClosure(build);
+		} else {
+			ourLog.info("Have saved {} closure rows for {} of {} concepts", new Object[] { build.myRowCount, build.myNextChild, build.myChildPids.size() });
+		}
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					if (theStatus != STATUS_COMMITTED) {
+						build.myNextChild = previousNextChild;
+						build.myRowCount = previousRowCount;
+					} else if (done && myClosureBuild == build) {
+						myClosureBuild = null;
+					}
+				}
+			});
+		} else if (done) {
+			myClosureBuild = null;
+		}
+	}
+
+	/**
+	 * Marks the closure of a version as built. It is used once the current
+	 * transaction commits.
+	 */
+	private void finishClosure(final ClosureBuild theBuild) {
+		TermCodeSystemVersion codeSystemVersion = myCodeSystemVersionDao.findOne(theBuild.myCodeSystemVersionPid);
+		if (codeSystemVersion != null) {
+			codeSystemVersion.setClosureBuilt(true);
+			codeSystemVersion.setClosurePending(false);
+			myCodeSystemVersionDao.save(codeSystemVersion);
+		}
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					myCodeSystemVersionsWithClosure.add(theBuild.myCodeSystemVersionPid);
+				}
+			});
+		} else {
+			myCodeSystemVersionsWithClosure.add(theBuild.myCodeSystemVersionPid);
+		}
+		ourLog.info("Saved {} closure rows for {} concepts in {}ms", new Object[] { theBuild.myRowCount, theBuild.myChildPids.size(), theBuild.myStopWatch.getMillis() });
+	}
+
+	/**
+	 * Loads the saved links of a code system version, ready for its closure rows
+	 * to be written. This must only be called once all of them have been saved.
+	 */
+	private ClosureBuild startClosure(Long theCodeSystemVersionPid) {
+		ourLog.info("Building concept hierarchy closure for code system version {}", theCodeSystemVersionPid);
+
+		ArrayListMultimap<Long, Long> childToParentPids = ArrayListMultimap.create();
+		for (Object[] next : myConceptParentChildLinkDao.findParentAndChildPidsByCodeSystemVersion(theCodeSystemVersionPid)) {
+			childToParentPids.put((Long) next[1], (Long) next[0]);
+		}
+		return new ClosureBuild(theCodeSystemVersionPid, childToParentPids);
+	}
+
+	/**
+	 * Writes a closure row for each of the ancestors of the next descendants of a
+	 * build, stopping after the descendant which brings the number of rows written
+	 * to at least the given number
+	 */
+	private void writeClosureRows(ClosureBuild theBuild, int theMaxRows) {
+		long[] ancestorPids = new long[CLOSURE_BATCH_SIZE];
+		long[] descendantPids = new long[CLOSURE_BATCH_SIZE];
+		int buffered = 0;
+		int written = 0;
+		while (written < theMaxRows && theBuild.myNextChild < theBuild.myChildPids.size()) {
+			Long nextChildPid = theBuild.myChildPids.get(theBuild.myNextChild++);
+			for (Long nextAncestorPid : findAncestorPids(nextChildPid, theBuild.myChildToParentPids, theBuild.myAncestorPidCache)) {
+				ancestorPids[buffered] = nextAncestorPid;
+				descendantPids[buffered] = nextChildPid;
+				buffered++;
+				written++;
+				if (buffered == CLOSURE_BATCH_SIZE) {
+					myConceptClosureDao.saveClosure(theBuild.myCodeSystemVersionPid, ancestorPids, descendantPids, buffered);
+					buffered = 0;
+				}
+			}
+		}
+		myConceptClosureDao.saveClosure(theBuild.myCodeSystemVersionPid, ancestorPids, descendantPids, buffered);
+		theBuild.myRowCount += written;
+	}
+
+	private static String createHierarchyCacheKey(Long theCodeSystemVersionPid, boolean theBelow, String theCode) {
+		return theCodeSystemVersionPid + (theBelow ? " below " : " above ") + theCode;
+	}
+
+	/**
+	 * Returns the PIDs of all of the ancestors of a concept. The sets are cached
+	 * since concepts usually share most of their ancestors with their siblings.
+	 * The links are walked without recursion, and each parent is visited once, so
+	 * a deep hierarchy or a cycle of is-a links can't overflow the stack. A
+	 * concept is never its own ancestor.
+	 */
+	@VisibleForTesting
+	static Set<Long> findAncestorPids(Long theConceptPid, ArrayListMultimap<Long, Long> theChildToParentPids, Map<Long, Set<Long>> theCache) {
+		Set<Long> retVal = theCache.get(theConceptPid);
+		if (retVal == null) {
+			retVal = new HashSet<Long>();
+			ArrayDeque<Long> toVisit = new ArrayDeque<Long>(theChildToParentPids.get(theConceptPid));
+			while (!toVisit.isEmpty()) {
+				Long nextParentPid = toVisit.pop();
+				if (!retVal.add(nextParentPid)) {
+					continue;
+				}
+				Set<Long> cached = theCache.get(nextParentPid);
+				if (cached != null) {
+					retVal.addAll(cached);
+				} else {
+					toVisit.addAll(theChildToParentPids.get(nextParentPid));
+				}
+			}
+			retVal.remove(theConceptPid);
+			theCache.put(theConceptPid, retVal);
+		}
+		return retVal;
+	}
+
+	private boolean hasClosure(Long theCodeSystemVersionPid) {
+		if (myCodeSystemVersionsWithClosure.contains(theCodeSystemVersionPid)) {
+			return true;
+		}
+		TermCodeSystemVersion codeSystemVersion = myCodeSystemVersionDao.findOne(theCodeSystemVersionPid);
+		if (codeSystemVersion == null || !codeSystemVersion.isClosureBuilt()) {
+			return false;
+		}
+		myCodeSystemVersionsWithClosure.add(theCodeSystemVersionPid);
+		return true;
+	}
+
 	private int ensureParentsSaved(Collection<TermConceptParentChildLink> theParents) {
 		ourLog.trace("Checking {} parents", theParents.size());
 		int retVal = 0;
@@ -185,7 +414,13 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		Set<TermConcept> retVal = new HashSet<TermConcept>();
 		retVal.add(concept);
 
-		fetchParents(concept, retVal);
+		if (hasClosure(concept.getCodeSystem().getPid())) {
+			for (TermConcept next : myConceptClosureDao.findAncestors(concept.getId())) {
+				addToSet(retVal, next);
+			}
+		} else {
+			fetchParents(concept, retVal);
+		}
 
 		ourLog.info("Fetched {} codes above code {} in {}ms", new Object[] { retVal.size(), theCode, stopwatch.elapsed(TimeUnit.MILLISECONDS) });
 		return retVal;
@@ -199,9 +434,7 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		}
 		TermCodeSystemVersion csv = cs.getCurrentVersion();
 
-		Set<TermConcept> codes = findCodesAbove(cs.getResource().getId(), csv.getResourceVersionId(), theCode);
-		ArrayList<VersionIndependentConcept> retVal = toVersionIndependentConcepts(theSystem, codes);
-		return retVal;
+		return findCodesInHierarchy(theSystem, cs, csv, false, theCode);
 	}
 
 	/**
@@ -226,7 +459,13 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		Set<TermConcept> retVal = new HashSet<TermConcept>();
 		retVal.add(concept);
 
-		fetchChildren(concept, retVal);
+		if (hasClosure(concept.getCodeSystem().getPid())) {
+			for (TermConcept next : myConceptClosureDao.findDescendants(concept.getId())) {
+				addToSet(retVal, next);
+			}
+		} else {
+			fetchChildren(concept, retVal);
+		}
 
 		ourLog.info("Fetched {} codes below code {} in {}ms", new Object[] { retVal.size(), theCode, stopwatch.elapsed(TimeUnit.MILLISECONDS) });
 		return retVal;
@@ -240,8 +479,40 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		}
 		TermCodeSystemVersion csv = cs.getCurrentVersion();
 
-		Set<TermConcept> codes = findCodesBelow(cs.getResource().getId(), csv.getResourceVersionId(), theCode);
-		ArrayList<VersionIndependentConcept> retVal = toVersionIndependentConcepts(theSystem, codes);
+		return findCodesInHierarchy(theSystem, cs, csv, true, theCode);
+	}
+
+	/**
+	 * Returns the codes above or below a code, using the cache if the closure of
+	 * the code system version has been built. Until then the hierarchy may still
+	 * be being saved, so results are not cached.
+	 */
+	private List<VersionIndependentConcept> findCodesInHierarchy(String theSystem, TermCodeSystem theCodeSystem, TermCodeSystemVersion theCodeSystemVersion, boolean theBelow, String theCode) {
+		boolean hasClosure = hasClosure(theCodeSystemVersion.getPid());
+		String key = createHierarchyCacheKey(theCodeSystemVersion.getPid(), theBelow, theCode);
+		String[] codes = hasClosure ? myHierarchyCache.getIfPresent(key) : null;
+
+		if (codes == null) {
+			Set<TermConcept> concepts;
+			if (theBelow) {
+				concepts = findCodesBelow(theCodeSystem.getResource().getId(), theCodeSystemVersion.getResourceVersionId(), theCode);
+			} else {
+				concepts = findCodesAbove(theCodeSystem.getResource().getId(), theCodeSystemVersion.getResourceVersionId(), theCode);
+			}
+			codes = new String[concepts.size()];
+			int index = 0;
+			for (TermConcept next : concepts) {
+				codes[index++] = next.getCode();
+			}
+			if (hasClosure) {
+				myHierarchyCache.put(key, codes);
+			}
+		}
+
+		List<VersionIndependentConcept> retVal = new ArrayList<VersionIndependentConcept>(codes.length);
+		for (String next : codes) {
+			retVal.add(new VersionIndependentConcept(theSystem, next));
+		}
 		return retVal;
 	}
 	/**
@@ -416,6 +687,22 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		if (!myProcessDeferred) {
 			return;
 		} else if (myConceptsToSaveLater.isEmpty() && myConceptLinksToSaveLater.isEmpty()) {
+			if (myClosureBuild == null && !myPendingClosuresLoaded) {
+				for (Long next : myCodeSystemVersionDao.findPidsWithClosurePending()) {
+					if (!myCodeSystemVersionsToBuildClosureFor.contains(next)) {
+						ourLog.info("Resuming concept hierarchy closure for code system version {}", next);
+						myCodeSystemVersionsToBuildClosureFor.add(next);
+					}
+				}
+				myPendingClosuresLoaded = true;
+			}
+			if (myClosureBuild == null && !myCodeSystemVersionsToBuildClosureFor.isEmpty()) {
+				myClosureBuild = startClosure(myCodeSystemVersionsToBuildClosureFor.remove(0));
+			}
+			if (myClosureBuild != null) {
+				buildNextClosureChunk();
+				return;
+			}
 			processReindexing();
 			return;
 		}
@@ -482,12 +769,23 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		ourLog.info("Deleting old code system versions");
 		for (TermCodeSystemVersion next : existing) {
 			ourLog.info(" * Deleting code system version {}", next.getPid());
+			myConceptClosureDao.deleteByCodeSystemVersion(next.getPid());
+			myCodeSystemVersionsWithClosure.remove(next.getPid());
+			myCodeSystemVersionsToBuildClosureFor.remove(next.getPid());
+			if (myClosureBuild != null && myClosureBuild.myCodeSystemVersionPid.equals(next.getPid())) {
+				myClosureBuild = null;
+			}
+			if (next.isClosurePending()) {
+				next.setClosurePending(false);
+				myCodeSystemVersionDao.save(next);
+			}
 			myConceptParentChildLinkDao.deleteByCodeSystemVersion(next.getPid());
 			myConceptDao.deleteByCodeSystemVersion(next.getPid());
 		}
 
 		ourLog.info("Flushing...");
 		
+		myConceptClosureDao.flush();
 		myConceptParentChildLinkDao.flush();
 		myConceptDao.flush();
 
@@ -555,6 +853,11 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		
 		if (myConceptsToSaveLater.size() > 0 || myConceptLinksToSaveLater.size() > 0) {
 			ourLog.info("Note that some concept saving was deferred - still have {} concepts and {} relationships", myConceptsToSaveLater.size(), myConceptLinksToSaveLater.size());
+			codeSystemVersion.setClosurePending(true);
+			myCodeSystemVersionDao.save(codeSystemVersion);
+			myCodeSystemVersionsToBuildClosureFor.add(codeSystemVersion.getPid());
+		} else {
+			buildClosure(codeSystemVersion.getPid());
 		}
 	}
 
@@ -564,14 +867,6 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		return cs != null;
 	}
 	
-	private ArrayList<VersionIndependentConcept> toVersionIndependentConcepts(String theSystem, Set<TermConcept> codes) {
-		ArrayList<VersionIndependentConcept> retVal = new ArrayList<VersionIndependentConcept>(codes.size());
-		for (TermConcept next : codes) {
-			retVal.add(new VersionIndependentConcept(theSystem, next.getCode()));
-		}
-		return retVal;
-	}
-
 	private int validateConceptForStorage(TermConcept theConcept, TermCodeSystemVersion theCodeSystem, ArrayList<String> theConceptsStack,
 			IdentityHashMap<TermConcept, Object> theAllConcepts) {
 		ValidateUtil.isTrueOrThrowInvalidRequest(theConcept.getCodeSystem() != null, "CodesystemValue is null");
@@ -601,6 +896,26 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		return retVal;
 	}
 
+	/**
+	 * Forgets any closure being written or waiting to be, as a restart of the
+	 * server would. This method is present only for unit tests, do not call from
+	 * client code
+	 */
+	@VisibleForTesting
+	synchronized void clearClosureBuildsForUnitTest() {
+		myClosureBuild = null;
+		myCodeSystemVersionsToBuildClosureFor.clear();
+		myPendingClosuresLoaded = false;
+	}
+
+	/**
+	 * This method is present only for unit tests, do not call from client code
+	 */
+	@VisibleForTesting
+	static void setClosureRowsPerPassForUnitTest(int theClosureRowsPerPass) {
+		ourClosureRowsPerPass = theClosureRowsPerPass;
+	}
+
 	/**
 	 * This method is present only for unit tests, do not call from client code
 	 */
@@ -609,4 +924,26 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		ourForceSaveDeferredAlwaysForUnitTest = theForceSaveDeferredAlwaysForUnitTest;
 	}
 
+	/**
+	 * The state of a closure which is being written over several passes of
+	 * {@link BaseHapiTerminologySvc#saveDeferred()}
+	 */
+	private static class ClosureBuild {
+
+		private final Map<Long, Set<Long>> myAncestorPidCache = new HashMap<Long, Set<Long>>();
+		private final List<Long> myChildPids;
+		private final ArrayListMultimap<Long, Long> myChildToParentPids;
+		private final Long myCodeSystemVersionPid;
+		private int myNextChild;
+		private int myRowCount;
+		private final StopWatch myStopWatch = new StopWatch();
+
+		private ClosureBuild(Long theCodeSystemVersionPid, ArrayListMultimap<Long, Long> theChildToParentPids) {
+			myCodeSystemVersionPid = theCodeSystemVersionPid;
+			myChildToParentPids = theChildToParentPids;
+			myChildPids = new ArrayList<Long>(theChildToParentPids.keySet());
+		}
+
+	}
+
 }
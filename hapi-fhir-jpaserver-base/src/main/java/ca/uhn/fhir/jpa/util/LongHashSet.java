@@ -0,0 +1,160 @@
+package ca.uhn.fhir.jpa.util;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * A set of <code>long</code> values (typically resource PIDs) which stores its
+ * contents in a single <code>long[]</code> rather than as boxed {@link Long}
+ * entries, so that remembering a few million PIDs costs a few tens of megabytes
+ * rather than a few hundred.
+ * <p>
+ * Uses open addressing with linear probing. Not thread safe.
+ * </p>
+ */
+public class LongHashSet {
+
+	private static final int DEFAULT_INITIAL_CAPACITY = 64;
+	/** Value marking an empty slot, so zero itself is tracked separately */
+	private static final long EMPTY = 0;
+
+	private boolean myContainsEmpty;
+	private long[] myKeys;
+	private int myResizeAt;
+	private int mySize;
+
+	/**
+	 * Constructor
+	 */
+	public LongHashSet() {
+		this(DEFAULT_INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theExpectedSize
+	 *           The number of values the set should be able to hold before it needs to grow
+	 */
+	public LongHashSet(int theExpectedSize) {
+		int capacity = DEFAULT_INITIAL_CAPACITY;
+		while (capacity * 3 / 4 < theExpectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * Adds a value to the set
+	 * 
+	 * @return Returns <code>true</code> if the value was not already in the set
+	 */
+	public boolean add(long theValue) {
+		if (theValue == EMPTY) {
+			if (myContainsEmpty) {
+				return false;
+			}
+			myContainsEmpty = true;
+			mySize++;
+			return true;
+		}
+
+		int mask = myKeys.length - 1;
+		int slot = hash(theValue) & mask;
+		while (myKeys[slot] != EMPTY) {
+			if (myKeys[slot] == theValue) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		myKeys[slot] = theValue;
+		mySize++;
+
+		if (mySize >= myResizeAt) {
+			rehash(myKeys.length << 1);
+		}
+		return true;
+	}
+
+	private void allocate(int theCapacity) {
+		myKeys = new long[theCapacity];
+		myResizeAt = theCapacity * 3 / 4;
+	}
+
+	/**
+	 * Removes all values from the set
+	 */
+	public void clear() {
+		Arrays.fill(myKeys, EMPTY);
+		myContainsEmpty = false;
+		mySize = 0;
+	}
+
+	public boolean contains(long theValue) {
+		if (theValue == EMPTY) {
+			return myContainsEmpty;
+		}
+
+		int mask = myKeys.length - 1;
+		int slot = hash(theValue) & mask;
+		while (myKeys[slot] != EMPTY) {
+			if (myKeys[slot] == theValue) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return mySize == 0;
+	}
+
+	private void rehash(int theNewCapacity) {
+		long[] oldKeys = myKeys;
+		allocate(theNewCapacity);
+		int mask = myKeys.length - 1;
+		for (long next : oldKeys) {
+			if (next != EMPTY) {
+				int slot = hash(next) & mask;
+				while (myKeys[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				myKeys[slot] = next;
+			}
+		}
+	}
+
+	public int size() {
+		return mySize;
+	}
+
+	/**
+	 * PIDs are allocated sequentially, so the bits are mixed before use to keep
+	 * runs of neighbouring values from clustering in the table
+	 */
+	private static int hash(long theValue) {
+		long h = theValue * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+}
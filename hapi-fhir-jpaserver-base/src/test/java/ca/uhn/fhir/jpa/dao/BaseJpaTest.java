@@ -225,6 +225,7 @@ public abstract class BaseJpaTest {
 				entityManager.createQuery("DELETE from " + SearchResult.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + SearchInclude.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + TermConceptParentChildLink.class.getSimpleName() + " d").executeUpdate();
+				entityManager.createQuery("DELETE from " + TermConceptClosure.class.getSimpleName() + " d").executeUpdate();
 				return null;
 			}
 		});
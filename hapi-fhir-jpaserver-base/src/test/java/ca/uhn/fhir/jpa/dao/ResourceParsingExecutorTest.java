@@ -0,0 +1,111 @@
+package ca.uhn.fhir.jpa.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import ca.uhn.fhir.util.TestUtil;
+
+public class ResourceParsingExecutorTest {
+
+	private ResourceParsingExecutor mySvc;
+
+	@After
+	public void after() {
+		if (mySvc != null) {
+			mySvc.stop();
+		}
+	}
+
+	private List<Callable<String>> newTasks(int theCount, final Set<String> theThreadNames) {
+		List<Callable<String>> retVal = new ArrayList<Callable<String>>();
+		for (int i = 0; i < theCount; i++) {
+			final int index = i;
+			retVal.add(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					synchronized (theThreadNames) {
+						theThreadNames.add(Thread.currentThread().getName());
+					}
+					Thread.sleep(1);
+					return "Result" + index;
+				}
+			});
+		}
+		return retVal;
+	}
+
+	private ResourceParsingExecutor newSvc(int theThreadCount) {
+		DaoConfig config = new DaoConfig();
+		config.setResourceParsingThreadCount(theThreadCount);
+		mySvc = new ResourceParsingExecutor();
+		mySvc.setDaoConfigForUnitTest(config);
+		return mySvc;
+	}
+
+	@Test
+	public void testInvokeAllInOrder() {
+		Set<String> threadNames = new HashSet<String>();
+		List<String> results = newSvc(4).invokeAll(newTasks(200, threadNames));
+
+		assertEquals(200, results.size());
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals("Result" + i, results.get(i));
+		}
+	}
+
+	/**
+	 * Tasks the calling thread ran itself don't stay behind in the queue
+	 */
+	@Test
+	public void testInvokeAllLeavesNothingQueued() {
+		ResourceParsingExecutor svc = newSvc(2);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(200, svc.invokeAll(newTasks(200, new HashSet<String>())).size());
+			assertEquals(0, svc.getQueuedTaskCountForUnitTest());
+		}
+	}
+
+	@Test
+	public void testInvokeAllSingleThread() {
+		Set<String> threadNames = new HashSet<String>();
+		List<String> results = newSvc(1).invokeAll(newTasks(20, threadNames));
+
+		assertEquals(20, results.size());
+		assertEquals(1, threadNames.size());
+		assertEquals(Thread.currentThread().getName(), threadNames.iterator().next());
+	}
+
+	@Test
+	public void testInvokeAllWithFailure() {
+		List<Callable<String>> tasks = newTasks(50, new HashSet<String>());
+		tasks.set(25, new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				throw new IllegalStateException("FAILED");
+			}
+		});
+
+		try {
+			newSvc(4).invokeAll(tasks);
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("FAILED", e.getMessage());
+		}
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
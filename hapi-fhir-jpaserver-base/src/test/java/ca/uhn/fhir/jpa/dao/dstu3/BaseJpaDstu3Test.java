@@ -269,6 +269,8 @@ public abstract class BaseJpaDstu3Test extends BaseJpaTest {
 		myDaoConfig.setExpireSearchResultsAfterMillis(new DaoConfig().getExpireSearchResultsAfterMillis());
 		myDaoConfig.setReuseCachedSearchResultsForMillis(new DaoConfig().getReuseCachedSearchResultsForMillis());
 		myDaoConfig.setSuppressUpdatesWithNoChange(new DaoConfig().isSuppressUpdatesWithNoChange());
+		myDaoConfig.setParsedResourceCacheMaxBytes(new DaoConfig().getParsedResourceCacheMaxBytes());
+		myDaoConfig.setResourceEncoding(new DaoConfig().getResourceEncoding());
 	}
 
 	@Before
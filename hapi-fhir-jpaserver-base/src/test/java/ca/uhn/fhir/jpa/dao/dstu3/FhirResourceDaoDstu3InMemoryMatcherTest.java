@@ -0,0 +1,269 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.ImmunizationRecommendation;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Period;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Subscription;
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.InMemoryResourceMatcher;
+import ca.uhn.fhir.jpa.dao.InMemoryResourceMatcher.IndexedResource;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.interceptor.RestHookSubscriptionDstu3Interceptor;
+import ca.uhn.fhir.jpa.subscription.IRestHookDeliverySvc;
+import ca.uhn.fhir.util.TestUtil;
+
+public class FhirResourceDaoDstu3InMemoryMatcherTest extends BaseJpaDstu3Test {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3InMemoryMatcherTest.class);
+
+	@Autowired
+	private InMemoryResourceMatcher myInMemoryResourceMatcher;
+
+	@Autowired
+	private IRestHookDeliverySvc myRestHookDeliverySvc;
+
+	private void assertMatchesSameAsSearch(String theCriteria, IBaseResource... theResources) {
+		String resourceName = theCriteria.substring(0, theCriteria.indexOf('?'));
+		SearchParameterMap criteria = translate(theCriteria);
+		assertTrue(theCriteria, myInMemoryResourceMatcher.canMatch(resourceName, criteria));
+
+		for (IBaseResource next : theResources) {
+			if (!resourceName.equals(myFhirCtx.getResourceDefinition(next).getName())) {
+				continue;
+			}
+			IndexedResource indexed = myInMemoryResourceMatcher.index(resourceName, next);
+			boolean inMemory = myInMemoryResourceMatcher.match(resourceName, criteria, indexed);
+			boolean searched = search(theCriteria, next.getIdElement());
+			assertEquals(theCriteria + " against " + next.getIdElement().toUnqualifiedVersionless().getValue(), searched, inMemory);
+		}
+	}
+
+	private Subscription createSubscription(String theCriteria) {
+		Subscription subscription = new Subscription();
+		subscription.setStatus(Subscription.SubscriptionStatus.ACTIVE);
+		subscription.setCriteria(theCriteria);
+		subscription.getChannel().setType(Subscription.SubscriptionChannelType.RESTHOOK);
+		subscription.getChannel().setPayload("application/fhir+json");
+		subscription.getChannel().setEndpoint("http://localhost:1/fhir");
+		subscription.setId(mySubscriptionDao.create(subscription, mySrd).getId());
+		return subscription;
+	}
+
+	private boolean search(String theCriteria, IIdType theId) {
+		String criteria = theCriteria + "&_id=" + theId.getIdPart();
+		RuntimeResourceDefinition resourceDef = mySubscriptionDao.validateCriteriaAndReturnResourceDefinition(criteria);
+		SearchParameterMap map = BaseHapiFhirDao.translateMatchUrl(mySubscriptionDao, myFhirCtx, criteria, resourceDef);
+		map.setLoadSynchronous(true);
+		IFhirResourceDao<? extends IBaseResource> dao = mySubscriptionDao.getDao(resourceDef.getImplementingClass());
+		return dao.search(map).size() > 0;
+	}
+
+	private SearchParameterMap translate(String theCriteria) {
+		RuntimeResourceDefinition resourceDef = mySubscriptionDao.validateCriteriaAndReturnResourceDefinition(theCriteria);
+		return BaseHapiFhirDao.translateMatchUrl(mySubscriptionDao, myFhirCtx, theCriteria, resourceDef);
+	}
+
+	@Test
+	public void testCanNotMatchUnsupportedCriteria() {
+		String[] criteria = {
+			"Observation?subject.family=smith",
+			"Patient?_has:Observation:subject:status=final",
+			"Patient?family:missing=true",
+			"Patient?family:contains=mit",
+			"Patient?family=smi_h",
+			"Patient?_tag=http://tags|foo",
+			"Patient?_lastUpdated=gt2010-01-01",
+			"Observation?code:text=blood",
+			"Observation?code:in=http://example.com/vs",
+			"Observation?subject=http://example.com/fhir/Patient/123",
+			"Observation?date=ap2017-01-01",
+			"ValueSet?url:below=http://example.com"
+		};
+		for (String next : criteria) {
+			String resourceName = next.substring(0, next.indexOf('?'));
+			assertFalse(next, myInMemoryResourceMatcher.canMatch(resourceName, translate(next)));
+		}
+	}
+
+	@Test
+	public void testMatchesSameAsSearch() {
+		Patient p1 = new Patient();
+		p1.addName().setFamily("Smith").addGiven("John");
+		p1.addIdentifier().setSystem("http://ids").setValue("ID1");
+		p1.setGender(AdministrativeGender.MALE);
+		p1.setBirthDateElement(new DateType("1980-05-15"));
+		p1.setActive(true);
+		p1.setId(myPatientDao.create(p1, mySrd).getId());
+
+		Patient p2 = new Patient();
+		p2.setId("Patient/PT2");
+		p2.addName().setFamily("Smithers").addGiven("Jane");
+		p2.addIdentifier().setValue("ID2");
+		p2.setGender(AdministrativeGender.FEMALE);
+		p2.setBirthDateElement(new DateType("1990-01-01"));
+		p2.setId(myPatientDao.update(p2, mySrd).getId());
+
+		Observation o1 = new Observation();
+		o1.setStatus(ObservationStatus.FINAL);
+		o1.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+		o1.setSubject(new Reference(p1.getIdElement().toUnqualifiedVersionless()));
+		o1.setValue(new Quantity().setValue(120).setSystem("http://unitsofmeasure.org").setCode("mm[Hg]"));
+		o1.setEffective(new DateTimeType("2017-03-01T10:00:00Z"));
+		o1.setId(myObservationDao.create(o1, mySrd).getId());
+
+		Observation o2 = new Observation();
+		o2.setStatus(ObservationStatus.PRELIMINARY);
+		CodeableConcept code = o2.getCode();
+		code.addCoding().setSystem("http://loinc.org").setCode("9999-9");
+		code.addCoding().setSystem("http://other").setCode("X");
+		o2.setSubject(new Reference("Patient/PT2"));
+		o2.setValue(new Quantity().setValue(80.5).setSystem("http://unitsofmeasure.org").setCode("mm[Hg]"));
+		o2.setEffective(new Period().setStartElement(new DateTimeType("2017-01-01")).setEndElement(new DateTimeType("2017-02-01")));
+		o2.setId(myObservationDao.create(o2, mySrd).getId());
+
+		ImmunizationRecommendation r1 = new ImmunizationRecommendation();
+		r1.addRecommendation().setDoseNumber(2);
+		r1.setId(myImmunizationRecommendationDao.create(r1, mySrd).getId());
+
+		ValueSet vs1 = new ValueSet();
+		vs1.setUrl("http://example.com/vs");
+		vs1.setId(myValueSetDao.create(vs1, mySrd).getId());
+
+		IBaseResource[] resources = { p1, p2, o1, o2, r1, vs1 };
+		String p1Id = p1.getIdElement().getIdPart();
+
+		List<String> criteria = new ArrayList<String>();
+		criteria.add("Patient?family=smith");
+		criteria.add("Patient?family=SMITHERS");
+		criteria.add("Patient?family:exact=Smith");
+		criteria.add("Patient?family:exact=smith");
+		criteria.add("Patient?name=john");
+		criteria.add("Patient?gender=male");
+		criteria.add("Patient?gender=http://hl7.org/fhir/administrative-gender|female");
+		criteria.add("Patient?gender=male,female");
+		criteria.add("Patient?family=smith&gender=female");
+		criteria.add("Patient?birthdate=1980-05-15");
+		criteria.add("Patient?birthdate=1980");
+		criteria.add("Patient?birthdate=gt1985-01-01");
+		criteria.add("Patient?birthdate=le1980-05-15");
+		criteria.add("Patient?birthdate=ge1980-01-01&birthdate=lt1985-01-01");
+		criteria.add("Patient?identifier=http://ids|ID1");
+		criteria.add("Patient?identifier=ID2");
+		criteria.add("Patient?identifier=|ID2");
+		criteria.add("Patient?identifier=http://ids|");
+		criteria.add("Patient?active=true");
+		criteria.add("Patient?_id=PT2");
+		criteria.add("Patient?_id=" + p1Id);
+		criteria.add("Observation?code=http://loinc.org|1234-5");
+		criteria.add("Observation?code=X");
+		criteria.add("Observation?code=http://other|X,http://loinc.org|1234-5");
+		criteria.add("Observation?code=http://loinc.org|1234-5&status=preliminary");
+		criteria.add("Observation?status=final");
+		criteria.add("Observation?subject=Patient/" + p1Id);
+		criteria.add("Observation?subject=" + p1Id);
+		criteria.add("Observation?subject=Patient/PT2");
+		criteria.add("Observation?subject:Patient=PT2");
+		criteria.add("Observation?patient=Patient/PT2");
+		criteria.add("Observation?value-quantity=120");
+		criteria.add("Observation?value-quantity=gt100");
+		criteria.add("Observation?value-quantity=lt100");
+		criteria.add("Observation?value-quantity=80.5|http://unitsofmeasure.org|mm[Hg]");
+		criteria.add("Observation?value-quantity=80.5|http://other|mm[Hg]");
+		criteria.add("Observation?value-quantity=ne120");
+		criteria.add("Observation?value-quantity=ap85");
+		criteria.add("Observation?date=2017-03-01");
+		criteria.add("Observation?date=2017-01-15");
+		criteria.add("Observation?date=gt2017-02-15");
+		criteria.add("Observation?date=sa2017-01-10");
+		criteria.add("Observation?date=eb2017-02-15");
+		criteria.add("Observation");
+		criteria.add("ImmunizationRecommendation?dose-number=2");
+		criteria.add("ImmunizationRecommendation?dose-number=gt2");
+		criteria.add("ImmunizationRecommendation?dose-number=le2");
+		criteria.add("ValueSet?url=http://example.com/vs");
+		criteria.add("ValueSet?url=http://example.com/other");
+
+		for (String next : criteria) {
+			if (!next.contains("?")) {
+				next = next + "?";
+			}
+			assertMatchesSameAsSearch(next, resources);
+		}
+	}
+
+	/**
+	 * Each write used to run a search for every rest-hook subscription
+	 */
+	@Test
+	public void testRestHookWriteLatencyWithManySubscriptions() {
+		RestHookSubscriptionDstu3Interceptor interceptor = new RestHookSubscriptionDstu3Interceptor();
+		interceptor.setFhirContext(myFhirCtx);
+		interceptor.setSubscriptionDao(mySubscriptionDao);
+		interceptor.setResourceMatcher(myInMemoryResourceMatcher);
+		interceptor.setDeliverySvc(myRestHookDeliverySvc);
+		myDaoConfig.setInterceptors(myInterceptor, interceptor);
+
+		int subscriptionCount = 1000;
+		for (int i = 0; i < subscriptionCount; i++) {
+			if (i % 10 == 0) {
+				createSubscription("Observation?subject=Patient/LATENCY" + i);
+			} else {
+				createSubscription("Observation?code=http://loinc.org|LATENCY" + i + "&status=final");
+			}
+		}
+
+		int inMemoryWrites = 50;
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < inMemoryWrites; i++) {
+			Observation obs = new Observation();
+			obs.setStatus(ObservationStatus.FINAL);
+			obs.getCode().addCoding().setSystem("http://loinc.org").setCode("NOMATCH" + i);
+			myObservationDao.create(obs, mySrd);
+		}
+		long inMemoryMillis = (System.currentTimeMillis() - start) / inMemoryWrites;
+
+		interceptor.setResourceMatcher(null);
+		int searchWrites = 5;
+		start = System.currentTimeMillis();
+		for (int i = 0; i < searchWrites; i++) {
+			Observation obs = new Observation();
+			obs.setStatus(ObservationStatus.FINAL);
+			obs.getCode().addCoding().setSystem("http://loinc.org").setCode("NOMATCH" + i);
+			myObservationDao.create(obs, mySrd);
+		}
+		long searchMillis = (System.currentTimeMillis() - start) / searchWrites;
+
+		ourLog.info("With {} subscriptions, each write took {}ms matching in memory and {}ms searching", new Object[] { subscriptionCount, inMemoryMillis, searchMillis });
+		assertTrue(inMemoryMillis < searchMillis);
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -0,0 +1,90 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.util.TestUtil;
+
+public class FhirResourceDaoDstu3LoadResourcesTest extends BaseJpaDstu3Test {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3LoadResourcesTest.class);
+	private Statistics myStatistics;
+
+	@After
+	public void afterDisableStatistics() {
+		myStatistics.setStatisticsEnabled(false);
+	}
+
+	@Before
+	public void beforeEnableStatistics() {
+		myStatistics = myEntityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+		myStatistics.setStatisticsEnabled(true);
+	}
+
+	/**
+	 * Loading a page of resources should take a fixed number of queries, not
+	 * several for each resource on the page
+	 */
+	@Test
+	public void testLoadPageWithTagsAndForcedIds() {
+		int count = 500;
+		for (int i = 0; i < count; i++) {
+			Patient p = new Patient();
+			p.addName().setFamily("LOADPAGE").addGiven("Given" + i);
+			p.getMeta().addTag("http://tags", "tag" + (i % 5), null);
+			if (i % 2 == 0) {
+				p.setId("LOADPAGE" + i);
+				myPatientDao.update(p, mySrd);
+			} else {
+				myPatientDao.create(p, mySrd);
+			}
+		}
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Patient.SP_FAMILY, new StringParam("LOADPAGE"));
+		map.setCount(count);
+		IBundleProvider results = myPatientDao.search(map);
+
+		for (int pass = 0; pass < 3; pass++) {
+			myStatistics.clear();
+			long start = System.currentTimeMillis();
+			List<IBaseResource> resources = results.getResources(0, count);
+			long millis = System.currentTimeMillis() - start;
+			long statements = myStatistics.getPrepareStatementCount();
+			ourLog.info("Loaded page of {} resources in {}ms using {} statements", new Object[] { resources.size(), millis, statements });
+
+			assertEquals(count, resources.size());
+			// Includes any statements from the search itself, which runs in the background
+			assertThat(statements, lessThan(50L));
+			for (IBaseResource next : resources) {
+				Patient patient = (Patient) next;
+				assertEquals("LOADPAGE", patient.getName().get(0).getFamily());
+				assertEquals(1, patient.getMeta().getTag().size());
+				if (patient.getName().get(0).getGiven().get(0).getValue().matches("Given[0-9]*[02468]")) {
+					assertEquals("LOADPAGE" + patient.getName().get(0).getGiven().get(0).getValue().substring(5), patient.getIdElement().getIdPart());
+				}
+			}
+		}
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -0,0 +1,191 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.dao.ParsedResourceCache;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.util.TestUtil;
+
+public class FhirResourceDaoDstu3ParsedResourceCacheTest extends BaseJpaDstu3Test {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3ParsedResourceCacheTest.class);
+
+	@Autowired
+	private ParsedResourceCache myParsedResourceCache;
+
+	@Before
+	public void beforeEnableCache() {
+		myDaoConfig.setParsedResourceCacheMaxBytes(10 * 1024 * 1024);
+	}
+
+	private IIdType createPatient(String theFamily) {
+		Patient patient = new Patient();
+		patient.addName().setFamily(theFamily);
+		return myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+	}
+
+	@Test
+	public void testCacheDisabled() {
+		myDaoConfig.setParsedResourceCacheMaxBytes(0);
+		IIdType id = createPatient("Simpson");
+
+		long hits = myParsedResourceCache.getHitCount();
+		long misses = myParsedResourceCache.getMissCount();
+		myPatientDao.read(id, mySrd);
+		myPatientDao.read(id, mySrd);
+
+		assertEquals(hits, myParsedResourceCache.getHitCount());
+		assertEquals(misses, myParsedResourceCache.getMissCount());
+	}
+
+	@Test
+	public void testReadReturnsCopies() {
+		IIdType id = createPatient("Simpson");
+
+		Patient p1 = myPatientDao.read(id, mySrd);
+		long hits = myParsedResourceCache.getHitCount();
+		p1.getName().get(0).setFamily("Flanders");
+
+		Patient p2 = myPatientDao.read(id, mySrd);
+		assertEquals(hits + 1, myParsedResourceCache.getHitCount());
+		assertNotSame(p1, p2);
+		assertEquals("Simpson", p2.getName().get(0).getFamily());
+		assertEquals(id.getValue(), p2.getIdElement().toUnqualifiedVersionless().getValue());
+		assertEquals("1", p2.getIdElement().getVersionIdPart());
+	}
+
+	@Test
+	public void testReadContainedResource() {
+		Organization org = new Organization();
+		org.setId("#org");
+		org.setName("Springfield Nuclear");
+		Patient patient = new Patient();
+		patient.getContained().add(org);
+		patient.setManagingOrganization(new Reference("#org"));
+		IIdType id = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+
+		String expected = myFhirCtx.newJsonParser().encodeResourceToString(myPatientDao.read(id, mySrd));
+		long hits = myParsedResourceCache.getHitCount();
+		String actual = myFhirCtx.newJsonParser().encodeResourceToString(myPatientDao.read(id, mySrd));
+
+		assertEquals(hits + 1, myParsedResourceCache.getHitCount());
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testUpdateAndHistory() {
+		IIdType id = createPatient("Simpson");
+		Patient p = myPatientDao.read(id, mySrd);
+		p.getName().get(0).setFamily("Flanders");
+		IIdType id2 = myPatientDao.update(p, mySrd).getId().toUnqualified();
+
+		assertEquals("Flanders", myPatientDao.read(id, mySrd).getName().get(0).getFamily());
+		assertEquals("Simpson", myPatientDao.read(id.withVersion("1"), mySrd).getName().get(0).getFamily());
+		assertEquals("Flanders", myPatientDao.read(id2, mySrd).getName().get(0).getFamily());
+		assertEquals("Flanders", myPatientDao.read(id, mySrd).getName().get(0).getFamily());
+		assertEquals("Simpson", myPatientDao.read(id.withVersion("1"), mySrd).getName().get(0).getFamily());
+
+		myPatientDao.delete(id, mySrd);
+		try {
+			myPatientDao.read(id, mySrd);
+			fail();
+		} catch (ResourceGoneException e) {
+			// good
+		}
+	}
+
+	/**
+	 * A version which was read inside a transaction that rolled back must not be
+	 * returned when the same version number is used by a later update
+	 */
+	@Test
+	public void testUpdateRolledBack() {
+		final IIdType id = createPatient("Simpson");
+		myPatientDao.read(id, mySrd);
+
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				Patient p = myPatientDao.read(id, mySrd);
+				p.getName().get(0).setFamily("RolledBack");
+				myPatientDao.update(p, mySrd);
+				assertEquals("RolledBack", myPatientDao.read(id, mySrd).getName().get(0).getFamily());
+				theStatus.setRollbackOnly();
+			}
+		});
+
+		assertEquals("Simpson", myPatientDao.read(id, mySrd).getName().get(0).getFamily());
+
+		Patient p = myPatientDao.read(id, mySrd);
+		p.getName().get(0).setFamily("Flanders");
+		assertEquals("2", myPatientDao.update(p, mySrd).getId().getVersionIdPart());
+		assertEquals("Flanders", myPatientDao.read(id, mySrd).getName().get(0).getFamily());
+	}
+
+	/**
+	 * Entries are weighed by their parsed size, which for a resource with lots of
+	 * repetition is far bigger than its compressed stored size
+	 */
+	@Test
+	public void testLargeParsedResourceNotCached() {
+		Observation obs = new Observation();
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+		for (int i = 0; i < 200; i++) {
+			obs.addComponent().getCode().setText("Component " + i);
+		}
+		IIdType id = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+
+		myDaoConfig.setParsedResourceCacheMaxBytes(20 * 1024);
+		myObservationDao.read(id, mySrd);
+		long hits = myParsedResourceCache.getHitCount();
+		myObservationDao.read(id, mySrd);
+		assertEquals(hits, myParsedResourceCache.getHitCount());
+
+		myDaoConfig.setParsedResourceCacheMaxBytes(10 * 1024 * 1024);
+		myObservationDao.read(id, mySrd);
+		myObservationDao.read(id, mySrd);
+		assertEquals(hits + 1, myParsedResourceCache.getHitCount());
+	}
+
+	@Test
+	public void testReadPerformance() {
+		Observation obs = new Observation();
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+		for (int i = 0; i < 200; i++) {
+			obs.addComponent().getCode().setText("Component " + i);
+		}
+		IIdType id = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+
+		for (long nextMaxBytes : new long[] { 0, 10 * 1024 * 1024 }) {
+			myDaoConfig.setParsedResourceCacheMaxBytes(nextMaxBytes);
+			myObservationDao.read(id, mySrd);
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < 500; i++) {
+				myObservationDao.read(id, mySrd);
+			}
+			ourLog.info("Read resource 500 times in {}ms with cache size {}", System.currentTimeMillis() - start, nextMaxBytes);
+		}
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
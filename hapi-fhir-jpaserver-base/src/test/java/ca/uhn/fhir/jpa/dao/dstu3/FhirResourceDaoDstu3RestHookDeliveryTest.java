@@ -0,0 +1,479 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
+import org.hl7.fhir.dstu3.model.Subscription;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.data.ISubscriptionDeliveryDao;
+import ca.uhn.fhir.jpa.entity.SubscriptionDelivery;
+import ca.uhn.fhir.jpa.entity.SubscriptionDeliveryStatusEnum;
+import ca.uhn.fhir.jpa.interceptor.RestHookSubscriptionDstu3Interceptor;
+import ca.uhn.fhir.jpa.subscription.IRestHookDeliverySvc;
+import ca.uhn.fhir.jpa.testutil.RandomServerPortProvider;
+import ca.uhn.fhir.rest.server.Constants;
+import ca.uhn.fhir.util.TestUtil;
+
+/**
+ * Sends rest-hook notifications to stub endpoints which can be made slow or
+ * made to fail
+ */
+public class FhirResourceDaoDstu3RestHookDeliveryTest extends BaseJpaDstu3Test {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3RestHookDeliveryTest.class);
+	private static final ConcurrentHashMap<String, AtomicInteger> ourConcurrent = new ConcurrentHashMap<String, AtomicInteger>();
+	private static final ConcurrentHashMap<String, AtomicInteger> ourFailuresRemaining = new ConcurrentHashMap<String, AtomicInteger>();
+	private static final ConcurrentHashMap<String, Long> ourLatency = new ConcurrentHashMap<String, Long>();
+	private static final ConcurrentHashMap<String, AtomicInteger> ourMaxConcurrent = new ConcurrentHashMap<String, AtomicInteger>();
+	private static final List<StubRequest> ourRequests = new ArrayList<StubRequest>();
+	private static Server ourServer;
+	private static String ourServerBase;
+
+	@Autowired
+	private ISubscriptionDeliveryDao myDeliveryDao;
+
+	@Autowired
+	private IRestHookDeliverySvc myRestHookDeliverySvc;
+
+	@Autowired
+	private PlatformTransactionManager myTxManager;
+
+	@After
+	public void after() {
+		waitForQueueDepth(0);
+		myDeliveryDao.deleteAll();
+		myDaoConfig.setRestHookDeliveryBatchSize(new DaoConfig().getRestHookDeliveryBatchSize());
+		myDaoConfig.setRestHookDeliveryMaxAttempts(new DaoConfig().getRestHookDeliveryMaxAttempts());
+		myDaoConfig.setRestHookDeliveryMaxConcurrentPerEndpoint(new DaoConfig().getRestHookDeliveryMaxConcurrentPerEndpoint());
+		myDaoConfig.setRestHookDeliveryMaxRetryDelayMillis(new DaoConfig().getRestHookDeliveryMaxRetryDelayMillis());
+		myDaoConfig.setRestHookDeliveryRetryDelayMillis(new DaoConfig().getRestHookDeliveryRetryDelayMillis());
+	}
+
+	@Before
+	public void before() {
+		myDeliveryDao.deleteAll();
+		synchronized (ourRequests) {
+			ourRequests.clear();
+		}
+		ourConcurrent.clear();
+		ourFailuresRemaining.clear();
+		ourLatency.clear();
+		ourMaxConcurrent.clear();
+
+		myDaoConfig.setRestHookDeliveryRetryDelayMillis(100);
+		myDaoConfig.setRestHookDeliveryMaxRetryDelayMillis(400);
+
+		RestHookSubscriptionDstu3Interceptor interceptor = new RestHookSubscriptionDstu3Interceptor();
+		interceptor.setFhirContext(myFhirCtx);
+		interceptor.setSubscriptionDao(mySubscriptionDao);
+		interceptor.setDeliverySvc(myRestHookDeliverySvc);
+		myDaoConfig.setInterceptors(myInterceptor, interceptor);
+	}
+
+	private void createObservation(String theCode) {
+		Observation obs = new Observation();
+		obs.setStatus(ObservationStatus.FINAL);
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode(theCode);
+		myObservationDao.create(obs, mySrd);
+	}
+
+	private void createSubscription(String theCode, String theEndpoint) {
+		Subscription subscription = new Subscription();
+		subscription.setStatus(Subscription.SubscriptionStatus.ACTIVE);
+		subscription.setCriteria("Observation?code=http://loinc.org|" + theCode);
+		subscription.getChannel().setType(Subscription.SubscriptionChannelType.RESTHOOK);
+		subscription.getChannel().setPayload(Constants.CT_FHIR_JSON_NEW);
+		subscription.getChannel().setEndpoint(ourServerBase + "/" + theEndpoint);
+		mySubscriptionDao.create(subscription, mySrd);
+	}
+
+	private List<StubRequest> getRequests(String theEndpoint) {
+		List<StubRequest> retVal = new ArrayList<StubRequest>();
+		synchronized (ourRequests) {
+			for (StubRequest next : ourRequests) {
+				if (next.myEndpoint.equals(theEndpoint)) {
+					retVal.add(next);
+				}
+			}
+		}
+		return retVal;
+	}
+
+	@Test
+	public void testDeliverNotification() {
+		long delivered = myRestHookDeliverySvc.getDeliveredCount();
+		createSubscription("OK", "ok");
+
+		createObservation("OK");
+		createObservation("OTHER");
+
+		waitForRequests("ok", 1);
+		waitForQueueDepth(0);
+		StubRequest request = getRequests("ok").get(0);
+		assertEquals("POST", request.myMethod);
+		assertEquals("/ok/Observation", request.myPath);
+		assertEquals(Constants.CT_FHIR_JSON_NEW, request.myContentType);
+		assertTrue(request.myBody, request.myBody.contains("\"OK\""));
+		assertEquals(delivered + 1, myRestHookDeliverySvc.getDeliveredCount());
+		assertEquals(0, myDeliveryDao.count());
+	}
+
+	/**
+	 * Subscriptions created before the interceptor was, e.g. before a restart,
+	 * are loaded from the database
+	 */
+	@Test
+	public void testDeliverForSubscriptionLoadedFromDatabase() {
+		myDaoConfig.setInterceptors(myInterceptor);
+		createSubscription("LOADED", "ok");
+
+		RestHookSubscriptionDstu3Interceptor interceptor = new RestHookSubscriptionDstu3Interceptor();
+		interceptor.setFhirContext(myFhirCtx);
+		interceptor.setSubscriptionDao(mySubscriptionDao);
+		interceptor.setDeliverySvc(myRestHookDeliverySvc);
+		interceptor.initSubscriptions();
+		myDaoConfig.setInterceptors(myInterceptor, interceptor);
+
+		createObservation("LOADED");
+
+		waitForRequests("ok", 1);
+		assertTrue(getRequests("ok").get(0).myBody.contains("\"LOADED\""));
+	}
+
+	@Test
+	public void testDeliverInOrderToEachEndpoint() {
+		myDaoConfig.setRestHookDeliveryMaxConcurrentPerEndpoint(1);
+		myDaoConfig.setRestHookDeliveryBatchSize(3);
+		createSubscription("ORDER", "ok");
+
+		for (int i = 0; i < 10; i++) {
+			Observation obs = new Observation();
+			obs.setStatus(ObservationStatus.FINAL);
+			obs.getCode().addCoding().setSystem("http://loinc.org").setCode("ORDER");
+			obs.setComment("ORDER" + i);
+			myObservationDao.create(obs, mySrd);
+		}
+
+		waitForRequests("ok", 10);
+		List<StubRequest> requests = getRequests("ok");
+		for (int i = 0; i < 10; i++) {
+			assertTrue(requests.get(i).myBody, requests.get(i).myBody.contains("\"ORDER" + i + "\""));
+		}
+		assertEquals(1, ourMaxConcurrent.get("ok").get());
+	}
+
+	/**
+	 * A notification queued while an earlier one for the same endpoint is waiting
+	 * for a retry must not overtake it
+	 */
+	@Test
+	public void testDeliverInOrderAfterFailure() {
+		myDaoConfig.setRestHookDeliveryRetryDelayMillis(500);
+		myDaoConfig.setRestHookDeliveryMaxRetryDelayMillis(500);
+		ourFailuresRemaining.put("flaky", new AtomicInteger(2));
+		createSubscription("FLAKY", "flaky");
+
+		Observation obs = new Observation();
+		obs.setStatus(ObservationStatus.FINAL);
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("FLAKY");
+		obs.setComment("FIRST");
+		myObservationDao.create(obs, mySrd);
+		waitForRequests("flaky", 1);
+
+		obs.setComment("SECOND");
+		myObservationDao.create(obs, mySrd);
+
+		waitForRequests("flaky", 4);
+		waitForQueueDepth(0);
+		List<StubRequest> requests = getRequests("flaky");
+		assertEquals(4, requests.size());
+		for (int i = 0; i < 3; i++) {
+			assertTrue(requests.get(i).myBody, requests.get(i).myBody.contains("\"FIRST\""));
+		}
+		assertTrue(requests.get(3).myBody, requests.get(3).myBody.contains("\"SECOND\""));
+	}
+
+	@Test
+	public void testAbandonAfterMaxAttempts() {
+		long abandoned = myRestHookDeliverySvc.getAbandonedCount();
+		myDaoConfig.setRestHookDeliveryMaxAttempts(3);
+		ourFailuresRemaining.put("down", new AtomicInteger(Integer.MAX_VALUE));
+		createSubscription("DOWN", "down");
+
+		createObservation("DOWN");
+
+		waitForQueueDepth(0);
+		assertEquals(3, getRequests("down").size());
+		assertEquals(abandoned + 1, myRestHookDeliverySvc.getAbandonedCount());
+
+		List<SubscriptionDelivery> deliveries = myDeliveryDao.findAll();
+		assertEquals(1, deliveries.size());
+		assertEquals(SubscriptionDeliveryStatusEnum.FAILED, deliveries.get(0).getStatus());
+		assertEquals(3, deliveries.get(0).getAttempts());
+		assertTrue(deliveries.get(0).getLastError(), deliveries.get(0).getLastError().contains("503"));
+	}
+
+	@Test
+	public void testPendingDeliveryIsSentWhenPolled() throws Exception {
+		// As left behind by a server which stopped before sending it
+		SubscriptionDelivery delivery = new SubscriptionDelivery();
+		delivery.setSubscriptionId("Subscription/1");
+		delivery.setEndpoint(ourServerBase + "/ok");
+		delivery.setMethod("POST");
+		delivery.setUrl(ourServerBase + "/ok/Observation");
+		delivery.setContentType(Constants.CT_FHIR_JSON_NEW);
+		delivery.setBody("{\"resourceType\":\"Observation\"}".getBytes(Constants.CHARSET_NAME_UTF8));
+		delivery.setStatus(SubscriptionDeliveryStatusEnum.PENDING);
+		delivery.setCreated(new Date());
+		delivery.setNextAttempt(new Date());
+		myDeliveryDao.save(delivery);
+
+		Thread.sleep(500);
+		assertEquals(0, getRequests("ok").size());
+		assertEquals(1, myRestHookDeliverySvc.getQueueDepth());
+
+		myRestHookDeliverySvc.pollForDeliveries();
+		waitForRequests("ok", 1);
+		waitForQueueDepth(0);
+		assertEquals("{\"resourceType\":\"Observation\"}", getRequests("ok").get(0).myBody);
+	}
+
+	@Test
+	public void testRetryWithBackoffUntilDelivered() {
+		long failed = myRestHookDeliverySvc.getFailedAttemptCount();
+		ourFailuresRemaining.put("flaky", new AtomicInteger(3));
+		createSubscription("FLAKY", "flaky");
+
+		createObservation("FLAKY");
+
+		waitForRequests("flaky", 4);
+		waitForQueueDepth(0);
+		List<StubRequest> requests = getRequests("flaky");
+		assertEquals(4, requests.size());
+		assertEquals(failed + 3, myRestHookDeliverySvc.getFailedAttemptCount());
+
+		// Retried after 100ms, then 200ms, then 400ms
+		for (int i = 1; i < requests.size(); i++) {
+			long gap = requests.get(i).myTime - requests.get(i - 1).myTime;
+			long expected = 100L << (i - 1);
+			ourLog.info("Retry {} came after {}ms", i, gap);
+			assertTrue("Retry " + i + " came after " + gap + "ms", gap >= expected - 20);
+		}
+	}
+
+	@Test
+	public void testRolledBackNotificationIsNotSent() throws Exception {
+		TransactionTemplate tt = new TransactionTemplate(myTxManager);
+		tt.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				HttpPost post = new HttpPost(ourServerBase + "/ok/Observation");
+				post.setEntity(new StringEntity("{}", ContentType.APPLICATION_JSON));
+				myRestHookDeliverySvc.queue("Subscription/1", ourServerBase + "/ok", post);
+				theStatus.setRollbackOnly();
+			}
+		});
+
+		myRestHookDeliverySvc.pollForDeliveries();
+		Thread.sleep(500);
+		assertEquals(0, getRequests("ok").size());
+		assertEquals(0, myDeliveryDao.count());
+	}
+
+	/**
+	 * A subscription is only used once the transaction which created it commits
+	 */
+	@Test
+	public void testRolledBackSubscriptionIsNotUsed() {
+		TransactionTemplate tt = new TransactionTemplate(myTxManager);
+		tt.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				createSubscription("ROLLEDBACK", "rolledback");
+				theStatus.setRollbackOnly();
+			}
+		});
+		createSubscription("OK", "ok");
+
+		createObservation("ROLLEDBACK");
+		createObservation("OK");
+
+		waitForRequests("ok", 1);
+		waitForQueueDepth(0);
+		assertEquals(0, getRequests("rolledback").size());
+	}
+
+	@Test
+	public void testSlowEndpointDoesNotHoldUpOthers() {
+		myDaoConfig.setRestHookDeliveryBatchSize(1);
+		ourLatency.put("slow", 1000L);
+		createSubscription("SLOW", "slow");
+		createSubscription("SLOW", "ok");
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 6; i++) {
+			createObservation("SLOW");
+		}
+
+		waitForRequests("ok", 6);
+		long fastMillis = System.currentTimeMillis() - start;
+		int slowReceived = getRequests("slow").size();
+		ourLog.info("Fast endpoint received all notifications after {}ms, slow endpoint had received {}", fastMillis, slowReceived);
+		assertTrue("Slow endpoint received " + slowReceived, slowReceived < 6);
+
+		waitForRequests("slow", 6);
+		waitForQueueDepth(0);
+		assertEquals(myDaoConfig.getRestHookDeliveryMaxConcurrentPerEndpoint(), ourMaxConcurrent.get("slow").get());
+		assertTrue(myRestHookDeliverySvc.getMaxLatencyMillis() >= 1000);
+		assertTrue(myRestHookDeliverySvc.getAverageLatencyMillis() > 0);
+	}
+
+	private void waitForQueueDepth(long theDepth) {
+		long depth = 0;
+		for (int i = 0; i < 200; i++) {
+			depth = myRestHookDeliverySvc.getQueueDepth();
+			if (depth == theDepth && myRestHookDeliverySvc.getInFlightCount() == 0) {
+				return;
+			}
+			sleep();
+		}
+		fail("Queue depth is " + depth + ", expected " + theDepth);
+	}
+
+	private void waitForRequests(String theEndpoint, int theCount) {
+		for (int i = 0; i < 200; i++) {
+			if (getRequests(theEndpoint).size() >= theCount) {
+				return;
+			}
+			sleep();
+		}
+		fail(theEndpoint + " received " + getRequests(theEndpoint).size() + " requests, expected " + theCount);
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() throws Exception {
+		ourServer.stop();
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+	@BeforeClass
+	public static void beforeClassStartStubServer() throws Exception {
+		int port = RandomServerPortProvider.findFreePort();
+		ourServer = new Server(port);
+		ServletContextHandler handler = new ServletContextHandler();
+		handler.addServlet(new ServletHolder(new StubEndpointServlet()), "/*");
+		ourServer.setHandler(handler);
+		ourServer.start();
+		ourServerBase = "http://localhost:" + port;
+	}
+
+	private static void sleep() {
+		try {
+			Thread.sleep(50);
+		} catch (InterruptedException e) {
+			throw new Error(e);
+		}
+	}
+
+	private static AtomicInteger getCounter(ConcurrentHashMap<String, AtomicInteger> theMap, String theEndpoint) {
+		theMap.putIfAbsent(theEndpoint, new AtomicInteger());
+		return theMap.get(theEndpoint);
+	}
+
+	/**
+	 * The first part of the path is the endpoint name, which decides how slow the
+	 * response is and whether it fails
+	 */
+	private static class StubEndpointServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void service(HttpServletRequest theReq, HttpServletResponse theResp) throws ServletException, IOException {
+			String path = theReq.getPathInfo();
+			String endpoint = path.substring(1, path.indexOf('/', 1));
+
+			AtomicInteger concurrent = getCounter(ourConcurrent, endpoint);
+			int current = concurrent.incrementAndGet();
+			AtomicInteger max = getCounter(ourMaxConcurrent, endpoint);
+			int prevMax;
+			do {
+				prevMax = max.get();
+			} while (current > prevMax && !max.compareAndSet(prevMax, current));
+
+			try {
+				StubRequest request = new StubRequest();
+				request.myEndpoint = endpoint;
+				request.myMethod = theReq.getMethod();
+				request.myPath = path;
+				request.myContentType = theReq.getContentType();
+				request.myBody = IOUtils.toString(theReq.getInputStream(), Constants.CHARSET_UTF8);
+				request.myTime = System.currentTimeMillis();
+
+				Long latency = ourLatency.get(endpoint);
+				if (latency != null) {
+					Thread.sleep(latency);
+				}
+
+				synchronized (ourRequests) {
+					ourRequests.add(request);
+				}
+
+				AtomicInteger failuresRemaining = ourFailuresRemaining.get(endpoint);
+				if (failuresRemaining != null && failuresRemaining.getAndDecrement() > 0) {
+					theResp.setStatus(503);
+				} else {
+					theResp.setStatus(200);
+				}
+			} catch (InterruptedException e) {
+				theResp.setStatus(500);
+			} finally {
+				concurrent.decrementAndGet();
+			}
+		}
+
+	}
+
+	private static class StubRequest {
+		private String myBody;
+		private String myContentType;
+		private String myEndpoint;
+		private String myMethod;
+		private String myPath;
+		private long myTime;
+	}
+
+}
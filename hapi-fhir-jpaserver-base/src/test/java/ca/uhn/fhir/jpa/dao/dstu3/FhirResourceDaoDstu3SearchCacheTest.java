@@ -0,0 +1,176 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.Date;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.search.SearchCoordinatorSvcImpl;
+import ca.uhn.fhir.jpa.search.SearchResultCache;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.util.TestUtil;
+
+public class FhirResourceDaoDstu3SearchCacheTest extends BaseJpaDstu3Test {
+
+	private SearchResultCache myCache;
+
+	@Before
+	public void beforeEnableResultReuse() {
+		myDaoConfig.setReuseCachedSearchResultsForMillis(new DaoConfig().getReuseCachedSearchResultsForMillis());
+		myCache = AopTestUtils.<SearchCoordinatorSvcImpl> getTargetObject(mySearchCoordinatorSvc).getSearchResultCache();
+	}
+
+	/**
+	 * A search created in the same millisecond as a write is treated as
+	 * possibly missing it, so make sure later searches start after the write
+	 */
+	private IIdType createPatient(String theFamily) throws InterruptedException {
+		Patient patient = new Patient();
+		patient.addName().setFamily(theFamily);
+		IIdType retVal = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+		waitForClockToTick();
+		return retVal;
+	}
+
+	private static void waitForClockToTick() throws InterruptedException {
+		long start = System.currentTimeMillis();
+		while (System.currentTimeMillis() == start) {
+			Thread.sleep(1);
+		}
+	}
+
+	private SearchParameterMap newFamilyParams(String theFamily) {
+		SearchParameterMap retVal = new SearchParameterMap();
+		retVal.add(Patient.SP_FAMILY, new StringParam(theFamily));
+		return retVal;
+	}
+
+	private IBundleProvider searchPatients(String theFamily) {
+		IBundleProvider retVal = myPatientDao.search(newFamilyParams(theFamily));
+		retVal.size();
+		return retVal;
+	}
+
+	@Test
+	public void testReuseFromMemory() throws InterruptedException {
+		IIdType id = createPatient("CACHE_MEMORY");
+
+		String uuid1 = searchPatients("CACHE_MEMORY").getUuid();
+		long memoryHits = myCache.getMemoryHitCount();
+		IBundleProvider results2 = searchPatients("CACHE_MEMORY");
+
+		assertEquals(uuid1, results2.getUuid());
+		assertEquals(memoryHits + 1, myCache.getMemoryHitCount());
+		assertThat(toUnqualifiedVersionlessIds(results2), contains(id));
+	}
+
+	@Test
+	public void testReuseFromDatabase() throws InterruptedException {
+		createPatient("CACHE_DATABASE");
+
+		IBundleProvider results1 = searchPatients("CACHE_DATABASE");
+		SearchResultCache.CachedSearch cached = myCache.get(SearchResultCache.createFingerprint("Patient", newFamilyParams("CACHE_DATABASE").toNormalizedQueryString(myFhirCtx)));
+		assertEquals(results1.getUuid(), cached.getUuid());
+		myCache.remove(cached);
+
+		long databaseHits = myCache.getDatabaseHitCount();
+		assertEquals(results1.getUuid(), searchPatients("CACHE_DATABASE").getUuid());
+		assertEquals(databaseHits + 1, myCache.getDatabaseHitCount());
+	}
+
+	@Test
+	public void testWriteToSameTypeInvalidates() throws InterruptedException {
+		IIdType id1 = createPatient("CACHE_SAME");
+		String uuid1 = searchPatients("CACHE_SAME").getUuid();
+
+		long invalidated = myCache.getInvalidatedCount();
+		IIdType id2 = createPatient("CACHE_SAME");
+		IBundleProvider results2 = searchPatients("CACHE_SAME");
+
+		assertNotEquals(uuid1, results2.getUuid());
+		assertEquals(invalidated + 1, myCache.getInvalidatedCount());
+		assertThat(toUnqualifiedVersionlessIds(results2), containsInAnyOrder(id1, id2));
+	}
+
+	@Test
+	public void testWriteToOtherTypeDoesNotInvalidate() throws InterruptedException {
+		createPatient("CACHE_OTHER");
+		String uuid1 = searchPatients("CACHE_OTHER").getUuid();
+
+		Organization org = new Organization();
+		org.setName("CACHE_OTHER");
+		myOrganizationDao.create(org, mySrd);
+
+		assertEquals(uuid1, searchPatients("CACHE_OTHER").getUuid());
+	}
+
+	@Test
+	public void testWriteToOtherTypeInvalidatesChainedSearch() throws InterruptedException {
+		IIdType patientId = createPatient("CACHE_CHAIN");
+		Observation obs = new Observation();
+		obs.getSubject().setReferenceElement(patientId);
+		myObservationDao.create(obs, mySrd);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_SUBJECT, new ReferenceParam("Patient", "family", "CACHE_CHAIN"));
+		String uuid1 = myObservationDao.search(params).getUuid();
+
+		Organization org = new Organization();
+		org.setName("CACHE_CHAIN");
+		myOrganizationDao.create(org, mySrd);
+
+		assertNotEquals(uuid1, myObservationDao.search(params).getUuid());
+	}
+
+	/**
+	 * A write made by another server doesn't update this server's last write
+	 * times, so is found by checking the resource table. The write is simulated
+	 * by touching the row directly, with the current time rather than one in the
+	 * future so that searches made by later tests are not invalidated too.
+	 */
+	@Test
+	public void testWriteOnOtherServerInvalidates() throws InterruptedException {
+		final IIdType id = createPatient("CACHE_REMOTE");
+		String uuid1 = searchPatients("CACHE_REMOTE").getUuid();
+		waitForClockToTick();
+
+		new TransactionTemplate(myTxManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				ResourceTable entity = myResourceTableDao.findOne(id.getIdPartAsLong());
+				entity.setUpdated(new Date());
+				myResourceTableDao.save(entity);
+			}
+		});
+
+		long invalidated = myCache.getInvalidatedCount();
+		assertNotEquals(uuid1, searchPatients("CACHE_REMOTE").getUuid());
+		assertEquals(invalidated + 1, myCache.getInvalidatedCount());
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -0,0 +1,235 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.IDao;
+import ca.uhn.fhir.jpa.dao.ISearchBuilder;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchResult;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.util.TestUtil;
+
+/**
+ * Reads a large synthetic search through the streaming (cursor) and the
+ * list based result paths of the search builder and logs how long each
+ * takes to return its first and last match, and how long a search takes
+ * to load and save all of its results. The number of resources can be
+ * raised with <code>-Dhapi.test.streaming.size=1000000</code> when
+ * benchmarking.
+ */
+public class FhirResourceDaoDstu3SearchStreamingTest extends BaseJpaDstu3Test {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3SearchStreamingTest.class);
+	private static final int NUM_RESOURCES = Integer.getInteger("hapi.test.streaming.size", 5000);
+
+	@Autowired
+	private ISearchResultDao mySearchResultDao;
+
+	@After
+	public void afterResetFetchSize() {
+		myDaoConfig.setSearchFetchSize(DaoConfig.DEFAULT_SEARCH_FETCH_SIZE);
+	}
+
+	/**
+	 * Inserts the resource table rows directly, since indexing is not needed
+	 * to match a search with no parameters
+	 */
+	private void createSyntheticPatients(final int theCount) {
+		StopWatch sw = new StopWatch();
+		final byte[] contents = myFhirCtx.newJsonParser().encodeResourceToString(new Patient().setActive(true)).getBytes();
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		for (int start = 0; start < theCount; start += 1000) {
+			final int count = Math.min(1000, theCount - start);
+			txTemplate.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					Date now = new Date();
+					for (int i = 0; i < count; i++) {
+						ResourceTable entity = new ResourceTable();
+						entity.setResourceType("Patient");
+						entity.setVersion(1);
+						entity.setEncoding(ResourceEncodingEnum.JSON);
+						entity.setFhirVersion(FhirVersionEnum.DSTU3);
+						entity.setResource(contents);
+						entity.setPublished(now);
+						entity.setUpdated(now);
+						myEntityManager.persist(entity);
+					}
+					myEntityManager.flush();
+					myEntityManager.clear();
+				}
+			});
+		}
+		ourLog.info("Created {} synthetic patients in {}ms", theCount, sw.getMillis());
+	}
+
+	private ISearchBuilder newSearchBuilder() {
+		ISearchBuilder sb = ((IDao) myPatientDao).newSearchBuilder();
+		sb.setType(Patient.class, "Patient");
+		return sb;
+	}
+
+	/**
+	 * Reads every match, returning the millis to the first match and the
+	 * millis to the last
+	 */
+	private long[] readAll(Iterator<Long> theIter, List<Long> thePids) {
+		StopWatch sw = new StopWatch();
+		long first = -1;
+		while (theIter.hasNext()) {
+			thePids.add(theIter.next());
+			if (first == -1) {
+				first = sw.getMillis();
+			}
+		}
+		return new long[] { first, sw.getMillis() };
+	}
+
+	@Test
+	public void testStreamingAndListResultsMatch() {
+		createSyntheticPatients(NUM_RESOURCES);
+
+		for (int pass = 0; pass < 3; pass++) {
+
+			// Outside of a transaction the search builder fetches the whole list
+			List<Long> listed = new ArrayList<Long>();
+			Iterator<Long> listIter = newSearchBuilder().createQuery(new SearchParameterMap(), UUID.randomUUID().toString());
+			long[] listMillis = readAll(listIter, listed);
+
+			// Within one it reads through a cursor
+			final List<Long> streamed = new ArrayList<Long>();
+			TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+			txTemplate.setReadOnly(true);
+			long[] streamMillis = txTemplate.execute(new TransactionCallback<long[]>() {
+				@Override
+				public long[] doInTransaction(TransactionStatus theStatus) {
+					Iterator<Long> iter = newSearchBuilder().createQuery(new SearchParameterMap(), UUID.randomUUID().toString());
+					return readAll(iter, streamed);
+				}
+			});
+
+			assertEquals(NUM_RESOURCES, listed.size());
+			assertEquals(listed.size(), streamed.size());
+			assertEquals(new HashSet<Long>(listed), new HashSet<Long>(streamed));
+
+			ourLog.info("Pass {} with {} matches - list: first {}ms all {}ms - stream (fetch size {}): first {}ms all {}ms", pass, NUM_RESOURCES, listMillis[0], listMillis[1], myDaoConfig.getSearchFetchSize(), streamMillis[0], streamMillis[1]);
+		}
+	}
+
+	@Test
+	public void testLoadLargeSearchIntoSearchResults() {
+		createSyntheticPatients(NUM_RESOURCES);
+
+		StopWatch sw = new StopWatch();
+		IBundleProvider results = myPatientDao.search(new SearchParameterMap());
+		List<IBaseResource> lastPage = results.getResources(NUM_RESOURCES - 10, NUM_RESOURCES);
+		assertEquals(10, lastPage.size());
+		assertEquals(NUM_RESOURCES, results.size().intValue());
+		ourLog.info("Loaded and saved {} search results in {}ms", NUM_RESOURCES, sw.getMillis());
+
+		final Search search = mySearchEntityDao.findByUuid(results.getUuid());
+		List<Long> pids = new TransactionTemplate(myTxManager).execute(new TransactionCallback<List<Long>>() {
+			@Override
+			public List<Long> doInTransaction(TransactionStatus theStatus) {
+				List<Long> retVal = new ArrayList<Long>();
+				for (SearchResult next : mySearchResultDao.findWithSearchUuid(search, new PageRequest(0, NUM_RESOURCES))) {
+					assertEquals(retVal.size(), next.getOrder());
+					retVal.add(next.getResourcePid());
+				}
+				return retVal;
+			}
+		});
+		assertEquals(NUM_RESOURCES, pids.size());
+		assertEquals(NUM_RESOURCES, new HashSet<Long>(pids).size());
+		assertEquals(lastPage.get(9).getIdElement().getIdPartAsLong(), pids.get(NUM_RESOURCES - 1));
+	}
+
+	/**
+	 * Reading the query a range at a time returns every match once, in PID
+	 * order, without re-reading the rows before each range
+	 */
+	@Test
+	public void testLoadQueryRanges() {
+		createSyntheticPatients(1000);
+
+		Iterator<Long> listIter = newSearchBuilder().createQuery(new SearchParameterMap(), UUID.randomUUID().toString());
+		List<Long> expected = new ArrayList<Long>();
+		readAll(listIter, expected);
+		Collections.sort(expected);
+
+		List<Long> ranged = new ArrayList<Long>();
+		int rows;
+		do {
+			rows = newSearchBuilder().loadQueryRange(new SearchParameterMap(), UUID.randomUUID().toString(), ranged.size(), 300, ranged);
+		} while (rows == 300);
+		assertEquals(100, rows);
+		assertEquals(expected, ranged);
+	}
+
+	@Test
+	public void testStreamingCursorClosedWhenAbandoned() throws Exception {
+		createSyntheticPatients(100);
+		myDaoConfig.setSearchFetchSize(10);
+
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setReadOnly(true);
+		int read = txTemplate.execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus theStatus) {
+				Iterator<Long> iter = newSearchBuilder().createQuery(new SearchParameterMap(), UUID.randomUUID().toString());
+				int count = 0;
+				while (iter.hasNext() && count < 15) {
+					iter.next();
+					count++;
+				}
+				try {
+					((Closeable) iter).close();
+				} catch (Exception e) {
+					throw new Error(e);
+				}
+				assertFalse(iter.hasNext());
+				return count;
+			}
+		});
+		assertEquals(15, read);
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.setLoadSynchronousUpTo(15);
+		assertEquals(15, myPatientDao.search(map).size().intValue());
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
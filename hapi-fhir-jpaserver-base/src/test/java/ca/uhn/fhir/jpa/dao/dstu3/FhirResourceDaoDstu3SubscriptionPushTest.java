@@ -0,0 +1,345 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
+import org.hl7.fhir.dstu3.model.Subscription;
+import org.hl7.fhir.dstu3.model.Subscription.SubscriptionChannelType;
+import org.hl7.fhir.dstu3.model.Subscription.SubscriptionStatus;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import ca.uhn.fhir.jpa.dao.IFhirResourceDaoSubscription;
+import ca.uhn.fhir.jpa.dao.InMemoryResourceMatcher;
+import ca.uhn.fhir.jpa.dao.data.ISubscriptionFlaggedResourceDataDao;
+import ca.uhn.fhir.jpa.subscription.IResourceChangeListener;
+import ca.uhn.fhir.jpa.subscription.ResourceChangeEvent;
+import ca.uhn.fhir.jpa.subscription.ResourceChangeEventBus;
+import ca.uhn.fhir.jpa.subscription.SubscriptionWebsocketHandlerDstu3;
+import ca.uhn.fhir.util.TestUtil;
+
+/**
+ * Binds subscription handlers to mock sessions and checks that changes are
+ * pushed to them as they are committed
+ */
+public class FhirResourceDaoDstu3SubscriptionPushTest extends BaseJpaDstu3Test {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3SubscriptionPushTest.class);
+
+	@Autowired
+	private ResourceChangeEventBus myEventBus;
+
+	private List<SubscriptionWebsocketHandlerDstu3> myHandlers = new ArrayList<SubscriptionWebsocketHandlerDstu3>();
+
+	@Autowired
+	private InMemoryResourceMatcher myResourceMatcher;
+
+	@Autowired
+	private ISubscriptionFlaggedResourceDataDao mySubscriptionFlaggedResourceDataDao;
+
+	private ThreadPoolTaskScheduler myTaskScheduler;
+
+	@After
+	public void after() {
+		for (SubscriptionWebsocketHandlerDstu3 next : myHandlers) {
+			next.preDescroy();
+		}
+		myHandlers.clear();
+		myTaskScheduler.shutdown();
+	}
+
+	@Before
+	public void before() {
+		myDaoConfig.setSubscriptionEnabled(true);
+		myDaoConfig.setSubscriptionPurgeInactiveAfterSeconds(60);
+
+		SubscriptionWebsocketHandlerDstu3.setCtx(myFhirCtx);
+		SubscriptionWebsocketHandlerDstu3.setSubscriptionDao(mySubscriptionDao);
+
+		myTaskScheduler = new ThreadPoolTaskScheduler();
+		myTaskScheduler.initialize();
+	}
+
+	private Client bind(String theBindString, boolean theMatchInMemory) throws Exception {
+		SubscriptionWebsocketHandlerDstu3 handler = new SubscriptionWebsocketHandlerDstu3();
+		handler.setEventBus(myEventBus);
+		handler.setResourceMatcher(theMatchInMemory ? myResourceMatcher : null);
+		handler.setTaskScheduler(myTaskScheduler);
+		handler.postConstruct();
+		myHandlers.add(handler);
+
+		Client retVal = new Client();
+		handler.handleMessage(retVal.mySession, new TextMessage("bind " + theBindString));
+		return retVal;
+	}
+
+	private IIdType createObservation(String theCode) {
+		Observation obs = new Observation();
+		obs.setStatus(ObservationStatus.FINAL);
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode(theCode);
+		return myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+	}
+
+	@Test
+	public void testDynamicBindReceivesMatchingChange() throws Exception {
+		Client client = bind("Observation?code=http://loinc.org|1234-5", true);
+		client.waitForMessages(1);
+		assertThat(client.getMessages().get(0), startsWith("bound "));
+
+		IIdType id = createObservation("1234-5");
+
+		client.waitForMessages(2);
+		String message = client.getMessages().get(1);
+		assertThat(message, startsWith("add "));
+		assertTrue(message, message.contains("\"id\":\"" + id.getIdPart() + "\""));
+		assertEquals(0, mySubscriptionFlaggedResourceDataDao.count());
+	}
+
+	@Test
+	public void testDynamicBindIgnoresNonMatchingChange() throws Exception {
+		Client client = bind("Observation?code=http://loinc.org|1234-5", true);
+		client.waitForMessages(1);
+
+		createObservation("9999-9");
+		IIdType id = createObservation("1234-5");
+
+		client.waitForMessages(2);
+		Thread.sleep(200);
+		assertEquals(2, client.getMessages().size());
+		assertTrue(client.getMessages().get(1).contains("\"id\":\"" + id.getIdPart() + "\""));
+	}
+
+	@Test
+	public void testDynamicBindWithCriteriaNotMatchedInMemory() throws Exception {
+		Client client = bind("Observation?_lastUpdated=gt2000-01-01&code=http://loinc.org|1234-5", true);
+		client.waitForMessages(1);
+		assertThat(client.getMessages().get(0), startsWith("bound "));
+
+		createObservation("9999-9");
+		IIdType id = createObservation("1234-5");
+
+		client.waitForMessages(2);
+		Thread.sleep(200);
+		assertEquals(2, client.getMessages().size());
+		assertTrue(client.getMessages().get(1).contains("\"id\":\"" + id.getIdPart() + "\""));
+	}
+
+	@Test
+	public void testDynamicBindWithoutMatcherUsesSearch() throws Exception {
+		Client client = bind("Observation?code=http://loinc.org|1234-5", false);
+		client.waitForMessages(1);
+
+		createObservation("9999-9");
+		IIdType id = createObservation("1234-5");
+
+		client.waitForMessages(2);
+		Thread.sleep(200);
+		assertEquals(2, client.getMessages().size());
+		assertTrue(client.getMessages().get(1).contains("\"id\":\"" + id.getIdPart() + "\""));
+	}
+
+	@Test
+	public void testManyClientsLatencyAndThroughput() throws Exception {
+		int clientCount = 200;
+		int resourceCount = 20;
+
+		List<Client> clients = new ArrayList<Client>();
+		for (int i = 0; i < clientCount; i++) {
+			Client client = bind("Observation?code=http://loinc.org|1234-5", true);
+			client.waitForMessages(1);
+			clients.add(client);
+		}
+
+		long[] created = new long[resourceCount];
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < resourceCount; i++) {
+			createObservation("1234-5");
+			created[i] = System.currentTimeMillis();
+		}
+
+		long maxLatency = 0;
+		long totalLatency = 0;
+		for (Client next : clients) {
+			next.waitForMessages(1 + resourceCount);
+			for (int i = 0; i < resourceCount; i++) {
+				long latency = Math.max(0, next.getTimes().get(i + 1) - created[i]);
+				maxLatency = Math.max(maxLatency, latency);
+				totalLatency += latency;
+			}
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		int messages = clientCount * resourceCount;
+
+		ourLog.info("Sent {} messages to {} clients in {}ms ({} per second), average latency {}ms, max latency {}ms",
+				new Object[] { messages, clientCount, elapsed, (messages * 1000L) / Math.max(1, elapsed), totalLatency / messages, maxLatency });
+
+		for (Client next : clients) {
+			assertEquals(1 + resourceCount, next.getMessages().size());
+		}
+		assertEquals(0, mySubscriptionFlaggedResourceDataDao.count());
+	}
+
+	/**
+	 * A listener which is slow to handle a change (e.g. a subscription whose
+	 * criteria need a search) doesn't hold up delivery to the other clients
+	 */
+	@Test
+	public void testSlowListenerDoesNotHoldUpOthers() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		IResourceChangeListener slowListener = new IResourceChangeListener() {
+			@Override
+			public void resourceChanged(ResourceChangeEvent theEvent) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		myEventBus.register(slowListener);
+		try {
+			Client client = bind("Observation?code=http://loinc.org|1234-5", true);
+			client.waitForMessages(1);
+
+			createObservation("1234-5");
+			blocked.await();
+			IIdType id = createObservation("1234-5");
+
+			client.waitForMessages(3);
+			assertTrue(client.getMessages().get(2).contains("\"id\":\"" + id.getIdPart() + "\""));
+			assertEquals(1, release.getCount());
+		} finally {
+			myEventBus.unregister(slowListener);
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testStaticBindCatchesUpThenReceivesChanges() throws Exception {
+		Subscription subs = new Subscription();
+		subs.setCriteria("Observation?code=http://loinc.org|1234-5");
+		subs.getChannel().setType(SubscriptionChannelType.WEBSOCKET);
+		subs.setStatus(SubscriptionStatus.ACTIVE);
+		IIdType subsId = mySubscriptionDao.create(subs, mySrd).getId().toUnqualifiedVersionless();
+
+		Thread.sleep(10);
+		createObservation("1234-5");
+		createObservation("1234-5");
+		createObservation("9999-9");
+		Thread.sleep(10);
+
+		Client client = bind(subsId.getIdPart(), true);
+		client.waitForMessages(2);
+		assertEquals("bound " + subsId.getIdPart(), client.getMessages().get(0));
+		assertEquals("ping " + subsId.getIdPart(), client.getMessages().get(1));
+		assertEquals(0, mySubscriptionFlaggedResourceDataDao.count());
+
+		createObservation("1234-5");
+		client.waitForMessages(3);
+		assertEquals("ping " + subsId.getIdPart(), client.getMessages().get(2));
+
+		Thread.sleep(200);
+		assertEquals(3, client.getMessages().size());
+	}
+
+	/**
+	 * A client which missed more resources than one poll flags is sent all of them
+	 */
+	@Test
+	public void testStaticBindCatchesUpMoreThanOnePoll() throws Exception {
+		Subscription subs = new Subscription();
+		subs.setCriteria("Observation?code=http://loinc.org|1234-5");
+		subs.getChannel().setType(SubscriptionChannelType.WEBSOCKET);
+		subs.setStatus(SubscriptionStatus.ACTIVE);
+		IIdType subsId = mySubscriptionDao.create(subs, mySrd).getId().toUnqualifiedVersionless();
+
+		Thread.sleep(10);
+		int count = IFhirResourceDaoSubscription.MAX_RESOURCES_PER_POLL + 150;
+		for (int i = 0; i < count; i++) {
+			createObservation("1234-5");
+		}
+		Thread.sleep(10);
+
+		Client client = bind(subsId.getIdPart(), true);
+		client.waitForMessages(2);
+		assertEquals("bound " + subsId.getIdPart(), client.getMessages().get(0));
+		assertEquals(0, mySubscriptionFlaggedResourceDataDao.count());
+
+		// Each page of flagged resources is one ping, and nothing is left to flag
+		assertThat(client.getMessages().size(), greaterThanOrEqualTo(1 + (count / 100)));
+		Long subscriptionPid = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(subsId);
+		assertEquals(0, mySubscriptionDao.pollForNewUndeliveredResourcesForSubscription(subscriptionPid));
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+	private static class Client {
+
+		private final List<String> myMessages = Collections.synchronizedList(new ArrayList<String>());
+		private final WebSocketSession mySession;
+		private final List<Long> myTimes = Collections.synchronizedList(new ArrayList<Long>());
+
+		public Client() throws Exception {
+			mySession = mock(WebSocketSession.class);
+			when(mySession.isOpen()).thenReturn(true);
+			doAnswer(new Answer<Void>() {
+				@Override
+				public Void answer(InvocationOnMock theInvocation) throws Throwable {
+					myTimes.add(System.currentTimeMillis());
+					myMessages.add(((TextMessage) theInvocation.getArguments()[0]).getPayload());
+					return null;
+				}
+			}).when(mySession).sendMessage(any(WebSocketMessage.class));
+		}
+
+		public List<String> getMessages() {
+			return myMessages;
+		}
+
+		public List<Long> getTimes() {
+			return myTimes;
+		}
+
+		public void waitForMessages(int theCount) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 60000;
+			while (myMessages.size() < theCount) {
+				if (System.currentTimeMillis() > deadline) {
+					fail("Expected " + theCount + " messages but got " + myMessages);
+				}
+				Thread.sleep(5);
+			}
+		}
+
+	}
+
+}
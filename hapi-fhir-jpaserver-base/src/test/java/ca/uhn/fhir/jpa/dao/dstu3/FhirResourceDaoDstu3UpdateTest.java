@@ -24,11 +24,15 @@ import java.util.Set;
 import java.util.TimeZone;
 
 import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DateTimeType;
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.InstantType;
 import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.dstu3.model.Observation;
 import org.hl7.fhir.dstu3.model.Organization;
 import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.UriType;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -37,11 +41,19 @@ import org.junit.AfterClass;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
 
+import ca.uhn.fhir.jpa.dao.ResourceIndexStatistics;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceLink;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
@@ -54,6 +66,9 @@ import ca.uhn.fhir.util.TestUtil;
 public class FhirResourceDaoDstu3UpdateTest extends BaseJpaDstu3Test {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3UpdateTest.class);
 
+	@Autowired
+	private ResourceIndexStatistics myResourceIndexStatistics;
+
 	@Test
 	public void testCreateAndUpdateWithoutRequest() throws Exception {
 		String methodName = "testUpdateByUrl";
@@ -647,6 +662,109 @@ public class FhirResourceDaoDstu3UpdateTest extends BaseJpaDstu3Test {
 		assertEquals(0, meta.getTag().size());
 	}
 
+	private Set<Long> findIndexRowIds(Class<?> theType, Long theResourcePid) {
+		String pidField = theType.equals(ResourceLink.class) ? "mySourceResourcePid" : "myResourcePid";
+		List<Long> ids = myEntityManager.createQuery("SELECT i.myId FROM " + theType.getSimpleName() + " i WHERE i." + pidField + " = :pid", Long.class).setParameter("pid", theResourcePid).getResultList();
+		return new HashSet<Long>(ids);
+	}
+
+	@Test
+	public void testUpdateChangingResourceEncoding() {
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSONC);
+
+		Patient p = new Patient();
+		p.addName().setFamily("Simpson").addGiven("Homer");
+		IIdType id1 = myPatientDao.create(p, mySrd).getId().toUnqualified();
+
+		// Versions stored with the previous encoding must still be readable
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSOND);
+
+		p = myPatientDao.read(id1.toVersionless(), mySrd);
+		assertEquals("Simpson", p.getName().get(0).getFamily());
+		p.getName().get(0).addGiven("Jay");
+		IIdType id2 = myPatientDao.update(p, mySrd).getId().toUnqualified();
+		assertEquals("2", id2.getVersionIdPart());
+
+		p = myPatientDao.read(id1, mySrd);
+		assertEquals(1, p.getName().get(0).getGiven().size());
+		assertEquals("Homer", p.getName().get(0).getGiven().get(0).getValue());
+		p = myPatientDao.read(id2, mySrd);
+		assertEquals("Homer", p.getName().get(0).getGiven().get(0).getValue());
+		assertEquals("Jay", p.getName().get(0).getGiven().get(1).getValue());
+
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSON);
+		p = myPatientDao.read(id2, mySrd);
+		assertEquals(2, p.getName().get(0).getGiven().size());
+	}
+
+	@Test
+	public void testUpdateKeepsUnchangedIndexRows() {
+		Patient p = new Patient();
+		p.addName().setFamily("Simpson");
+		IIdType patientId = myPatientDao.create(p, mySrd).getId().toUnqualifiedVersionless();
+
+		Observation o = new Observation();
+		o.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+		o.setEffective(new DateTimeType("2017-04-01T10:00:00Z"));
+		o.setValue(new Quantity().setValue(72.0).setSystem("http://unitsofmeasure.org").setCode("/min"));
+		o.setSubject(new Reference(patientId));
+		IIdType id = myObservationDao.create(o, mySrd).getId().toUnqualifiedVersionless();
+		Long pid = id.getIdPartAsLong();
+
+		Set<Long> tokens = findIndexRowIds(ResourceIndexedSearchParamToken.class, pid);
+		Set<Long> dates = findIndexRowIds(ResourceIndexedSearchParamDate.class, pid);
+		Set<Long> quantities = findIndexRowIds(ResourceIndexedSearchParamQuantity.class, pid);
+		Set<Long> links = findIndexRowIds(ResourceLink.class, pid);
+		assertFalse(tokens.isEmpty());
+		assertFalse(dates.isEmpty());
+		assertFalse(quantities.isEmpty());
+		assertFalse(links.isEmpty());
+
+		long added = myResourceIndexStatistics.getRowsAddedCount();
+		long removed = myResourceIndexStatistics.getRowsRemovedCount();
+		long skipped = myResourceIndexStatistics.getSkippedUpdateCount();
+
+		// Only unindexed content changes, so every index row should be kept
+		o.setId(id);
+		o.setComment("First update");
+		o.setValue(new Quantity().setValue(72.00).setSystem("http://unitsofmeasure.org").setCode("/min"));
+		assertEquals("2", myObservationDao.update(o, mySrd).getId().getVersionIdPart());
+
+		assertEquals(added, myResourceIndexStatistics.getRowsAddedCount());
+		assertEquals(removed, myResourceIndexStatistics.getRowsRemovedCount());
+		assertEquals(skipped + 1, myResourceIndexStatistics.getSkippedUpdateCount());
+
+		assertEquals(tokens, findIndexRowIds(ResourceIndexedSearchParamToken.class, pid));
+		assertEquals(dates, findIndexRowIds(ResourceIndexedSearchParamDate.class, pid));
+		assertEquals(quantities, findIndexRowIds(ResourceIndexedSearchParamQuantity.class, pid));
+		assertEquals(links, findIndexRowIds(ResourceLink.class, pid));
+
+		// Change one indexed value, only its row should be replaced
+		o.setEffective(new DateTimeType("2017-04-02T10:00:00Z"));
+		assertEquals("3", myObservationDao.update(o, mySrd).getId().getVersionIdPart());
+
+		assertEquals(tokens, findIndexRowIds(ResourceIndexedSearchParamToken.class, pid));
+		assertEquals(quantities, findIndexRowIds(ResourceIndexedSearchParamQuantity.class, pid));
+		assertEquals(links, findIndexRowIds(ResourceLink.class, pid));
+		Set<Long> newDates = findIndexRowIds(ResourceIndexedSearchParamDate.class, pid);
+		assertEquals(dates.size(), newDates.size());
+		newDates.removeAll(dates);
+		assertEquals(1, newDates.size());
+
+		assertEquals(added + 1, myResourceIndexStatistics.getRowsAddedCount());
+		assertEquals(removed + 1, myResourceIndexStatistics.getRowsRemovedCount());
+		assertEquals(skipped + 1, myResourceIndexStatistics.getSkippedUpdateCount());
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Observation.SP_DATE, new DateParam("2017-04-02"));
+		assertEquals(1, myObservationDao.search(map).size().intValue());
+		map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Observation.SP_DATE, new DateParam("2017-04-01"));
+		assertEquals(0, myObservationDao.search(map).size().intValue());
+	}
+
 	@Test
 	public void testUpdateWithNoChangeDetectionUpdateTagNoChange() {
 		String name = "testUpdateUnchanged";
@@ -1,14 +1,27 @@
 package ca.uhn.fhir.jpa.dao.dstu3;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.hl7.fhir.dstu3.hapi.validation.DefaultProfileValidationSupport;
 import org.hl7.fhir.dstu3.hapi.validation.IValidationSupport;
+import org.hl7.fhir.dstu3.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.Enumerations.PublicationStatus;
 import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -20,6 +33,7 @@ import ca.uhn.fhir.jpa.dao.ISearchParamRegistry;
 import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.util.TestUtil;
 
 public class SearchParamExtractorDstu3Test {
@@ -27,6 +41,8 @@ public class SearchParamExtractorDstu3Test {
 	private static FhirContext ourCtx = FhirContext.forDstu3();
 	private static IValidationSupport ourValidationSupport;
 
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchParamExtractorDstu3Test.class);
+
 	@AfterClass
 	public static void afterClassClearContext() {
 		TestUtil.clearAllStaticFieldsForUnitTest();
@@ -37,12 +53,110 @@ public class SearchParamExtractorDstu3Test {
 		ourValidationSupport = new DefaultProfileValidationSupport();
 	}
 	
+	/**
+	 * Extracts every type of index from resources with many repeating elements,
+	 * logging the mean time taken per resource
+	 */
+	@Test
+	public void testExtractLargeResources() {
+		SearchParamExtractorDstu3 extractor = new SearchParamExtractorDstu3(ourCtx, ourValidationSupport, newSearchParamRegistry());
+
+		Questionnaire questionnaire = new Questionnaire();
+		questionnaire.setStatus(PublicationStatus.ACTIVE);
+		for (int i = 0; i < 1000; i++) {
+			questionnaire.addCode().setSystem("http://example.com/codes").setCode("CODE" + i);
+			questionnaire.addItem().setLinkId("ITEM" + i).setText("Item " + i).addCode().setSystem("http://example.com/items").setCode("ITEM" + i);
+		}
+		Patient patient = newLargePatient();
+
+		int questionnaireCount = extractAll(extractor, questionnaire);
+		int patientCount = extractAll(extractor, patient);
+		assertTrue(questionnaireCount > 1000);
+		assertTrue(patientCount > 600);
+
+		int passes = 20;
+		StopWatch sw = new StopWatch();
+		for (int i = 0; i < passes; i++) {
+			assertEquals(questionnaireCount, extractAll(extractor, questionnaire));
+		}
+		long questionnaireMillis = sw.getMillis() / passes;
+		sw = new StopWatch();
+		for (int i = 0; i < passes; i++) {
+			assertEquals(patientCount, extractAll(extractor, patient));
+		}
+		long patientMillis = sw.getMillis() / passes;
+
+		ourLog.info("Extracted {} indexes from a Questionnaire in {}ms and {} from a Patient in {}ms", questionnaireCount, questionnaireMillis, patientCount, patientMillis);
+	}
+
+	@Test
+	public void testExtractFromManyThreads() throws Exception {
+		final SearchParamExtractorDstu3 extractor = new SearchParamExtractorDstu3(ourCtx, ourValidationSupport, newSearchParamRegistry());
+		final int expected = extractAll(extractor, newLargePatient());
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < 32; i++) {
+				futures.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						return extractAll(extractor, newLargePatient());
+					}
+				}));
+			}
+			for (Future<Integer> next : futures) {
+				assertEquals(expected, next.get().intValue());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
 	@Test
 	public void testParamWithOrInPath() {
 		Observation obs = new Observation();
 		obs.addCategory().addCoding().setSystem("SYSTEM").setCode("CODE");
 		
-		ISearchParamRegistry searchParamRegistry = new ISearchParamRegistry() {
+		ISearchParamRegistry searchParamRegistry = newSearchParamRegistry();
+		
+		SearchParamExtractorDstu3 extractor = new SearchParamExtractorDstu3(ourCtx, ourValidationSupport, searchParamRegistry);
+		Set<BaseResourceIndexedSearchParam> tokens = extractor.extractSearchParamTokens(new ResourceTable(), obs);
+		assertEquals(1, tokens.size());
+		ResourceIndexedSearchParamToken token = (ResourceIndexedSearchParamToken) tokens.iterator().next();
+		assertEquals("category", token.getParamName());
+		assertEquals("SYSTEM", token.getSystem());
+		assertEquals("CODE", token.getValue());
+	}
+	
+	private static int extractAll(SearchParamExtractorDstu3 theExtractor, IBaseResource theResource) {
+		ResourceTable entity = new ResourceTable();
+		int retVal = 0;
+		retVal += theExtractor.extractSearchParamStrings(entity, theResource).size();
+		retVal += theExtractor.extractSearchParamNumber(entity, theResource).size();
+		retVal += theExtractor.extractSearchParamQuantity(entity, theResource).size();
+		retVal += theExtractor.extractSearchParamDates(entity, theResource).size();
+		retVal += theExtractor.extractSearchParamUri(entity, theResource).size();
+		retVal += theExtractor.extractSearchParamCoords(entity, theResource).size();
+		retVal += theExtractor.extractSearchParamTokens(entity, theResource).size();
+		return retVal;
+	}
+
+	private static Patient newLargePatient() {
+		Patient retVal = new Patient();
+		retVal.setActive(true);
+		retVal.setBirthDateElement(new DateType("1970-01-01"));
+		for (int i = 0; i < 200; i++) {
+			retVal.addIdentifier().setSystem("http://example.com/ids").setValue("ID" + i);
+			retVal.addName().setFamily("FAMILY" + i).addGiven("GIVEN" + i);
+			retVal.addTelecom().setSystem(ContactPointSystem.PHONE).setValue("555-" + i);
+			retVal.addAddress().addLine("Line " + i).setCity("CITY" + i);
+		}
+		return retVal;
+	}
+
+	private static ISearchParamRegistry newSearchParamRegistry() {
+		return new ISearchParamRegistry() {
 			@Override
 			public Map<String,RuntimeSearchParam> getActiveSearchParams(String theResourceName) {
 				RuntimeResourceDefinition nextResDef = ourCtx.getResourceDefinition(theResourceName);
@@ -68,14 +182,6 @@ public class SearchParamExtractorDstu3Test {
 				throw new UnsupportedOperationException();
 			}
 		};
-		
-		SearchParamExtractorDstu3 extractor = new SearchParamExtractorDstu3(ourCtx, ourValidationSupport, searchParamRegistry);
-		Set<BaseResourceIndexedSearchParam> tokens = extractor.extractSearchParamTokens(new ResourceTable(), obs);
-		assertEquals(1, tokens.size());
-		ResourceIndexedSearchParamToken token = (ResourceIndexedSearchParamToken) tokens.iterator().next();
-		assertEquals("category", token.getParamName());
-		assertEquals("SYSTEM", token.getSystem());
-		assertEquals("CODE", token.getValue());
 	}
-	
+
 }
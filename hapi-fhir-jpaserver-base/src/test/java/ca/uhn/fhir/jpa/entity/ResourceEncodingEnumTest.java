@@ -0,0 +1,181 @@
+package ca.uhn.fhir.jpa.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.GZipUtil;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.TestUtil;
+
+public class ResourceEncodingEnumTest {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ResourceEncodingEnumTest.class);
+	private static FhirContext ourCtx = FhirContext.forDstu3();
+
+	private Patient newPatient() {
+		Patient p = new Patient();
+		p.addIdentifier().setSystem("urn:oid:1.2.36.146.595.217.0.1").setValue("12345");
+		p.addName().setFamily("Chalmers").addGiven("Peter").addGiven("James");
+		p.addTelecom().setSystem(org.hl7.fhir.dstu3.model.ContactPoint.ContactPointSystem.PHONE).setValue("(03) 5555 6473");
+		p.setActive(true);
+		return p;
+	}
+
+	@Test
+	public void testEncodeAndParse() {
+		IParser parser = ourCtx.newJsonParser();
+		String expected = parser.encodeResourceToString(newPatient());
+
+		for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+			byte[] bytes = next.encodeResource(parser, newPatient());
+			Patient parsed = next.parseResource(parser, Patient.class, bytes);
+			assertEquals(next.name(), expected, parser.encodeResourceToString(parsed));
+		}
+
+		assertEquals(expected, new String(ResourceEncodingEnum.JSON.encodeResource(parser, newPatient()), Charsets.UTF_8));
+	}
+
+	@Test
+	public void testNamesFitInColumn() {
+		// The name is stored in RES_ENCODING, which is 5 chars long
+		for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+			assertThat(next.name(), next.name().length(), lessThan(6));
+		}
+	}
+
+	@Test
+	public void testParseExistingJsonc() {
+		IParser parser = ourCtx.newJsonParser();
+		byte[] bytes = GZipUtil.compress(parser.encodeResourceToString(newPatient()));
+
+		Patient parsed = ResourceEncodingEnum.JSONC.parseResource(parser, Patient.class, bytes);
+		assertEquals("Chalmers", parsed.getName().get(0).getFamily());
+	}
+
+	@Test
+	public void testParseJsondWithWrongDictionary() {
+		Deflater deflater = new Deflater();
+		deflater.setDictionary("some other dictionary".getBytes(Charsets.UTF_8));
+		deflater.setInput("{\"resourceType\":\"Patient\"}".getBytes(Charsets.UTF_8));
+		deflater.finish();
+		byte[] buffer = new byte[1000];
+		int length = deflater.deflate(buffer);
+		deflater.end();
+		byte[] bytes = new byte[length];
+		System.arraycopy(buffer, 0, bytes, 0, length);
+
+		try {
+			ResourceEncodingEnum.JSOND.parseResource(ourCtx.newJsonParser(), Patient.class, bytes);
+			fail();
+		} catch (DataFormatException e) {
+			assertThat(e.getCause().getMessage(), containsString("unknown dictionary"));
+		}
+	}
+
+	@Test
+	public void testParseJsondTruncated() {
+		IParser parser = ourCtx.newJsonParser();
+		byte[] bytes = ResourceEncodingEnum.JSOND.encodeResource(parser, newPatient());
+		byte[] truncated = new byte[bytes.length / 2];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+		try {
+			ResourceEncodingEnum.JSOND.parseResource(parser, Patient.class, truncated);
+			fail();
+		} catch (DataFormatException e) {
+			// good
+		}
+	}
+
+	/**
+	 * Compares the space used and encoding/parsing throughput of each encoding, using
+	 * the resources bundled with the tests and the DSTU3 validation resources
+	 */
+	@Test
+	public void testCompareEncodings() throws Exception {
+		List<Resource> corpus = new ArrayList<Resource>();
+		loadBundle(corpus, "/bryn-bundle.json");
+		loadBundle(corpus, "/cdr-bundle.json");
+		loadBundle(corpus, "/david_big_bundle.json");
+		loadBundle(corpus, "/document-bundle-dstu3.json");
+		loadBundle(corpus, "/bundle-dstu3.xml");
+		loadBundle(corpus, "/transaction-bundle.xml");
+		loadBundle(corpus, "/org/hl7/fhir/instance/model/dstu3/valueset/valuesets.xml");
+		assertTrue(corpus.size() > 100);
+
+		IParser parser = ourCtx.newJsonParser();
+		long jsonBytes = 0;
+		long jsondBytes = 0;
+		for (ResourceEncodingEnum nextEncoding : ResourceEncodingEnum.values()) {
+			List<byte[]> encoded = new ArrayList<byte[]>();
+			long totalBytes = 0;
+			long start = System.currentTimeMillis();
+			for (Resource next : corpus) {
+				byte[] bytes = nextEncoding.encodeResource(parser, next);
+				totalBytes += bytes.length;
+				encoded.add(bytes);
+			}
+			long encodeMillis = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			for (int i = 0; i < corpus.size(); i++) {
+				nextEncoding.parseResource(parser, corpus.get(i).getClass(), encoded.get(i));
+			}
+			long parseMillis = System.currentTimeMillis() - start;
+
+			ourLog.info("{} stored {} resources in {} bytes - Encoded in {}ms, parsed in {}ms", new Object[] { nextEncoding, corpus.size(), totalBytes, encodeMillis, parseMillis });
+
+			if (nextEncoding == ResourceEncodingEnum.JSON) {
+				jsonBytes = totalBytes;
+			} else if (nextEncoding == ResourceEncodingEnum.JSOND) {
+				jsondBytes = totalBytes;
+			}
+		}
+
+		assertThat(jsondBytes, lessThan(jsonBytes));
+	}
+
+	private void loadBundle(List<Resource> theCorpus, String theClasspath) throws Exception {
+		IParser parser = theClasspath.endsWith(".json") ? ourCtx.newJsonParser() : ourCtx.newXmlParser();
+		Reader reader = new InputStreamReader(ResourceEncodingEnumTest.class.getResourceAsStream(theClasspath), Charsets.UTF_8);
+		Bundle bundle;
+		try {
+			bundle = parser.parseResource(Bundle.class, reader);
+		} finally {
+			reader.close();
+		}
+		for (BundleEntryComponent next : bundle.getEntry()) {
+			if (next.getResource() != null) {
+				theCorpus.add(next.getResource());
+			}
+		}
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
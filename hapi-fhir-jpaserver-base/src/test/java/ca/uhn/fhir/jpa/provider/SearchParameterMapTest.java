@@ -71,8 +71,19 @@ public class SearchParameterMapTest {
 		String queryString = map.toNormalizedQueryString(ourCtx);
 		ourLog.info(queryString);
 		ourLog.info(UrlUtil.unescape(queryString));
-		assertEquals("?birthdate=ap2011&_include=Patient:aartvark&_include=Patient:aartvark:a&_include=Patient:aartvark:z&_include=Patient:subject", queryString);
-		assertEquals("?birthdate=ap2011&_include=Patient:aartvark&_include=Patient:aartvark:a&_include=Patient:aartvark:z&_include=Patient:subject", UrlUtil.unescape(queryString));
+		assertEquals("?birthdate=ap2011&_include:recurse=Patient:aartvark&_include=Patient:aartvark:a&_include=Patient:aartvark:z&_include=Patient:subject", queryString);
+		assertEquals("?birthdate=ap2011&_include:recurse=Patient:aartvark&_include=Patient:aartvark:a&_include=Patient:aartvark:z&_include=Patient:subject", UrlUtil.unescape(queryString));
+	}
+
+	@Test
+	public void testToQueryStringLastUpdated() {
+		SearchParameterMap lowerBound = new SearchParameterMap();
+		lowerBound.setLastUpdated(new DateRangeParam(new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, "2011-01-01"), null));
+		SearchParameterMap upperBound = new SearchParameterMap();
+		upperBound.setLastUpdated(new DateRangeParam(null, new DateParam(ParamPrefixEnum.LESSTHAN_OR_EQUALS, "2011-01-01")));
+
+		assertEquals("?_lastUpdated=ge2011-01-01", lowerBound.toNormalizedQueryString(ourCtx));
+		assertEquals("?_lastUpdated=le2011-01-01", upperBound.toNormalizedQueryString(ourCtx));
 	}
 
 	@Test
@@ -89,8 +100,8 @@ public class SearchParameterMapTest {
 		String queryString = map.toNormalizedQueryString(ourCtx);
 		ourLog.info(queryString);
 		ourLog.info(UrlUtil.unescape(queryString));
-		assertEquals("?birthdate=ap2011&_revinclude=Patient:aartvark&_revinclude=Patient:aartvark:a&_revinclude=Patient:aartvark:z&_revinclude=Patient:subject", queryString);
-		assertEquals("?birthdate=ap2011&_revinclude=Patient:aartvark&_revinclude=Patient:aartvark:a&_revinclude=Patient:aartvark:z&_revinclude=Patient:subject", UrlUtil.unescape(queryString));
+		assertEquals("?birthdate=ap2011&_revinclude:recurse=Patient:aartvark&_revinclude=Patient:aartvark:a&_revinclude=Patient:aartvark:z&_revinclude=Patient:subject", queryString);
+		assertEquals("?birthdate=ap2011&_revinclude:recurse=Patient:aartvark&_revinclude=Patient:aartvark:a&_revinclude=Patient:aartvark:z&_revinclude=Patient:subject", UrlUtil.unescape(queryString));
 	}
 
 	@Test
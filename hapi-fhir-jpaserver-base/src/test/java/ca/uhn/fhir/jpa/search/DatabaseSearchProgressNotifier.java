@@ -0,0 +1,73 @@
+package ca.uhn.fhir.jpa.search;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Stand-in for a cross-node {@link ISearchProgressNotifier}: progress is
+ * written to a table in a shared (in-memory Derby) database, and waiters on
+ * any "node" watch the table for it. Polls the table every few milliseconds,
+ * so it is only suitable for unit tests.
+ */
+public class DatabaseSearchProgressNotifier implements ISearchProgressNotifier {
+
+	private static final long POLL_MILLIS = 5;
+	private final String myUrl;
+
+	public DatabaseSearchProgressNotifier(String theDatabaseName) throws SQLException {
+		myUrl = "jdbc:derby:memory:" + theDatabaseName + ";create=true";
+		try (Connection conn = DriverManager.getConnection(myUrl); Statement stmt = conn.createStatement()) {
+			stmt.execute("CREATE TABLE SEARCH_PROGRESS (UUID VARCHAR(40) PRIMARY KEY, NUM_FOUND INT NOT NULL, FINISHED SMALLINT NOT NULL)");
+		}
+	}
+
+	@Override
+	public boolean awaitProgress(String theSearchUuid, int theNumFoundSeen, long theTimeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + theTimeoutMillis;
+		try (Connection conn = DriverManager.getConnection(myUrl);
+				PreparedStatement stmt = conn.prepareStatement("SELECT NUM_FOUND, FINISHED FROM SEARCH_PROGRESS WHERE UUID = ?")) {
+			stmt.setString(1, theSearchUuid);
+			while (true) {
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (rs.next() && (rs.getInt(1) > theNumFoundSeen || rs.getInt(2) != 0)) {
+						return true;
+					}
+				}
+				if (System.currentTimeMillis() >= deadline) {
+					return false;
+				}
+				Thread.sleep(POLL_MILLIS);
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void notifyProgress(String theSearchUuid, int theNumFound, boolean theFinished) {
+		try (Connection conn = DriverManager.getConnection(myUrl)) {
+			int finished = theFinished ? 1 : 0;
+			try (PreparedStatement update = conn.prepareStatement("UPDATE SEARCH_PROGRESS SET NUM_FOUND = ?, FINISHED = ? WHERE UUID = ?")) {
+				update.setInt(1, theNumFound);
+				update.setInt(2, finished);
+				update.setString(3, theSearchUuid);
+				if (update.executeUpdate() > 0) {
+					return;
+				}
+			}
+			try (PreparedStatement insert = conn.prepareStatement("INSERT INTO SEARCH_PROGRESS (UUID, NUM_FOUND, FINISHED) VALUES (?, ?, ?)")) {
+				insert.setString(1, theSearchUuid);
+				insert.setInt(2, theNumFound);
+				insert.setInt(3, finished);
+				insert.executeUpdate();
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package ca.uhn.fhir.jpa.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class LocalSearchProgressNotifierTest {
+
+	@Test
+	public void testAlreadyPublishedProgressReturnsImmediately() throws Exception {
+		LocalSearchProgressNotifier svc = new LocalSearchProgressNotifier();
+		svc.notifyProgress("A", 50, false);
+
+		long start = System.currentTimeMillis();
+		assertTrue(svc.awaitProgress("A", 20, 10000));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(1, svc.getTrackedSearchCount());
+
+		svc.notifyProgress("A", 60, true);
+		assertEquals(0, svc.getTrackedSearchCount());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		LocalSearchProgressNotifier svc = new LocalSearchProgressNotifier();
+		svc.notifyProgress("A", 50, false);
+
+		assertFalse(svc.awaitProgress("A", 50, 100));
+		assertFalse(svc.awaitProgress("B", 0, 100));
+
+		// Searches only waited on are forgotten once nobody waits
+		assertEquals(1, svc.getTrackedSearchCount());
+	}
+
+	@Test
+	public void testWaiterWokenByNotification() throws Exception {
+		final LocalSearchProgressNotifier svc = new LocalSearchProgressNotifier();
+		final AtomicBoolean woken = new AtomicBoolean();
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					woken.set(svc.awaitProgress("A", 0, 60000));
+				} catch (InterruptedException e) {
+					// fail below
+				}
+			}
+		};
+		long start = System.currentTimeMillis();
+		waiter.start();
+		Thread.sleep(100);
+		svc.notifyProgress("A", 10, false);
+		waiter.join(10000);
+
+		assertTrue(woken.get());
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+	@Test
+	public void testWaiterWokenByFinish() throws Exception {
+		final LocalSearchProgressNotifier svc = new LocalSearchProgressNotifier();
+		final AtomicBoolean woken = new AtomicBoolean();
+		svc.notifyProgress("A", 10, false);
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					woken.set(svc.awaitProgress("A", 10, 60000));
+				} catch (InterruptedException e) {
+					// fail below
+				}
+			}
+		};
+		waiter.start();
+		Thread.sleep(100);
+		svc.notifyProgress("A", 10, true);
+		waiter.join(10000);
+
+		assertTrue(woken.get());
+		assertEquals(0, svc.getTrackedSearchCount());
+	}
+
+}
@@ -3,14 +3,19 @@ package ca.uhn.fhir.jpa.search;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.atMost;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -18,6 +23,7 @@ import java.util.*;
 
 import javax.persistence.EntityManager;
 
+import org.apache.commons.lang3.time.DateUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -25,7 +31,6 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
-import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
@@ -36,13 +41,13 @@ import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
 import org.springframework.transaction.PlatformTransactionManager;
 
-import com.google.common.collect.Lists;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.IDao;
 import ca.uhn.fhir.jpa.dao.ISearchBuilder;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.dao.data.IResourceTableDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchIncludeDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
@@ -53,6 +58,7 @@ import ca.uhn.fhir.jpa.entity.SearchTypeEnum;
 import ca.uhn.fhir.model.dstu2.resource.Patient;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.util.TestUtil;
 
@@ -60,6 +66,8 @@ import ca.uhn.fhir.util.TestUtil;
 @RunWith(MockitoJUnitRunner.class)
 public class SearchCoordinatorSvcImplTest {
 
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchCoordinatorSvcImplTest.class);
+
 	private static FhirContext ourCtx = FhirContext.forDstu3();
 	@Mock
 	private IDao myCallingDao;
@@ -67,6 +75,8 @@ public class SearchCoordinatorSvcImplTest {
 	private EntityManager myEntityManager;
 	private int myExpectedNumberOfSearchBuildersCreated = 2;
 	@Mock
+	private IResourceTableDao myResourceTableDao;
+	@Mock
 	private ISearchBuilder mySearchBuider;
 	@Mock
 	private ISearchDao mySearchDao;
@@ -74,9 +84,6 @@ public class SearchCoordinatorSvcImplTest {
 	private ISearchIncludeDao mySearchIncludeDao;
 	@Mock
 	private ISearchResultDao mySearchResultDao;
-	@Captor
-	ArgumentCaptor<Iterable<SearchResult>> mySearchResultIterCaptor;
-	
 
 	private SearchCoordinatorSvcImpl mySvc;
 
@@ -98,6 +105,7 @@ public class SearchCoordinatorSvcImplTest {
 		mySvc.setSearchDaoForUnitTest(mySearchDao);
 		mySvc.setSearchDaoIncludeForUnitTest(mySearchIncludeDao);
 		mySvc.setSearchDaoResultForUnitTest(mySearchResultDao);
+		mySvc.setResourceTableDaoForUnitTest(myResourceTableDao);
 
 		myDaoConfig = new DaoConfig();
 		mySvc.setDaoConfigForUnitTest(myDaoConfig);
@@ -125,6 +133,32 @@ public class SearchCoordinatorSvcImplTest {
 		return pids;
 	}
 
+	/**
+	 * Makes the search builder read the results of an async search with the
+	 * given parameters from an iterator, one range of rows at a time
+	 */
+	private void stubQueryRange(SearchParameterMap theParams, final Iterator<Long> theResults) {
+		when(mySearchBuider.loadQueryRange(same(theParams), any(String.class), anyInt(), anyInt(), any(Collection.class))).thenAnswer(new Answer<Integer>() {
+			private int myRowsRead;
+
+			@Override
+			public Integer answer(InvocationOnMock theInvocation) throws Throwable {
+				int fromRow = (Integer) theInvocation.getArguments()[2];
+				int maxRows = (Integer) theInvocation.getArguments()[3];
+				Collection<Long> pids = (Collection<Long>) theInvocation.getArguments()[4];
+				// Each range carries on from the last, without reading any row twice
+				assertEquals(myRowsRead, fromRow);
+				int rows = 0;
+				while (rows < maxRows && theResults.hasNext()) {
+					pids.add(theResults.next());
+					rows++;
+				}
+				myRowsRead += rows;
+				return rows;
+			}
+		});
+	}
+
 	private Answer<Void> loadPids() {
 		Answer<Void> retVal = new Answer<Void>() {
 			@Override
@@ -149,7 +183,7 @@ public class SearchCoordinatorSvcImplTest {
 
 		List<Long> pids = createPidSequence(10, 800);
 		Iterator<Long> iter = new FailAfterNIterator<Long>(new SlowIterator<Long>(pids.iterator(), 2), 300);
-		when(mySearchBuider.createQuery(Mockito.same(params), any(String.class))).thenReturn(iter);
+		stubQueryRange(params, iter);
 
 		doAnswer(loadPids()).when(mySearchBuider).loadResourcesByPid(any(List.class), any(List.class), any(Set.class), anyBoolean(), any(EntityManager.class), any(FhirContext.class), same(myCallingDao));
 
@@ -163,6 +197,8 @@ public class SearchCoordinatorSvcImplTest {
 			assertEquals("FAILED", e.getMessage());
 		}
 
+		// Each batch is read with a new search builder
+		myExpectedNumberOfSearchBuildersCreated = 3;
 	}
 
 	private String newUuid() {
@@ -175,9 +211,10 @@ public class SearchCoordinatorSvcImplTest {
 
 		List<Long> pids = createPidSequence(10, 800);
 		Iterator<Long> iter = new SlowIterator<Long>(pids.iterator(), 2);
-		when(mySearchBuider.createQuery(Mockito.same(params), any(String.class))).thenReturn(iter);
+		stubQueryRange(params, iter);
 
 		doAnswer(loadPids()).when(mySearchBuider).loadResourcesByPid(any(List.class), any(List.class), any(Set.class), anyBoolean(), any(EntityManager.class), any(FhirContext.class), same(myCallingDao));
+		List<SearchResult> allResults = recordSavedResults();
 
 		IBundleProvider result = mySvc.registerSearch(myCallingDao, params, "Patient");
 		assertNotNull(result.getUuid());
@@ -193,15 +230,16 @@ public class SearchCoordinatorSvcImplTest {
 		ArgumentCaptor<Search> searchCaptor = ArgumentCaptor.forClass(Search.class);
 		verify(mySearchDao, atLeastOnce()).save(searchCaptor.capture());
 		
-		verify(mySearchResultDao, atLeastOnce()).save(mySearchResultIterCaptor.capture());
-		List<SearchResult> allResults= new ArrayList<SearchResult>();
-		for (Iterable<SearchResult> next : mySearchResultIterCaptor.getAllValues()) {
-			allResults.addAll(Lists.newArrayList(next));
-		}
+		verify(mySearchResultDao, never()).save(any(Iterable.class));
 		
 		assertEquals(790, allResults.size());
 		assertEquals(10, allResults.get(0).getResourcePid().longValue());
+		assertEquals(0, allResults.get(0).getOrder());
 		assertEquals(799, allResults.get(789).getResourcePid().longValue());
+		assertEquals(789, allResults.get(789).getOrder());
+
+		// Each batch is read with a new search builder
+		myExpectedNumberOfSearchBuildersCreated = 5;
 	}
 	
 	@Test
@@ -211,7 +249,7 @@ public class SearchCoordinatorSvcImplTest {
 
 		List<Long> pids = createPidSequence(10, 800);
 		SlowIterator<Long> iter = new SlowIterator<Long>(pids.iterator(), 2);
-		when(mySearchBuider.createQuery(Mockito.same(params), any(String.class))).thenReturn(iter);
+		stubQueryRange(params, iter);
 
 		doAnswer(loadPids()).when(mySearchBuider).loadResourcesByPid(any(List.class), any(List.class), any(Set.class), anyBoolean(), any(EntityManager.class), any(FhirContext.class), same(myCallingDao));
 
@@ -226,6 +264,8 @@ public class SearchCoordinatorSvcImplTest {
 		assertEquals("10", resources.get(0).getIdElement().getValueAsString());
 		assertEquals("39", resources.get(29).getIdElement().getValueAsString());
 
+		// Each batch is read with a new search builder
+		myExpectedNumberOfSearchBuildersCreated = 5;
 	}
 
 	/**
@@ -239,7 +279,7 @@ public class SearchCoordinatorSvcImplTest {
 
 		List<Long> pids = createPidSequence(10, 800);
 		Iterator<Long> iter = new SlowIterator<Long>(pids.iterator(), 2);
-		when(mySearchBuider.createQuery(Mockito.same(params), any(String.class))).thenReturn(iter);
+		stubQueryRange(params, iter);
 
 		doAnswer(loadPids()).when(mySearchBuider).loadResourcesByPid(any(List.class), any(List.class), any(Set.class), anyBoolean(), any(EntityManager.class), any(FhirContext.class), same(myCallingDao));
 
@@ -279,7 +319,7 @@ public class SearchCoordinatorSvcImplTest {
 		assertEquals("30", resources.get(0).getIdElement().getValueAsString());
 		assertEquals("799", resources.get(769).getIdElement().getValueAsString());
 
-		myExpectedNumberOfSearchBuildersCreated = 4;
+		myExpectedNumberOfSearchBuildersCreated = 7;
 	}
 
 	@Test
@@ -289,7 +329,7 @@ public class SearchCoordinatorSvcImplTest {
 
 		List<Long> pids = createPidSequence(10, 100);
 		SlowIterator<Long> iter = new SlowIterator<Long>(pids.iterator(), 2);
-		when(mySearchBuider.createQuery(Mockito.same(params), any(String.class))).thenReturn(iter);
+		stubQueryRange(params, iter);
 
 		doAnswer(loadPids()).when(mySearchBuider).loadResourcesByPid(any(List.class), any(List.class), any(Set.class), anyBoolean(), any(EntityManager.class), any(FhirContext.class), same(myCallingDao));
 
@@ -370,6 +410,357 @@ public class SearchCoordinatorSvcImplTest {
 		myExpectedNumberOfSearchBuildersCreated = 3;
 	}
 
+	/**
+	 * A page request on another node wakes up as soon as the batch of results
+	 * it needs is committed, instead of waiting for the next poll
+	 */
+	@Test
+	public void testLoadSearchResultsFromDifferentNodeIsNotified() throws Exception {
+		ISearchProgressNotifier notifier = new DatabaseSearchProgressNotifier("searchProgress" + UUID.randomUUID().toString().replace("-", ""));
+		SearchCoordinatorSvcImpl nodeA = newNode(notifier);
+		SearchCoordinatorSvcImpl nodeB = newNode(notifier);
+		nodeB.setMaxMillisBetweenRemotePollsForUnitTest(DateUtils.MILLIS_PER_MINUTE);
+		storeSearchesInMemory();
+
+		final SearchParameterMap params = new SearchParameterMap();
+		params.add("name", new StringParam("ANAME"));
+		stubQueryRange(params, new SlowIterator<Long>(createPidSequence(10, 800).iterator(), 2));
+
+		IBundleProvider result = nodeA.registerSearch(myCallingDao, params, "Patient");
+		assertEquals(20, nodeA.getResources(result.getUuid(), 0, 20).size());
+		long start = System.currentTimeMillis();
+		List<Long> pids = nodeB.getResources(result.getUuid(), 20, 40);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals(20, pids.size());
+		assertEquals(30L, pids.get(0).longValue());
+		assertTrue("Took " + elapsed + "ms", elapsed < 10000);
+
+		myExpectedNumberOfSearchBuildersCreated = 5;
+	}
+
+	/**
+	 * Not a pass/fail test: logs second page latency (p50/p99) for a page
+	 * requested on a different node while the search is loading, when the
+	 * waiting node re-reads the search on a fixed interval, and when it is
+	 * notified in process or through the database stand-in. Only run when
+	 * benchmarking, with <code>-Dhapi.test.benchmark=true</code>.
+	 */
+	@Test
+	public void testSecondPageLatencyFromDifferentNode() throws Exception {
+		assumeTrue(Boolean.getBoolean("hapi.test.benchmark"));
+		myExpectedNumberOfSearchBuildersCreated = Integer.MAX_VALUE;
+		storeSearchesInMemory();
+		when(mySearchBuider.loadQueryRange(any(SearchParameterMap.class), any(String.class), anyInt(), anyInt(), any(Collection.class))).thenAnswer(new Answer<Integer>() {
+			@Override
+			public Integer answer(InvocationOnMock theInvocation) throws Throwable {
+				int fromRow = (Integer) theInvocation.getArguments()[2];
+				int maxRows = (Integer) theInvocation.getArguments()[3];
+				List<Long> pids = createPidSequence(10, 400);
+				List<Long> range = pids.subList(Math.min(fromRow, pids.size()), Math.min(fromRow + maxRows, pids.size()));
+				Thread.sleep(range.size());
+				((Collection<Long>) theInvocation.getArguments()[4]).addAll(range);
+				return range.size();
+			}
+		});
+
+		ISearchProgressNotifier polling = new ISearchProgressNotifier() {
+			@Override
+			public boolean awaitProgress(String theSearchUuid, int theNumFoundSeen, long theTimeoutMillis) throws InterruptedException {
+				Thread.sleep(theTimeoutMillis);
+				return false;
+			}
+
+			@Override
+			public void notifyProgress(String theSearchUuid, int theNumFound, boolean theFinished) {
+				// nothing
+			}
+		};
+		logSecondPageLatency("polling", polling);
+		logSecondPageLatency("in process", new LocalSearchProgressNotifier());
+		logSecondPageLatency("database", new DatabaseSearchProgressNotifier("searchProgress" + UUID.randomUUID().toString().replace("-", "")));
+	}
+
+	private void logSecondPageLatency(String theName, ISearchProgressNotifier theNotifier) {
+		SearchCoordinatorSvcImpl nodeA = newNode(theNotifier);
+		nodeA.setSyncSizeForUnitTests(20);
+		SearchCoordinatorSvcImpl nodeB = newNode(theNotifier);
+
+		long[] millis = new long[20];
+		for (int i = 0; i < millis.length; i++) {
+			SearchParameterMap params = new SearchParameterMap();
+			params.add("name", new StringParam("ANAME" + i));
+			IBundleProvider result = nodeA.registerSearch(myCallingDao, params, "Patient");
+			assertEquals(20, nodeA.getResources(result.getUuid(), 0, 20).size());
+			long start = System.nanoTime();
+			assertEquals(20, nodeB.getResources(result.getUuid(), 20, 40).size());
+			millis[i] = (System.nanoTime() - start) / 1000000;
+		}
+		Arrays.sort(millis);
+		ourLog.info("Second page from another node, {}: p50 {}ms, p99 {}ms", theName, millis[millis.length / 2], millis[(int) Math.ceil(millis.length * 0.99) - 1]);
+	}
+
+	private SearchCoordinatorSvcImpl newNode(ISearchProgressNotifier theNotifier) {
+		SearchCoordinatorSvcImpl retVal = new SearchCoordinatorSvcImpl();
+		retVal.setEntityManagerForUnitTest(myEntityManager);
+		retVal.setTransactionManagerForUnitTest(myTxManager);
+		retVal.setContextForUnitTest(ourCtx);
+		retVal.setSearchDaoForUnitTest(mySearchDao);
+		retVal.setSearchDaoIncludeForUnitTest(mySearchIncludeDao);
+		retVal.setSearchDaoResultForUnitTest(mySearchResultDao);
+		retVal.setResourceTableDaoForUnitTest(myResourceTableDao);
+		retVal.setDaoConfigForUnitTest(myDaoConfig);
+		retVal.setSearchProgressNotifierForUnitTest(theNotifier);
+		return retVal;
+	}
+
+	/**
+	 * Records the search results saved through the bulk insert, copying them
+	 * as the PID buffer passed in is reused
+	 */
+	private List<SearchResult> recordSavedResults() {
+		final List<SearchResult> retVal = Collections.synchronizedList(new ArrayList<SearchResult>());
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock theInvocation) throws Throwable {
+				retVal.addAll(toSearchResults(theInvocation));
+				return null;
+			}
+		}).when(mySearchResultDao).saveResults(any(Search.class), any(long[].class), anyInt(), anyInt());
+		return retVal;
+	}
+
+	private static List<SearchResult> toSearchResults(InvocationOnMock theSaveResultsInvocation) {
+		Search search = (Search) theSaveResultsInvocation.getArguments()[0];
+		long[] pids = (long[]) theSaveResultsInvocation.getArguments()[1];
+		int count = (Integer) theSaveResultsInvocation.getArguments()[2];
+		int firstOrder = (Integer) theSaveResultsInvocation.getArguments()[3];
+		List<SearchResult> retVal = new ArrayList<SearchResult>();
+		for (int i = 0; i < count; i++) {
+			SearchResult next = new SearchResult(search);
+			next.setResourcePid(pids[i]);
+			next.setOrder(firstOrder + i);
+			retVal.add(next);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Makes the search DAOs keep searches and their results in memory, shared
+	 * by all nodes
+	 */
+	private void storeSearchesInMemory() {
+		final Map<String, Search> searches = Collections.synchronizedMap(new HashMap<String, Search>());
+		final Map<Search, List<SearchResult>> results = Collections.synchronizedMap(new IdentityHashMap<Search, List<SearchResult>>());
+		when(mySearchDao.save(any(Search.class))).thenAnswer(new Answer<Search>() {
+			@Override
+			public Search answer(InvocationOnMock theInvocation) throws Throwable {
+				Search search = (Search) theInvocation.getArguments()[0];
+				searches.put(search.getUuid(), search);
+				return search;
+			}
+		});
+		when(mySearchDao.findByUuid(any(String.class))).thenAnswer(new Answer<Search>() {
+			@Override
+			public Search answer(InvocationOnMock theInvocation) throws Throwable {
+				return searches.get(theInvocation.getArguments()[0]);
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock theInvocation) throws Throwable {
+				Search search = (Search) theInvocation.getArguments()[0];
+				synchronized (results) {
+					if (!results.containsKey(search)) {
+						results.put(search, new ArrayList<SearchResult>());
+					}
+					results.get(search).addAll(toSearchResults(theInvocation));
+				}
+				return null;
+			}
+		}).when(mySearchResultDao).saveResults(any(Search.class), any(long[].class), anyInt(), anyInt());
+		when(mySearchResultDao.findWithSearchUuid(any(Search.class), any(Pageable.class))).thenAnswer(new Answer<Page<SearchResult>>() {
+			@Override
+			public Page<SearchResult> answer(InvocationOnMock theInvocation) throws Throwable {
+				Search search = (Search) theInvocation.getArguments()[0];
+				Pageable page = (Pageable) theInvocation.getArguments()[1];
+				synchronized (results) {
+					List<SearchResult> all = results.get(search);
+					int to = Math.min(all.size(), page.getOffset() + page.getPageSize());
+					return new PageImpl<SearchResult>(new ArrayList<SearchResult>(all.subList(page.getOffset(), to)));
+				}
+			}
+		});
+	}
+
+	@Test
+	public void testAsyncSearchRefusedWhenQueueFull() {
+		myDaoConfig.setSearchThreadCount(1);
+		myDaoConfig.setSearchQueueSize(0);
+		myDaoConfig.setSearchRetryAfterSeconds(7);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add("name", new StringParam("ANAME"));
+		stubQueryRange(params, new SlowIterator<Long>(createPidSequence(10, 800).iterator(), 2));
+
+		IBundleProvider result = mySvc.registerSearch(myCallingDao, params, "Patient");
+		assertNotNull(result.getUuid());
+
+		try {
+			mySvc.registerSearch(myCallingDao, params, "Patient");
+			fail();
+		} catch (BaseServerResponseException e) {
+			assertEquals(503, e.getStatusCode());
+			assertEquals(Collections.singletonList("7"), e.getResponseHeaders().get("Retry-After"));
+		}
+		assertEquals(1, mySvc.getSearchScheduler().getRejectedCount());
+
+		myExpectedNumberOfSearchBuildersCreated = 6;
+	}
+
+	/**
+	 * With all search threads busy, a search which has saved its first page
+	 * lets a new search which is waiting go ahead, and then picks up where it
+	 * left off
+	 */
+	@Test
+	public void testAsyncSearchYieldsToNewSearch() throws Exception {
+		myDaoConfig.setSearchThreadCount(1);
+		mySvc.setSyncSizeForUnitTests(10);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add("name", new StringParam("ANAME"));
+		stubQueryRange(params, new SlowIterator<Long>(createPidSequence(10, 200).iterator(), 2));
+		SearchParameterMap params2 = new SearchParameterMap();
+		params2.add("name", new StringParam("BNAME"));
+		stubQueryRange(params2, createPidSequence(1000, 1050).iterator());
+
+		IBundleProvider result = mySvc.registerSearch(myCallingDao, params, "Patient");
+		IBundleProvider result2 = mySvc.registerSearch(myCallingDao, params2, "Patient");
+		assertEquals(10, mySvc.getResources(result.getUuid(), 0, 10).size());
+
+		List<Long> pids2 = mySvc.getResources(result2.getUuid(), 0, 1000);
+		assertEquals(50, pids2.size());
+
+		List<Long> pids = mySvc.getResources(result.getUuid(), 0, 1000);
+		assertEquals(createPidSequence(10, 200), pids);
+		assertEquals(3, mySvc.getSearchScheduler().getSubmittedCount());
+
+		myExpectedNumberOfSearchBuildersCreated = 28;
+	}
+
+	/**
+	 * A search makes way for a new search waiting for a thread after any batch
+	 * of results, not only after its first page
+	 */
+	@Test
+	public void testAsyncSearchYieldsAfterEachBatch() throws Exception {
+		myDaoConfig.setSearchThreadCount(1);
+		mySvc.setSyncSizeForUnitTests(10);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add("name", new StringParam("ANAME"));
+		stubQueryRange(params, new SlowIterator<Long>(createPidSequence(10, 200).iterator(), 5));
+		SearchParameterMap params2 = new SearchParameterMap();
+		params2.add("name", new StringParam("BNAME"));
+		stubQueryRange(params2, createPidSequence(1000, 1050).iterator());
+		SearchParameterMap params3 = new SearchParameterMap();
+		params3.add("name", new StringParam("CNAME"));
+		stubQueryRange(params3, new SlowIterator<Long>(createPidSequence(2000, 2050).iterator(), 5));
+
+		IBundleProvider result = mySvc.registerSearch(myCallingDao, params, "Patient");
+		IBundleProvider result2 = mySvc.registerSearch(myCallingDao, params2, "Patient");
+		assertEquals(10, mySvc.getResources(result.getUuid(), 0, 10).size());
+		assertEquals(50, mySvc.getResources(result2.getUuid(), 0, 1000).size());
+
+		// The first search is continuing now, and makes way again
+		assertEquals(20, mySvc.getResources(result.getUuid(), 0, 20).size());
+		IBundleProvider result3 = mySvc.registerSearch(myCallingDao, params3, "Patient");
+		assertEquals(50, mySvc.getResources(result3.getUuid(), 0, 1000).size());
+		assertEquals(createPidSequence(10, 200), mySvc.getResources(result.getUuid(), 0, 1000));
+		assertEquals(5, mySvc.getSearchScheduler().getSubmittedCount());
+
+		myExpectedNumberOfSearchBuildersCreated = 35;
+	}
+
+	/**
+	 * A search whose results all fit in its first batch is finished, so it
+	 * doesn't yield
+	 */
+	@Test
+	public void testAsyncSearchFinishedInFirstBatchDoesNotYield() throws Exception {
+		myDaoConfig.setSearchThreadCount(1);
+		mySvc.setSyncSizeForUnitTests(10);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add("name", new StringParam("ANAME"));
+		stubQueryRange(params, new SlowIterator<Long>(createPidSequence(10, 15).iterator(), 5));
+		SearchParameterMap params2 = new SearchParameterMap();
+		params2.add("name", new StringParam("BNAME"));
+		stubQueryRange(params2, createPidSequence(1000, 1050).iterator());
+
+		IBundleProvider result = mySvc.registerSearch(myCallingDao, params, "Patient");
+		IBundleProvider result2 = mySvc.registerSearch(myCallingDao, params2, "Patient");
+		assertEquals(createPidSequence(10, 15), mySvc.getResources(result.getUuid(), 0, 1000));
+		assertEquals(50, mySvc.getResources(result2.getUuid(), 0, 1000).size());
+		assertEquals(2, mySvc.getSearchScheduler().getSubmittedCount());
+
+		myExpectedNumberOfSearchBuildersCreated = 9;
+	}
+
+	/**
+	 * A request for the first page of a search which is queued behind a
+	 * running one gives up after the wait limit, asking the client to retry
+	 */
+	@Test
+	public void testAsyncSearchQueuedFirstPageWaitTimesOut() {
+		myDaoConfig.setSearchThreadCount(1);
+		mySvc.setMaxMillisToWaitForRemoteResultsForUnitTest(200);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add("name", new StringParam("ANAME"));
+		stubQueryRange(params, new SlowIterator<Long>(createPidSequence(10, 800).iterator(), 5));
+		SearchParameterMap params2 = new SearchParameterMap();
+		params2.add("name", new StringParam("BNAME"));
+		stubQueryRange(params2, createPidSequence(1000, 1050).iterator());
+
+		mySvc.registerSearch(myCallingDao, params, "Patient");
+		IBundleProvider result2 = mySvc.registerSearch(myCallingDao, params2, "Patient");
+		try {
+			result2.size();
+			fail();
+		} catch (BaseServerResponseException e) {
+			assertEquals(503, e.getStatusCode());
+			assertEquals(Collections.singletonList(Integer.toString(myDaoConfig.getSearchRetryAfterSeconds())), e.getResponseHeaders().get("Retry-After"));
+		}
+
+		mySvc.cancelAllActiveSearches();
+
+		myExpectedNumberOfSearchBuildersCreated = 12;
+	}
+
+	@Test
+	public void testAsyncSearchPageWaitTimesOut() {
+		mySvc.setMaxMillisToWaitForRemoteResultsForUnitTest(200);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add("name", new StringParam("ANAME"));
+		stubQueryRange(params, new SlowIterator<Long>(createPidSequence(10, 800).iterator(), 5));
+
+		IBundleProvider result = mySvc.registerSearch(myCallingDao, params, "Patient");
+		try {
+			mySvc.getResources(result.getUuid(), 0, 700);
+			fail();
+		} catch (BaseServerResponseException e) {
+			assertEquals(503, e.getStatusCode());
+			assertEquals(Collections.singletonList(Integer.toString(myDaoConfig.getSearchRetryAfterSeconds())), e.getResponseHeaders().get("Retry-After"));
+		}
+
+		mySvc.cancelAllActiveSearches();
+
+		myExpectedNumberOfSearchBuildersCreated = 5;
+	}
+
 	@Test
 	public void testSynchronousSearch() {
 		SearchParameterMap params = new SearchParameterMap();
@@ -0,0 +1,125 @@
+package ca.uhn.fhir.jpa.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.rest.param.HasParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.TestUtil;
+
+public class SearchResultCacheTest {
+
+	private static FhirContext ourCtx = FhirContext.forDstu3();
+
+	private Search newSearch(long theId, String theResourceType, String theQueryString, Date theCreated) {
+		Search retVal = new Search();
+		ReflectionTestUtils.setField(retVal, "myId", theId);
+		retVal.setUuid("uuid" + theId);
+		retVal.setResourceType(theResourceType);
+		retVal.setSearchQueryString(theQueryString);
+		retVal.setCreated(theCreated);
+		return retVal;
+	}
+
+	@Test
+	public void testDependsOnOtherTypes() {
+		SearchParameterMap params = new SearchParameterMap();
+		params.add("name", new StringParam("FOO"));
+		params.add("subject", new ReferenceParam("Patient/123"));
+		assertFalse(SearchResultCache.dependsOnOtherTypes(params));
+
+		params = new SearchParameterMap();
+		params.add("subject", new ReferenceParam("Patient", "name", "FOO"));
+		assertTrue(SearchResultCache.dependsOnOtherTypes(params));
+
+		params = new SearchParameterMap();
+		params.add("_has", new HasParam("Observation", "subject", "code", "123"));
+		assertTrue(SearchResultCache.dependsOnOtherTypes(params));
+	}
+
+	@Test
+	public void testFingerprintIgnoresParameterOrder() {
+		SearchParameterMap params1 = new SearchParameterMap();
+		params1.add("name", new StringParam("FOO"));
+		params1.add("identifier", new TokenParam("sys", "val"));
+		SearchParameterMap params2 = new SearchParameterMap();
+		params2.add("identifier", new TokenParam("sys", "val"));
+		params2.add("name", new StringParam("FOO"));
+
+		String fingerprint1 = SearchResultCache.createFingerprint("Patient", params1.toNormalizedQueryString(ourCtx));
+		String fingerprint2 = SearchResultCache.createFingerprint("Patient", params2.toNormalizedQueryString(ourCtx));
+		assertEquals(fingerprint1, fingerprint2);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEvicted() {
+		SearchResultCache cache = new SearchResultCache(2);
+		Date created = new Date();
+		cache.put(newSearch(1, "Patient", "?name=A", created), false);
+		cache.put(newSearch(2, "Patient", "?name=B", created), false);
+		assertNotNull(cache.get("Patient?name=A"));
+		cache.put(newSearch(3, "Patient", "?name=C", created), false);
+
+		assertNotNull(cache.get("Patient?name=A"));
+		assertNull(cache.get("Patient?name=B"));
+		assertNotNull(cache.get("Patient?name=C"));
+	}
+
+	@Test
+	public void testWrittenSince() {
+		SearchResultCache cache = new SearchResultCache();
+		Date created = DateUtils.addMinutes(new Date(), -1);
+		cache.put(newSearch(1, "Patient", "?name=A", created), false);
+		cache.put(newSearch(2, "Observation", "?subject.name=A", created), true);
+		SearchResultCache.CachedSearch patientSearch = cache.get("Patient?name=A");
+		SearchResultCache.CachedSearch chainedSearch = cache.get("Observation?subject.name=A");
+
+		assertFalse(cache.isWrittenSince(patientSearch));
+		assertFalse(cache.isWrittenSince(chainedSearch));
+
+		cache.notifyResourceWritten("Organization");
+		assertFalse(cache.isWrittenSince(patientSearch));
+		assertTrue(cache.isWrittenSince(chainedSearch));
+
+		cache.notifyResourceWritten("Patient");
+		assertTrue(cache.isWrittenSince(patientSearch));
+	}
+
+	@Test
+	public void testHitRatio() {
+		SearchResultCache cache = new SearchResultCache();
+		assertEquals(0, cache.getHitRatio(), 0);
+
+		cache.recordMemoryHit();
+		cache.recordDatabaseHit();
+		cache.recordMiss();
+		cache.put(newSearch(1, "Patient", "?name=A", new Date()), false);
+		cache.recordInvalidated(cache.get("Patient?name=A"));
+
+		assertEquals(0.5, cache.getHitRatio(), 0.0001);
+		assertEquals(2, cache.getMissCount());
+		assertEquals(1, cache.getInvalidatedCount());
+		assertNull(cache.get("Patient?name=A"));
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -0,0 +1,158 @@
+package ca.uhn.fhir.jpa.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.search.SearchScheduler.PriorityEnum;
+
+public class SearchSchedulerTest {
+
+	private final CountDownLatch myBlocker = new CountDownLatch(1);
+	private final List<String> myRan = Collections.synchronizedList(new ArrayList<String>());
+	private SearchScheduler mySvc;
+
+	@After
+	public void after() {
+		myBlocker.countDown();
+		mySvc.shutdown();
+	}
+
+	private void blockWorker() throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		mySvc.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				started.countDown();
+				myBlocker.await();
+				return null;
+			}
+		}, PriorityEnum.FIRST_PAGE, "blocker");
+		started.await();
+	}
+
+	private Future<String> submit(final String theName, PriorityEnum thePriority, String theClient) {
+		return mySvc.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				myRan.add(theName);
+				return theName;
+			}
+		}, thePriority, theClient);
+	}
+
+	@Test
+	public void testAdmissionControl() throws Exception {
+		mySvc = new SearchScheduler("test_", 1, 3, 2);
+		blockWorker();
+
+		submit("A1", PriorityEnum.FIRST_PAGE, "A");
+		submit("A2", PriorityEnum.FIRST_PAGE, "A");
+		try {
+			submit("A3", PriorityEnum.FIRST_PAGE, "A");
+			fail();
+		} catch (RejectedExecutionException e) {
+			// expected, client's share is full
+		}
+		submit("B1", PriorityEnum.FIRST_PAGE, "B");
+		try {
+			submit("C1", PriorityEnum.FIRST_PAGE, "C");
+			fail();
+		} catch (RejectedExecutionException e) {
+			// expected, queue is full
+		}
+
+		// Continuations are always accepted
+		Future<String> continuation = submit("X", PriorityEnum.CONTINUATION, null);
+		assertEquals(4, mySvc.getQueueDepth());
+		assertEquals(2, mySvc.getRejectedCount());
+
+		myBlocker.countDown();
+		assertEquals("X", continuation.get());
+		assertEquals(0, mySvc.getQueueDepth());
+
+		// Once the queue drains the client may submit again
+		assertEquals("A3", submit("A3", PriorityEnum.FIRST_PAGE, "A").get());
+	}
+
+	@Test
+	public void testFirstPagesBeforeContinuationsAndFairBetweenClients() throws Exception {
+		mySvc = new SearchScheduler("test_", 1, 100, 100);
+		blockWorker();
+
+		submit("X1", PriorityEnum.CONTINUATION, null);
+		submit("A1", PriorityEnum.FIRST_PAGE, "A");
+		submit("A2", PriorityEnum.FIRST_PAGE, "A");
+		submit("A3", PriorityEnum.FIRST_PAGE, "A");
+		submit("B1", PriorityEnum.FIRST_PAGE, "B");
+		submit("X2", PriorityEnum.CONTINUATION, null);
+		Future<String> last = submit("B2", PriorityEnum.FIRST_PAGE, "B");
+		assertTrue(mySvc.isFirstPageWorkWaiting());
+
+		myBlocker.countDown();
+		last.get();
+		while (mySvc.getCompletedCount() < 8) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(Arrays.asList("A1", "B1", "A2", "B2", "A3", "X1", "X2"), myRan);
+		assertFalse(mySvc.isFirstPageWorkWaiting());
+	}
+
+	@Test
+	public void testContinuationPromotedAfterMaxWait() throws Exception {
+		mySvc = new SearchScheduler("test_", 1, 100, 100);
+		mySvc.setContinuationMaxWaitMillis(100);
+		blockWorker();
+
+		submit("X1", PriorityEnum.CONTINUATION, "X");
+		submit("A1", PriorityEnum.FIRST_PAGE, "A");
+		Thread.sleep(150);
+		submit("B1", PriorityEnum.FIRST_PAGE, "B");
+		Future<String> last = submit("C1", PriorityEnum.FIRST_PAGE, "C");
+		assertEquals(1, mySvc.getPromotedCount());
+
+		myBlocker.countDown();
+		last.get();
+		while (mySvc.getCompletedCount() < 5) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(Arrays.asList("X1", "A1", "B1", "C1"), myRan);
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		mySvc = new SearchScheduler("test_", 1, 100, 100);
+		blockWorker();
+		Future<String> waiting = submit("A1", PriorityEnum.FIRST_PAGE, "A");
+		assertEquals(1, mySvc.getQueueDepth());
+		assertEquals(1, mySvc.getRunningCount());
+
+		Thread.sleep(200);
+		myBlocker.countDown();
+		waiting.get();
+		while (mySvc.getCompletedCount() < 2) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(2, mySvc.getSubmittedCount());
+		assertTrue(mySvc.getMaxWaitMillis() >= 150);
+		assertTrue(mySvc.getMaxRunMillis() >= 150);
+		assertTrue(mySvc.getMeanWaitMillis() > 0);
+	}
+
+}
@@ -0,0 +1,146 @@
+package ca.uhn.fhir.jpa.subscription;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Subscription;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.subscription.SubscriptionCriteriaIndex.ActiveSubscription;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.util.TestUtil;
+
+public class ResourceChangeEventBusTest {
+
+	private static FhirContext ourCtx = FhirContext.forDstu3();
+
+	private ResourceChangeEventBus myBus = new ResourceChangeEventBus();
+
+	@After
+	public void after() {
+		myBus.stop();
+	}
+
+	private void publish(IBaseResource theResource, String theId, RestOperationTypeEnum theOperation) {
+		theResource.setId(theId);
+		myBus.publish(ourCtx, theResource, theOperation, new Date());
+	}
+
+	/**
+	 * A subscription listener is only passed creates and updates of resources
+	 * of its subscription's type
+	 */
+	@Test
+	public void testSubscriptionListenerOnlyPassedItsResourceType() throws Exception {
+		RecordingListener observations = new RecordingListener();
+		RecordingListener patients = new RecordingListener();
+		RecordingListener patients2 = new RecordingListener();
+		myBus.register(observations, createSubscription("1", "Observation"));
+		myBus.register(patients, createSubscription("2", "Patient"));
+		myBus.register(patients2, createSubscription("2", "Patient"));
+		assertEquals(3, myBus.getListenerCount());
+
+		publish(new Observation(), "Observation/1/_history/1", RestOperationTypeEnum.CREATE);
+		publish(new Patient(), "Patient/2/_history/1", RestOperationTypeEnum.CREATE);
+		publish(new Patient(), "Patient/2/_history/2", RestOperationTypeEnum.DELETE);
+		publish(new Observation(), "Observation/1/_history/2", RestOperationTypeEnum.UPDATE);
+
+		observations.waitForIds(2);
+		patients.waitForIds(1);
+		patients2.waitForIds(1);
+		Thread.sleep(100);
+		assertEquals(Collections.singletonList("Patient/2/_history/1"), patients.getIds());
+		assertEquals(Collections.singletonList("Patient/2/_history/1"), patients2.getIds());
+		assertEquals(2, observations.getIds().size());
+
+		// Once the last listener for a subscription goes, so does the subscription
+		myBus.unregister(patients);
+		myBus.unregister(patients2);
+		publish(new Patient(), "Patient/3/_history/1", RestOperationTypeEnum.CREATE);
+		publish(new Observation(), "Observation/3/_history/1", RestOperationTypeEnum.CREATE);
+		observations.waitForIds(3);
+		assertEquals(1, patients.getIds().size());
+		assertEquals(1, myBus.getListenerCount());
+	}
+
+	/**
+	 * Changes which no listener would be passed aren't copied into an event
+	 */
+	@Test
+	public void testChangeWithNoListenerIsDropped() throws Exception {
+		publish(new Observation(), "Observation/1/_history/1", RestOperationTypeEnum.CREATE);
+		assertEquals(0, myBus.getPublishedCount());
+
+		RecordingListener patients = new RecordingListener();
+		myBus.register(patients, createSubscription("1", "Patient"));
+		publish(new Observation(), "Observation/1/_history/2", RestOperationTypeEnum.UPDATE);
+		publish(new Patient(), "Patient/2/_history/1", RestOperationTypeEnum.DELETE);
+		assertEquals(0, myBus.getPublishedCount());
+
+		publish(new Patient(), "Patient/3/_history/1", RestOperationTypeEnum.CREATE);
+		assertEquals(1, myBus.getPublishedCount());
+		patients.waitForIds(1);
+	}
+
+	@Test
+	public void testListenerForAllChanges() throws Exception {
+		RecordingListener all = new RecordingListener();
+		myBus.register(all);
+
+		publish(new Observation(), "Observation/1/_history/1", RestOperationTypeEnum.CREATE);
+		publish(new Patient(), "Patient/2/_history/1", RestOperationTypeEnum.DELETE);
+
+		all.waitForIds(2);
+		myBus.unregister(all);
+		assertEquals(0, myBus.getListenerCount());
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+	private static ActiveSubscription createSubscription(String theId, String theResourceType) {
+		Subscription subscription = new Subscription();
+		subscription.setId("Subscription/" + theId);
+		subscription.setCriteria(theResourceType + "?");
+		return new ActiveSubscription(subscription, subscription.getCriteria(), theResourceType, null);
+	}
+
+	private static class RecordingListener implements IResourceChangeListener {
+
+		private final List<String> myIds = Collections.synchronizedList(new ArrayList<String>());
+
+		public List<String> getIds() {
+			return myIds;
+		}
+
+		@Override
+		public void resourceChanged(ResourceChangeEvent theEvent) {
+			myIds.add(theEvent.getId().getValue());
+		}
+
+		public void waitForIds(int theCount) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (myIds.size() < theCount) {
+				if (System.currentTimeMillis() > deadline) {
+					fail("Expected " + theCount + " changes but got " + myIds);
+				}
+				Thread.sleep(5);
+			}
+		}
+
+	}
+
+}
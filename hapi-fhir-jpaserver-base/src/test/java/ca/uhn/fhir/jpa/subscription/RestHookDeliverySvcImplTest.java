@@ -0,0 +1,33 @@
+package ca.uhn.fhir.jpa.subscription;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import ca.uhn.fhir.util.TestUtil;
+
+public class RestHookDeliverySvcImplTest {
+
+	@Test
+	public void testCalculateBackoff() {
+		assertEquals(1000, RestHookDeliverySvcImpl.calculateBackoffMillis(1, 1000, DateUtils.MILLIS_PER_HOUR));
+		assertEquals(2000, RestHookDeliverySvcImpl.calculateBackoffMillis(2, 1000, DateUtils.MILLIS_PER_HOUR));
+		assertEquals(4000, RestHookDeliverySvcImpl.calculateBackoffMillis(3, 1000, DateUtils.MILLIS_PER_HOUR));
+		assertEquals(512000, RestHookDeliverySvcImpl.calculateBackoffMillis(10, 1000, DateUtils.MILLIS_PER_HOUR));
+	}
+
+	@Test
+	public void testCalculateBackoffIsCapped() {
+		assertEquals(5000, RestHookDeliverySvcImpl.calculateBackoffMillis(4, 1000, 5000));
+		assertEquals(DateUtils.MILLIS_PER_HOUR, RestHookDeliverySvcImpl.calculateBackoffMillis(Integer.MAX_VALUE, 1000, DateUtils.MILLIS_PER_HOUR));
+		assertEquals(Long.MAX_VALUE, RestHookDeliverySvcImpl.calculateBackoffMillis(100, Long.MAX_VALUE / 3, Long.MAX_VALUE));
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
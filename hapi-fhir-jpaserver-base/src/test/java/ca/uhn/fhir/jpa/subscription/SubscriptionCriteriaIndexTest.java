@@ -0,0 +1,141 @@
+package ca.uhn.fhir.jpa.subscription;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.hl7.fhir.dstu3.model.Subscription;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.subscription.SubscriptionCriteriaIndex.ActiveSubscription;
+import ca.uhn.fhir.util.TestUtil;
+
+public class SubscriptionCriteriaIndexTest {
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+	private static ActiveSubscription createSubscription(String theId, String theResourceType) {
+		Subscription subscription = new Subscription();
+		subscription.setId("Subscription/" + theId);
+		subscription.setCriteria(theResourceType + "?");
+		return new ActiveSubscription(subscription, subscription.getCriteria(), theResourceType, null);
+	}
+
+	@Test
+	public void testAddReplaceAndRemove() {
+		SubscriptionCriteriaIndex index = new SubscriptionCriteriaIndex();
+		index.add(createSubscription("1", "Observation"));
+		index.add(createSubscription("2", "Observation"));
+		index.add(createSubscription("3", "Patient"));
+		assertEquals(3, index.size());
+		assertEquals(2, index.getCandidates("Observation", null).size());
+
+		// Same ID moves to the new resource type
+		index.add(createSubscription("2", "Patient"));
+		assertEquals(3, index.size());
+		assertEquals(1, index.getCandidates("Observation", null).size());
+		assertEquals(2, index.getCandidates("Patient", null).size());
+
+		assertEquals("1", index.remove("1").getId());
+		assertNull(index.remove("1"));
+		assertFalse(index.hasSubscriptions("Observation"));
+		assertEquals(0, index.getCandidates("Observation", null).size());
+	}
+
+	@Test
+	public void testCandidatesAreNotChangedByLaterWrites() {
+		SubscriptionCriteriaIndex index = new SubscriptionCriteriaIndex();
+		index.add(createSubscription("1", "Observation"));
+
+		Collection<ActiveSubscription> candidates = index.getCandidates("Observation", null);
+		index.add(createSubscription("2", "Observation"));
+		index.remove("1");
+
+		assertEquals(1, candidates.size());
+		assertEquals("1", candidates.iterator().next().getId());
+	}
+
+	@Test
+	public void testReplaceAllSkippedIfChangedSinceRead() {
+		SubscriptionCriteriaIndex index = new SubscriptionCriteriaIndex();
+		long modCount = index.getModCount();
+		index.add(createSubscription("1", "Observation"));
+
+		assertFalse(index.replaceAll(Arrays.asList(createSubscription("2", "Patient")), modCount));
+		assertEquals("1", index.getAll().iterator().next().getId());
+
+		assertTrue(index.replaceAll(Arrays.asList(createSubscription("2", "Patient")), index.getModCount()));
+		assertEquals(1, index.size());
+		assertFalse(index.hasSubscriptions("Observation"));
+		assertTrue(index.hasSubscriptions("Patient"));
+	}
+
+	/**
+	 * Lookups used to iterate a list which other threads were changing
+	 */
+	@Test
+	public void testConcurrentLookupsAndChanges() throws Exception {
+		final SubscriptionCriteriaIndex index = new SubscriptionCriteriaIndex();
+		for (int i = 0; i < 100; i++) {
+			index.add(createSubscription("FIXED" + i, "Observation"));
+		}
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final CountDownLatch started = new CountDownLatch(4);
+		ExecutorService executor = Executors.newFixedThreadPool(5);
+		try {
+			List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < 4; i++) {
+				readers.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						started.countDown();
+						int lookups = 0;
+						while (!stop.get()) {
+							int count = 0;
+							for (ActiveSubscription next : index.getCandidates("Observation", null)) {
+								if (next.getId().startsWith("FIXED")) {
+									count++;
+								}
+							}
+							assertEquals(100, count);
+							lookups++;
+						}
+						return lookups;
+					}
+				}));
+			}
+
+			started.await();
+			for (int i = 0; i < 2000; i++) {
+				index.add(createSubscription("CHANGING" + (i % 10), "Observation"));
+				index.remove("CHANGING" + ((i + 5) % 10));
+			}
+			stop.set(true);
+
+			for (Future<Integer> next : readers) {
+				assertTrue(next.get(60, TimeUnit.SECONDS) > 0);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
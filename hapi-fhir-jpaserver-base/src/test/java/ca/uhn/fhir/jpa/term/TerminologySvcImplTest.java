@@ -4,10 +4,15 @@ import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 
@@ -16,7 +21,14 @@ import org.hl7.fhir.dstu3.model.CodeSystem.CodeSystemContentMode;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.junit.AfterClass;
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.AopTestUtils;
 
+import com.google.common.collect.ArrayListMultimap;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.data.ITermCodeSystemVersionDao;
+import ca.uhn.fhir.jpa.dao.data.ITermConceptClosureDao;
 import ca.uhn.fhir.jpa.dao.dstu3.BaseJpaDstu3Test;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.TermCodeSystemVersion;
@@ -29,6 +41,13 @@ import ca.uhn.fhir.util.TestUtil;
 public class TerminologySvcImplTest extends BaseJpaDstu3Test {
 
 	private static final String CS_URL = "http://example.com/my_code_system";
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TerminologySvcImplTest.class);
+
+	@Autowired
+	private ITermCodeSystemVersionDao myCodeSystemVersionDao;
+
+	@Autowired
+	private ITermConceptClosureDao myConceptClosureDao;
 
 
 	@AfterClass
@@ -150,6 +169,193 @@ public class TerminologySvcImplTest extends BaseJpaDstu3Test {
 		assertThat(codes, empty());
 	}
 
+	@Test
+	public void testClosureBuiltWhenStored() {
+		IIdType id = createCodeSystem();
+
+		// childAA, childAB: 1 ancestor each, childAAA and childAAB: 2 each
+		assertEquals(6, myConceptClosureDao.count());
+
+		Set<String> codes = toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "ParentA"));
+		assertThat(codes, containsInAnyOrder("ParentA", "childAA", "childAAA", "childAAB", "childAB"));
+		codes = toCodes(myTermSvc.findCodesAbove(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "childAAB"));
+		assertThat(codes, containsInAnyOrder("ParentA", "childAA", "childAAB"));
+
+		// Cached the second time
+		assertThat(toCodes(myTermSvc.findCodesBelow("http://foo", "childAA")), containsInAnyOrder("childAA", "childAAA", "childAAB"));
+		assertThat(toCodes(myTermSvc.findCodesBelow("http://foo", "childAA")), containsInAnyOrder("childAA", "childAAA", "childAAB"));
+		assertThat(toCodes(myTermSvc.findCodesAbove("http://foo", "childAAA")), containsInAnyOrder("ParentA", "childAA", "childAAA"));
+	}
+
+	@Test
+	public void testClosureBuiltAfterDeferredSave() {
+		myDaoConfig.setDeferIndexingForCodesystemsOfSize(1);
+		try {
+			myTermSvc.setProcessDeferred(false);
+			IIdType id = createCodeSystem();
+			assertEquals(0, myConceptClosureDao.count());
+
+			myTermSvc.setProcessDeferred(true);
+			for (int i = 0; i < 20 && myConceptClosureDao.count() == 0; i++) {
+				myTermSvc.saveDeferred();
+			}
+			assertEquals(6, myConceptClosureDao.count());
+
+			Set<String> codes = toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "ParentA"));
+			assertThat(codes, containsInAnyOrder("ParentA", "childAA", "childAAA", "childAAB", "childAB"));
+		} finally {
+			myTermSvc.setProcessDeferred(true);
+			myDaoConfig.setDeferIndexingForCodesystemsOfSize(new DaoConfig().getDeferIndexingForCodesystemsOfSize());
+		}
+	}
+
+	/**
+	 * The closure of a large code system is written over several deferred save
+	 * passes, and isn't used until all of it has been written
+	 */
+	@Test
+	public void testClosureBuiltInChunksAfterDeferredSave() {
+		myDaoConfig.setDeferIndexingForCodesystemsOfSize(1);
+		BaseHapiTerminologySvc.setClosureRowsPerPassForUnitTest(2);
+		try {
+			myTermSvc.setProcessDeferred(false);
+			IIdType id = createCodeSystem();
+			TermCodeSystemVersion codeSystemVersion = myCodeSystemVersionDao.findByCodeSystemResource(id.getIdPartAsLong()).get(0);
+
+			myTermSvc.setProcessDeferred(true);
+			for (int i = 0; i < 50 && myConceptClosureDao.count() == 0; i++) {
+				myTermSvc.saveDeferred();
+			}
+
+			// Part way through, the hierarchy is still walked
+			long count = myConceptClosureDao.count();
+			assertThat(count, greaterThan(0L));
+			assertThat(count, lessThan(6L));
+			assertFalse(myCodeSystemVersionDao.findOne(codeSystemVersion.getPid()).isClosureBuilt());
+			Set<String> codes = toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "ParentA"));
+			assertThat(codes, containsInAnyOrder("ParentA", "childAA", "childAAA", "childAAB", "childAB"));
+
+			for (int i = 0; i < 10 && myConceptClosureDao.count() < 6; i++) {
+				myTermSvc.saveDeferred();
+			}
+			assertEquals(6, myConceptClosureDao.count());
+			assertTrue(myCodeSystemVersionDao.findOne(codeSystemVersion.getPid()).isClosureBuilt());
+
+			codes = toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "ParentA"));
+			assertThat(codes, containsInAnyOrder("ParentA", "childAA", "childAAA", "childAAB", "childAB"));
+		} finally {
+			myTermSvc.setProcessDeferred(true);
+			myDaoConfig.setDeferIndexingForCodesystemsOfSize(new DaoConfig().getDeferIndexingForCodesystemsOfSize());
+			BaseHapiTerminologySvc.setClosureRowsPerPassForUnitTest(BaseHapiTerminologySvc.CLOSURE_ROWS_PER_PASS);
+		}
+	}
+
+	/**
+	 * A closure which was part written when the server stopped is written again
+	 * from the start, since which versions were waiting is kept in the database
+	 */
+	@Test
+	public void testClosureResumedAfterRestart() {
+		myDaoConfig.setDeferIndexingForCodesystemsOfSize(1);
+		BaseHapiTerminologySvc.setClosureRowsPerPassForUnitTest(2);
+		try {
+			myTermSvc.setProcessDeferred(false);
+			IIdType id = createCodeSystem();
+			Long codeSystemVersionPid = myCodeSystemVersionDao.findByCodeSystemResource(id.getIdPartAsLong()).get(0).getPid();
+			assertTrue(myCodeSystemVersionDao.findOne(codeSystemVersionPid).isClosurePending());
+
+			myTermSvc.setProcessDeferred(true);
+			for (int i = 0; i < 50 && myConceptClosureDao.count() == 0; i++) {
+				myTermSvc.saveDeferred();
+			}
+			assertThat(myConceptClosureDao.count(), lessThan(6L));
+
+			// Restart
+			BaseHapiTerminologySvc termSvc = AopTestUtils.getTargetObject(myTermSvc);
+			termSvc.clearClosureBuildsForUnitTest();
+
+			for (int i = 0; i < 20 && !myCodeSystemVersionDao.findOne(codeSystemVersionPid).isClosureBuilt(); i++) {
+				myTermSvc.saveDeferred();
+			}
+			assertEquals(6, myConceptClosureDao.count());
+			TermCodeSystemVersion codeSystemVersion = myCodeSystemVersionDao.findOne(codeSystemVersionPid);
+			assertTrue(codeSystemVersion.isClosureBuilt());
+			assertFalse(codeSystemVersion.isClosurePending());
+
+			Set<String> codes = toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "ParentA"));
+			assertThat(codes, containsInAnyOrder("ParentA", "childAA", "childAAA", "childAAB", "childAB"));
+		} finally {
+			myTermSvc.setProcessDeferred(true);
+			myDaoConfig.setDeferIndexingForCodesystemsOfSize(new DaoConfig().getDeferIndexingForCodesystemsOfSize());
+			BaseHapiTerminologySvc.setClosureRowsPerPassForUnitTest(BaseHapiTerminologySvc.CLOSURE_ROWS_PER_PASS);
+		}
+	}
+
+	/**
+	 * Is-a links which loop back on themselves don't overflow the stack
+	 */
+	@Test
+	public void testFindAncestorPidsWithCycle() {
+		ArrayListMultimap<Long, Long> childToParentPids = ArrayListMultimap.create();
+		childToParentPids.put(1L, 2L);
+		childToParentPids.put(2L, 3L);
+		childToParentPids.put(3L, 1L);
+		childToParentPids.put(4L, 2L);
+
+		HashMap<Long, Set<Long>> cache = new HashMap<Long, Set<Long>>();
+		assertThat(BaseHapiTerminologySvc.findAncestorPids(1L, childToParentPids, cache), containsInAnyOrder(2L, 3L));
+		assertThat(BaseHapiTerminologySvc.findAncestorPids(2L, childToParentPids, cache), containsInAnyOrder(1L, 3L));
+		assertThat(BaseHapiTerminologySvc.findAncestorPids(4L, childToParentPids, cache), containsInAnyOrder(1L, 2L, 3L));
+	}
+
+	/**
+	 * Codes above and below a code in a deep hierarchy are found from the closure
+	 * rows written when the version is stored
+	 */
+	@Test
+	public void testFindCodesBelowInDeepHierarchy() {
+		CodeSystem codeSystem = new CodeSystem();
+		codeSystem.setUrl(CS_URL);
+		codeSystem.setContent(CodeSystemContentMode.NOTPRESENT);
+		IIdType id = myCodeSystemDao.create(codeSystem, mySrd).getId().toUnqualified();
+		ResourceTable table = myResourceTableDao.findOne(id.getIdPartAsLong());
+
+		TermCodeSystemVersion cs = new TermCodeSystemVersion();
+		cs.setResource(table);
+		cs.setResourceVersionId(table.getVersion());
+
+		// 10 levels, each concept having 2 children
+		TermConcept root = new TermConcept(cs, "ROOT");
+		cs.getConcepts().add(root);
+		List<TermConcept> level = new ArrayList<TermConcept>();
+		level.add(root);
+		int count = 1;
+		for (int depth = 0; depth < 9; depth++) {
+			List<TermConcept> nextLevel = new ArrayList<TermConcept>();
+			for (TermConcept nextParent : level) {
+				for (int i = 0; i < 2; i++) {
+					TermConcept child = new TermConcept(cs, nextParent.getCode() + "-" + i);
+					nextParent.addChild(child, RelationshipTypeEnum.ISA);
+					nextLevel.add(child);
+					count++;
+				}
+			}
+			level = nextLevel;
+		}
+		myTermSvc.storeNewCodeSystemVersion(table.getId(), CS_URL, cs);
+
+		// Each concept at depth d has d ancestors, so sum(d * 2^d) for d = 1..9
+		assertEquals(8194, myConceptClosureDao.count());
+
+		long start = System.currentTimeMillis();
+		Set<TermConcept> concepts = myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "ROOT");
+		ourLog.info("Found {} codes below ROOT in {}ms", concepts.size(), System.currentTimeMillis() - start);
+		assertEquals(count, concepts.size());
+
+		concepts = myTermSvc.findCodesAbove(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "ROOT-0-1-1-0-1-0-0-1-1");
+		assertEquals(10, concepts.size());
+	}
+
 	@Test
 	public void testReindexTerminology() {
 		IIdType id = createCodeSystem();
@@ -0,0 +1,74 @@
+package ca.uhn.fhir.jpa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongHashSetTest {
+
+	@Test
+	public void testAddAndContains() {
+		LongHashSet set = new LongHashSet();
+		assertTrue(set.isEmpty());
+
+		assertTrue(set.add(1L));
+		assertTrue(set.add(-1L));
+		assertTrue(set.add(Long.MAX_VALUE));
+		assertFalse(set.add(1L));
+
+		assertEquals(3, set.size());
+		assertTrue(set.contains(1L));
+		assertTrue(set.contains(-1L));
+		assertTrue(set.contains(Long.MAX_VALUE));
+		assertFalse(set.contains(2L));
+	}
+
+	@Test
+	public void testZero() {
+		LongHashSet set = new LongHashSet();
+		assertFalse(set.contains(0L));
+		assertTrue(set.add(0L));
+		assertFalse(set.add(0L));
+		assertTrue(set.contains(0L));
+		assertEquals(1, set.size());
+
+		set.clear();
+		assertFalse(set.contains(0L));
+		assertTrue(set.isEmpty());
+	}
+
+	@Test
+	public void testGrowWithSequentialValues() {
+		LongHashSet set = new LongHashSet(10);
+		for (long i = 1; i <= 100000; i++) {
+			assertTrue(set.add(i));
+		}
+		for (long i = 1; i <= 100000; i++) {
+			assertFalse(set.add(i));
+		}
+		assertEquals(100000, set.size());
+		assertFalse(set.contains(100001L));
+	}
+
+	@Test
+	public void testMatchesHashSet() {
+		Random random = new Random(123);
+		LongHashSet set = new LongHashSet();
+		Set<Long> expected = new HashSet<Long>();
+		for (int i = 0; i < 50000; i++) {
+			long next = random.nextInt(20000);
+			assertEquals(expected.add(next), set.add(next));
+		}
+		assertEquals(expected.size(), set.size());
+		for (long i = 0; i < 20000; i++) {
+			assertEquals(expected.contains(i), set.contains(i));
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package ca.uhn.fhir.jpa.demo;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An image archive ImagingStudy searches are sent to: its QIDO RS service, and
+ * the WADO RS URL put in the ImagingStudy endpoints of studies it returns.
+ */
+public class Archive {
+
+	private final String name;
+	private final String qidoUrl;
+	private final String wadoUrl;
+
+	public Archive(String name, String qidoUrl, String wadoUrl) {
+		this.name = name;
+		this.qidoUrl = StringUtils.removeEnd(qidoUrl, "/");
+		this.wadoUrl = StringUtils.removeEnd(wadoUrl, "/");
+	}
+
+	/**
+	 * Parses an ARCHIVES value: a comma separated list of name|qidoUrl|wadoUrl.
+	 * @param value the configured value
+	 * @return the archives, empty if value is blank.
+	 * @throws IllegalArgumentException if an entry does not have three parts.
+	 */
+	static List<Archive> parse(String value) {
+		List<Archive> archives = new ArrayList<Archive>();
+		for (String entry : StringUtils.split(StringUtils.trimToEmpty(value), ',')) {
+			String[] parts = StringUtils.splitPreserveAllTokens(entry.trim(), '|');
+			if (parts.length != 3)
+				throw new IllegalArgumentException("Invalid ARCHIVES entry, expected name|qidoUrl|wadoUrl: " + entry);
+			archives.add(new Archive(parts[0].trim(), parts[1].trim(), parts[2].trim()));
+		}
+		return archives;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getQidoUrl() {
+		return qidoUrl;
+	}
+
+	public String getWadoUrl() {
+		return wadoUrl;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
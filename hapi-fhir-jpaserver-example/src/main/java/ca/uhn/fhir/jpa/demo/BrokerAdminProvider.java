@@ -0,0 +1,126 @@
+package ca.uhn.fhir.jpa.demo;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.method.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.StringType;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server level administrative operations for the broker's in-memory caches.
+ * <p>
+ * <code>$broker-invalidate-cache</code> drops cached study resolutions and
+ * re-reads the pid lookup table (optionally for a single study or MRN), so
+ * changes made in the archive or directly in the table are seen immediately. <code>$broker-metrics</code> returns cache, upstream pool and
+ * WADO proxy counters, and exposes no patient data.
+ * </p>
+ * <p>
+ * Invalidation can be used to make the broker hammer the archive and pid
+ * lookup database, so it requires an <code>Authorization: Bearer</code>
+ * header carrying one of the tokens in BROKER_ADMIN_TOKENS. If none are
+ * configured the operation is refused.
+ * </p>
+ */
+public class BrokerAdminProvider {
+
+	/**
+	 * Invalidates broker caches.
+	 * @param theStudy study instance UID to drop; optional
+	 * @param theMrn patient MRN to drop; optional
+	 * @param theRequestDetails the request, whose Authorization header must carry an admin token
+	 * @return the number of cache layers cleared, as "invalidated".
+	 * If neither parameter is given all caches, including token introspection
+	 * results, are cleared.
+	 */
+	@Operation(name = "$broker-invalidate-cache", idempotent = false)
+	public Parameters invalidateCache(
+		@OperationParam(name = "study", min = 0, max = 1) StringType theStudy,
+		@OperationParam(name = "mrn", min = 0, max = 1) StringType theMrn,
+		RequestDetails theRequestDetails) {
+
+		authorizeAdmin(theRequestDetails.getHeaders("Authorization"), Utl.getBrokerAdminTokens());
+		String study = theStudy == null ? null : StringUtils.trimToNull(theStudy.getValue());
+		String mrn = theMrn == null ? null : StringUtils.trimToNull(theMrn.getValue());
+		int invalidated = 0;
+		if (study == null && mrn == null) {
+			StudyLookup.invalidateAll();
+			PidLookup.invalidateAll();
+			IntrospectionCache.invalidateAll();
+			SearchPage.invalidateAll();
+			invalidated = 4;
+		}
+		if (study != null) {
+			StudyLookup.invalidate(study);
+			invalidated++;
+		}
+		if (mrn != null) {
+			PidLookup.invalidate(mrn);
+			invalidated++;
+		}
+		System.out.println("Broker caches invalidated, study=" + study + " mrn=" + mrn);
+
+		Parameters retVal = new Parameters();
+		retVal.addParameter().setName("invalidated").setValue(new IntegerType(invalidated));
+		return retVal;
+	}
+
+	/**
+	 * @return broker metrics, one part per component ("upstream",
+	 * "introspection", "study", "pages", "pid", "wado", "edge"), each with one string
+	 * valued part per counter.
+	 */
+	@Operation(name = "$broker-metrics", idempotent = true)
+	public Parameters metrics() {
+		Parameters retVal = new Parameters();
+		addMetrics(retVal, "upstream", UpstreamHttp.getMetrics());
+		addMetrics(retVal, "introspection", IntrospectionCache.getMetrics());
+		addMetrics(retVal, "study", StudyLookup.getMetrics());
+		addMetrics(retVal, "pages", SearchPage.getMetrics());
+		addMetrics(retVal, "archives", FederatedQido.getMetrics());
+		addMetrics(retVal, "pid", PidLookup.getMetrics());
+		addMetrics(retVal, "wado", WadoRsProxy.getMetrics());
+		addMetrics(retVal, "edge", EdgeDb.getMetrics());
+		return retVal;
+	}
+
+	/**
+	 * Checks a request carries a broker admin token.
+	 * @param theAuthHeaders values of the request's Authorization header
+	 * @param theAdminTokens tokens allowed
+	 * @throws AuthenticationException if the header is missing or malformed
+	 * @throws ForbiddenOperationException if the token isn't an admin token,
+	 * or there are no admin tokens
+	 */
+	static void authorizeAdmin(List<String> theAuthHeaders, List<String> theAdminTokens) {
+		if (theAuthHeaders == null || theAuthHeaders.isEmpty())
+			throw new AuthenticationException("required header 'Authorization' missing");
+		if (theAuthHeaders.size() != 1) throw new AuthenticationException("Authorization header invalid format");
+		String authTokenType = StringUtils.trimToEmpty(theAuthHeaders.get(0));
+		if (StringUtils.startsWithIgnoreCase(authTokenType, "Bearer ") == false)
+			throw new AuthenticationException("Invalid Authorization token type");
+		byte[] authToken = StringUtils.trimToEmpty(authTokenType.substring(6)).getBytes(StandardCharsets.UTF_8);
+
+		// Compare every token in constant time, so timing doesn't reveal a matching prefix
+		boolean admin = false;
+		for (String next : theAdminTokens) {
+			admin |= MessageDigest.isEqual(authToken, next.getBytes(StandardCharsets.UTF_8));
+		}
+		if (admin == false) throw new ForbiddenOperationException("Broker administration not permitted");
+	}
+
+	static void addMetrics(Parameters theParameters, String theName, Map<String, Object> theMetrics) {
+		Parameters.ParametersParameterComponent component = theParameters.addParameter().setName(theName);
+		for (Map.Entry<String, Object> next : theMetrics.entrySet()) {
+			component.addPart().setName(next.getKey()).setValue(new StringType(String.valueOf(next.getValue())));
+		}
+	}
+}
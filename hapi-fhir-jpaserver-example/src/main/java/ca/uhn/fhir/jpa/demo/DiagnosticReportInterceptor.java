@@ -1,18 +1,17 @@
 package ca.uhn.fhir.jpa.demo;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
-import com.sun.org.apache.bcel.internal.classfile.Code;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.dstu3.model.*;
 
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
@@ -22,32 +21,12 @@ import java.util.Date;
 
 public class DiagnosticReportInterceptor extends InterceptorAdapter {
 
-	private static Connection conn = null;
-	private static PreparedStatement queryPidOnly = null;
-	private static PreparedStatement queryPidDate = null;
-
-	private void connectToEdge() {
-		try {
-			Class.forName("org.postgresql.Driver");
-			conn = DriverManager.getConnection(Utl.getDiagnosticReportDbURL(), "edge", "psword");
-			queryPidOnly = conn.prepareStatement("SELECT * FROM v_exam_status WHERE mrn = ?");
-			queryPidDate = conn.prepareStatement("SELECT * FROM v_exam_status WHERE mrn = ? AND status_timestamp >= ?");
-		} catch (Throwable e) {
-			System.out.println("## Failed Connecting to EdgeServer at " + Utl.getDiagnosticReportDbURL() + "##\n\n");
-			System.out.println(Utl.getDiagnosticReportDbURL());
-			System.out.println(e.getMessage());
-			e.printStackTrace();
-			System.out.println("####\n\n");
-		}
-	}
-
 	public DiagnosticReportInterceptor() { super(); }
 
 	@Override
 	public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails,
 															  HttpServletRequest theRequest, HttpServletResponse theResponse)
 		throws AuthenticationException {
-		connectToEdge();
 
 		try {
 
@@ -84,125 +63,52 @@ public class DiagnosticReportInterceptor extends InterceptorAdapter {
 			if (pid == null)
 				throw new InvalidRequestException("Required parameter 'patient' not found.");
 
-			ResultSet result = null;
-			try {
-				if (lu == null) {
-					queryPidOnly.setString(1, mrn);
-					result = queryPidOnly.executeQuery();
-				} else {
-					queryPidDate.setString(1, mrn);
-					queryPidDate.setString(2, lu);
-					result = queryPidDate.executeQuery();
-				}
-			}  catch (SQLException e) {
-				e.printStackTrace();
-				try {
-					if (result != null) result.close();
-				} catch (SQLException se) {
-					System.out.println("#####\n" + se.getMessage());
-					se.printStackTrace();
-				}
-			}
-
-
-			Bundle bundle = new Bundle();
-			bundle.setId(UUID.randomUUID().toString());
-			bundle.addLink(new Bundle.BundleLinkComponent().setRelation("self").setUrl("queryUrl"));
-			bundle.setType(Bundle.BundleType.SEARCHSET);
-			int numberOfReports = 0;
-			while (result.next()) {
-				numberOfReports++;
-				DiagnosticReport dr = new DiagnosticReport();
-
-				// TODO These mappings are preliminary, actual mapping has not been decided.
-
-				/* report_id => identifier  (ignored for now)
-				Integer ri = result.getInt("report_id");
-				List<Identifier> ids = new ArrayList<>();
-				ids.add(new Identifier().setValue(ri.toString()));
-				dr.setIdentifier(ids);
-				*/
-
-				/* status => status (for now, only FINAL)
-				   Note: sample db had only "finalized" reports, which are mapped to DiagnosticReportStatus code "final".
-				   Will all reports be "final"? probably not, so we need mappings. Here we presume that all the other
-				   codes will be the same as the DiagnosticReportStatus code, failing which the code is unknown.
-				String rs = result.getString("status").toUpperCase();
-				DiagnosticReport.DiagnosticReportStatus rsc = null;
-				if (rs.equalsIgnoreCase("FINALIZED")) {
-					rsc = DiagnosticReport.DiagnosticReportStatus.FINAL;
-				} else {
-					rsc = DiagnosticReport.DiagnosticReportStatus.valueOf(rs);
-				}
-				if (rsc == null) rsc = DiagnosticReport.DiagnosticReportStatus.UNKNOWN;
-				dr.setStatus(rsc);
-				 */
-				dr.setStatus(DiagnosticReport.DiagnosticReportStatus.FINAL);
-
-				// pid => subject
-				dr.setSubject(new Reference().setReference("Patient/" + pid));
-
-				// status_timestamp ==> effective[x]
-				Date dt= result.getTimestamp("status_timestamp");
-				DateTimeType effective = new DateTimeType(dt, TemporalPrecisionEnum.SECOND);
-				dr.setEffective(effective);
-
-				// modified_date ==> issued
-				dt = result.getTimestamp("modified_date");
-				dr.setIssued(dt);
-
-				// System parameters => code
-				Coding cdn = new Coding();
-				cdn.setSystem(Utl.getDiagnosticReportCodeSystem());
-				cdn.setCode(Utl.getDiagnosticReportCodeCode());
-				cdn.setDisplay(Utl.getDiagnosticReportCodeText());
-				List<Coding> cdns = new ArrayList<>();
-				cdns.add(cdn);
-				CodeableConcept cd = new CodeableConcept();
-				cd.setCoding(cdns);
-				cd.setText(Utl.getDiagnosticReportCodeText());
-				dr.setCode(cd);
-
-				/* System parameter => performer (ignored for now
-				DiagnosticReport.DiagnosticReportPerformerComponent pc = new DiagnosticReport.DiagnosticReportPerformerComponent();
-				pc.setActor(new Reference(Utl.getDiagnosticReportPerformerReference()));
-				List<DiagnosticReport.DiagnosticReportPerformerComponent> pcs = new ArrayList<>();
-				dr.setPerformer(pcs);
-				*/
-
-				// report_text => presentedForm
-				String txt = result.getString("report_text");
-
-				Attachment att = new Attachment();
-				att.setContentType("application/text");
-				att.setLanguage("en-US");
-				att.setData(txt.getBytes("UTF-8"));
-				att.setTitle(result.getString("exam_description"));
-				List<Attachment> atts = new ArrayList<>();
-				atts.add(att);
-				dr.setPresentedForm(atts);
-
-				// Add DiagnosticReport resource to bundle
-				Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
-				entry.setResource(dr);
-				bundle.addEntry(entry);
-			} // EO process SQL query rows
-
-
-			bundle.setTotal(numberOfReports);
-
-			FhirContext ctx = FhirContext.forDstu3();
-			IParser parser = ctx.newJsonParser();
-			String body = parser.encodeResourceToString(bundle);
+			SearchPage page = SearchPage.fromParameters(fhirParams);
 
 			theResponse.addHeader("Content-Type", "application/fhir+json");
+			final SearchsetWriter bundle = new SearchsetWriter(theResponse.getWriter(), url);
+			final String patientId = pid;
 			try {
-				theResponse.getWriter().write(body);
+				if (page == null) {
+					EdgeDb.queryExamStatus(mrn, lu, new EdgeDb.RowHandler() {
+						@Override
+						public void handleRow(ResultSet row) throws Exception {
+							// Add DiagnosticReport resource to bundle
+							bundle.add(toDiagnosticReport(row, patientId));
+						}
+					});
+					bundle.finish();
+				} else {
+					// One page, by SQL offset and limit, kept for re-use by SearchPage
+					String key = page.getKey("DiagnosticReport", mrn, patientId, lu);
+					SearchPage.Snapshot snapshot = SearchPage.getSnapshot(key);
+					if (snapshot == null) {
+						final List<String> entries = new ArrayList<String>();
+						int rows = EdgeDb.queryExamStatus(mrn, lu, page.getOffset(), page.getCount(), new EdgeDb.RowHandler() {
+							@Override
+							public void handleRow(ResultSet row) throws Exception {
+								entries.add(bundle.add(toDiagnosticReport(row, patientId)));
+							}
+						});
+						snapshot = new SearchPage.Snapshot(entries, rows > page.getCount());
+						SearchPage.putSnapshot(key, snapshot);
+					} else {
+						for (String entry : snapshot.getEntries()) {
+							bundle.addEncoded(entry);
+						}
+					}
+					page.addLinks(bundle, url, snapshot.hasNext());
+					bundle.finish(null);
+				}
 			} catch (IOException ioe) {
 				ioe.printStackTrace();
 				String em = "Error writing httpresponse body: " + ioe.getMessage();
 				System.out.println("#####\n" + em);
 				throw new InternalErrorException(em, ioe);
+			} catch (Exception e) {
+				// Once entries have been sent the response is aborted, see handleException
+				if (theResponse.isCommitted() == false) theResponse.resetBuffer();
+				throw e;
 			}
 
 			return false;
@@ -215,11 +121,102 @@ public class DiagnosticReportInterceptor extends InterceptorAdapter {
 		}
 	} // EO incomingRequestPostProcessed method
 
+	/**
+	 * A search which fails after its first entries have been sent is aborted
+	 * instead of having an OperationOutcome written after them.
+	 */
+	@Override
+	public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException,
+											 HttpServletRequest theRequest, HttpServletResponse theResponse)
+		throws ServletException, IOException {
+		SearchsetWriter.abortIfCommitted(theResponse, theException);
+		return true;
+	}
+
+
+	/**
+	 * Maps one v_exam_status row to a DiagnosticReport.
+	 * @param row result set positioned on the row
+	 * @param pid Patient resource id of the subject
+	 */
+	private static DiagnosticReport toDiagnosticReport(ResultSet row, String pid) throws Exception {
+		DiagnosticReport dr = new DiagnosticReport();
+
+		// TODO These mappings are preliminary, actual mapping has not been decided.
+
+		/* report_id => identifier  (ignored for now)
+		Integer ri = row.getInt("report_id");
+		List<Identifier> ids = new ArrayList<>();
+		ids.add(new Identifier().setValue(ri.toString()));
+		dr.setIdentifier(ids);
+		*/
+
+		/* status => status (for now, only FINAL)
+		   Note: sample db had only "finalized" reports, which are mapped to DiagnosticReportStatus code "final".
+		   Will all reports be "final"? probably not, so we need mappings. Here we presume that all the other
+		   codes will be the same as the DiagnosticReportStatus code, failing which the code is unknown.
+		String rs = row.getString("status").toUpperCase();
+		DiagnosticReport.DiagnosticReportStatus rsc = null;
+		if (rs.equalsIgnoreCase("FINALIZED")) {
+			rsc = DiagnosticReport.DiagnosticReportStatus.FINAL;
+		} else {
+			rsc = DiagnosticReport.DiagnosticReportStatus.valueOf(rs);
+		}
+		if (rsc == null) rsc = DiagnosticReport.DiagnosticReportStatus.UNKNOWN;
+		dr.setStatus(rsc);
+		 */
+		dr.setStatus(DiagnosticReport.DiagnosticReportStatus.FINAL);
+
+		// pid => subject
+		dr.setSubject(new Reference().setReference("Patient/" + pid));
+
+		// status_timestamp ==> effective[x]
+		Date dt= row.getTimestamp("status_timestamp");
+		DateTimeType effective = new DateTimeType(dt, TemporalPrecisionEnum.SECOND);
+		dr.setEffective(effective);
+
+		// modified_date ==> issued
+		dt = row.getTimestamp("modified_date");
+		dr.setIssued(dt);
+
+		// System parameters => code
+		Coding cdn = new Coding();
+		cdn.setSystem(Utl.getDiagnosticReportCodeSystem());
+		cdn.setCode(Utl.getDiagnosticReportCodeCode());
+		cdn.setDisplay(Utl.getDiagnosticReportCodeText());
+		List<Coding> cdns = new ArrayList<>();
+		cdns.add(cdn);
+		CodeableConcept cd = new CodeableConcept();
+		cd.setCoding(cdns);
+		cd.setText(Utl.getDiagnosticReportCodeText());
+		dr.setCode(cd);
+
+		/* System parameter => performer (ignored for now
+		DiagnosticReport.DiagnosticReportPerformerComponent pc = new DiagnosticReport.DiagnosticReportPerformerComponent();
+		pc.setActor(new Reference(Utl.getDiagnosticReportPerformerReference()));
+		List<DiagnosticReport.DiagnosticReportPerformerComponent> pcs = new ArrayList<>();
+		dr.setPerformer(pcs);
+		*/
+
+		// report_text => presentedForm
+		String txt = row.getString("report_text");
+
+		Attachment att = new Attachment();
+		att.setContentType("application/text");
+		att.setLanguage("en-US");
+		att.setData(txt.getBytes("UTF-8"));
+		att.setTitle(row.getString("exam_description"));
+		List<Attachment> atts = new ArrayList<>();
+		atts.add(att);
+		dr.setPresentedForm(atts);
+
+		return dr;
+	}
+
 
 	private String authenticate(RequestDetails theRequestDetails,
 										 HttpServletRequest theRequest, HttpServletResponse theResponse)
 		throws AuthenticationException, InvalidRequestException, Exception {
-		connectToEdge();
 
 		// Get, validate pid parameter
 		Map<String, String[]> requestParameters = theRequestDetails.getParameters();
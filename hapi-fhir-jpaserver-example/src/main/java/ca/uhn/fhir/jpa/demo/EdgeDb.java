@@ -0,0 +1,143 @@
+package ca.uhn.fhir.jpa.demo;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Access to the RSNA Edge server database (v_exam_status) for DiagnosticReport
+ * searches.
+ * <p>
+ * Connections come from a pool created on first use from
+ * DIAGNOSTIC_REPORT_DB_URL and friends. Each query prepares its own statement,
+ * so concurrent requests do not share JDBC state, and rows are read forward
+ * only in fetch size batches and handed to the caller one at a time rather
+ * than being collected first.
+ * </p>
+ */
+public class EdgeDb {
+
+	static final String QUERY_MRN = "SELECT * FROM v_exam_status WHERE mrn = ?";
+	static final String QUERY_MRN_DATE = "SELECT * FROM v_exam_status WHERE mrn = ? AND status_timestamp >= ?";
+	/**
+	 * Standard SQL paging, understood by PostgreSQL and Derby alike. Exams can share
+	 * timestamps, so report_id comes last to give every row a fixed place; otherwise
+	 * rows tied across a page boundary could be returned twice or not at all.
+	 */
+	static final String PAGE = " ORDER BY status_timestamp, modified_date, report_id OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
+
+	private static BasicDataSource dataSource;
+
+	private EdgeDb() {}
+
+	/**
+	 * Receives the rows of a query, in order.
+	 */
+	public interface RowHandler {
+		/**
+		 * @param row result set positioned on the current row. Only valid for
+		 *            the duration of the call.
+		 */
+		void handleRow(ResultSet row) throws Exception;
+	}
+
+	/**
+	 * Queries v_exam_status for a patient.
+	 * @param mrn patient medical record number
+	 * @param lastUpdated if not null, only exams with a status_timestamp at or after this are returned.
+	 * @param handler called once for each row
+	 * @return the number of rows read
+	 * @throws Exception on database errors, or an exception thrown by the handler.
+	 */
+	public static int queryExamStatus(String mrn, String lastUpdated, RowHandler handler) throws Exception {
+		return queryExamStatus(mrn, lastUpdated, -1, -1, handler);
+	}
+
+	/**
+	 * Queries one page of v_exam_status for a patient, ordered by status_timestamp
+	 * (then modified_date and report_id).
+	 * @param mrn patient medical record number
+	 * @param lastUpdated if not null, only exams with a status_timestamp at or after this are returned.
+	 * @param offset number of rows to skip, or -1 for an unpaged, unordered query
+	 * @param limit maximum number of rows to return
+	 * @param handler called once for each row, up to limit rows
+	 * @return the number of rows read. One row more than limit is read, and not
+	 * passed to the handler, so if this is more than limit there is another page.
+	 * @throws Exception on database errors, or an exception thrown by the handler.
+	 */
+	public static int queryExamStatus(String mrn, String lastUpdated, int offset, int limit, RowHandler handler) throws Exception {
+		String sql = lastUpdated == null ? QUERY_MRN : QUERY_MRN_DATE;
+		if (offset >= 0) sql += PAGE;
+		try (Connection conn = getDataSource().getConnection();
+			  PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			stmt.setFetchSize(offset >= 0 ? Math.min(limit + 1, Utl.getDiagnosticReportDbFetchSize()) : Utl.getDiagnosticReportDbFetchSize());
+			int i = 1;
+			stmt.setString(i++, mrn);
+			if (lastUpdated != null) stmt.setString(i++, lastUpdated);
+			if (offset >= 0) {
+				stmt.setInt(i++, offset);
+				stmt.setInt(i++, limit + 1);
+			}
+			int rows = 0;
+			try (ResultSet result = stmt.executeQuery()) {
+				while (result.next()) {
+					if (offset < 0 || rows < limit) handler.handleRow(result);
+					rows++;
+				}
+			}
+			return rows;
+		}
+	}
+
+	/**
+	 * @return active and idle pooled connection counts.
+	 */
+	public static synchronized Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("active", dataSource == null ? 0 : dataSource.getNumActive());
+		metrics.put("idle", dataSource == null ? 0 : dataSource.getNumIdle());
+		metrics.put("maxTotal", Utl.getDiagnosticReportDbMaxConnections());
+		return metrics;
+	}
+
+	static synchronized BasicDataSource getDataSource() {
+		if (dataSource == null) {
+			String url = Utl.getDiagnosticReportDbURL();
+			BasicDataSource ds = new BasicDataSource();
+			if (url.startsWith("jdbc:postgresql:"))
+				ds.setDriverClassName("org.postgresql.Driver");
+			ds.setUrl(url);
+			ds.setUsername(Utl.getDiagnosticReportDbUser());
+			ds.setPassword(Utl.getDiagnosticReportDbPassword());
+			ds.setMaxTotal(Utl.getDiagnosticReportDbMaxConnections());
+			ds.setMaxIdle(Utl.getDiagnosticReportDbMaxConnections());
+			ds.setMaxWaitMillis(Utl.getUpstreamConnectTimeout());
+			ds.setDefaultReadOnly(true);
+			// PostgreSQL only honours the fetch size (streams rows) inside a transaction
+			ds.setDefaultAutoCommit(false);
+			ds.setTestOnBorrow(true);
+			ds.setValidationQueryTimeout(5);
+			System.out.println("Edge server database pool: " + url);
+			dataSource = ds;
+		}
+		return dataSource;
+	}
+
+	/**
+	 * Closes the pool. The next query creates a new one from the current configuration.
+	 */
+	static synchronized void close() {
+		if (dataSource == null) return;
+		try {
+			dataSource.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		dataSource = null;
+	}
+}
@@ -0,0 +1,300 @@
+package ca.uhn.fhir.jpa.demo;
+
+import org.apache.http.client.methods.HttpGet;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends a patient's QIDO study query to every configured {@link Archive} in
+ * parallel and merges the answers.
+ * <p>
+ * When all studies are wanted, they are passed on as each archive answers, in
+ * the order the archives answer; a study already returned by another archive
+ * (same Study Instance UID) is dropped. Archives which fail, or have not answered within
+ * ARCHIVE_QUERY_TIMEOUT, are left out and reported in the result's warnings,
+ * so the client gets partial results rather than an error. Only if no archive
+ * answers does the query fail. With a single archive the query runs on the
+ * calling thread, as it always has.
+ * </p>
+ * <p>
+ * For a page, the first (_offset + _count) studies are requested from each
+ * archive and merged in the order the archives are configured, after which the
+ * page is cut out of the merged list. Pages are then consistent with each other
+ * (no study is on two pages or left out) and hold at most _count studies, at
+ * the cost of reading earlier pages again from each archive. There is a next
+ * page while studies are left over, or any archive returned as many studies as
+ * were asked for.
+ * </p>
+ * <p>
+ * A late archive's request is aborted, which closes its connection; interrupting
+ * the thread would not stop a blocked read.
+ * </p>
+ */
+public class FederatedQido implements Cmn {
+
+	private static final ThreadPoolExecutor pool;
+
+	private static final AtomicLong queries = new AtomicLong();
+	private static final AtomicLong archiveFailures = new AtomicLong();
+	private static final AtomicLong archiveTimeouts = new AtomicLong();
+	private static final AtomicLong duplicates = new AtomicLong();
+
+	// Set in place of a request which has not been sent yet, so that it never is
+	private static final HttpGet CANCELLED = new HttpGet();
+
+	static {
+		int threads = Utl.getArchiveQueryThreads();
+		pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(threads * 4), new NamedThreadFactory("qido-fanout-"));
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	private FederatedQido() {}
+
+	/**
+	 * Receives merged studies, with the archive each came from.
+	 */
+	public interface Handler {
+		void handleStudy(Archive archive, QidoStudy study) throws Exception;
+	}
+
+	/**
+	 * Queries all configured archives for a patient's studies.
+	 * @param mrn patient medical record number
+	 * @param lastUpdated as for {@link Utl#wadoQueryMrn(String, String)}
+	 * @param page page wanted, or null for all studies
+	 * @param handler called once for each distinct study
+	 * @return which archives answered, and whether there is a next page.
+	 * @throws Exception if no archive answered, or the handler threw.
+	 */
+	public static Result query(String mrn, String lastUpdated, SearchPage page, Handler handler) throws Exception {
+		return query(Utl.getArchives(), Utl.getArchiveQueryTimeout(), mrn, lastUpdated, page, handler);
+	}
+
+	static Result query(List<Archive> archives, long timeout, final String mrn, final String lastUpdated,
+							  final SearchPage page, final Handler handler) throws Exception {
+		queries.incrementAndGet();
+		final int offset = page == null ? -1 : page.getOffset();
+		final int limit = page == null ? -1 : page.getCount();
+		Result result = new Result();
+
+		if (archives.size() == 1) {
+			final Archive archive = archives.get(0);
+			int studies = Utl.wadoQueryMrn(archive.getQidoUrl(), mrn, lastUpdated, offset, limit, new QidoStudy.Handler() {
+				@Override
+				public void handleStudy(QidoStudy study) throws Exception {
+					handler.handleStudy(archive, study);
+				}
+			});
+			result.hasNext = page != null && studies > limit;
+			return result;
+		}
+
+		// Pages are merged from the start of each archive's results
+		final int archiveLimit = page == null ? -1 : offset + limit;
+		final int archiveOffset = page == null ? -1 : 0;
+		CompletionService<Answer> answers = new ExecutorCompletionService<Answer>(pool);
+		Map<Future<Answer>, Answer> pending = new LinkedHashMap<Future<Answer>, Answer>();
+		for (final Archive archive : archives) {
+			final Answer answer = new Answer(archive);
+			try {
+				pending.put(answers.submit(new Callable<Answer>() {
+					@Override
+					public Answer call() throws Exception {
+						answer.count = Utl.wadoQueryMrn(archive.getQidoUrl(), mrn, lastUpdated, archiveOffset, archiveLimit, new QidoStudy.Handler() {
+							@Override
+							public void handleStudy(QidoStudy study) {
+								answer.studies.add(study);
+							}
+						}, answer.request);
+						return answer;
+					}
+				}), answer);
+			} catch (RejectedExecutionException e) {
+				archiveFailures.incrementAndGet();
+				result.warnings.add("Archive " + archive + " not queried, broker busy; results may be incomplete");
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		Set<String> uids = new HashSet<String>();
+		Map<Archive, Answer> pageAnswers = new IdentityHashMap<Archive, Answer>();
+		int answered = 0;
+		try {
+			while (pending.isEmpty() == false) {
+				Future<Answer> done = answers.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				if (done == null) break;
+				Archive archive = pending.remove(done).archive;
+				Answer answer;
+				try {
+					answer = done.get();
+				} catch (ExecutionException e) {
+					archiveFailures.incrementAndGet();
+					e.getCause().printStackTrace();
+					result.warnings.add("Archive " + archive + " query failed: " + e.getCause().getMessage()
+						+ "; results may be incomplete");
+					continue;
+				}
+				answered++;
+				result.archives.add(archive.getName());
+				if (page != null) {
+					pageAnswers.put(archive, answer);
+					continue;
+				}
+				for (QidoStudy study : answer.studies) {
+					if (isDuplicate(uids, study)) continue;
+					handler.handleStudy(answer.archive, study);
+				}
+			}
+		} finally {
+			// Anything still pending is late (or we are failing); stop waiting for it
+			for (Map.Entry<Future<Answer>, Answer> late : pending.entrySet()) {
+				late.getKey().cancel(true);
+				late.getValue().abort();
+				archiveTimeouts.incrementAndGet();
+				result.warnings.add("Archive " + late.getValue().archive + " did not answer within " + timeout
+					+ "ms; results may be incomplete");
+			}
+		}
+
+		if (answered == 0)
+			throw new Exception("No archive answered: " + result.warnings);
+
+		if (page != null) {
+			int index = 0;
+			for (Archive archive : archives) {
+				Answer answer = pageAnswers.get(archive);
+				if (answer == null) continue;
+				if (answer.count > archiveLimit) result.hasNext = true;
+				for (QidoStudy study : answer.studies) {
+					if (isDuplicate(uids, study)) continue;
+					if (index >= archiveLimit) {
+						result.hasNext = true;
+						break;
+					}
+					if (index >= offset) handler.handleStudy(archive, study);
+					index++;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return true if a study with the same Study Instance UID has already been seen.
+	 */
+	private static boolean isDuplicate(Set<String> uids, QidoStudy study) {
+		String uid = study.getFirstValue(DCM_TAG_STUDY_UID);
+		if (uid != null && uid.isEmpty() == false && uids.add(uid) == false) {
+			duplicates.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return query counters, and fan-out pool usage.
+	 */
+	public static Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("queries", queries.get());
+		metrics.put("archiveFailures", archiveFailures.get());
+		metrics.put("archiveTimeouts", archiveTimeouts.get());
+		metrics.put("duplicates", duplicates.get());
+		metrics.put("active", pool.getActiveCount());
+		metrics.put("queued", pool.getQueue().size());
+		return metrics;
+	}
+
+	private static class Answer {
+		private final Archive archive;
+		private final AtomicReference<HttpGet> request = new AtomicReference<HttpGet>();
+		private final List<QidoStudy> studies = new ArrayList<QidoStudy>();
+		private int count;
+
+		Answer(Archive archive) {
+			this.archive = archive;
+		}
+
+		/**
+		 * Aborts the request to the archive, or stops it being sent if it has not been yet.
+		 */
+		void abort() {
+			HttpGet get = request.getAndSet(CANCELLED);
+			if (get != null && get != CANCELLED) get.abort();
+		}
+	}
+
+	/**
+	 * Outcome of a federated query.
+	 */
+	public static class Result {
+		private final List<String> archives = new ArrayList<String>();
+		private final List<String> warnings = new ArrayList<String>();
+		private boolean hasNext;
+
+		/**
+		 * @return names of the archives that answered, in the order they answered
+		 * (empty for a single archive query).
+		 */
+		public List<String> getArchives() {
+			return Collections.unmodifiableList(archives);
+		}
+
+		/**
+		 * @return one message for each archive that failed or was too slow.
+		 */
+		public List<String> getWarnings() {
+			return Collections.unmodifiableList(warnings);
+		}
+
+		/**
+		 * @return true if there may be another page.
+		 */
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		/**
+		 * @return true if every archive answered.
+		 */
+		public boolean isComplete() {
+			return warnings.isEmpty();
+		}
+
+		/**
+		 * @return an OperationOutcome with a warning for each archive that did not
+		 * answer, or null if all did.
+		 */
+		public OperationOutcome toOperationOutcome() {
+			if (warnings.isEmpty()) return null;
+			OperationOutcome outcome = new OperationOutcome();
+			for (String warning : warnings) {
+				outcome.addIssue()
+					.setSeverity(OperationOutcome.IssueSeverity.WARNING)
+					.setCode(OperationOutcome.IssueType.INCOMPLETE)
+					.setDiagnostics(warning);
+			}
+			return outcome;
+		}
+	}
+}
@@ -1,11 +1,10 @@
 package ca.uhn.fhir.jpa.demo;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 
@@ -19,6 +18,7 @@ import org.hl7.fhir.dstu3.model.codesystems.EndpointConnectionType;
 import org.hl7.fhir.dstu3.model.codesystems.EndpointConnectionTypeEnumFactory;
 
 
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
@@ -78,15 +78,10 @@ public class ImagingStudyInterceptor extends InterceptorAdapter implements Cmn {
 
 		patientReferenceStr = "Patient/" + pid;
 
-		String body = wadoQuery(mrn, lu, patientReferenceStr, url);
+		SearchPage page = SearchPage.fromParameters(fhirParams);
+
 		theResponse.addHeader("Content-Type", "application/fhir+json");
-		try {
-			theResponse.getWriter().write(body);
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
-			String em = "Error writing httpresponse body " + ioe.getMessage();
-			throw new InternalErrorException(em, ioe);
-		}
+		wadoQuery(mrn, lu, patientReferenceStr, url, page, theResponse);
 
 		return false;
 
@@ -97,143 +92,180 @@ public class ImagingStudyInterceptor extends InterceptorAdapter implements Cmn {
 		}
 	}
 
+	/**
+	 * A search which fails after its first entries have been sent is aborted
+	 * instead of having an OperationOutcome written after them.
+	 */
+	@Override
+	public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException,
+											 HttpServletRequest theRequest, HttpServletResponse theResponse)
+		throws ServletException, IOException {
+		SearchsetWriter.abortIfCommitted(theResponse, theException);
+		return true;
+	}
+
 	/**
 	 * Processes an ImageStudy query by FHIR Patient by forwarding it as a WADO RS query by PatientID
+	 * to each configured archive (see {@link FederatedQido}).
+	 * Each study is converted and written to the response as it is merged. If some archive did not
+	 * answer, an OperationOutcome entry with a warning for each is added after the studies.
 	 * @param mrn Patient Medical Record Number
 	 * @param lu last updated date. null for all studies, yyyyMMddhhMMss (or some prefix) to exclude studies before then.
 	 * @param patientReferenceStr The FHIR Patient reference string, for example, Patient/1234
 	 * @param queryUrl The original FHIR ImageStudy query (gets put in the Bundle resource).
-	 * @return A Bundle containing 0 or more ImageStudy resources, or an error resource.
+	 * @param page the page requested, or null for all studies. Pages are fetched with
+	 *             QIDO offset and limit, and complete pages are kept by {@link SearchPage} for re-use.
+	 * @param theResponse response the Bundle, containing 0 or more ImageStudy resources, is written to.
 	 */
-	private String wadoQuery(String mrn, String lu, String patientReferenceStr, String queryUrl) {
+	private void wadoQuery(String mrn, String lu, final String patientReferenceStr, String queryUrl,
+								  SearchPage page, HttpServletResponse theResponse) {
 		String cmd = null;
 
 		try {
-			List<Map<String, List<String>>> dcmCodeMaps = Utl.wadoQuery("/studies?PatientID=" + mrn, lu);
-			List<ImagingStudy> studies = new ArrayList<ImagingStudy>();
-
-			for (Map<String, List<String>> dcmCodeMap : dcmCodeMaps) {
-				// These entries may need 'fleshing out', for example code set UIDs.
-
-				ImagingStudy study = new ImagingStudy();
-				study.setPatient(new Reference(patientReferenceStr));
-
-				String s = getFirstValue(dcmCodeMap, DCM_TAG_STUDY_UID);
-				if (isThere(s)) {
-					study.setUidElement(new OidType("urn:oid:" + s));
-					String str = Utl.getArchiveURL() + "/studies/" + s;
-					// contained Endpoint reference
-					Endpoint ce = new Endpoint();
-					ce.setId("wado-endpoint-id");
-					ce.setStatus(Endpoint.EndpointStatus.ACTIVE);
-					// connection type
-					Coding ect = new Coding();
-					ect.setSystem("http://hl7.org/fhir/endpoint-connection-type");
-					ect.setCode("dicom-wado-rs");
-					ce.setConnectionType(ect);
-					// payload type
-					CodeableConcept ept = new CodeableConcept();
-					ept.setText("DICOM WADO-RS");
-					ce.addPayloadType(ept);
-					ce.setAddress(str);
-					study.addContained(ce);
-					study.addEndpoint(new Reference().setReference("#wado-endpoint-id"));
-				}
-
-				s = getFirstValue(dcmCodeMap, DCM_TAG_ACCESSION);
-				if (isThere(s))
-					study.setAccession(new Identifier().setValue(s));
-
-				s = getFirstValue(dcmCodeMap, DCM_TAG_STUDY_ID);
-				if (isThere(s))
-					study.addIdentifier(new Identifier().setValue(s));
-
-				s = getFirstValue(dcmCodeMap, DCM_TAG_INSTANCE_AVAILABILITY);
-				if (isThere(s))
-					study.setAvailability(ImagingStudy.InstanceAvailability.fromCode(s));
-
-				List<String> sl = dcmCodeMap.get(DCM_TAG_MODALITIES);
-				if (sl != null) {
-					for (String l : sl) {
-						if (isThere(l))
-							study.addModalityList(new Coding().setCode(l));
+			final SearchsetWriter bundle = new SearchsetWriter(theResponse.getWriter(), queryUrl);
+			if (page == null) {
+				FederatedQido.Result result = FederatedQido.query(mrn, lu, null, new FederatedQido.Handler() {
+					@Override
+					public void handleStudy(Archive archive, QidoStudy dcmCodeMap) throws Exception {
+						bundle.add(toImagingStudy(dcmCodeMap, patientReferenceStr, archive));
 					}
-				}
+				}); // pass json entries (studies)
+				if (result.isComplete() == false) bundle.addOutcome(result.toOperationOutcome());
+				bundle.finish();
+				return;
+			}
 
-				s = getFirstValue(dcmCodeMap, DCM_TAG_REF_PHYS);
-				if (isThere(s))
-					study.setReferrer(new Reference().setDisplay(s));
-
-				s = getFirstValue(dcmCodeMap, DCM_TAG_RETRIEVE_URL);
-				if (isThere(s))
-					study.addEndpoint(new Reference().setReference(s));
-
-				s = getFirstValue(dcmCodeMap, DCM_TAG_NUM_SERIES);
-				if (isThere(s))
-					study.setNumberOfSeries(Integer.parseInt(s));
-
-				s = getFirstValue(dcmCodeMap, DCM_TAG_NUM_INSTANCES);
-				if (isThere(s))
-					study.setNumberOfInstances(Integer.parseInt(s));
-
-				String d = getFirstValue(dcmCodeMap, DCM_TAG_STUDY_DATE);
-				String t = getFirstValue(dcmCodeMap, DCM_TAG_STUDY_TIME);
-				if (isThere(t))
-				   t = t.substring(0, t.indexOf("."));
-				if (d.length() == 8) {
-					String fmt = "yyyyMMdd";
-					if (t.length() == 6) {
-						fmt += "HHmmss";
-						d += t;
+			String key = page.getKey("ImagingStudy", mrn, patientReferenceStr, lu);
+			SearchPage.Snapshot snapshot = SearchPage.getSnapshot(key);
+			if (snapshot == null) {
+				final List<String> entries = new ArrayList<String>();
+				FederatedQido.Result result = FederatedQido.query(mrn, lu, page, new FederatedQido.Handler() {
+					@Override
+					public void handleStudy(Archive archive, QidoStudy dcmCodeMap) throws Exception {
+						entries.add(bundle.add(toImagingStudy(dcmCodeMap, patientReferenceStr, archive)));
 					}
-					SimpleDateFormat sdf = new SimpleDateFormat(fmt);
-					Date sd = null;
-					try {
-						sd = sdf.parse(d);
-					} catch (Exception e) {
-					}
-					;
-					if (sd != null)
-						study.setStarted(sd);
+				});
+				snapshot = new SearchPage.Snapshot(entries, result.hasNext());
+				// A partial page is not kept, so the next request asks the slow archive again
+				if (result.isComplete()) SearchPage.putSnapshot(key, snapshot);
+				else bundle.addOutcome(result.toOperationOutcome());
+			} else {
+				for (String entry : snapshot.getEntries()) {
+					bundle.addEncoded(entry);
 				}
+			}
+			page.addLinks(bundle, queryUrl, snapshot.hasNext());
+			bundle.finish(null);
 
-				studies.add(study);
-
-			} // pass json entries (studies)
+		} catch (Exception e) {
+			e.printStackTrace();
+			// Once entries have been sent the response is aborted, see handleException
+			if (theResponse.isCommitted() == false) theResponse.resetBuffer();
+			String em = "Error processing image request " + e.getMessage() + " on command " + cmd;
+			throw new InternalErrorException(em, e);
+		}
+	}
 
-			Bundle bundle = new Bundle();
-			bundle.setId(UUID.randomUUID().toString());
-			bundle.addLink(new Bundle.BundleLinkComponent().setRelation("self").setUrl(queryUrl));
-			bundle.setType(Bundle.BundleType.SEARCHSET);
-			bundle.setTotal(studies.size());
+	/**
+	 * Maps one QIDO study to an ImagingStudy.
+	 * @param dcmCodeMap the study
+	 * @param patientReferenceStr The FHIR Patient reference string, for example, Patient/1234
+	 * @param archive the archive the study came from, which its WADO endpoint points at
+	 */
+	static ImagingStudy toImagingStudy(QidoStudy dcmCodeMap, String patientReferenceStr, Archive archive) throws Exception {
+		// These entries may need 'fleshing out', for example code set UIDs.
+
+		ImagingStudy study = new ImagingStudy();
+		study.setPatient(new Reference(patientReferenceStr));
+
+		String s = getFirstValue(dcmCodeMap, DCM_TAG_STUDY_UID);
+		if (isThere(s)) {
+			study.setUidElement(new OidType("urn:oid:" + s));
+			String str = archive.getWadoUrl() + "/studies/" + s;
+			// contained Endpoint reference
+			Endpoint ce = new Endpoint();
+			ce.setId("wado-endpoint-id");
+			ce.setStatus(Endpoint.EndpointStatus.ACTIVE);
+			// connection type
+			Coding ect = new Coding();
+			ect.setSystem("http://hl7.org/fhir/endpoint-connection-type");
+			ect.setCode("dicom-wado-rs");
+			ce.setConnectionType(ect);
+			// payload type
+			CodeableConcept ept = new CodeableConcept();
+			ept.setText("DICOM WADO-RS");
+			ce.addPayloadType(ept);
+			ce.setAddress(str);
+			study.addContained(ce);
+			study.addEndpoint(new Reference().setReference("#wado-endpoint-id"));
+		}
 
-			for (ImagingStudy study : studies) {
-				Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
-				entry.setResource(study);
-				bundle.addEntry(entry);
-			}
+		s = getFirstValue(dcmCodeMap, DCM_TAG_ACCESSION);
+		if (isThere(s))
+			study.setAccession(new Identifier().setValue(s));
 
-			FhirContext ctx = FhirContext.forDstu3();
-			IParser parser = ctx.newJsonParser();
-			String body = parser.encodeResourceToString(bundle);
+		s = getFirstValue(dcmCodeMap, DCM_TAG_STUDY_ID);
+		if (isThere(s))
+			study.addIdentifier(new Identifier().setValue(s));
 
-			return body;
+		s = getFirstValue(dcmCodeMap, DCM_TAG_INSTANCE_AVAILABILITY);
+		if (isThere(s))
+			study.setAvailability(ImagingStudy.InstanceAvailability.fromCode(s));
 
+		List<String> sl = dcmCodeMap.getValues(DCM_TAG_MODALITIES);
+		if (sl != null) {
+			for (String l : sl) {
+				if (isThere(l))
+					study.addModalityList(new Coding().setCode(l));
+			}
+		}
 
-		} catch (Exception e) {
-			e.printStackTrace();
-			String em = "Error processing image request " + e.getMessage() + " on command " + cmd;
-			throw new InternalErrorException(em, e);
+		s = getFirstValue(dcmCodeMap, DCM_TAG_REF_PHYS);
+		if (isThere(s))
+			study.setReferrer(new Reference().setDisplay(s));
+
+		s = getFirstValue(dcmCodeMap, DCM_TAG_RETRIEVE_URL);
+		if (isThere(s))
+			study.addEndpoint(new Reference().setReference(s));
+
+		s = getFirstValue(dcmCodeMap, DCM_TAG_NUM_SERIES);
+		if (isThere(s))
+			study.setNumberOfSeries(Integer.parseInt(s));
+
+		s = getFirstValue(dcmCodeMap, DCM_TAG_NUM_INSTANCES);
+		if (isThere(s))
+			study.setNumberOfInstances(Integer.parseInt(s));
+
+		String d = getFirstValue(dcmCodeMap, DCM_TAG_STUDY_DATE);
+		String t = getFirstValue(dcmCodeMap, DCM_TAG_STUDY_TIME);
+		// Drop any fraction of a second
+		if (isThere(t) && t.indexOf(".") >= 0)
+			t = t.substring(0, t.indexOf("."));
+		if (isThere(d) && d.length() == 8) {
+			String fmt = "yyyyMMdd";
+			if (isThere(t) && t.length() == 6) {
+				fmt += "HHmmss";
+				d += t;
+			}
+			SimpleDateFormat sdf = new SimpleDateFormat(fmt);
+			Date sd = null;
+			try {
+				sd = sdf.parse(d);
+			} catch (Exception e) {
+			}
+			;
+			if (sd != null)
+				study.setStarted(sd);
 		}
+
+		return study;
 	}
 
-	private String getFirstValue(Map<String, List<String>> dcmCodeMap, String code) {
-		List<String> lst = dcmCodeMap.get(code);
-		if (lst != null && lst.isEmpty() == false) return lst.get(0);
-		return null;
+	private static String getFirstValue(QidoStudy dcmCodeMap, String code) {
+		return dcmCodeMap.getFirstValue(code);
 	}
 
-	private boolean isThere(String val) {
+	private static boolean isThere(String val) {
 		return val != null && val.isEmpty() == false;
 	}
 
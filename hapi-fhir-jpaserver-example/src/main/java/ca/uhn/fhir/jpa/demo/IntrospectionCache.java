@@ -0,0 +1,192 @@
+package ca.uhn.fhir.jpa.demo;
+
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of token introspection results, keyed on
+ * (token, patient, resource, access).
+ * <p>
+ * A successful result is kept until the token's <code>exp</code> or the
+ * configured TTL, whichever comes first. A failed authorization is kept for
+ * a short negative TTL so a client retrying a bad token does not hammer the
+ * introspection service. Concurrent lookups for the same key wait for a
+ * single upstream request.
+ * </p>
+ */
+public class IntrospectionCache {
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+
+	private static final Cache<Key, CompletableFuture<Entry>> cache = CacheBuilder.newBuilder()
+		.maximumSize(Utl.getIntrospectionCacheSize())
+		.expireAfterWrite(Math.max(Utl.getIntrospectionCacheTtl(), Utl.getIntrospectionCacheNegativeTtl()), TimeUnit.SECONDS)
+		.removalListener(new RemovalListener<Key, CompletableFuture<Entry>>() {
+			@Override
+			public void onRemoval(RemovalNotification<Key, CompletableFuture<Entry>> theNotification) {
+				if (theNotification.wasEvicted()) evictions.incrementAndGet();
+			}
+		})
+		.build();
+
+	private IntrospectionCache() {}
+
+	/**
+	 * Returns the cached introspection result for the key, calling the loader
+	 * (once, even if several threads ask at the same time) when there is no
+	 * live entry.
+	 * @param token authorization token
+	 * @param pid patient resource reference id
+	 * @param resource requested resource, or "*"
+	 * @param access requested access
+	 * @param loader performs the introspection. Returns the MRN and token expiry,
+	 *               or throws AuthenticationException if authorization fails.
+	 * @return patient MRN, or null.
+	 * @throws AuthenticationException if authorization failed now or recently.
+	 * @throws Exception any other (uncached) error thrown by the loader.
+	 */
+	public static String get(String token, String pid, String resource, String access, final Callable<Entry> loader)
+		throws AuthenticationException, Exception {
+		Key key = new Key(token, pid, resource, access);
+		ConcurrentMap<Key, CompletableFuture<Entry>> map = cache.asMap();
+		while (true) {
+			CompletableFuture<Entry> future = map.get(key);
+			boolean loaded = false;
+			if (future == null) {
+				CompletableFuture<Entry> newFuture = new CompletableFuture<Entry>();
+				future = map.putIfAbsent(key, newFuture);
+				if (future == null) {
+					future = newFuture;
+					loaded = true;
+					load(key, newFuture, loader);
+				}
+			}
+
+			Entry entry;
+			try {
+				entry = future.get();
+			} catch (ExecutionException e) {
+				// Only authorization failures are cached; anything else is retried next time
+				if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+				throw e;
+			}
+			if (!loaded && entry.isExpired()) {
+				// Token expired before the cache TTL did; drop it and look it up again
+				if (map.remove(key, future)) evictions.incrementAndGet();
+				continue;
+			}
+			if (loaded) {
+				misses.incrementAndGet();
+			} else {
+				hits.incrementAndGet();
+			}
+			if (entry.failure != null) throw new AuthenticationException(entry.failure);
+			return entry.mrn;
+		}
+	}
+
+	private static void load(Key key, CompletableFuture<Entry> future, Callable<Entry> loader) {
+		try {
+			future.complete(loader.call());
+		} catch (AuthenticationException e) {
+			future.complete(Entry.failure(e.getMessage()));
+		} catch (Throwable t) {
+			cache.asMap().remove(key, future);
+			future.completeExceptionally(t);
+		}
+	}
+
+	/**
+	 * Drops all cached results.
+	 */
+	public static void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	/**
+	 * @return hit, miss and eviction counters, and the current cache size.
+	 */
+	public static Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("hits", hits.get());
+		metrics.put("misses", misses.get());
+		metrics.put("evictions", evictions.get());
+		metrics.put("size", cache.size());
+		return metrics;
+	}
+
+	/**
+	 * Cached introspection outcome.
+	 */
+	public static class Entry {
+		private final String mrn;
+		private final String failure;
+		private final long expiresAt;
+
+		private Entry(String mrn, String failure, long expiresAt) {
+			this.mrn = mrn;
+			this.failure = failure;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * @param mrn patient MRN (may be null)
+		 * @param exp token expiry in seconds since the epoch, as returned by
+		 *            the introspection service, or null if not given.
+		 * @return a successful entry, live until exp or the configured TTL.
+		 */
+		public static Entry success(String mrn, Long exp) {
+			long expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Utl.getIntrospectionCacheTtl());
+			if (exp != null) expiresAt = Math.min(expiresAt, TimeUnit.SECONDS.toMillis(exp));
+			return new Entry(mrn, null, expiresAt);
+		}
+
+		/**
+		 * @param message failure message
+		 * @return a failed entry, live for the configured negative TTL.
+		 */
+		public static Entry failure(String message) {
+			return new Entry(null, message == null ? "Authorization failed" : message,
+				System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Utl.getIntrospectionCacheNegativeTtl()));
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() >= expiresAt;
+		}
+	}
+
+	private static class Key {
+		private final String[] parts;
+		private final int hash;
+
+		Key(String token, String pid, String resource, String access) {
+			parts = new String[] {token, pid, resource, access};
+			hash = Arrays.hashCode(parts);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(parts, ((Key) o).parts);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -86,6 +86,17 @@ public class JpaServerDemo extends RestfulServer {
 		}
 		setPlainProviders(systemProvider);
 
+		/*
+		 * Broker cache invalidation and metrics operations ($broker-invalidate-cache,
+		 * $broker-metrics).
+		 */
+		if (fhirVersion == FhirVersionEnum.DSTU3) {
+			registerProvider(new BrokerAdminProvider());
+		}
+
+		// Load the MRN to patient id lookup now rather than on the first request
+		PidLookup.warmUp();
+
 		/*
 		 * The conformance provider exports the supported resources, search parameters, etc for
 		 * this server. The JPA version adds resource counts to the exported statement, so it
@@ -0,0 +1,23 @@
+package ca.uhn.fhir.jpa.demo;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Daemon threads named prefix1, prefix2, ... for the broker's worker pools.
+ */
+class NamedThreadFactory implements ThreadFactory {
+	private final AtomicInteger count = new AtomicInteger();
+	private final String prefix;
+
+	NamedThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, prefix + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+}
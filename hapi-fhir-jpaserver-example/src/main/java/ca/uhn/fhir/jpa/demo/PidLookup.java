@@ -1,14 +1,229 @@
 package ca.uhn.fhir.jpa.demo;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * pid_in to pid_out lookup (MRN to patient resource id).
+ * <p>
+ * The whole pid_lookup table is held in a concurrent map, loaded when the
+ * class is first used (see {@link #warmUp()}); {@link #get(String)} never goes
+ * to the database. {@link #put(String, String)} updates the map and marks the
+ * key dirty; a single writer thread, which owns the database connection,
+ * writes dirty keys to the table in batches every PID_LOOKUP_FLUSH_INTERVAL
+ * milliseconds. The writer always writes the value currently in the map, so
+ * the table ends up with the last value put for each key however puts race.
+ * If a batch fails, its rows are written one at a time so that one bad row
+ * doesn't hold up the others. Keys which still can't be written stay dirty and
+ * another write is scheduled, backing off from PID_LOOKUP_FLUSH_INTERVAL up to
+ * {@link #MAX_RETRY_DELAY_MILLIS}.
+ * </p>
+ */
 public class PidLookup {
+	/**
+	 * Longest wait between attempts to write changes after a failed batch.
+	 */
+	public static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
 	private static Connection conn = null;
 	private static PreparedStatement insert = null;
 	private static PreparedStatement update = null;
 	private static PreparedStatement query = null;
+	private static PreparedStatement queryAll = null;
+
+	private static final ConcurrentHashMap<String, String> pids = new ConcurrentHashMap<String, String>();
+	private static final Set<String> dirty = ConcurrentHashMap.newKeySet();
+	private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "pid-lookup-writer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	// Held while changing a key's value together with its dirty mark
+	private static final Object lock = new Object();
+	private static final AtomicBoolean flushScheduled = new AtomicBoolean();
+	// Only used on the writer thread
+	private static int consecutiveFailures = 0;
+
+	private static final AtomicLong gets = new AtomicLong();
+	private static final AtomicLong puts = new AtomicLong();
+	private static final AtomicLong writes = new AtomicLong();
+	private static final AtomicLong batches = new AtomicLong();
+	private static final AtomicLong writeFailures = new AtomicLong();
 
 	static {
+		open();
+
+		Runtime.getRuntime().addShutdownHook(new Thread("pid-lookup-shutdown") {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Loads the table into memory, if that has not already been done. Called
+	 * at server startup so the first requests do not pay for it.
+	 * @return number of entries now held in memory, including changes not yet written
+	 */
+	public static int warmUp() {
+		return pids.size();
+	}
+
+	public static void put(String pidIn, String pidOut) {
+		puts.incrementAndGet();
+		synchronized (lock) {
+			// In testing environment, the relationship will often already be there.
+			String s = pids.get(pidIn);
+			if (s != null && s.equals(pidOut)) return;
+			// Insert if not there, update if there and not the same; done by the writer
+			dirty.add(pidIn);
+			pids.put(pidIn, pidOut);
+		}
+		scheduleWrite(Utl.getPidLookupFlushInterval());
+	}
+
+	public static String get(String pidIn) {
+		gets.incrementAndGet();
+		return pids.get(pidIn);
+	}
+
+	/**
+	 * Re-reads one entry from the database, discarding the in-memory value.
+	 * @param pidIn pid_in value (MRN)
+	 */
+	public static void invalidate(final String pidIn) {
+		onWriter(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				write();
+				String pidOut = select(pidIn);
+				synchronized (lock) {
+					// A put since the write is newer than the table
+					if (dirty.contains(pidIn)) return null;
+					if (pidOut == null) {
+						pids.remove(pidIn);
+					} else {
+						pids.put(pidIn, pidOut);
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Re-reads the whole table, after writing any pending changes to it.
+	 */
+	public static void invalidateAll() {
+		onWriter(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				write();
+				// Replace entry by entry, so lookups never see an empty map
+				Map<String, String> loaded = load();
+				synchronized (lock) {
+					for (String pidIn : pids.keySet()) {
+						if (loaded.containsKey(pidIn) == false && dirty.contains(pidIn) == false) pids.remove(pidIn);
+					}
+					for (Map.Entry<String, String> next : loaded.entrySet()) {
+						if (dirty.contains(next.getKey()) == false) pids.put(next.getKey(), next.getValue());
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Reconnects to the database at {@link Utl#getPidLookupDbURL()} and reloads
+	 * the whole table, dropping any changes not yet written. For tests, which may
+	 * run after another test in the same JVM has already initialized this class.
+	 */
+	static void reopen() {
+		onWriter(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				open();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Writes any pending changes to the database now, and waits for that to finish.
+	 */
+	public static void flush() {
+		onWriter(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				write();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return lookup counters, the number of entries, and changes waiting to be written.
+	 */
+	public static Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("gets", gets.get());
+		metrics.put("puts", puts.get());
+		metrics.put("size", pids.size());
+		metrics.put("pendingWrites", dirty.size());
+		metrics.put("writes", writes.get());
+		metrics.put("batches", batches.get());
+		metrics.put("writeFailures", writeFailures.get());
+		return metrics;
+	}
+
+	private static void scheduleWrite(long delayMillis) {
+		if (flushScheduled.compareAndSet(false, true)) {
+			writer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flushScheduled.set(false);
+					write();
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static void onWriter(Callable<Void> task) {
+		try {
+			writer.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		}
+	}
+
+	/*
+	 * The methods below use the shared connection and statements, and are only
+	 * called on the writer thread (or from the static initializer).
+	 */
+
+	private static void open() {
 
 		String create =
 			"CREATE TABLE pid_lookup ( " +
@@ -16,6 +231,13 @@ public class PidLookup {
 				"pid_out varchar(255) NOT NULL, " +
 				"PRIMARY KEY (pid_in))";
 
+		if (conn != null) {
+			try {
+				conn.close();
+			} catch (Throwable e) {
+			}
+		}
+
 		try {
 			conn = DriverManager.getConnection(Utl.getPidLookupDbURL());
 		} catch (Throwable e) {
@@ -32,50 +254,30 @@ public class PidLookup {
 			insert = conn.prepareStatement("INSERT INTO pid_lookup VALUES (?, ?)");
 			update = conn.prepareStatement("UPDATE pid_lookup SET pid_out = ? WHERE pid_in = ?");
 			query = conn.prepareStatement("SELECT * FROM pid_lookup WHERE pid_in = ?");
+			queryAll = conn.prepareStatement("SELECT * FROM pid_lookup");
 		} catch (Throwable e) {
 			System.out.println("#######\nPrepared statement creation error in PidLookup");
 			System.out.println(e.getMessage());
 		}
-	}
 
-	public static void put(String pidIn, String pidOut) {
-		// In testing environment, the relationship will often already be there.
-		String s = PidLookup.get(pidIn);
-		if (s != null && s.equals(pidOut)) return;
-		// Insert if not there, update if there and not the same
-		Integer i = null;
-		try {
-		if (s == null) {
-
-			// INSERT INTO pid_lookup VALUES (pidIn, pidOut)
-			insert.setString(1, pidIn);
-			insert.setString(2, pidOut);
-			i = insert.executeUpdate();
-		} else {
-			// UPDATE pid_lookup SET pid_out = pidOut WHERE pid_in = pidIn
-			update.setString(1, pidOut);
-			update.setString(2, pidIn);
-			i = update.executeUpdate();
-		}
-			String stl = "result was " + i.toString();
-		} catch (SQLException e) {
-
-			e.printStackTrace();
+		Map<String, String> loaded = load();
+		synchronized (lock) {
+			dirty.clear();
+			pids.clear();
+			pids.putAll(loaded);
 		}
 	}
 
-	public static String get(String pidIn) {
+	private static Map<String, String> load() {
+		Map<String, String> loaded = new HashMap<String, String>();
 		ResultSet result = null;
-		String pidOut = null;
 		try {
-			// SELECT * FROM pid_lookup WHERE pid_in = ?
-			query.setString(1, pidIn);
-			result = query.executeQuery();
-			if (result.next()) {
-				pidOut = result.getString("pid_out");
+			result = queryAll.executeQuery();
+			while (result.next()) {
+				loaded.put(result.getString("pid_in"), result.getString("pid_out"));
 			}
-		} catch (SQLException e) {
-
+			System.out.println("PidLookup loaded " + loaded.size() + " entries");
+		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
 			try {
@@ -85,6 +287,105 @@ public class PidLookup {
 				se.printStackTrace();
 			}
 		}
-		return pidOut;
+		return loaded;
+	}
+
+	private static void write() {
+		// Keys which could not be written in this pass; marked dirty again at the end
+		List<String> failed = new ArrayList<String>();
+		while (dirty.isEmpty() == false) {
+			List<String> keys = new ArrayList<String>();
+			List<String> values = new ArrayList<String>();
+			synchronized (lock) {
+				Iterator<String> it = dirty.iterator();
+				while (it.hasNext() && keys.size() < Utl.getPidLookupBatchSize()) {
+					String pidIn = it.next();
+					// Removed along with reading the value: a later put marks the key again
+					it.remove();
+					String pidOut = pids.get(pidIn);
+					if (pidOut == null) continue;
+					keys.add(pidIn);
+					values.add(pidOut);
+				}
+			}
+			if (keys.isEmpty()) continue;
+			try {
+				writeBatch(keys, values);
+				writes.addAndGet(keys.size());
+				batches.incrementAndGet();
+			} catch (Exception e) {
+				// Write the rows one at a time, so one bad row doesn't hold up the rest
+				System.out.println("#######\nPidLookup batch write failed, writing rows one at a time: " + e.getMessage());
+				int written = 0;
+				for (int i = 0; i < keys.size(); i++) {
+					try {
+						writeBatch(keys.subList(i, i + 1), values.subList(i, i + 1));
+						writes.incrementAndGet();
+						written++;
+					} catch (Exception e2) {
+						writeFailures.incrementAndGet();
+						failed.add(keys.get(i));
+						System.out.println("#######\nPidLookup write failed for " + keys.get(i) + ": " + e2.getMessage());
+					}
+				}
+				if (written == 0) {
+					// Nothing could be written, so the database is probably unavailable; try again later
+					break;
+				}
+			}
+		}
+
+		if (failed.isEmpty()) {
+			consecutiveFailures = 0;
+			return;
+		}
+		dirty.addAll(failed);
+		// Back off: the interval, doubled for each failure in a row, up to the maximum
+		consecutiveFailures++;
+		long delay = Math.max(1, Utl.getPidLookupFlushInterval());
+		delay = Math.min(MAX_RETRY_DELAY_MILLIS, delay << Math.min(consecutiveFailures - 1, 16));
+		System.out.println("#######\nPidLookup could not write " + failed.size() + " entries, will retry in " + delay + "ms");
+		scheduleWrite(delay);
+	}
+
+	private static void writeBatch(List<String> keys, List<String> values) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try {
+			// UPDATE pid_lookup SET pid_out = pidOut WHERE pid_in = pidIn
+			for (int i = 0; i < keys.size(); i++) {
+				update.setString(1, values.get(i));
+				update.setString(2, keys.get(i));
+				update.addBatch();
+			}
+			int[] updated = update.executeBatch();
+
+			// INSERT INTO pid_lookup VALUES (pidIn, pidOut), for those not there
+			int inserts = 0;
+			for (int i = 0; i < keys.size(); i++) {
+				if (updated[i] != 0) continue;
+				insert.setString(1, keys.get(i));
+				insert.setString(2, values.get(i));
+				insert.addBatch();
+				inserts++;
+			}
+			if (inserts > 0) insert.executeBatch();
+			conn.commit();
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			update.clearBatch();
+			insert.clearBatch();
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	private static String select(String pidIn) throws SQLException {
+		// SELECT * FROM pid_lookup WHERE pid_in = ?
+		query.setString(1, pidIn);
+		try (ResultSet result = query.executeQuery()) {
+			return result.next() ? result.getString("pid_out") : null;
+		}
 	}
 }
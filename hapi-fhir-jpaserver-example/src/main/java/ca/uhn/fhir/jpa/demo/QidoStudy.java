@@ -0,0 +1,95 @@
+package ca.uhn.fhir.jpa.demo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One study from a QIDO-RS response. Only the DICOM tags the broker uses
+ * (those in {@link Cmn}) are kept, each as an array of string values.
+ */
+public class QidoStudy implements Cmn {
+
+	/**
+	 * DICOM tags retained from QIDO responses; all other attributes are skipped
+	 * while parsing.
+	 */
+	static final Set<String> TAGS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+		DCM_TAG_CHARACTER_SET, DCM_TAG_STUDY_DATE, DCM_TAG_STUDY_TIME, DCM_TAG_ACCESSION,
+		DCM_TAG_RETRIEVE_AE_TITLE, DCM_TAG_INSTANCE_AVAILABILITY, DCM_TAG_MODALITIES, DCM_TAG_REF_PHYS,
+		DCM_TAG_RETRIEVE_URL, DCM_TAG_PATIENT_NAME, DCM_TAG_PATIENT_ID, DCM_TAG_PATIENT_DOB,
+		DCM_TAG_PATIENT_SEX, DCM_TAG_STUDY_UID, DCM_TAG_STUDY_ID, DCM_TAG_NUM_SERIES, DCM_TAG_NUM_INSTANCES)));
+
+	/** Shared by every tag without a value, so never handed out where it could be changed */
+	private static final String[] EMPTY = new String[] {""};
+
+	/**
+	 * Receives studies as they are parsed from a QIDO response.
+	 */
+	public interface Handler {
+		void handleStudy(QidoStudy study) throws Exception;
+	}
+
+	private String[] tags = new String[8];
+	private String[][] values = new String[8][];
+	private int size;
+
+	void put(String tag, String[] tagValues) {
+		if (size == tags.length) {
+			tags = Arrays.copyOf(tags, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		tags[size] = tag;
+		values[size] = tagValues.length == 0 ? EMPTY : tagValues;
+		size++;
+	}
+
+	private String[] find(String tag) {
+		for (int i = 0; i < size; i++) {
+			if (tags[i].equals(tag)) return values[i];
+		}
+		return null;
+	}
+
+	/**
+	 * @param tag DICOM tag, for example {@link Cmn#DCM_TAG_STUDY_UID}
+	 * @return the first value for the tag, "" if the tag had no value,
+	 * or null if the tag was not returned.
+	 */
+	public String getFirstValue(String tag) {
+		String[] v = find(tag);
+		return v == null ? null : v[0];
+	}
+
+	/**
+	 * @param tag DICOM tag
+	 * @return all values for the tag, which can't be modified, or null if the
+	 * tag was not returned.
+	 */
+	public List<String> getValues(String tag) {
+		String[] v = find(tag);
+		return v == null ? null : Collections.unmodifiableList(Arrays.asList(v));
+	}
+
+	/**
+	 * @return study date and time concatenated (yyyyMMddHHmmss...), for
+	 * comparison with a _lastUpdated value.
+	 */
+	String getStudyDateTime() {
+		String d = getFirstValue(DCM_TAG_STUDY_DATE);
+		String t = getFirstValue(DCM_TAG_STUDY_TIME);
+		return (d == null ? "" : d) + (t == null ? "" : t);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder("{");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) b.append(", ");
+			b.append(tags[i]).append('=').append(Arrays.toString(values[i]));
+		}
+		return b.append('}').toString();
+	}
+}
@@ -0,0 +1,176 @@
+package ca.uhn.fhir.jpa.demo;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One page of a brokered search, from the _count and _offset parameters.
+ * <p>
+ * Pages are fetched from the upstream service with the equivalent limit and
+ * offset, so each page costs one small query rather than a full scan. The
+ * encoded entries of each page are kept for PAGE_CACHE_TTL seconds, keyed on
+ * the query and the page, so a client walking the <code>next</code> links, or
+ * several clients reading the same page, are served from memory. Requests are
+ * still authorized every time; only the results are shared.
+ * </p>
+ */
+public class SearchPage {
+
+	private static final Cache<String, Snapshot> snapshots = CacheBuilder.newBuilder()
+		.maximumSize(Utl.getPageCacheSize())
+		.expireAfterWrite(Utl.getPageCacheTtl(), TimeUnit.SECONDS)
+		.recordStats()
+		.build();
+
+	private final int count;
+	private final int offset;
+
+	SearchPage(int count, int offset) {
+		this.count = count;
+		this.offset = offset;
+	}
+
+	/**
+	 * @param params search parameters
+	 * @return the requested page, or null if _count was not given (all results wanted).
+	 * @throws InvalidRequestException if _count or _offset is not a valid number.
+	 */
+	public static SearchPage fromParameters(Map<String, String[]> params) throws InvalidRequestException {
+		String count = null;
+		String offset = null;
+		for (Map.Entry<String, String[]> param : params.entrySet()) {
+			if (param.getValue() == null || param.getValue().length == 0) continue;
+			if (param.getKey().equals("_count")) count = param.getValue()[0];
+			if (param.getKey().equals("_offset")) offset = param.getValue()[0];
+		}
+		if (count == null) return null;
+		int c = parse("_count", count);
+		int o = offset == null ? 0 : parse("_offset", offset);
+		if (c < 1) throw new InvalidRequestException("_count must be at least 1");
+		return new SearchPage(Math.min(c, Utl.getMaxPageSize()), o);
+	}
+
+	private static int parse(String name, String value) throws InvalidRequestException {
+		try {
+			int i = Integer.parseInt(StringUtils.trim(value));
+			if (i < 0) throw new InvalidRequestException(name + " must not be negative");
+			return i;
+		} catch (NumberFormatException e) {
+			throw new InvalidRequestException("Invalid " + name + " value: " + value);
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @param parts values identifying the query (resource type, patient, filters)
+	 * @return snapshot key for this page of the query
+	 */
+	public String getKey(String... parts) {
+		StringBuilder b = new StringBuilder();
+		for (String part : parts) {
+			b.append(part).append('|');
+		}
+		return b.append(offset).append('|').append(count).toString();
+	}
+
+	/**
+	 * Adds previous and next links for this page.
+	 * @param bundle the page being written
+	 * @param url the URL of this page
+	 * @param hasNext true if there may be more results after this page
+	 */
+	public void addLinks(SearchsetWriter bundle, String url, boolean hasNext) {
+		if (offset > 0) bundle.addLink("previous", getUrl(url, Math.max(0, offset - count)));
+		if (hasNext) bundle.addLink("next", getUrl(url, offset + count));
+	}
+
+	/**
+	 * @param url a search URL
+	 * @param offset new _offset value
+	 * @return the URL with _offset replaced.
+	 */
+	static String getUrl(String url, int offset) {
+		int q = url.indexOf('?');
+		StringBuilder b = new StringBuilder(q < 0 ? url : url.substring(0, q)).append('?');
+		if (q >= 0) {
+			for (String param : url.substring(q + 1).split("&")) {
+				if (param.isEmpty() || param.startsWith("_offset=") || param.equals("_offset")) continue;
+				b.append(param).append('&');
+			}
+		}
+		return b.append("_offset=").append(offset).toString();
+	}
+
+	/**
+	 * @param key snapshot key, see {@link #getKey(String...)}
+	 * @return the cached page, or null.
+	 */
+	public static Snapshot getSnapshot(String key) {
+		return snapshots.getIfPresent(key);
+	}
+
+	/**
+	 * @param key snapshot key, see {@link #getKey(String...)}
+	 * @param snapshot the page to keep
+	 */
+	public static void putSnapshot(String key, Snapshot snapshot) {
+		snapshots.put(key, snapshot);
+	}
+
+	/**
+	 * Drops all cached pages.
+	 */
+	public static void invalidateAll() {
+		snapshots.invalidateAll();
+	}
+
+	/**
+	 * @return hit, miss and eviction counters, and the current number of cached pages.
+	 */
+	public static Map<String, Object> getMetrics() {
+		CacheStats stats = snapshots.stats();
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("hits", stats.hitCount());
+		metrics.put("misses", stats.missCount());
+		metrics.put("evictions", stats.evictionCount());
+		metrics.put("size", snapshots.size());
+		return metrics;
+	}
+
+	/**
+	 * A page of results, as encoded resources.
+	 */
+	public static class Snapshot {
+		private final List<String> entries;
+		private final boolean hasNext;
+
+		public Snapshot(List<String> entries, boolean hasNext) {
+			this.entries = Collections.unmodifiableList(entries);
+			this.hasNext = hasNext;
+		}
+
+		public List<String> getEntries() {
+			return entries;
+		}
+
+		public boolean hasNext() {
+			return hasNext;
+		}
+	}
+}
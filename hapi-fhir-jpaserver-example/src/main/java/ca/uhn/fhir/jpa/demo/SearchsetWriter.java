@@ -0,0 +1,160 @@
+package ca.uhn.fhir.jpa.demo;
+
+import ca.uhn.fhir.parser.IParser;
+import com.google.gson.stream.JsonWriter;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Writes a JSON searchset Bundle to a response one entry at a time, so broker
+ * searches do not build the whole Bundle (or its encoded form) in memory.
+ * <p>
+ * Each entry's resource is encoded with the shared context's JSON parser as it
+ * is added. Because the number of entries, and whether there is a next page,
+ * are not known until the end, <code>link</code> and <code>total</code> are
+ * written after the entries; JSON property order is not significant to FHIR
+ * parsers.
+ * </p>
+ * <p>
+ * The response is committed when the first entry is flushed, so a search which
+ * fails after that cannot be given an error status; see
+ * {@link #abortIfCommitted(HttpServletResponse, Throwable)}.
+ * </p>
+ */
+public class SearchsetWriter {
+
+	private final Writer out;
+	private final JsonWriter json;
+	private final IParser parser;
+	private final StringWriter resourceBuffer = new StringWriter();
+	private final List<String[]> links = new ArrayList<String[]>();
+	private int count;
+	private boolean entries;
+
+	/**
+	 * Writes the start of the Bundle.
+	 * @param out response writer
+	 * @param selfUrl URL of the search, for the "self" link
+	 * @throws IOException on write failure
+	 */
+	public SearchsetWriter(Writer out, String selfUrl) throws IOException {
+		this.out = out;
+		this.parser = Utl.getFhirContext().newJsonParser();
+		this.json = new JsonWriter(out);
+		json.beginObject();
+		json.name("resourceType").value("Bundle");
+		json.name("id").value(UUID.randomUUID().toString());
+		json.name("type").value("searchset");
+		addLink("self", selfUrl);
+	}
+
+	/**
+	 * Adds a link, written when the Bundle is finished.
+	 * @param relation link relation, for example "next"
+	 * @param url link URL
+	 */
+	public void addLink(String relation, String url) {
+		links.add(new String[] {relation, url});
+	}
+
+	/**
+	 * Encodes and writes one entry.
+	 * @param resource the entry's resource
+	 * @return the resource as encoded, which may be passed to {@link #addEncoded(String)} later.
+	 * @throws IOException on write failure
+	 */
+	public String add(IBaseResource resource) throws IOException {
+		resourceBuffer.getBuffer().setLength(0);
+		parser.encodeResourceToWriter(resource, resourceBuffer);
+		String encoded = resourceBuffer.toString();
+		addEncoded(encoded);
+		return encoded;
+	}
+
+	/**
+	 * Writes one entry whose resource has already been encoded.
+	 * @param encoded JSON encoded resource
+	 * @throws IOException on write failure
+	 */
+	public void addEncoded(String encoded) throws IOException {
+		startEntries();
+		json.beginObject().name("resource").jsonValue(encoded).endObject();
+		count++;
+		// Send what we have rather than waiting for the container's buffer to fill
+		if (count == 1) out.flush();
+	}
+
+	/**
+	 * Writes an OperationOutcome entry with search mode "outcome", for
+	 * warnings about the search. It does not count as a match.
+	 * @param outcome the outcome
+	 * @throws IOException on write failure
+	 */
+	public void addOutcome(IBaseResource outcome) throws IOException {
+		startEntries();
+		resourceBuffer.getBuffer().setLength(0);
+		parser.encodeResourceToWriter(outcome, resourceBuffer);
+		json.beginObject().name("resource").jsonValue(resourceBuffer.toString());
+		json.name("search").beginObject().name("mode").value("outcome").endObject();
+		json.endObject();
+	}
+
+	private void startEntries() throws IOException {
+		if (entries) return;
+		json.name("entry").beginArray();
+		entries = true;
+	}
+
+	/**
+	 * Writes the end of the Bundle, with the number of entries written as the total, and flushes.
+	 * @return the number of entries written
+	 * @throws IOException on write failure
+	 */
+	public int finish() throws IOException {
+		return finish(count);
+	}
+
+	/**
+	 * Writes the end of the Bundle and flushes.
+	 * @param total the total number of matches, or null if it is not known
+	 *              (a page of a larger result).
+	 * @return the number of entries written
+	 * @throws IOException on write failure
+	 */
+	public int finish(Integer total) throws IOException {
+		if (entries) json.endArray();
+		json.name("link").beginArray();
+		for (String[] link : links) {
+			json.beginObject().name("relation").value(link[0]).name("url").value(link[1]).endObject();
+		}
+		json.endArray();
+		if (total != null) json.name("total").value(total);
+		json.endObject();
+		json.flush();
+		return count;
+	}
+
+	/**
+	 * Aborts a response which failed after part of its body was sent. Rather than
+	 * let an error be appended to a truncated Bundle behind a 200, the failure is
+	 * logged and thrown out to the servlet container, which closes the connection
+	 * without ending the body, so the client sees a broken transfer.
+	 * Does nothing if the response has not been committed.
+	 * @param resp the response
+	 * @param cause the failure
+	 * @throws ServletException if the response is committed
+	 */
+	public static void abortIfCommitted(HttpServletResponse resp, Throwable cause) throws ServletException {
+		if (resp.isCommitted() == false) return;
+		System.out.println("#####\nResponse already committed, aborting connection: " + cause.getMessage());
+		throw new ServletException("Response aborted after it was committed", cause);
+	}
+}
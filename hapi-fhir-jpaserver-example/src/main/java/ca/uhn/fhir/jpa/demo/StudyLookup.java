@@ -0,0 +1,134 @@
+package ca.uhn.fhir.jpa.demo;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves a study instance UID to the MRN of the patient it belongs to, and
+ * the archive which holds it.
+ * <p>
+ * Each WADO-RS retrieve names its study, and a viewer will fetch every
+ * instance of a study in turn; the QIDO query for the study is made once
+ * and the result kept in a bounded cache. Concurrent lookups of the same
+ * study wait for a single query. Studies which cannot be resolved are not
+ * cached.
+ * </p>
+ * <p>
+ * The archives in {@link Utl#getArchives()} are asked in turn, and the first
+ * which has the study is the one it is retrieved from. An archive which fails
+ * is skipped; its failure is reported only if no other archive has the study.
+ * </p>
+ */
+public class StudyLookup implements Cmn {
+
+	private static final LoadingCache<String, Resolution> cache = CacheBuilder.newBuilder()
+		.maximumSize(Utl.getResolutionCacheSize())
+		.expireAfterWrite(Utl.getResolutionCacheTtl(), TimeUnit.SECONDS)
+		.recordStats()
+		.build(new CacheLoader<String, Resolution>() {
+			@Override
+			public Resolution load(String studyUid) throws Exception {
+				Exception failure = null;
+				for (Archive archive : Utl.getArchives()) {
+					List<QidoStudy> studies;
+					try {
+						studies = Utl.wadoQuery(archive.getQidoUrl() + "/studies?StudyInstanceUID=" + studyUid, null);
+					} catch (Exception e) {
+						failure = e;
+						continue;
+					}
+					if (studies.isEmpty()) continue;
+					String mrn = StringUtils.trimToNull(studies.get(0).getFirstValue(DCM_TAG_PATIENT_ID));
+					if (mrn == null)
+						throw new Exception("no patient id for study: " + studyUid);
+					return new Resolution(mrn, archive);
+				}
+				if (failure != null) throw failure;
+				throw new Exception("study not found: " + studyUid);
+			}
+		});
+
+	private StudyLookup() {}
+
+	/**
+	 * @param studyUid study instance UID
+	 * @return MRN of the patient the study belongs to.
+	 * @throws Exception if the study is not found or the QIDO queries fail.
+	 */
+	public static String getMrn(String studyUid) throws Exception {
+		return resolve(studyUid).getMrn();
+	}
+
+	/**
+	 * @param studyUid study instance UID
+	 * @return MRN of the patient the study belongs to, and the archive holding it.
+	 * @throws Exception if the study is not found or the QIDO queries fail.
+	 */
+	public static Resolution resolve(String studyUid) throws Exception {
+		try {
+			return cache.get(studyUid);
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Drops the cached MRN for one study.
+	 * @param studyUid study instance UID
+	 */
+	public static void invalidate(String studyUid) {
+		cache.invalidate(studyUid);
+	}
+
+	/**
+	 * Drops all cached studies.
+	 */
+	public static void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	/**
+	 * @return hit, miss and eviction counters, and the current cache size.
+	 */
+	public static Map<String, Object> getMetrics() {
+		CacheStats stats = cache.stats();
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("hits", stats.hitCount());
+		metrics.put("misses", stats.missCount());
+		metrics.put("evictions", stats.evictionCount());
+		metrics.put("size", cache.size());
+		return metrics;
+	}
+
+	/**
+	 * A resolved study: the MRN of its patient, and the archive it was found in.
+	 */
+	public static class Resolution {
+		private final String mrn;
+		private final Archive archive;
+
+		Resolution(String mrn, Archive archive) {
+			this.mrn = mrn;
+			this.archive = archive;
+		}
+
+		public String getMrn() {
+			return mrn;
+		}
+
+		public Archive getArchive() {
+			return archive;
+		}
+	}
+}
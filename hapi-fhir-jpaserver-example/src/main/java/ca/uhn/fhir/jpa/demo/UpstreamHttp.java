@@ -0,0 +1,117 @@
+package ca.uhn.fhir.jpa.demo;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared HTTP client for all broker upstream calls (QIDO, WADO and token
+ * introspection). Connections are pooled per host and kept alive between
+ * requests, so repeated calls to the same upstream service do not pay for
+ * a new TCP (and TLS) handshake every time.
+ * <p>
+ * Timeouts and pool sizes are taken from utl.properties or the environment,
+ * see {@link Utl#getUpstreamConnectTimeout()} and friends.
+ * </p>
+ */
+public class UpstreamHttp {
+
+	private static final PoolingHttpClientConnectionManager connMgr;
+	private static final CloseableHttpClient client;
+
+	private static final AtomicLong requests = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+	private static final AtomicLong totalNanos = new AtomicLong();
+	private static final AtomicLong maxNanos = new AtomicLong();
+
+	static {
+		connMgr = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+		connMgr.setMaxTotal(Utl.getUpstreamMaxConnections());
+		connMgr.setDefaultMaxPerRoute(Utl.getUpstreamMaxConnectionsPerHost());
+		connMgr.setValidateAfterInactivity(2000);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+			.setConnectTimeout(Utl.getUpstreamConnectTimeout())
+			.setConnectionRequestTimeout(Utl.getUpstreamConnectTimeout())
+			.setSocketTimeout(Utl.getUpstreamReadTimeout())
+			.build();
+
+		client = HttpClients.custom()
+			.setConnectionManager(connMgr)
+			.setDefaultRequestConfig(requestConfig)
+			// Bodies are passed through to the client untouched
+			.disableContentCompression()
+			.evictExpiredConnections()
+			.evictIdleConnections(30, TimeUnit.SECONDS)
+			.build();
+	}
+
+	private UpstreamHttp() {}
+
+	/**
+	 * Executes a request against an upstream service using the shared pool.
+	 * The caller must close the returned response (try-with-resources) so
+	 * the connection is returned to the pool.
+	 * @param request the request to execute
+	 * @return the upstream response
+	 * @throws IOException on connection failure or timeout
+	 */
+	public static CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+		long start = System.nanoTime();
+		requests.incrementAndGet();
+		try {
+			return client.execute(request);
+		} catch (IOException e) {
+			failures.incrementAndGet();
+			throw e;
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			totalNanos.addAndGet(elapsed);
+			long max;
+			while (elapsed > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, elapsed)) {
+				// retry
+			}
+		}
+	}
+
+	/**
+	 * Headers which apply to a single connection and must not be copied
+	 * when proxying a request or response.
+	 * @param name header name
+	 * @return true if the header is hop-by-hop (or computed by the client)
+	 */
+	public static boolean isHopByHop(String name) {
+		return Utl.isOneOf(name.toLowerCase(), "connection", "keep-alive", "proxy-authenticate",
+			"proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade", "host", "content-length");
+	}
+
+	/**
+	 * @return pool and latency metrics for upstream calls. Latencies are the time
+	 * until response headers are received, in milliseconds.
+	 */
+	public static Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		long count = requests.get();
+		metrics.put("requests", count);
+		metrics.put("failures", failures.get());
+		metrics.put("meanLatencyMillis", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / count));
+		metrics.put("maxLatencyMillis", TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+		PoolStats stats = connMgr.getTotalStats();
+		metrics.put("poolLeased", stats.getLeased());
+		metrics.put("poolAvailable", stats.getAvailable());
+		metrics.put("poolPending", stats.getPending());
+		metrics.put("poolMax", stats.getMax());
+		return metrics;
+	}
+
+}
@@ -3,21 +3,33 @@ package ca.uhn.fhir.jpa.demo;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import com.google.gson.*;
-import org.apache.commons.io.IOUtils;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
 import org.hl7.fhir.dstu3.model.Identifier;
 import org.hl7.fhir.dstu3.model.Patient;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.StringWriter;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Utl implements Cmn {
 
@@ -29,6 +41,34 @@ public class Utl implements Cmn {
 	static String DIAGNOSTIC_REPORT_DB_URL = "jdbc:postgresql://localhost:5433/rsnadb";
 	static String DIAGNOSTIC_REPORT_PERFORMER_REFERENCE = "Organization/57";
 	static String DIAGNOSTIC_REPORT_CODE_STRING = "http://loinc.org|37815-8|CR";
+	static String UPSTREAM_CONNECT_TIMEOUT = "5000";
+	static String UPSTREAM_READ_TIMEOUT = "60000";
+	static String UPSTREAM_MAX_CONNECTIONS = "100";
+	static String UPSTREAM_MAX_CONNECTIONS_PER_HOST = "20";
+	static String INTROSPECTION_CACHE_SIZE = "10000";
+	static String INTROSPECTION_CACHE_TTL = "300";
+	static String INTROSPECTION_CACHE_NEGATIVE_TTL = "5";
+	static String WADO_PROXY_THREADS = "32";
+	static String WADO_PROXY_QUEUE = "200";
+	static String WADO_PROXY_BUFFER_SIZE = "65536";
+	static String WADO_PROXY_MAX_RETRIES = "5";
+	static String WADO_PROXY_RETRY_DELAY = "1000";
+	static String WADO_PROXY_TIMEOUT = "600000";
+	static String RESOLUTION_CACHE_SIZE = "10000";
+	static String RESOLUTION_CACHE_TTL = "3600";
+	static String DIAGNOSTIC_REPORT_DB_USER = "edge";
+	static String DIAGNOSTIC_REPORT_DB_PASSWORD = "psword";
+	static String DIAGNOSTIC_REPORT_DB_MAX_CONNECTIONS = "20";
+	static String DIAGNOSTIC_REPORT_DB_FETCH_SIZE = "100";
+	static String PID_LOOKUP_FLUSH_INTERVAL = "1000";
+	static String PID_LOOKUP_BATCH_SIZE = "500";
+	static String PAGE_CACHE_SIZE = "1000";
+	static String PAGE_CACHE_TTL = "60";
+	static String MAX_PAGE_SIZE = "500";
+	static String ARCHIVES = "";
+	static String ARCHIVE_QUERY_TIMEOUT = "10000";
+	static String ARCHIVE_QUERY_THREADS = "32";
+	static String BROKER_ADMIN_TOKENS = "";
 
 	static {
 		String s = null;
@@ -53,6 +93,62 @@ public class Utl implements Cmn {
 			if (s != null) DIAGNOSTIC_REPORT_PERFORMER_REFERENCE = s;
 			s = StringUtils.trimToNull(properties.getProperty("DIAGNOSTIC_REPORT_CODE_STRING"));
 			if (s != null) DIAGNOSTIC_REPORT_CODE_STRING = s;
+			s = StringUtils.trimToNull(properties.getProperty("UPSTREAM_CONNECT_TIMEOUT"));
+			if (s != null) UPSTREAM_CONNECT_TIMEOUT = s;
+			s = StringUtils.trimToNull(properties.getProperty("UPSTREAM_READ_TIMEOUT"));
+			if (s != null) UPSTREAM_READ_TIMEOUT = s;
+			s = StringUtils.trimToNull(properties.getProperty("UPSTREAM_MAX_CONNECTIONS"));
+			if (s != null) UPSTREAM_MAX_CONNECTIONS = s;
+			s = StringUtils.trimToNull(properties.getProperty("UPSTREAM_MAX_CONNECTIONS_PER_HOST"));
+			if (s != null) UPSTREAM_MAX_CONNECTIONS_PER_HOST = s;
+			s = StringUtils.trimToNull(properties.getProperty("INTROSPECTION_CACHE_SIZE"));
+			if (s != null) INTROSPECTION_CACHE_SIZE = s;
+			s = StringUtils.trimToNull(properties.getProperty("INTROSPECTION_CACHE_TTL"));
+			if (s != null) INTROSPECTION_CACHE_TTL = s;
+			s = StringUtils.trimToNull(properties.getProperty("INTROSPECTION_CACHE_NEGATIVE_TTL"));
+			if (s != null) INTROSPECTION_CACHE_NEGATIVE_TTL = s;
+			s = StringUtils.trimToNull(properties.getProperty("WADO_PROXY_THREADS"));
+			if (s != null) WADO_PROXY_THREADS = s;
+			s = StringUtils.trimToNull(properties.getProperty("WADO_PROXY_QUEUE"));
+			if (s != null) WADO_PROXY_QUEUE = s;
+			s = StringUtils.trimToNull(properties.getProperty("WADO_PROXY_BUFFER_SIZE"));
+			if (s != null) WADO_PROXY_BUFFER_SIZE = s;
+			s = StringUtils.trimToNull(properties.getProperty("WADO_PROXY_MAX_RETRIES"));
+			if (s != null) WADO_PROXY_MAX_RETRIES = s;
+			s = StringUtils.trimToNull(properties.getProperty("WADO_PROXY_RETRY_DELAY"));
+			if (s != null) WADO_PROXY_RETRY_DELAY = s;
+			s = StringUtils.trimToNull(properties.getProperty("WADO_PROXY_TIMEOUT"));
+			if (s != null) WADO_PROXY_TIMEOUT = s;
+			s = StringUtils.trimToNull(properties.getProperty("RESOLUTION_CACHE_SIZE"));
+			if (s != null) RESOLUTION_CACHE_SIZE = s;
+			s = StringUtils.trimToNull(properties.getProperty("RESOLUTION_CACHE_TTL"));
+			if (s != null) RESOLUTION_CACHE_TTL = s;
+			s = StringUtils.trimToNull(properties.getProperty("DIAGNOSTIC_REPORT_DB_USER"));
+			if (s != null) DIAGNOSTIC_REPORT_DB_USER = s;
+			s = StringUtils.trimToNull(properties.getProperty("DIAGNOSTIC_REPORT_DB_PASSWORD"));
+			if (s != null) DIAGNOSTIC_REPORT_DB_PASSWORD = s;
+			s = StringUtils.trimToNull(properties.getProperty("DIAGNOSTIC_REPORT_DB_MAX_CONNECTIONS"));
+			if (s != null) DIAGNOSTIC_REPORT_DB_MAX_CONNECTIONS = s;
+			s = StringUtils.trimToNull(properties.getProperty("DIAGNOSTIC_REPORT_DB_FETCH_SIZE"));
+			if (s != null) DIAGNOSTIC_REPORT_DB_FETCH_SIZE = s;
+			s = StringUtils.trimToNull(properties.getProperty("PID_LOOKUP_FLUSH_INTERVAL"));
+			if (s != null) PID_LOOKUP_FLUSH_INTERVAL = s;
+			s = StringUtils.trimToNull(properties.getProperty("PID_LOOKUP_BATCH_SIZE"));
+			if (s != null) PID_LOOKUP_BATCH_SIZE = s;
+			s = StringUtils.trimToNull(properties.getProperty("PAGE_CACHE_SIZE"));
+			if (s != null) PAGE_CACHE_SIZE = s;
+			s = StringUtils.trimToNull(properties.getProperty("PAGE_CACHE_TTL"));
+			if (s != null) PAGE_CACHE_TTL = s;
+			s = StringUtils.trimToNull(properties.getProperty("MAX_PAGE_SIZE"));
+			if (s != null) MAX_PAGE_SIZE = s;
+			s = StringUtils.trimToNull(properties.getProperty("ARCHIVES"));
+			if (s != null) ARCHIVES = s;
+			s = StringUtils.trimToNull(properties.getProperty("ARCHIVE_QUERY_TIMEOUT"));
+			if (s != null) ARCHIVE_QUERY_TIMEOUT = s;
+			s = StringUtils.trimToNull(properties.getProperty("ARCHIVE_QUERY_THREADS"));
+			if (s != null) ARCHIVE_QUERY_THREADS = s;
+			s = StringUtils.trimToNull(properties.getProperty("BROKER_ADMIN_TOKENS"));
+			if (s != null) BROKER_ADMIN_TOKENS = s;
 		} catch (Exception e) {
 			System.out.println("Missing/invalid utl.properties.");
 		}
@@ -73,6 +169,62 @@ public class Utl implements Cmn {
 			if (s != null) DIAGNOSTIC_REPORT_PERFORMER_REFERENCE = s;
 			s = StringUtils.trimToNull(System.getenv("DIAGNOSTIC_REPORT_CODE_STRING"));
 			if (s != null) DIAGNOSTIC_REPORT_CODE_STRING = s;
+			s = StringUtils.trimToNull(System.getenv("UPSTREAM_CONNECT_TIMEOUT"));
+			if (s != null) UPSTREAM_CONNECT_TIMEOUT = s;
+			s = StringUtils.trimToNull(System.getenv("UPSTREAM_READ_TIMEOUT"));
+			if (s != null) UPSTREAM_READ_TIMEOUT = s;
+			s = StringUtils.trimToNull(System.getenv("UPSTREAM_MAX_CONNECTIONS"));
+			if (s != null) UPSTREAM_MAX_CONNECTIONS = s;
+			s = StringUtils.trimToNull(System.getenv("UPSTREAM_MAX_CONNECTIONS_PER_HOST"));
+			if (s != null) UPSTREAM_MAX_CONNECTIONS_PER_HOST = s;
+			s = StringUtils.trimToNull(System.getenv("INTROSPECTION_CACHE_SIZE"));
+			if (s != null) INTROSPECTION_CACHE_SIZE = s;
+			s = StringUtils.trimToNull(System.getenv("INTROSPECTION_CACHE_TTL"));
+			if (s != null) INTROSPECTION_CACHE_TTL = s;
+			s = StringUtils.trimToNull(System.getenv("INTROSPECTION_CACHE_NEGATIVE_TTL"));
+			if (s != null) INTROSPECTION_CACHE_NEGATIVE_TTL = s;
+			s = StringUtils.trimToNull(System.getenv("WADO_PROXY_THREADS"));
+			if (s != null) WADO_PROXY_THREADS = s;
+			s = StringUtils.trimToNull(System.getenv("WADO_PROXY_QUEUE"));
+			if (s != null) WADO_PROXY_QUEUE = s;
+			s = StringUtils.trimToNull(System.getenv("WADO_PROXY_BUFFER_SIZE"));
+			if (s != null) WADO_PROXY_BUFFER_SIZE = s;
+			s = StringUtils.trimToNull(System.getenv("WADO_PROXY_MAX_RETRIES"));
+			if (s != null) WADO_PROXY_MAX_RETRIES = s;
+			s = StringUtils.trimToNull(System.getenv("WADO_PROXY_RETRY_DELAY"));
+			if (s != null) WADO_PROXY_RETRY_DELAY = s;
+			s = StringUtils.trimToNull(System.getenv("WADO_PROXY_TIMEOUT"));
+			if (s != null) WADO_PROXY_TIMEOUT = s;
+			s = StringUtils.trimToNull(System.getenv("RESOLUTION_CACHE_SIZE"));
+			if (s != null) RESOLUTION_CACHE_SIZE = s;
+			s = StringUtils.trimToNull(System.getenv("RESOLUTION_CACHE_TTL"));
+			if (s != null) RESOLUTION_CACHE_TTL = s;
+			s = StringUtils.trimToNull(System.getenv("DIAGNOSTIC_REPORT_DB_USER"));
+			if (s != null) DIAGNOSTIC_REPORT_DB_USER = s;
+			s = StringUtils.trimToNull(System.getenv("DIAGNOSTIC_REPORT_DB_PASSWORD"));
+			if (s != null) DIAGNOSTIC_REPORT_DB_PASSWORD = s;
+			s = StringUtils.trimToNull(System.getenv("DIAGNOSTIC_REPORT_DB_MAX_CONNECTIONS"));
+			if (s != null) DIAGNOSTIC_REPORT_DB_MAX_CONNECTIONS = s;
+			s = StringUtils.trimToNull(System.getenv("DIAGNOSTIC_REPORT_DB_FETCH_SIZE"));
+			if (s != null) DIAGNOSTIC_REPORT_DB_FETCH_SIZE = s;
+			s = StringUtils.trimToNull(System.getenv("PID_LOOKUP_FLUSH_INTERVAL"));
+			if (s != null) PID_LOOKUP_FLUSH_INTERVAL = s;
+			s = StringUtils.trimToNull(System.getenv("PID_LOOKUP_BATCH_SIZE"));
+			if (s != null) PID_LOOKUP_BATCH_SIZE = s;
+			s = StringUtils.trimToNull(System.getenv("PAGE_CACHE_SIZE"));
+			if (s != null) PAGE_CACHE_SIZE = s;
+			s = StringUtils.trimToNull(System.getenv("PAGE_CACHE_TTL"));
+			if (s != null) PAGE_CACHE_TTL = s;
+			s = StringUtils.trimToNull(System.getenv("MAX_PAGE_SIZE"));
+			if (s != null) MAX_PAGE_SIZE = s;
+			s = StringUtils.trimToNull(System.getenv("ARCHIVES"));
+			if (s != null) ARCHIVES = s;
+			s = StringUtils.trimToNull(System.getenv("ARCHIVE_QUERY_TIMEOUT"));
+			if (s != null) ARCHIVE_QUERY_TIMEOUT = s;
+			s = StringUtils.trimToNull(System.getenv("ARCHIVE_QUERY_THREADS"));
+			if (s != null) ARCHIVE_QUERY_THREADS = s;
+			s = StringUtils.trimToNull(System.getenv("BROKER_ADMIN_TOKENS"));
+			if (s != null) BROKER_ADMIN_TOKENS = s;
 		} catch (SecurityException se) {
 			System.out.println("Security Exception accessing environment variables.");
 		}
@@ -86,6 +238,34 @@ public class Utl implements Cmn {
 		DIAGNOSTIC_REPORT_DB_URL 					= DIAGNOSTIC_REPORT_DB_URL.replace("\"", "");
 		DIAGNOSTIC_REPORT_PERFORMER_REFERENCE  = DIAGNOSTIC_REPORT_PERFORMER_REFERENCE.replace("\"", "");
 		DIAGNOSTIC_REPORT_CODE_STRING 			= DIAGNOSTIC_REPORT_CODE_STRING.replace("\"", "");
+		UPSTREAM_CONNECT_TIMEOUT 					= UPSTREAM_CONNECT_TIMEOUT.replace("\"", "");
+		UPSTREAM_READ_TIMEOUT 						= UPSTREAM_READ_TIMEOUT.replace("\"", "");
+		UPSTREAM_MAX_CONNECTIONS 					= UPSTREAM_MAX_CONNECTIONS.replace("\"", "");
+		UPSTREAM_MAX_CONNECTIONS_PER_HOST 		= UPSTREAM_MAX_CONNECTIONS_PER_HOST.replace("\"", "");
+		INTROSPECTION_CACHE_SIZE 					= INTROSPECTION_CACHE_SIZE.replace("\"", "");
+		INTROSPECTION_CACHE_TTL 					= INTROSPECTION_CACHE_TTL.replace("\"", "");
+		INTROSPECTION_CACHE_NEGATIVE_TTL 		= INTROSPECTION_CACHE_NEGATIVE_TTL.replace("\"", "");
+		WADO_PROXY_THREADS 							= WADO_PROXY_THREADS.replace("\"", "");
+		WADO_PROXY_QUEUE 								= WADO_PROXY_QUEUE.replace("\"", "");
+		WADO_PROXY_BUFFER_SIZE 						= WADO_PROXY_BUFFER_SIZE.replace("\"", "");
+		WADO_PROXY_MAX_RETRIES 						= WADO_PROXY_MAX_RETRIES.replace("\"", "");
+		WADO_PROXY_RETRY_DELAY 						= WADO_PROXY_RETRY_DELAY.replace("\"", "");
+		WADO_PROXY_TIMEOUT 							= WADO_PROXY_TIMEOUT.replace("\"", "");
+		RESOLUTION_CACHE_SIZE 						= RESOLUTION_CACHE_SIZE.replace("\"", "");
+		RESOLUTION_CACHE_TTL 							= RESOLUTION_CACHE_TTL.replace("\"", "");
+		DIAGNOSTIC_REPORT_DB_USER 					= DIAGNOSTIC_REPORT_DB_USER.replace("\"", "");
+		DIAGNOSTIC_REPORT_DB_PASSWORD 				= DIAGNOSTIC_REPORT_DB_PASSWORD.replace("\"", "");
+		DIAGNOSTIC_REPORT_DB_MAX_CONNECTIONS 		= DIAGNOSTIC_REPORT_DB_MAX_CONNECTIONS.replace("\"", "");
+		DIAGNOSTIC_REPORT_DB_FETCH_SIZE 			= DIAGNOSTIC_REPORT_DB_FETCH_SIZE.replace("\"", "");
+		PID_LOOKUP_FLUSH_INTERVAL 					= PID_LOOKUP_FLUSH_INTERVAL.replace("\"", "");
+		PID_LOOKUP_BATCH_SIZE 						= PID_LOOKUP_BATCH_SIZE.replace("\"", "");
+		PAGE_CACHE_SIZE 							= PAGE_CACHE_SIZE.replace("\"", "");
+		PAGE_CACHE_TTL 								= PAGE_CACHE_TTL.replace("\"", "");
+		MAX_PAGE_SIZE 								= MAX_PAGE_SIZE.replace("\"", "");
+		ARCHIVES 									= ARCHIVES.replace("\"", "");
+		ARCHIVE_QUERY_TIMEOUT 						= ARCHIVE_QUERY_TIMEOUT.replace("\"", "");
+		ARCHIVE_QUERY_THREADS 						= ARCHIVE_QUERY_THREADS.replace("\"", "");
+		BROKER_ADMIN_TOKENS 						= BROKER_ADMIN_TOKENS.replace("\"", "");
 
 
 	}
@@ -96,6 +276,14 @@ public class Utl implements Cmn {
 	public static String getWadoURL() {
 		return DICOM_RS_BROKER_WADO_URL;
 	}
+	/**
+	 * @param archive archive holding a study
+	 * @return WADO RS URL retrieves of the study are forwarded to: the archive's own
+	 * when ARCHIVES is configured, otherwise the broker's (DICOM_RS_BROKER_WADO_URL).
+	 */
+	public static String getWadoURL(Archive archive) {
+		return StringUtils.isBlank(ARCHIVES) ? getWadoURL() : archive.getWadoUrl();
+	}
 	public static String getArchiveURL() { return IMAGE_ARCHIVE_WADO_RS_URL; }
 	public static String getPidLookupDbURL() { return PID_LOOKUP_DB_URL; }
 	public static String getDiagnosticReportDbURL() { return DIAGNOSTIC_REPORT_DB_URL; }
@@ -112,9 +300,88 @@ public class Utl implements Cmn {
 		String[] tokens = DIAGNOSTIC_REPORT_CODE_STRING.split("[|]+");
 		return tokens[2];
 	}
+	public static int getUpstreamConnectTimeout() { return toInt(UPSTREAM_CONNECT_TIMEOUT, 5000); }
+	public static int getUpstreamReadTimeout() { return toInt(UPSTREAM_READ_TIMEOUT, 60000); }
+	public static int getUpstreamMaxConnections() { return toInt(UPSTREAM_MAX_CONNECTIONS, 100); }
+	public static int getUpstreamMaxConnectionsPerHost() { return toInt(UPSTREAM_MAX_CONNECTIONS_PER_HOST, 20); }
+	public static int getIntrospectionCacheSize() { return toInt(INTROSPECTION_CACHE_SIZE, 10000); }
+	/** @return maximum time, in seconds, a successful introspection result is cached. */
+	public static int getIntrospectionCacheTtl() { return toInt(INTROSPECTION_CACHE_TTL, 300); }
+	/** @return time, in seconds, a failed authorization is cached. */
+	public static int getIntrospectionCacheNegativeTtl() { return toInt(INTROSPECTION_CACHE_NEGATIVE_TTL, 5); }
+	public static int getWadoProxyThreads() { return toInt(WADO_PROXY_THREADS, 32); }
+	public static int getWadoProxyQueue() { return toInt(WADO_PROXY_QUEUE, 200); }
+	public static int getWadoProxyBufferSize() { return toInt(WADO_PROXY_BUFFER_SIZE, 65536); }
+	public static int getWadoProxyMaxRetries() { return toInt(WADO_PROXY_MAX_RETRIES, 5); }
+	/** @return initial delay, in milliseconds, before retrying a 503 from the archive; doubled on each retry. */
+	public static int getWadoProxyRetryDelay() { return toInt(WADO_PROXY_RETRY_DELAY, 1000); }
+	/** @return maximum time, in milliseconds, an asynchronous WADO-RS retrieve (including retries) may take. */
+	public static int getWadoProxyTimeout() { return toInt(WADO_PROXY_TIMEOUT, 600000); }
+	public static int getResolutionCacheSize() { return toInt(RESOLUTION_CACHE_SIZE, 10000); }
+	/** @return time, in seconds, a study UID to MRN resolution is cached. */
+	public static int getResolutionCacheTtl() { return toInt(RESOLUTION_CACHE_TTL, 3600); }
+	public static String getDiagnosticReportDbUser() { return DIAGNOSTIC_REPORT_DB_USER; }
+	public static String getDiagnosticReportDbPassword() { return DIAGNOSTIC_REPORT_DB_PASSWORD; }
+	public static int getDiagnosticReportDbMaxConnections() { return toInt(DIAGNOSTIC_REPORT_DB_MAX_CONNECTIONS, 20); }
+	/** @return rows fetched per round trip when reading v_exam_status. */
+	public static int getDiagnosticReportDbFetchSize() { return toInt(DIAGNOSTIC_REPORT_DB_FETCH_SIZE, 100); }
+	/** @return maximum time, in milliseconds, before a pid lookup change is written to the database. */
+	public static int getPidLookupFlushInterval() { return toInt(PID_LOOKUP_FLUSH_INTERVAL, 1000); }
+	public static int getPidLookupBatchSize() { return toInt(PID_LOOKUP_BATCH_SIZE, 500); }
+	public static int getPageCacheSize() { return toInt(PAGE_CACHE_SIZE, 1000); }
+	/** @return time, in seconds, a page of search results is kept for re-use. */
+	public static int getPageCacheTtl() { return toInt(PAGE_CACHE_TTL, 60); }
+	/** @return largest _count honoured; larger values are reduced to this. */
+	public static int getMaxPageSize() { return toInt(MAX_PAGE_SIZE, 500); }
+	/**
+	 * @return the archives ImagingStudy searches are sent to: those listed in ARCHIVES,
+	 * or if that is empty the single archive DICOM_RS_BROKER_QIDO_URL / IMAGE_ARCHIVE_WADO_RS_URL.
+	 */
+	public static List<Archive> getArchives() {
+		List<Archive> archives = Archive.parse(ARCHIVES);
+		if (archives.isEmpty()) archives.add(new Archive("default", getQidoURL(), getArchiveURL()));
+		return archives;
+	}
+	/** @return time, in milliseconds, to wait for all archives to answer a federated query. */
+	public static int getArchiveQueryTimeout() { return toInt(ARCHIVE_QUERY_TIMEOUT, 10000); }
+	public static int getArchiveQueryThreads() { return toInt(ARCHIVE_QUERY_THREADS, 32); }
+	/**
+	 * @return bearer tokens allowed to use the broker's administrative operations,
+	 * from the comma separated BROKER_ADMIN_TOKENS; empty if none are configured.
+	 */
+	public static List<String> getBrokerAdminTokens() {
+		List<String> tokens = new ArrayList<>();
+		for (String token : BROKER_ADMIN_TOKENS.split(",")) {
+			token = StringUtils.trimToNull(token);
+			if (token != null) tokens.add(token);
+		}
+		return tokens;
+	}
+
+	/**
+	 * Parses an integer configuration value.
+	 * @param value configured value
+	 * @param dflt value to use if the configured value is not a valid integer
+	 * @return the integer value
+	 */
+	static int toInt(String value, int dflt) {
+		try {
+			return Integer.parseInt(StringUtils.trimToEmpty(value));
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid integer configuration value '" + value + "', using " + dflt);
+			return dflt;
+		}
+	}
+
 	private static Gson gson = new Gson();
 	private static FhirContext ctx = FhirContext.forDstu3();
 
+	/**
+	 * @return the broker's DSTU3 context. Contexts are expensive to create and
+	 * thread safe, so this one is shared; create a parser from it per use.
+	 */
+	public static FhirContext getFhirContext() { return ctx; }
+
 	/**
 	 * Gets MRN for patient
 	 * @param pat Patient resource
@@ -149,20 +416,112 @@ public class Utl implements Cmn {
 	 * @param lastUpdated if not null, represents a datetime; studies started before this
 	 *                    should be ignored. looks for yyyyMMddhhMMss, or any prefix thereof.
 	 *                    All non-numerics will be striped.
-	 * @return List with one entry for each returned study. Each entry will be map of dcm tags with corresponding
-	 * value(s) List.
+	 * @return List with one entry for each returned study.
 	 * @throws Exception on error.
 	 */
-	public static List<Map<String, List<String>>> wadoQueryMrn(String mrn, String lastUpdated)
+	public static List<QidoStudy> wadoQueryMrn(String mrn, String lastUpdated)
+		throws Exception {
+		final List<QidoStudy> studies = new ArrayList<QidoStudy>();
+		wadoQueryMrn(mrn, lastUpdated, new QidoStudy.Handler() {
+			@Override
+			public void handleStudy(QidoStudy study) {
+				studies.add(study);
+			}
+		});
+		return studies;
+	}
+
+	/**
+	 * WADO RS query for studies for patient, passing each study to a handler as
+	 * it is read.
+	 * @param mrn patient medical record number
+	 * @param lastUpdated as for {@link #wadoQueryMrn(String, String)}
+	 * @param handler called once for each study, in response order
+	 * @return the number of studies passed to the handler.
+	 * @throws Exception on error, including an exception thrown by the handler.
+	 */
+	public static int wadoQueryMrn(String mrn, String lastUpdated, QidoStudy.Handler handler)
+		throws Exception {
+
+		return wadoQuery("/studies?PatientID=" + mrn, toStudyDateTime(lastUpdated), handler);
+	}
+
+	/**
+	 * WADO RS query for one page of studies for patient, using the QIDO offset
+	 * and limit parameters.
+	 * @param mrn patient medical record number
+	 * @param lastUpdated as for {@link #wadoQueryMrn(String, String)}. The date part
+	 *                    is also sent to the archive as a StudyDate range, so that
+	 *                    pages are mostly made up of matching studies.
+	 * @param offset number of studies to skip
+	 * @param limit maximum number of studies to return
+	 * @param handler called once for each study not excluded by lastUpdated
+	 * @return the number of studies returned by the archive, including any
+	 * excluded by lastUpdated. One study more than limit is asked for, and not
+	 * passed to the handler, so if this is more than limit there is another page.
+	 * @throws Exception on error, including an exception thrown by the handler.
+	 */
+	public static int wadoQueryMrn(String mrn, String lastUpdated, int offset, int limit, final QidoStudy.Handler handler)
 		throws Exception {
+		return wadoQueryMrn(getQidoURL(), mrn, lastUpdated, offset, limit, handler);
+	}
+
+	/**
+	 * WADO RS query for studies for patient, sent to a given QIDO service.
+	 * @param qidoUrl QIDO RS base URL, no trailing slash
+	 * @param mrn patient medical record number
+	 * @param lastUpdated as for {@link #wadoQueryMrn(String, String)}
+	 * @param offset number of studies to skip, or -1 for all studies
+	 * @param limit maximum number of studies to return, if offset is not -1
+	 * @param handler called once for each study not excluded by lastUpdated
+	 * @return for a page, as for {@link #wadoQueryMrn(String, String, int, int, QidoStudy.Handler)};
+	 * otherwise the number of studies passed to the handler.
+	 * @throws Exception on error, including an exception thrown by the handler.
+	 */
+	public static int wadoQueryMrn(String qidoUrl, String mrn, String lastUpdated, int offset, int limit,
+											 final QidoStudy.Handler handler) throws Exception {
+		return wadoQueryMrn(qidoUrl, mrn, lastUpdated, offset, limit, handler, null);
+	}
+
+	/**
+	 * As {@link #wadoQueryMrn(String, String, String, int, int, QidoStudy.Handler)},
+	 * allowing the query to be aborted from another thread.
+	 * @param request as for {@link #wadoQuery(String, String, QidoStudy.Handler, AtomicReference)}
+	 */
+	public static int wadoQueryMrn(String qidoUrl, String mrn, String lastUpdated, int offset, int limit,
+											 final QidoStudy.Handler handler, AtomicReference<HttpGet> request) throws Exception {
+		final String lu = toStudyDateTime(lastUpdated);
+		String cmd = qidoUrl + "/studies?PatientID=" + mrn;
+		if (offset < 0) return wadoQuery(cmd, lu, handler, request);
+
+		if (lu != null && lu.length() >= 8) cmd += "&StudyDate=" + lu.substring(0, 8) + "-";
+		cmd += "&offset=" + offset + "&limit=" + (limit + 1);
+
+		final int max = limit;
+		return wadoQuery(cmd, null, new QidoStudy.Handler() {
+			private int studies;
+
+			@Override
+			public void handleStudy(QidoStudy study) throws Exception {
+				// The extra study only tells whether there is another page
+				if (studies++ >= max) return;
+				if (lu != null && lu.compareTo(study.getStudyDateTime()) > 0) return;
+				handler.handleStudy(study);
+			}
+		}, request);
+	}
 
-		// Creates a string which can be matched to study start time for last updated check.
+	/**
+	 * Creates a string which can be matched to study start time for last updated check.
+	 * @param lastUpdated _lastUpdated value, or null
+	 * @return the digits of lastUpdated, or null if there are none.
+	 */
+	private static String toStudyDateTime(String lastUpdated) {
 		if (lastUpdated != null) {
 			lastUpdated = lastUpdated.replaceAll("[^\\d]", "");
 			if (lastUpdated.isEmpty()) lastUpdated = null;
 		}
-
-		return wadoQuery("/studies?PatientID=" + mrn, lastUpdated);
+		return lastUpdated;
 	}
 
 	/**
@@ -171,11 +530,43 @@ public class Utl implements Cmn {
 	 * @param lastUpdated if not null, represents a datetime; studies started before this
 	 *                    should be ignored. looks for yyyyMMddhhMMss, or any prefix thereof.
 	 *                    All non-numerics will be striped.
-	 * @return List with one entry for each returned study. Each entry will be map of dcm tags with corresponding
-	 * value(s) List.
+	 * @return List with one entry for each returned study.
 	 * @throws Exception on error.
 	 */
-		public static List<Map<String, List<String>>> wadoQuery(String cmd, String lastUpdated)
+	public static List<QidoStudy> wadoQuery(String cmd, String lastUpdated)
+		throws Exception {
+		final List<QidoStudy> studies = new ArrayList<QidoStudy>();
+		wadoQuery(cmd, lastUpdated, new QidoStudy.Handler() {
+			@Override
+			public void handleStudy(QidoStudy study) {
+				studies.add(study);
+			}
+		});
+		return studies;
+	}
+
+	/**
+	 * QIDO, passing each study to a handler as it is read.
+	 * @param cmd URL to query
+	 * @param lastUpdated as for {@link #wadoQuery(String, String)}
+	 * @param handler called once for each study, in response order
+	 * @return the number of studies passed to the handler.
+	 * @throws Exception on error, including an exception thrown by the handler.
+	 */
+	public static int wadoQuery(String cmd, String lastUpdated, QidoStudy.Handler handler)
+		throws Exception {
+		return wadoQuery(cmd, lastUpdated, handler, null);
+	}
+
+	/**
+	 * As {@link #wadoQuery(String, String, QidoStudy.Handler)}, allowing the query
+	 * to be aborted from another thread. Interrupting the thread does not stop a
+	 * blocked read of the response, but aborting the request does.
+	 * @param request if not null, set to the request before it is sent, so that it
+	 *                can be aborted. If it is already set, the query has been
+	 *                cancelled and is not sent.
+	 */
+	public static int wadoQuery(String cmd, String lastUpdated, QidoStudy.Handler handler, AtomicReference<HttpGet> request)
 		throws Exception {
 			if (cmd.startsWith("http") == false) {
 				String prefix = Utl.getQidoURL();
@@ -184,79 +575,149 @@ public class Utl implements Cmn {
 				}
 				cmd = prefix + cmd;
 			}
-		final URL url = new URL(cmd);
-		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-		conn.setRequestMethod("GET");
-		conn.setRequestProperty("Accept-Charset", "utf-8");
-		conn.setRequestProperty("Accept-Encoding", "deflate,sdch");
-		conn.setRequestProperty("Accept", "application/json");
-
-		conn.setUseCaches(false);
-		conn.setDoInput(true);
+		HttpGet get = new HttpGet(cmd);
+		get.setHeader("Accept-Charset", "utf-8");
+		get.setHeader("Accept-Encoding", "deflate,sdch");
+		get.setHeader("Accept", "application/json");
 		System.out.println("**** " + cmd + " ****");
-		conn.connect();
-
-		int responseCode = conn.getResponseCode();
-		if (responseCode != 200) throw new Exception("invalid returned status " + responseCode);
-
-		Map<String, List<String>> responseHeaders = conn.getHeaderFields();
-		List<String> responseContentTypes = responseHeaders.get("Content-Type");
-		if (responseContentTypes == null)
-			throw new Exception("Required header missing, 'Content-Type'");
-		if (responseContentTypes.size() != 1)
-			throw new Exception("Required header invalid, 'Content-Type'");
-		String responseContentType = responseContentTypes.get(0);
-		if (responseContentType == null)
-			throw new Exception("Required header empty, 'Content-Type'");
-		if (responseContentType.contains("json") == false)
-			throw new Exception("Content-Type " + responseContentType + " not supported");
-
-		StringWriter writer = new StringWriter();
-		IOUtils.copy(conn.getInputStream(), writer, "UTF-8");
-		String responseBody = StringUtils.trimToEmpty(writer.toString());
-		// cluge
-			if (responseBody.startsWith("[") && !responseBody.endsWith("]")) responseBody += "]";
-		if (responseBody.isEmpty())
-			throw new Exception("Response body empty");
+		if (request != null && request.compareAndSet(null, get) == false)
+			throw new InterruptedIOException("Query cancelled: " + cmd);
+
+		try (CloseableHttpResponse response = UpstreamHttp.execute(get)) {
+			int responseCode = response.getStatusLine().getStatusCode();
+			if (responseCode != 200) throw new Exception("invalid returned status " + responseCode);
+
+			Header[] responseContentTypes = response.getHeaders("Content-Type");
+			if (responseContentTypes == null || responseContentTypes.length == 0)
+				throw new Exception("Required header missing, 'Content-Type'");
+			if (responseContentTypes.length != 1)
+				throw new Exception("Required header invalid, 'Content-Type'");
+			String responseContentType = responseContentTypes[0].getValue();
+			if (responseContentType == null)
+				throw new Exception("Required header empty, 'Content-Type'");
+			if (responseContentType.contains("json") == false)
+				throw new Exception("Content-Type " + responseContentType + " not supported");
 
-		/*
-		 * parse the json returned by the WADO query.
-	    */
+			HttpEntity entity = response.getEntity();
+			if (entity == null)
+				throw new Exception("Response body empty");
+			try (Reader reader = new InputStreamReader(entity.getContent(), Consts.UTF_8)) {
+				return readQidoStudies(reader, lastUpdated, handler);
+			}
+		}
+	}
 
-		List<Map<String, List<String>>> studies = new ArrayList<Map<String, List<String>>>();
-		// The highest level is an array.
-		JsonArray responseJson = new JsonParser().parse(responseBody).getAsJsonArray();
-		// pass the array members
-		for (int i = 0; i < responseJson.size(); i++) {
-			// each member of the array is a linked map of the members
-			Set<Map.Entry<String, JsonElement>> members = responseJson.get(i).getAsJsonObject().entrySet();
-			// Pass the map, getting the keys (DICOM tags) and values as strings.
-			Map<String, List<String>> dcmCodeMap = new HashMap<String, List<String>>();
-			for (Map.Entry<String, JsonElement> member : members) {
-				String dcmKey = member.getKey();
-				List<String> dcmValues = new ArrayList<String>();
-				try {
-					JsonArray dcmJsonValues = member.getValue().getAsJsonObject().get("Value").getAsJsonArray();
-					for (int k = 0; k < dcmJsonValues.size(); k++) {
-						String dcmv = dcmJsonValues.get(k).toString();
-						dcmv = dcmv.replaceAll("^\"|\"$", "");
-						dcmValues.add(dcmv);
-					}
-				} catch (NullPointerException e) {
-					System.out.println("null ptr for key " + dcmKey);
-				}
-				if (dcmValues.isEmpty()) dcmValues.add("");
-				dcmCodeMap.put(dcmKey, dcmValues);
+	/**
+	 * Parses a QIDO-RS (DICOM JSON) study array one token at a time, keeping only
+	 * the tags in {@link QidoStudy#TAGS}. The whole body is never held in memory.
+	 * @param in QIDO response body
+	 * @param lastUpdated if not null, studies whose date and time sort before this
+	 *                    are dropped as they are read.
+	 * @return the studies read.
+	 * @throws Exception if the body is empty or is not a DICOM JSON array.
+	 */
+	static List<QidoStudy> readQidoStudies(Reader in, String lastUpdated) throws Exception {
+		final List<QidoStudy> studies = new ArrayList<QidoStudy>();
+		readQidoStudies(in, lastUpdated, new QidoStudy.Handler() {
+			@Override
+			public void handleStudy(QidoStudy study) {
+				studies.add(study);
 			}
-			if (lastUpdated != null) {
-				String s = dcmCodeMap.get(DCM_TAG_STUDY_DATE).get(0) + dcmCodeMap.get(DCM_TAG_STUDY_TIME).get(0);
-				if (lastUpdated.compareTo(s) > 0) continue;
+		});
+		return studies;
+	}
+
+	/**
+	 * As {@link #readQidoStudies(Reader, String)}, passing each study to a handler
+	 * as soon as it has been read.
+	 * @return the number of studies passed to the handler.
+	 */
+	static int readQidoStudies(Reader in, String lastUpdated, QidoStudy.Handler handler) throws Exception {
+		int studies = 0;
+		JsonReader reader = new JsonReader(in);
+		reader.setLenient(true);
+		try {
+			if (reader.peek() == JsonToken.END_DOCUMENT)
+				throw new Exception("Response body empty");
+		} catch (EOFException e) {
+			throw new Exception("Response body empty");
+		}
+
+		// The highest level is an array.
+		reader.beginArray();
+		try {
+			while (reader.hasNext()) {
+				QidoStudy study = readQidoStudy(reader);
+				if (lastUpdated != null && lastUpdated.compareTo(study.getStudyDateTime()) > 0) continue;
+				handler.handleStudy(study);
+				studies++;
 			}
-			studies.add(dcmCodeMap);
+			reader.endArray();
+		} catch (EOFException e) {
+			// cluge: some archives leave off the closing ']'
 		}
 		return studies;
 	}
 
+	private static QidoStudy readQidoStudy(JsonReader reader) throws IOException {
+		QidoStudy study = new QidoStudy();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String dcmKey = reader.nextName();
+			if (QidoStudy.TAGS.contains(dcmKey) == false) {
+				reader.skipValue();
+				continue;
+			}
+			List<String> dcmValues = new ArrayList<String>(1);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (reader.nextName().equals("Value") == false || reader.peek() != JsonToken.BEGIN_ARRAY) {
+					reader.skipValue();
+					continue;
+				}
+				reader.beginArray();
+				while (reader.hasNext()) {
+					dcmValues.add(readDicomValue(reader));
+				}
+				reader.endArray();
+			}
+			reader.endObject();
+			study.put(dcmKey, dcmValues.toArray(new String[dcmValues.size()]));
+		}
+		reader.endObject();
+		return study;
+	}
+
+	/**
+	 * Reads one entry of a DICOM JSON "Value" array as a string. Person names
+	 * are returned as their Alphabetic component group.
+	 */
+	private static String readDicomValue(JsonReader reader) throws IOException {
+		switch (reader.peek()) {
+			case NULL:
+				reader.nextNull();
+				return "";
+			case BEGIN_OBJECT:
+				String value = "";
+				reader.beginObject();
+				while (reader.hasNext()) {
+					if (reader.nextName().equals("Alphabetic") && reader.peek() == JsonToken.STRING) {
+						value = reader.nextString();
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+				return value;
+			case BEGIN_ARRAY:
+				reader.skipValue();
+				return "";
+			default:
+				// strings, numbers and booleans
+				return reader.nextString();
+		}
+	}
+
 	/**
 	 * Determines if a requested scope has been granted.
 	 * @param requestedResource FHIR Resource name or "*" for all FHIR resources
@@ -309,50 +770,72 @@ public class Utl implements Cmn {
 	 * @return patient MRN, or null;
 	 * @throws AuthenticationException unless token is valid for this patient and requested access.
 	 */
-	public static String validatePid(String pid, String authToken, String requestedResource, String requestedAccess)
+	public static String validatePid(final String pid, final String authToken, final String requestedResource,
+												final String requestedAccess)
 		throws AuthenticationException, Exception {
 		if (authToken == null || authToken.isEmpty()) throw new AuthenticationException("Authorization token missing");
 
+		return IntrospectionCache.get(authToken, pid, requestedResource, requestedAccess,
+			new Callable<IntrospectionCache.Entry>() {
+				@Override
+				public IntrospectionCache.Entry call() throws Exception {
+					return introspect(pid, authToken, requestedResource, requestedAccess);
+				}
+			});
+	}
+
+	/**
+	 * Queries the token introspection service. Called by {@link #validatePid} on
+	 * an introspection cache miss.
+	 * @param pid patient resource reference id
+	 * @param authToken authorization token
+	 * @param requestedResource resource, or "*"
+	 * @param requestedAccess "read", "write", or "*" for both.
+	 * @return patient MRN (or null) and token expiry
+	 * @throws AuthenticationException unless token is valid for this patient and requested access.
+	 * @throws IOException if the introspection service could not be reached, failed, or returned a
+	 * response which could not be read. These are not authorization failures and are not cached.
+	 */
+	private static IntrospectionCache.Entry introspect(String pid, String authToken, String requestedResource,
+																	  String requestedAccess)
+		throws AuthenticationException, Exception {
 		// Query token introspection service
-		URL url = null;
-		try {
-			url = new URL(INTROSPECTION_SERVICE_URL);
-			System.out.println("***** " + url.toString() + " *****");
-			String postData = "token=" + authToken + "&patient=" + pid;
-			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-			conn.setUseCaches(false);
-			conn.setDoInput(true);
-			conn.setDoOutput(true);
-			conn.setRequestMethod("POST");
-			conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-			conn.setRequestProperty("Content-Length", "" + postData.getBytes().length);
-			conn.setRequestProperty("Content-Language", "en-US");
-			OutputStream os = conn.getOutputStream();
-			os.write(postData.getBytes("UTF-8"));
-			os.close();
-			conn.connect();
-
-			if (conn.getResponseCode() != 200) throw new AuthenticationException("Authorization failed");
-
-			Map<String, List<String>> responseHeaders = conn.getHeaderFields();
-			List<String> responseContentTypes = responseHeaders.get("Content-Type");
-			if (responseContentTypes == null)
-				throw new AuthenticationException("Required header missing, 'Content-Type'");
-			if (responseContentTypes.size() != 1)
-				throw new AuthenticationException("Required header invalid, 'Content-Type'");
-			String responseContentType = responseContentTypes.get(0);
+		System.out.println("***** " + INTROSPECTION_SERVICE_URL + " *****");
+		HttpPost post = new HttpPost(INTROSPECTION_SERVICE_URL);
+		List<NameValuePair> postData = new ArrayList<NameValuePair>();
+		postData.add(new BasicNameValuePair("token", authToken));
+		postData.add(new BasicNameValuePair("patient", pid));
+		post.setEntity(new UrlEncodedFormEntity(postData, Consts.UTF_8));
+		post.setHeader("Content-Language", "en-US");
+
+		String responseBody;
+		try (CloseableHttpResponse response = UpstreamHttp.execute(post)) {
+			int status = response.getStatusLine().getStatusCode();
+			if (status >= 500)
+				throw new IOException("Introspection service failed, status " + status);
+			if (status != 200) throw new AuthenticationException("Authorization failed");
+
+			Header[] responseContentTypes = response.getHeaders("Content-Type");
+			if (responseContentTypes == null || responseContentTypes.length == 0)
+				throw new IOException("Introspection response header missing, 'Content-Type'");
+			if (responseContentTypes.length != 1)
+				throw new IOException("Introspection response header invalid, 'Content-Type'");
+			String responseContentType = responseContentTypes[0].getValue();
 			if (responseContentType == null)
-				throw new AuthenticationException("Required header empty, 'Content-Type'");
+				throw new IOException("Introspection response header empty, 'Content-Type'");
 			if (responseContentType.contains("json") == false)
-				throw new AuthenticationException("Content-Type " + responseContentType + " not supported");
+				throw new IOException("Introspection response Content-Type " + responseContentType + " not supported");
 
-			StringWriter writer = new StringWriter();
-			IOUtils.copy(conn.getInputStream(), writer, "UTF-8");
-			String responseBody = writer.toString();
-			if (responseBody == null || responseBody.isEmpty())
-				throw new AuthenticationException("Response body empty");
+			HttpEntity entity = response.getEntity();
+			responseBody = entity == null ? null : EntityUtils.toString(entity, "UTF-8");
+		}
+		if (responseBody == null || responseBody.isEmpty())
+			throw new IOException("Introspection response body empty");
 
-			JsonObject responseJson = new JsonParser().parse(responseBody).getAsJsonObject();
+		JsonObject responseJson;
+		Patient p;
+		try {
+			responseJson = new JsonParser().parse(responseBody).getAsJsonObject();
 			Utl.is (responseJson, "active", "true");
 			String scope = Utl.is (responseJson, "scope", "*");
 			if (Utl.isScopeAuthorized(requestedResource, requestedAccess, scope) == false)
@@ -360,14 +843,13 @@ public class Utl implements Cmn {
 			// pull MRN out of identifier list
 			JsonObject patient = responseJson.getAsJsonObject("patient");
 			String patientstr = gson.toJson(patient);
-			Patient p = ctx.newJsonParser().parseResource(Patient.class, patientstr);
-			return getPatientMrn(pid, p);
-
-		} catch (MalformedURLException e ) {
-			throw new AuthenticationException(e.getMessage());
-		} catch (IOException io) {
-			throw new AuthenticationException(io.getMessage());
+			p = ctx.newJsonParser().parseResource(Patient.class, patientstr);
+		} catch (AuthenticationException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw new IOException("Introspection response could not be parsed: " + e.getMessage(), e);
 		}
+		return IntrospectionCache.Entry.success(getPatientMrn(pid, p), getExp(responseJson));
 
 	}/**
 	 * Authorization validation
@@ -396,11 +878,23 @@ public class Utl implements Cmn {
 		return StringUtils.trimToNull(element.getAsString());
 	}
 
+	/**
+	 * @return token expiry (seconds since the epoch) from an introspection response, or null if absent or invalid.
+	 */
+	private static Long getExp(JsonObject object) {
+		try {
+			String exp = get(object, "exp");
+			return exp == null ? null : new java.math.BigDecimal(exp).longValue();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
 	private static String is(JsonObject object, String name, String match) {
 		boolean is = true;
 		String value = get(object, name);
 		if (value == null) is = false;
-		if (match.equals("*") == false && value.equalsIgnoreCase(match) == false) is = false;
+		else if (match.equals("*") == false && value.equalsIgnoreCase(match) == false) is = false;
 		if (!is) throw new AuthenticationException("Authorization failed");
 		return value;
 	}
@@ -0,0 +1,371 @@
+package ca.uhn.fhir.jpa.demo;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Proxies WADO-RS retrieves to the DICOM RS broker.
+ * <p>
+ * When the container supports it the request is switched to Servlet 3 async
+ * mode and the transfer runs on a bounded proxy pool, so container threads are
+ * not held for the length of a large multipart retrieve. Response bodies are
+ * copied through a fixed per-thread buffer, and the container's response buffer
+ * decides when bytes are written to the client; a slow client blocks only its
+ * own proxy thread. When the pool and its queue are full the client gets a 503
+ * with Retry-After.
+ * </p>
+ * <p>
+ * An async retrieve which runs past {@link Utl#getWadoProxyTimeout()}, or whose
+ * client connection fails, has its archive request aborted (or pending retry
+ * cancelled) so the proxy thread and upstream connection are released. The
+ * timeout runs on the proxy's own timer rather than the container's, so no
+ * container thread waits for the proxy thread to let go of the response:
+ * whichever of the two finishes last sends the error and completes it.
+ * </p>
+ * <p>
+ * A 503 from the archive (images still being fetched into its cache) is retried
+ * with exponential backoff on a timer rather than by sleeping a thread. Range
+ * and conditional request headers are passed through, and 206/304 responses are
+ * returned as received.
+ * </p>
+ */
+public class WadoRsProxy {
+
+	private static final Logger log = LoggerFactory.getLogger(WadoRsProxy.class);
+
+	private static final int RETRY_AFTER_SECONDS = 5;
+
+	private static final ThreadPoolExecutor transferPool;
+	private static final ScheduledExecutorService timer;
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[Utl.getWadoProxyBufferSize()];
+		}
+	};
+
+	private static final AtomicInteger active = new AtomicInteger();
+	private static final AtomicLong retries = new AtomicLong();
+	private static final AtomicLong rejected = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+	private static final AtomicLong timeouts = new AtomicLong();
+	private static final AtomicLong bytes = new AtomicLong();
+
+	static {
+		int threads = Utl.getWadoProxyThreads();
+		transferPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(Math.max(1, Utl.getWadoProxyQueue())), new NamedThreadFactory("wado-proxy-"));
+		transferPool.allowCoreThreadTimeOut(true);
+		timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("wado-proxy-timer-"));
+	}
+
+	private WadoRsProxy() {}
+
+	/**
+	 * Forwards a request to WADO RS and returns the result to the client.
+	 * @param url the complete upstream URL
+	 * @param req the HttpServletRequest
+	 * @param resp the HttpServletResponse
+	 */
+	public static void forward(String url, HttpServletRequest req, HttpServletResponse resp) {
+		final Transfer transfer = new Transfer(url, req, resp);
+		if (req.isAsyncSupported() == false) {
+			// Container (or a filter) does not allow async; proxy on this thread
+			transfer.runBlocking();
+			return;
+		}
+		transfer.async = req.startAsync();
+		// The proxy times the transfer out itself; see Transfer#cancel
+		transfer.async.setTimeout(0);
+		transfer.async.addListener(transfer);
+		transfer.timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				transfer.timedOut();
+			}
+		}, Utl.getWadoProxyTimeout(), TimeUnit.MILLISECONDS);
+		transfer.submit();
+	}
+
+	/**
+	 * @return transfer, retry and pool metrics for the proxy.
+	 */
+	public static Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("active", active.get());
+		metrics.put("queued", transferPool.getQueue().size());
+		metrics.put("retries", retries.get());
+		metrics.put("rejected", rejected.get());
+		metrics.put("failures", failures.get());
+		metrics.put("timeouts", timeouts.get());
+		metrics.put("bytes", bytes.get());
+		return metrics;
+	}
+
+	private static class Transfer implements Runnable, AsyncListener {
+		private final String url;
+		private final HttpServletRequest req;
+		private final HttpServletResponse resp;
+		private final boolean hasoutbody;
+		private final AtomicBoolean completed = new AtomicBoolean();
+		private AsyncContext async;
+		private int attempt;
+		// Guarded by this
+		private boolean running;
+		private int cancelStatus;
+		private volatile boolean cancelled;
+		private volatile HttpUriRequest upstream;
+		private volatile ScheduledFuture<?> retry;
+		private volatile ScheduledFuture<?> timeout;
+
+		Transfer(String url, HttpServletRequest req, HttpServletResponse resp) {
+			this.url = url;
+			this.req = req;
+			this.resp = resp;
+			this.hasoutbody = req.getMethod().equals("POST");
+		}
+
+		void submit() {
+			try {
+				transferPool.execute(this);
+			} catch (RejectedExecutionException e) {
+				rejected.incrementAndGet();
+				sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "WADO proxy busy");
+				complete();
+			}
+		}
+
+		@Override
+		public void run() {
+			long delay = attempt();
+			if (delay < 0 || cancelled) {
+				complete();
+				return;
+			}
+			// Archive is still loading the study; try again later without holding a thread
+			retry = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					submit();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		void runBlocking() {
+			long delay;
+			while ((delay = attempt()) >= 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Interrupted");
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Makes one upstream request.
+		 * @return milliseconds to wait before retrying, or -1 if the response has been sent.
+		 */
+		private long attempt() {
+			synchronized (this) {
+				if (cancelled) return -1;
+				running = true;
+			}
+			active.incrementAndGet();
+			try {
+				RequestBuilder rb = RequestBuilder.create(req.getMethod()).setUri(url);
+				final Enumeration<String> headers = req.getHeaderNames();
+				while (headers.hasMoreElements()) {
+					final String header = headers.nextElement();
+					if (UpstreamHttp.isHopByHop(header)) continue;
+					final Enumeration<String> values = req.getHeaders(header);
+					while (values.hasMoreElements()) {
+						rb.addHeader(header, values.nextElement());
+					}
+				}
+				if (hasoutbody)
+					rb.setEntity(new InputStreamEntity(req.getInputStream(), req.getContentLength()));
+
+				HttpUriRequest request = rb.build();
+				upstream = request;
+				if (cancelled) request.abort();
+				try (CloseableHttpResponse response = UpstreamHttp.execute(request)) {
+					int status = response.getStatusLine().getStatusCode();
+					log.debug("WADO RS response status {} for {}", status, url);
+					// A POST body cannot be replayed, so only bodiless requests are retried
+					if (status == 503 && !hasoutbody && attempt < Utl.getWadoProxyMaxRetries()) {
+						EntityUtils.consumeQuietly(response.getEntity());
+						long delay = retryDelay(response);
+						attempt++;
+						retries.incrementAndGet();
+						log.debug("Waiting for image transfer, retry {} in {}ms for {}", attempt, delay, url);
+						return delay;
+					}
+					copyResponse(response);
+				}
+			} catch (Exception e) {
+				if (cancelled) {
+					log.info("WADO RS request aborted: {}", url);
+				} else {
+					failures.incrementAndGet();
+					log.warn("WADO RS request failed: {}", url, e);
+					sendError(HttpServletResponse.SC_BAD_GATEWAY, "WADO RS request failed: " + e.getMessage());
+				}
+			} finally {
+				upstream = null;
+				active.decrementAndGet();
+				int status = -1;
+				synchronized (this) {
+					running = false;
+					if (cancelled) status = cancelStatus;
+				}
+				// Cancelled while this thread had the response, so finish for the canceller
+				if (status != -1) complete(status);
+			}
+			return -1;
+		}
+
+		private long retryDelay(CloseableHttpResponse response) {
+			long delay = (long) Utl.getWadoProxyRetryDelay() << Math.min(attempt, 16);
+			Header retryAfter = response.getFirstHeader("Retry-After");
+			if (retryAfter != null && StringUtils.isNumeric(retryAfter.getValue())) {
+				delay = Math.max(delay, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.getValue())));
+			}
+			return Math.min(delay, TimeUnit.SECONDS.toMillis(60));
+		}
+
+		private void copyResponse(CloseableHttpResponse response) throws IOException {
+			int status = response.getStatusLine().getStatusCode();
+			resp.setStatus(status);
+			for (Header header : response.getAllHeaders()) {
+				if (UpstreamHttp.isHopByHop(header.getName())) continue;
+				resp.addHeader(header.getName(), header.getValue());
+			}
+			if (status == 503 && resp.containsHeader("Retry-After") == false)
+				resp.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+
+			HttpEntity entity = response.getEntity();
+			if (entity == null) return;
+			if (entity.getContentLength() >= 0)
+				resp.setContentLengthLong(entity.getContentLength());
+
+			byte[] buffer = buffers.get();
+			try (InputStream is = entity.getContent()) {
+				OutputStream os = resp.getOutputStream();
+				int read;
+				while ((read = is.read(buffer)) != -1) {
+					os.write(buffer, 0, read);
+					bytes.addAndGet(read);
+				}
+			}
+		}
+
+		private void sendError(int status, String message) {
+			try {
+				if (resp.isCommitted() == false) {
+					if (status == HttpServletResponse.SC_SERVICE_UNAVAILABLE)
+						resp.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+					resp.sendError(status, message);
+				}
+			} catch (IOException e) {
+				// client has gone away
+			}
+		}
+
+		private void complete() {
+			complete(0);
+		}
+
+		/**
+		 * Completes the async request, once.
+		 * @param status error to send the client first if nothing has been sent yet, or 0
+		 */
+		private void complete(int status) {
+			if (async == null || completed.compareAndSet(false, true) == false) return;
+			ScheduledFuture<?> pending = timeout;
+			if (pending != null) pending.cancel(false);
+			if (status != 0) sendError(status, "WADO RS request timed out");
+			async.complete();
+		}
+
+		/**
+		 * Stops the transfer: aborts the archive request or cancels a pending
+		 * retry, without waiting. If the proxy thread is using the response it
+		 * completes it when it lets go; otherwise it is completed here.
+		 * @param status error to send the client if nothing has been sent yet, or 0
+		 */
+		private void cancel(int status) {
+			boolean idle;
+			synchronized (this) {
+				if (cancelled) return;
+				cancelled = true;
+				cancelStatus = status;
+				idle = running == false;
+			}
+			HttpUriRequest request = upstream;
+			if (request != null) request.abort();
+			ScheduledFuture<?> pending = retry;
+			if (pending != null) pending.cancel(false);
+			if (idle) complete(status);
+		}
+
+		private void timedOut() {
+			if (completed.get()) return;
+			timeouts.incrementAndGet();
+			log.info("WADO RS retrieve timed out: {}", url);
+			cancel(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			timedOut();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			cancel(0);
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			// nothing to release
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			// not re-used
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package ca.uhn.fhir.jpa.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+
+public class BrokerCacheTest {
+
+	private final AtomicInteger myQidoRequests = new AtomicInteger();
+	private HttpServer myArchive;
+	private String myQidoUrl;
+
+	@Before
+	public void before() throws Exception {
+		myArchive = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		myArchive.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange theExchange) throws IOException {
+				myQidoRequests.incrementAndGet();
+				String query = theExchange.getRequestURI().getQuery();
+				String uid = query.substring(query.indexOf('=') + 1);
+				String body = uid.equals("unknown") ? "[]"
+					: "[{\"0020000D\":{\"vr\":\"UI\",\"Value\":[\"" + uid + "\"]},\"00100020\":{\"vr\":\"LO\",\"Value\":[\"MRN-" + uid + "\"]}}]";
+				byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+				theExchange.getResponseHeaders().add("Content-Type", "application/dicom+json");
+				theExchange.sendResponseHeaders(200, bytes.length);
+				try (OutputStream out = theExchange.getResponseBody()) {
+					out.write(bytes);
+				}
+			}
+		});
+		myArchive.start();
+		myQidoUrl = Utl.DICOM_RS_BROKER_QIDO_URL;
+		Utl.DICOM_RS_BROKER_QIDO_URL = "http://localhost:" + myArchive.getAddress().getPort() + "/rs";
+		StudyLookup.invalidateAll();
+		IntrospectionCache.invalidateAll();
+	}
+
+	@After
+	public void after() {
+		Utl.DICOM_RS_BROKER_QIDO_URL = myQidoUrl;
+		myArchive.stop(0);
+		StudyLookup.invalidateAll();
+		IntrospectionCache.invalidateAll();
+	}
+
+	private static long metric(String theCache, String theName) {
+		Object value = theCache.equals("study") ? StudyLookup.getMetrics().get(theName) : IntrospectionCache.getMetrics().get(theName);
+		return ((Number) value).longValue();
+	}
+
+	@Test
+	public void testStudyHitMissAndInvalidate() throws Exception {
+		long hits = metric("study", "hits");
+		long misses = metric("study", "misses");
+
+		assertEquals("MRN-1.1", StudyLookup.getMrn("1.1"));
+		assertEquals("MRN-1.1", StudyLookup.getMrn("1.1"));
+		assertEquals("MRN-1.2", StudyLookup.getMrn("1.2"));
+		assertEquals(2, myQidoRequests.get());
+		assertEquals(hits + 1, metric("study", "hits"));
+		assertEquals(misses + 2, metric("study", "misses"));
+
+		StudyLookup.invalidate("1.1");
+		assertEquals("MRN-1.1", StudyLookup.getMrn("1.1"));
+		assertEquals("MRN-1.2", StudyLookup.getMrn("1.2"));
+		assertEquals(3, myQidoRequests.get());
+
+		StudyLookup.invalidateAll();
+		StudyLookup.getMrn("1.2");
+		assertEquals(4, myQidoRequests.get());
+	}
+
+	/**
+	 * A study which can't be resolved isn't cached
+	 */
+	@Test
+	public void testStudyNotFoundIsNotCached() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			try {
+				StudyLookup.getMrn("unknown");
+				fail();
+			} catch (Exception e) {
+				assertEquals("study not found: unknown", e.getMessage());
+			}
+		}
+		assertEquals(2, myQidoRequests.get());
+	}
+
+	/**
+	 * With several archives, a study is looked for in each in turn, and is
+	 * retrieved from the one which has it
+	 */
+	@Test
+	public void testStudyResolvedAcrossArchives() throws Exception {
+		HttpServer empty = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		empty.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange theExchange) throws IOException {
+				byte[] bytes = "[]".getBytes(StandardCharsets.UTF_8);
+				theExchange.getResponseHeaders().add("Content-Type", "application/dicom+json");
+				theExchange.sendResponseHeaders(200, bytes.length);
+				try (OutputStream out = theExchange.getResponseBody()) {
+					out.write(bytes);
+				}
+			}
+		});
+		empty.start();
+		String archives = Utl.ARCHIVES;
+		try {
+			Utl.ARCHIVES = "a|http://localhost:" + empty.getAddress().getPort() + "/rs|http://a/wado,"
+				+ "b|" + Utl.DICOM_RS_BROKER_QIDO_URL + "|http://b/wado";
+
+			StudyLookup.Resolution study = StudyLookup.resolve("1.1");
+			assertEquals("MRN-1.1", study.getMrn());
+			assertEquals("b", study.getArchive().getName());
+			assertEquals("http://b/wado", Utl.getWadoURL(study.getArchive()));
+			assertEquals(1, myQidoRequests.get());
+		} finally {
+			Utl.ARCHIVES = archives;
+			empty.stop(0);
+		}
+	}
+
+	private static Callable<IntrospectionCache.Entry> loader(final AtomicInteger theCalls, final IntrospectionCache.Entry theEntry) {
+		return new Callable<IntrospectionCache.Entry>() {
+			@Override
+			public IntrospectionCache.Entry call() throws Exception {
+				theCalls.incrementAndGet();
+				Thread.sleep(50);
+				return theEntry;
+			}
+		};
+	}
+
+	@Test
+	public void testIntrospectionHitMissAndInvalidate() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		Callable<IntrospectionCache.Entry> loader = loader(calls, IntrospectionCache.Entry.success("MRN1", null));
+		long hits = metric("introspection", "hits");
+		long misses = metric("introspection", "misses");
+
+		assertEquals("MRN1", IntrospectionCache.get("token", "1", "ImagingStudy", "read", loader));
+		assertEquals("MRN1", IntrospectionCache.get("token", "1", "ImagingStudy", "read", loader));
+		assertEquals(1, calls.get());
+		// Any part of the key differing is a different entry
+		IntrospectionCache.get("token2", "1", "ImagingStudy", "read", loader);
+		IntrospectionCache.get("token", "2", "ImagingStudy", "read", loader);
+		IntrospectionCache.get("token", "1", "DiagnosticReport", "read", loader);
+		assertEquals(4, calls.get());
+		assertEquals(hits + 1, metric("introspection", "hits"));
+		assertEquals(misses + 4, metric("introspection", "misses"));
+
+		IntrospectionCache.invalidateAll();
+		IntrospectionCache.get("token", "1", "ImagingStudy", "read", loader);
+		assertEquals(5, calls.get());
+	}
+
+	/**
+	 * Concurrent lookups of the same key wait for a single introspection
+	 */
+	@Test
+	public void testIntrospectionConcurrentLookupsLoadOnce() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		final Callable<IntrospectionCache.Entry> loader = loader(calls, IntrospectionCache.Entry.success("MRN1", null));
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<String> mrns = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 10; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						mrns.add(IntrospectionCache.get("token", "1", "ImagingStudy", "read", loader));
+					} catch (Exception e) {
+						mrns.add(e.toString());
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+		assertEquals(1, calls.get());
+		assertEquals(Collections.nCopies(10, "MRN1"), mrns);
+	}
+
+	/**
+	 * A failed authorization is cached; any other failure is not
+	 */
+	@Test
+	public void testIntrospectionFailures() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		Callable<IntrospectionCache.Entry> denied = new Callable<IntrospectionCache.Entry>() {
+			@Override
+			public IntrospectionCache.Entry call() throws Exception {
+				calls.incrementAndGet();
+				throw new AuthenticationException("token inactive");
+			}
+		};
+		for (int i = 0; i < 2; i++) {
+			try {
+				IntrospectionCache.get("bad", "1", "ImagingStudy", "read", denied);
+				fail();
+			} catch (AuthenticationException e) {
+				assertEquals("token inactive", e.getMessage());
+			}
+		}
+		assertEquals(1, calls.get());
+
+		Callable<IntrospectionCache.Entry> broken = new Callable<IntrospectionCache.Entry>() {
+			@Override
+			public IntrospectionCache.Entry call() throws Exception {
+				calls.incrementAndGet();
+				throw new IOException("connection refused");
+			}
+		};
+		for (int i = 0; i < 2; i++) {
+			try {
+				IntrospectionCache.get("other", "1", "ImagingStudy", "read", broken);
+				fail();
+			} catch (IOException e) {
+				assertEquals("connection refused", e.getMessage());
+			}
+		}
+		assertEquals(3, calls.get());
+	}
+
+	/**
+	 * A result is dropped when the token expires, even if the cache TTL hasn't passed
+	 */
+	@Test
+	public void testIntrospectionExpiredToken() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		long exp = System.currentTimeMillis() / 1000;
+		Callable<IntrospectionCache.Entry> loader = loader(calls, IntrospectionCache.Entry.success("MRN1", exp));
+
+		IntrospectionCache.get("token", "1", "ImagingStudy", "read", loader);
+		IntrospectionCache.get("token", "1", "ImagingStudy", "read", loader);
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testInvalidateRequiresAdminToken() {
+		List<String> admins = Arrays.asList("admin1", "admin2");
+		BrokerAdminProvider.authorizeAdmin(Arrays.asList("Bearer admin2"), admins);
+
+		for (List<String> headers : Arrays.asList(null, Collections.<String>emptyList(), Arrays.asList("Basic admin1"),
+			Arrays.asList("Bearer admin1", "Bearer admin2"))) {
+			try {
+				BrokerAdminProvider.authorizeAdmin(headers, admins);
+				fail(String.valueOf(headers));
+			} catch (AuthenticationException e) {
+				// good
+			}
+		}
+		for (List<String> admin : Arrays.asList(admins, Collections.<String>emptyList())) {
+			try {
+				BrokerAdminProvider.authorizeAdmin(Arrays.asList("Bearer admin"), admin);
+				fail();
+			} catch (ForbiddenOperationException e) {
+				// good
+			}
+		}
+	}
+
+}
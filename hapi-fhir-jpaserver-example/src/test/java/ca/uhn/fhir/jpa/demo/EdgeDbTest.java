@@ -0,0 +1,250 @@
+package ca.uhn.fhir.jpa.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs {@link EdgeDb} against an in-memory Derby database standing in for the
+ * Edge server's v_exam_status view.
+ */
+public class EdgeDbTest {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(EdgeDbTest.class);
+
+	private static final String URL = "jdbc:derby:memory:edgeDbTest";
+	private static final int PATIENTS = 50;
+	private static final int MAX_CONNECTIONS = 4;
+
+	private static String ourUrl;
+	private static String ourMaxConnections;
+
+	@AfterClass
+	public static void afterClass() throws Exception {
+		EdgeDb.close();
+		Utl.DIAGNOSTIC_REPORT_DB_URL = ourUrl;
+		Utl.DIAGNOSTIC_REPORT_DB_MAX_CONNECTIONS = ourMaxConnections;
+		try {
+			DriverManager.getConnection(URL + ";drop=true");
+		} catch (Exception e) {
+			// Derby reports a successful drop as an exception
+		}
+	}
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		// Derby puts the table in the connecting user's schema, so create it as the broker will query it
+		try (Connection conn = DriverManager.getConnection(URL + ";create=true", Utl.getDiagnosticReportDbUser(), Utl.getDiagnosticReportDbPassword())) {
+			try (Statement stmt = conn.createStatement()) {
+				stmt.executeUpdate("CREATE TABLE v_exam_status (report_id INT NOT NULL, mrn VARCHAR(64) NOT NULL, status_timestamp TIMESTAMP, "
+					+ "modified_date TIMESTAMP, report_text VARCHAR(1024), exam_description VARCHAR(255))");
+			}
+			try (PreparedStatement insert = conn.prepareStatement("INSERT INTO v_exam_status VALUES (?, ?, ?, ?, ?, ?)")) {
+				int reportId = 0;
+				for (int patient = 0; patient < PATIENTS; patient++) {
+					// Patient n has n + 1 exams, one a day from 2017-01-01
+					for (int exam = 0; exam <= patient; exam++) {
+						Timestamp ts = Timestamp.valueOf("2017-01-01 00:00:00");
+						ts.setTime(ts.getTime() + exam * 86400000L);
+						insert.setInt(1, reportId++);
+						insert.setString(2, "MRN" + patient);
+						insert.setTimestamp(3, ts);
+						insert.setTimestamp(4, ts);
+						insert.setString(5, "Report " + exam + " for MRN" + patient);
+						insert.setString(6, "CT HEAD");
+						insert.addBatch();
+					}
+				}
+				// MRNTIES has 7 exams all reported at the same moment, inserted out of report_id order
+				Timestamp ts = Timestamp.valueOf("2017-03-01 00:00:00");
+				for (int exam = 0; exam < 7; exam++) {
+					insert.setInt(1, reportId + (exam * 3) % 7);
+					insert.setString(2, "MRNTIES");
+					insert.setTimestamp(3, ts);
+					insert.setTimestamp(4, ts);
+					insert.setString(5, "Report " + exam + " for MRNTIES");
+					insert.setString(6, "CT HEAD");
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}
+		}
+
+		ourUrl = Utl.DIAGNOSTIC_REPORT_DB_URL;
+		ourMaxConnections = Utl.DIAGNOSTIC_REPORT_DB_MAX_CONNECTIONS;
+		EdgeDb.close();
+		Utl.DIAGNOSTIC_REPORT_DB_URL = URL;
+		Utl.DIAGNOSTIC_REPORT_DB_MAX_CONNECTIONS = Integer.toString(MAX_CONNECTIONS);
+	}
+
+	@Test
+	public void testQueryByMrn() throws Exception {
+		final List<String> reports = new ArrayList<String>();
+		int rows = EdgeDb.queryExamStatus("MRN3", null, new EdgeDb.RowHandler() {
+			@Override
+			public void handleRow(ResultSet theRow) throws Exception {
+				reports.add(theRow.getString("report_text"));
+			}
+		});
+		assertEquals(4, rows);
+		assertEquals(4, reports.size());
+		assertTrue(reports.contains("Report 3 for MRN3"));
+	}
+
+	@Test
+	public void testQueryByMrnAndDate() throws Exception {
+		int rows = EdgeDb.queryExamStatus("MRN9", "2017-01-05 00:00:00", new EdgeDb.RowHandler() {
+			@Override
+			public void handleRow(ResultSet theRow) throws Exception {
+				assertTrue(theRow.getTimestamp("status_timestamp").compareTo(Timestamp.valueOf("2017-01-05 00:00:00")) >= 0);
+			}
+		});
+		assertEquals(6, rows);
+	}
+
+	@Test
+	public void testQueryPages() throws Exception {
+		final List<Timestamp> seen = new ArrayList<Timestamp>();
+		EdgeDb.RowHandler handler = new EdgeDb.RowHandler() {
+			@Override
+			public void handleRow(ResultSet theRow) throws Exception {
+				seen.add(theRow.getTimestamp("status_timestamp"));
+			}
+		};
+		// MRN9 has 10 exams; one row past each page is read to tell if there is another
+		assertEquals(5, EdgeDb.queryExamStatus("MRN9", null, 0, 4, handler));
+		assertEquals(4, seen.size());
+		assertEquals(5, EdgeDb.queryExamStatus("MRN9", null, 4, 4, handler));
+		assertEquals(2, EdgeDb.queryExamStatus("MRN9", null, 8, 4, handler));
+		assertEquals(10, seen.size());
+		for (int i = 1; i < seen.size(); i++) {
+			assertTrue(seen.get(i - 1).before(seen.get(i)));
+		}
+
+		assertEquals(3, EdgeDb.queryExamStatus("MRN9", "2017-01-05 00:00:00", 3, 4, handler));
+	}
+
+	/**
+	 * When the exams fill the last page exactly, it doesn't look as if there is another
+	 */
+	@Test
+	public void testQueryLastPageFull() throws Exception {
+		EdgeDb.RowHandler handler = new EdgeDb.RowHandler() {
+			@Override
+			public void handleRow(ResultSet theRow) {
+				// nothing
+			}
+		};
+		// MRN9 has 10 exams
+		assertEquals(6, EdgeDb.queryExamStatus("MRN9", null, 0, 5, handler));
+		assertEquals(5, EdgeDb.queryExamStatus("MRN9", null, 5, 5, handler));
+	}
+
+	/**
+	 * Rows with the same timestamps are each returned exactly once across pages
+	 */
+	@Test
+	public void testQueryPagesWithTies() throws Exception {
+		final List<Integer> seen = new ArrayList<Integer>();
+		EdgeDb.RowHandler handler = new EdgeDb.RowHandler() {
+			@Override
+			public void handleRow(ResultSet theRow) throws Exception {
+				seen.add(theRow.getInt("report_id"));
+			}
+		};
+		for (int offset = 0; offset < 7; offset += 2) {
+			EdgeDb.queryExamStatus("MRNTIES", null, offset, 2, handler);
+		}
+		assertEquals(7, seen.size());
+		assertEquals(7, new HashSet<Integer>(seen).size());
+		for (int i = 1; i < seen.size(); i++) {
+			assertTrue(seen.get(i - 1) < seen.get(i));
+		}
+	}
+
+	@Test
+	public void testQueryUnknownMrn() throws Exception {
+		assertEquals(0, EdgeDb.queryExamStatus("NOBODY", null, new EdgeDb.RowHandler() {
+			@Override
+			public void handleRow(ResultSet theRow) throws Exception {
+				throw new AssertionError();
+			}
+		}));
+	}
+
+	/**
+	 * Many threads querying at once must each see exactly their own patient's rows,
+	 * and never hold more than the configured number of connections.
+	 */
+	@Test
+	public void testConcurrentQueries() throws Exception {
+		final int threads = 16;
+		final int queriesPerThread = 200;
+		final AtomicInteger maxActive = new AtomicInteger();
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			long start = System.currentTimeMillis();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int checked = 0;
+						for (int i = 0; i < queriesPerThread; i++) {
+							final int patient = (thread * 7 + i) % PATIENTS;
+							final String mrn = "MRN" + patient;
+							int rows = EdgeDb.queryExamStatus(mrn, null, new EdgeDb.RowHandler() {
+								@Override
+								public void handleRow(ResultSet theRow) throws Exception {
+									assertEquals(mrn, theRow.getString("mrn"));
+									int active = (Integer) EdgeDb.getMetrics().get("active");
+									int max;
+									while (active > (max = maxActive.get()) && !maxActive.compareAndSet(max, active)) {
+										// retry
+									}
+								}
+							});
+							assertEquals(patient + 1, rows);
+							checked++;
+						}
+						return checked;
+					}
+				}));
+			}
+
+			int total = 0;
+			for (Future<Integer> next : futures) {
+				total += next.get();
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			ourLog.info("{} queries on {} threads in {}ms, max {} connections active", total, threads, elapsed, maxActive.get());
+
+			assertEquals(threads * queriesPerThread, total);
+			assertTrue(maxActive.get() <= MAX_CONNECTIONS);
+			assertTrue((Integer) EdgeDb.getMetrics().get("idle") <= MAX_CONNECTIONS);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+package ca.uhn.fhir.jpa.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class FederatedQidoTest {
+
+	private static final long TIMEOUT = 1000;
+
+	private final List<HttpServer> myServers = new ArrayList<HttpServer>();
+
+	@After
+	public void after() {
+		for (HttpServer server : myServers) {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Starts a stub QIDO archive.
+	 * @param theName archive name
+	 * @param theDelay milliseconds to wait before answering
+	 * @param theStatus HTTP status to answer with
+	 * @param theStudyUids UIDs of the studies returned
+	 */
+	private Archive startArchive(String theName, final long theDelay, final int theStatus, String... theStudyUids) throws IOException {
+		StringBuilder b = new StringBuilder("[");
+		for (String uid : theStudyUids) {
+			if (b.length() > 1) b.append(',');
+			b.append("{\"0020000D\":{\"vr\":\"UI\",\"Value\":[\"").append(uid).append("\"]},")
+				.append("\"00100020\":{\"vr\":\"LO\",\"Value\":[\"MRN1\"]}}");
+		}
+		final byte[] body = b.append(']').toString().getBytes(StandardCharsets.UTF_8);
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange theExchange) throws IOException {
+				try {
+					Thread.sleep(theDelay);
+				} catch (InterruptedException e) {
+					// answer now
+				}
+				theExchange.getResponseHeaders().add("Content-Type", "application/dicom+json");
+				theExchange.sendResponseHeaders(theStatus, body.length);
+				try (OutputStream out = theExchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.start();
+		myServers.add(server);
+		String url = "http://localhost:" + server.getAddress().getPort() + "/rs";
+		return new Archive(theName, url, url + "/wado");
+	}
+
+	private static Map<String, String> query(List<Archive> theArchives, FederatedQido.Result[] theResult) throws Exception {
+		final Map<String, String> studies = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+		theResult[0] = FederatedQido.query(theArchives, TIMEOUT, "MRN1", null, null, new FederatedQido.Handler() {
+			@Override
+			public void handleStudy(Archive theArchive, QidoStudy theStudy) {
+				studies.put(theStudy.getFirstValue(Cmn.DCM_TAG_STUDY_UID), theArchive.getName());
+			}
+		});
+		return studies;
+	}
+
+	@Test
+	public void testMergeAndDeduplicate() throws Exception {
+		Archive a = startArchive("a", 0, 200, "1.1", "1.2");
+		Archive b = startArchive("b", 200, 200, "1.2", "1.3");
+
+		FederatedQido.Result[] result = new FederatedQido.Result[1];
+		Map<String, String> studies = query(Arrays.asList(a, b), result);
+
+		assertEquals(3, studies.size());
+		assertEquals("a", studies.get("1.1"));
+		assertEquals("a", studies.get("1.2"));
+		assertEquals("b", studies.get("1.3"));
+		assertTrue(result[0].isComplete());
+		assertNull(result[0].toOperationOutcome());
+		assertEquals(Arrays.asList("a", "b"), result[0].getArchives());
+	}
+
+	@Test
+	public void testSlowArchiveGivesPartialResults() throws Exception {
+		Archive a = startArchive("a", 0, 200, "1.1", "1.2");
+		Archive b = startArchive("b", 100, 200, "1.2", "1.3");
+		Archive slow = startArchive("slow", 5000, 200, "1.4");
+
+		FederatedQido.Result[] result = new FederatedQido.Result[1];
+		long start = System.currentTimeMillis();
+		Map<String, String> studies = query(Arrays.asList(a, b, slow), result);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("took " + elapsed + "ms", elapsed < TIMEOUT + 1000);
+		assertEquals(Arrays.asList("1.1", "1.2", "1.3"), new ArrayList<String>(studies.keySet()));
+		assertFalse(result[0].isComplete());
+		assertEquals(1, result[0].getWarnings().size());
+		assertTrue(result[0].getWarnings().get(0), result[0].getWarnings().get(0).contains("slow"));
+		assertEquals(1, result[0].toOperationOutcome().getIssue().size());
+	}
+
+	@Test
+	public void testFailedArchiveGivesPartialResults() throws Exception {
+		Archive a = startArchive("a", 0, 200, "1.1");
+		Archive broken = startArchive("broken", 0, 500);
+
+		FederatedQido.Result[] result = new FederatedQido.Result[1];
+		Map<String, String> studies = query(Arrays.asList(a, broken), result);
+
+		assertEquals(Collections.singletonList("1.1"), new ArrayList<String>(studies.keySet()));
+		assertEquals(1, result[0].getWarnings().size());
+		assertTrue(result[0].getWarnings().get(0), result[0].getWarnings().get(0).contains("broken"));
+	}
+
+	@Test
+	public void testNoArchiveAnswers() throws Exception {
+		Archive broken = startArchive("broken", 0, 500);
+		Archive slow = startArchive("slow", 5000, 200, "1.4");
+
+		try {
+			query(Arrays.asList(broken, slow), new FederatedQido.Result[1]);
+			fail();
+		} catch (Exception e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("No archive answered"));
+		}
+	}
+
+	private static List<String> queryPage(List<Archive> theArchives, SearchPage thePage, FederatedQido.Result[] theResult) throws Exception {
+		final List<String> uids = new ArrayList<String>();
+		theResult[0] = FederatedQido.query(theArchives, TIMEOUT, "MRN1", null, thePage, new FederatedQido.Handler() {
+			@Override
+			public void handleStudy(Archive theArchive, QidoStudy theStudy) {
+				uids.add(theStudy.getFirstValue(Cmn.DCM_TAG_STUDY_UID));
+			}
+		});
+		return uids;
+	}
+
+	/**
+	 * A page holds at most _count studies, merged in archive order, and the next
+	 * page carries on from there without repeating or skipping any.
+	 */
+	@Test
+	public void testPagesAreMergedAndTrimmed() throws Exception {
+		Archive a = startArchive("a", 100, 200, "1.1", "1.2");
+		Archive b = startArchive("b", 0, 200, "1.2", "1.3");
+
+		FederatedQido.Result[] result = new FederatedQido.Result[1];
+		assertEquals(Arrays.asList("1.1", "1.2"), queryPage(Arrays.asList(a, b), new SearchPage(2, 0), result));
+		assertTrue(result[0].hasNext());
+
+		assertEquals(Arrays.asList("1.3"), queryPage(Arrays.asList(a, b), new SearchPage(2, 2), result));
+		assertFalse(result[0].hasNext());
+	}
+
+	/**
+	 * A page filled exactly by the last studies has no next page, since that
+	 * would be empty; one study more is needed to link one.
+	 */
+	@Test
+	public void testFullLastPageHasNoNext() throws Exception {
+		Archive a = startArchive("a", 0, 200, "1.1", "1.2");
+		Archive b = startArchive("b", 0, 200, "1.1", "1.2");
+		Archive c = startArchive("c", 0, 200, "1.1", "1.2", "1.3");
+
+		FederatedQido.Result[] result = new FederatedQido.Result[1];
+		assertEquals(Arrays.asList("1.1", "1.2"), queryPage(Arrays.asList(a), new SearchPage(2, 0), result));
+		assertFalse(result[0].hasNext());
+
+		assertEquals(Arrays.asList("1.1", "1.2"), queryPage(Arrays.asList(a, b), new SearchPage(2, 0), result));
+		assertFalse(result[0].hasNext());
+
+		assertEquals(Arrays.asList("1.1", "1.2"), queryPage(Arrays.asList(c), new SearchPage(2, 0), result));
+		assertTrue(result[0].hasNext());
+	}
+
+	/**
+	 * A late archive's request is aborted, rather than left blocked reading until
+	 * the archive answers.
+	 */
+	@Test
+	public void testLateArchiveRequestIsAborted() throws Exception {
+		Archive a = startArchive("a", 0, 200, "1.1");
+		Archive slow = startArchive("slow", 5000, 200, "1.4");
+
+		query(Arrays.asList(a, slow), new FederatedQido.Result[1]);
+
+		long deadline = System.currentTimeMillis() + 2000;
+		while (((Number) FederatedQido.getMetrics().get("active")).intValue() > 0) {
+			assertTrue("Query thread still busy", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testParseArchives() {
+		List<Archive> archives = Archive.parse(" main|http://a/rs/|http://a/wado , dr|http://b/rs|http://b/wado/");
+		assertEquals(2, archives.size());
+		assertEquals("main", archives.get(0).getName());
+		assertEquals("http://a/rs", archives.get(0).getQidoUrl());
+		assertEquals("http://b/wado", archives.get(1).getWadoUrl());
+		assertTrue(Archive.parse("").isEmpty());
+		try {
+			Archive.parse("main|http://a/rs");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
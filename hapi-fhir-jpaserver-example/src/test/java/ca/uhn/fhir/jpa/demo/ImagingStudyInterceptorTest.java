@@ -0,0 +1,49 @@
+package ca.uhn.fhir.jpa.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+import java.text.SimpleDateFormat;
+
+import org.hl7.fhir.dstu3.model.Endpoint;
+import org.hl7.fhir.dstu3.model.ImagingStudy;
+import org.junit.Test;
+
+public class ImagingStudyInterceptorTest implements Cmn {
+
+	private static final Archive ARCHIVE = new Archive("a", "http://archive/qido", "http://archive/wado");
+
+	private static ImagingStudy toImagingStudy(String theDate, String theTime) throws Exception {
+		String json = "[{\"0020000D\":{\"vr\":\"UI\",\"Value\":[\"1.1\"]}"
+			+ (theDate != null ? ",\"00080020\":{\"vr\":\"DA\",\"Value\":[\"" + theDate + "\"]}" : "")
+			+ (theTime != null ? ",\"00080030\":{\"vr\":\"TM\",\"Value\":[\"" + theTime + "\"]}" : "")
+			+ "}]";
+		QidoStudy study = Utl.readQidoStudies(new StringReader(json), null).get(0);
+		return ImagingStudyInterceptor.toImagingStudy(study, "Patient/1", ARCHIVE);
+	}
+
+	private static String started(ImagingStudy theStudy) {
+		return new SimpleDateFormat("yyyyMMddHHmmss").format(theStudy.getStarted());
+	}
+
+	@Test
+	public void testStudyDateAndTime() throws Exception {
+		assertEquals("20170102101500", started(toImagingStudy("20170102", "101500.123")));
+		assertEquals("20170102101500", started(toImagingStudy("20170102", "101500")));
+		assertEquals("http://archive/wado/studies/1.1", ((Endpoint) toImagingStudy("20170102", "101500").getContained().get(0)).getAddress());
+	}
+
+	/**
+	 * A study time without a fraction, or a missing date or time, doesn't stop
+	 * the study being returned
+	 */
+	@Test
+	public void testStudyDateOrTimeMissing() throws Exception {
+		assertEquals("20170102000000", started(toImagingStudy("20170102", null)));
+		assertEquals("20170102000000", started(toImagingStudy("20170102", "1015")));
+		assertNull(toImagingStudy(null, "101500").getStarted());
+		assertNull(toImagingStudy(null, null).getStarted());
+	}
+
+}
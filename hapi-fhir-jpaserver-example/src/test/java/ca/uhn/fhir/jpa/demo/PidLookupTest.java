@@ -0,0 +1,242 @@
+package ca.uhn.fhir.jpa.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs {@link PidLookup} against an in-memory Derby pid_lookup table.
+ */
+public class PidLookupTest {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(PidLookupTest.class);
+
+	private static final String URL = "jdbc:derby:memory:pidLookupTest";
+	private static final int PRELOADED = 100;
+
+	@AfterClass
+	public static void afterClass() throws Exception {
+		try {
+			DriverManager.getConnection(URL + ";drop=true");
+		} catch (Exception e) {
+			// Derby reports a successful drop as an exception
+		}
+	}
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		try (Connection conn = DriverManager.getConnection(URL + ";create=true")) {
+			try (Statement stmt = conn.createStatement()) {
+				stmt.executeUpdate("CREATE TABLE pid_lookup (pid_in varchar(255) NOT NULL, pid_out varchar(255) NOT NULL, PRIMARY KEY (pid_in))");
+			}
+			try (PreparedStatement insert = conn.prepareStatement("INSERT INTO pid_lookup VALUES (?, ?)")) {
+				for (int i = 0; i < PRELOADED; i++) {
+					insert.setString(1, "PRE" + i);
+					insert.setString(2, "Patient/" + i);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}
+		}
+		Utl.PID_LOOKUP_DB_URL = URL;
+		Utl.PID_LOOKUP_FLUSH_INTERVAL = "20";
+		Utl.PID_LOOKUP_BATCH_SIZE = "50";
+		// Another test in this JVM may already have initialized PidLookup
+		PidLookup.reopen();
+	}
+
+	private static Map<String, String> readTable() throws Exception {
+		Map<String, String> retVal = new HashMap<String, String>();
+		try (Connection conn = DriverManager.getConnection(URL);
+			  Statement stmt = conn.createStatement();
+			  ResultSet result = stmt.executeQuery("SELECT * FROM pid_lookup")) {
+			while (result.next()) {
+				retVal.put(result.getString("pid_in"), result.getString("pid_out"));
+			}
+		}
+		return retVal;
+	}
+
+	private static void updateTable(String thePidIn, String thePidOut) throws Exception {
+		try (Connection conn = DriverManager.getConnection(URL);
+			  PreparedStatement update = conn.prepareStatement("UPDATE pid_lookup SET pid_out = ? WHERE pid_in = ?")) {
+			update.setString(1, thePidOut);
+			update.setString(2, thePidIn);
+			update.executeUpdate();
+		}
+	}
+
+	@Test
+	public void testWarmUp() {
+		assertEquals(true, PidLookup.warmUp() >= PRELOADED);
+		assertEquals("Patient/7", PidLookup.get("PRE7"));
+		assertNull(PidLookup.get("NOBODY"));
+	}
+
+	@Test
+	public void testPutIsWrittenThrough() throws Exception {
+		PidLookup.put("NEW1", "Patient/new1");
+		PidLookup.put("PRE1", "Patient/moved");
+		assertEquals("Patient/new1", PidLookup.get("NEW1"));
+
+		PidLookup.flush();
+		Map<String, String> table = readTable();
+		assertEquals("Patient/new1", table.get("NEW1"));
+		assertEquals("Patient/moved", table.get("PRE1"));
+	}
+
+	@Test
+	public void testInvalidateRereadsTable() throws Exception {
+		PidLookup.put("INV1", "Patient/a");
+		PidLookup.flush();
+		updateTable("INV1", "Patient/b");
+		assertEquals("Patient/a", PidLookup.get("INV1"));
+
+		PidLookup.invalidate("INV1");
+		assertEquals("Patient/b", PidLookup.get("INV1"));
+
+		updateTable("INV1", "Patient/c");
+		PidLookup.invalidateAll();
+		assertEquals("Patient/c", PidLookup.get("INV1"));
+		assertEquals("Patient/7", PidLookup.get("PRE7"));
+	}
+
+	private static void renameTable(String theFrom, String theTo) throws Exception {
+		try (Connection conn = DriverManager.getConnection(URL);
+			  Statement stmt = conn.createStatement()) {
+			stmt.executeUpdate("RENAME TABLE " + theFrom + " TO " + theTo);
+		}
+	}
+
+	private static long writeFailures() {
+		return ((Number) PidLookup.getMetrics().get("writeFailures")).longValue();
+	}
+
+	/**
+	 * A failed write is retried on its own, without waiting for another put.
+	 */
+	@Test
+	public void testFailedWriteIsRetried() throws Exception {
+		long failures = writeFailures();
+		renameTable("pid_lookup", "pid_lookup_moved");
+		try {
+			PidLookup.put("RETRY1", "Patient/retry1");
+			long deadline = System.currentTimeMillis() + 10000;
+			while (writeFailures() == failures) {
+				assertTrue("Write did not fail", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		} finally {
+			renameTable("pid_lookup_moved", "pid_lookup");
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (readTable().containsKey("RETRY1") == false) {
+			assertTrue("Write was not retried", System.currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+		assertEquals("Patient/retry1", readTable().get("RETRY1"));
+		assertEquals(0, ((Number) PidLookup.getMetrics().get("pendingWrites")).intValue());
+	}
+
+	/**
+	 * A row which can't be written doesn't stop the rest of its batch being written.
+	 */
+	@Test
+	public void testBadRowDoesNotFailBatch() throws Exception {
+		long failures = writeFailures();
+		String tooLong = StringUtils.repeat("x", 300);
+		PidLookup.put("GOOD1", "Patient/good1");
+		PidLookup.put("BAD1", tooLong);
+		PidLookup.put("GOOD2", "Patient/good2");
+		PidLookup.flush();
+
+		Map<String, String> table = readTable();
+		assertEquals("Patient/good1", table.get("GOOD1"));
+		assertEquals("Patient/good2", table.get("GOOD2"));
+		assertNull(table.get("BAD1"));
+		assertTrue(writeFailures() > failures);
+		assertEquals(tooLong, PidLookup.get("BAD1"));
+
+		// Once it is given a value which can be written, it is
+		PidLookup.put("BAD1", "Patient/bad1");
+		PidLookup.flush();
+		assertEquals("Patient/bad1", readTable().get("BAD1"));
+		assertEquals(0, ((Number) PidLookup.getMetrics().get("pendingWrites")).intValue());
+	}
+
+	/**
+	 * Threads racing get and put on a shared set of keys. Afterwards the table must
+	 * hold exactly what the lookup returns, which is whatever was put last.
+	 */
+	@Test
+	public void testConcurrentPutAndGet() throws Exception {
+		final int threads = 16;
+		final int opsPerThread = 20000;
+		final int keys = 500;
+		final CountDownLatch start = new CountDownLatch(1);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Long>> futures = new ArrayList<Future<Long>>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						start.await();
+						long begin = System.nanoTime();
+						for (int i = 0; i < opsPerThread; i++) {
+							String key = "CON" + ((thread * 31 + i) % keys);
+							if (i % 10 == 0) {
+								PidLookup.put(key, "Patient/" + thread + "-" + i);
+							} else {
+								PidLookup.get(key);
+							}
+						}
+						return System.nanoTime() - begin;
+					}
+				}));
+			}
+
+			start.countDown();
+			long nanos = 0;
+			for (Future<Long> next : futures) {
+				nanos = Math.max(nanos, next.get());
+			}
+			ourLog.info("{} get/put operations on {} threads in {}ms", threads * opsPerThread, threads, nanos / 1000000);
+		} finally {
+			executor.shutdown();
+		}
+
+		PidLookup.flush();
+		Map<String, String> table = readTable();
+		for (int i = 0; i < keys; i++) {
+			String key = "CON" + i;
+			assertEquals(key, PidLookup.get(key), table.get(key));
+		}
+		assertEquals(0, ((Number) PidLookup.getMetrics().get("pendingWrites")).intValue());
+		ourLog.info("Metrics: {}", PidLookup.getMetrics());
+	}
+
+}
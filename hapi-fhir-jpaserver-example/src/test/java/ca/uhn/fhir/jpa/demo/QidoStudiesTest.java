@@ -0,0 +1,157 @@
+package ca.uhn.fhir.jpa.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class QidoStudiesTest implements Cmn {
+
+	private static final String STUDY_1 = "{"
+		+ "\"00080020\":{\"vr\":\"DA\",\"Value\":[\"20170102\"]},"
+		+ "\"00080030\":{\"vr\":\"TM\",\"Value\":[\"101500\"]},"
+		+ "\"00080061\":{\"vr\":\"CS\",\"Value\":[\"CT\",\"SR\"]},"
+		+ "\"00080090\":{\"vr\":\"PN\"},"
+		+ "\"00081190\":{\"vr\":\"UR\",\"Value\":[\"http://archive/rs/studies/1.1\"]},"
+		+ "\"00100010\":{\"vr\":\"PN\",\"Value\":[{\"Alphabetic\":\"Doe^Jane\",\"Ideographic\":\"x\"}]},"
+		+ "\"00100020\":{\"vr\":\"LO\",\"Value\":[\"MRN1\"]},"
+		+ "\"0020000D\":{\"vr\":\"UI\",\"Value\":[\"1.1\"]},"
+		+ "\"00201208\":{\"vr\":\"IS\",\"Value\":[42]},"
+		+ "\"00081030\":{\"vr\":\"LO\",\"Value\":[\"skipped\"]},"
+		+ "\"7FE00010\":{\"vr\":\"OB\",\"InlineBinary\":\"AAAA\"}"
+		+ "}";
+
+	private static final String STUDY_2 = "{"
+		+ "\"00080020\":{\"vr\":\"DA\",\"Value\":[\"20160101\"]},"
+		+ "\"00080030\":{\"vr\":\"TM\",\"Value\":[null]},"
+		+ "\"0020000D\":{\"vr\":\"UI\",\"Value\":[\"1.2\"]}"
+		+ "}";
+
+	@Test
+	public void testReadStudies() throws Exception {
+		List<QidoStudy> studies = Utl.readQidoStudies(new StringReader("[" + STUDY_1 + "," + STUDY_2 + "]"), null);
+		assertEquals(2, studies.size());
+
+		QidoStudy study = studies.get(0);
+		assertEquals("1.1", study.getFirstValue(DCM_TAG_STUDY_UID));
+		assertEquals("MRN1", study.getFirstValue(DCM_TAG_PATIENT_ID));
+		assertEquals(Arrays.asList("CT", "SR"), study.getValues(DCM_TAG_MODALITIES));
+		assertEquals("Doe^Jane", study.getFirstValue(DCM_TAG_PATIENT_NAME));
+		assertEquals("42", study.getFirstValue(DCM_TAG_NUM_INSTANCES));
+		assertEquals("http://archive/rs/studies/1.1", study.getFirstValue(DCM_TAG_RETRIEVE_URL));
+		assertEquals("20170102101500", study.getStudyDateTime());
+		// Present without a value
+		assertEquals("", study.getFirstValue(DCM_TAG_REF_PHYS));
+		try {
+			study.getValues(DCM_TAG_REF_PHYS).set(0, "changed");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			study.getValues(DCM_TAG_MODALITIES).set(0, "MR");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		assertEquals("CT", study.getFirstValue(DCM_TAG_MODALITIES));
+		// Not returned
+		assertNull(study.getFirstValue(DCM_TAG_ACCESSION));
+		// Not kept
+		assertNull(study.getFirstValue("00081030"));
+		assertNull(study.getFirstValue("7FE00010"));
+
+		study = studies.get(1);
+		assertEquals("1.2", study.getFirstValue(DCM_TAG_STUDY_UID));
+		assertEquals("", study.getFirstValue(DCM_TAG_STUDY_TIME));
+	}
+
+	@Test
+	public void testLastUpdatedFiltersStudies() throws Exception {
+		List<QidoStudy> studies = Utl.readQidoStudies(new StringReader("[" + STUDY_1 + "," + STUDY_2 + "]"), "20170101");
+		assertEquals(1, studies.size());
+		assertEquals("1.1", studies.get(0).getFirstValue(DCM_TAG_STUDY_UID));
+	}
+
+	/**
+	 * Some archives leave off the closing ']'
+	 */
+	@Test
+	public void testMissingClosingBracket() throws Exception {
+		List<QidoStudy> studies = Utl.readQidoStudies(new StringReader("[" + STUDY_1 + "," + STUDY_2), null);
+		assertEquals(2, studies.size());
+	}
+
+	@Test
+	public void testEmptyBody() throws Exception {
+		for (String body : Arrays.asList("", "   ")) {
+			try {
+				Utl.readQidoStudies(new StringReader(body), null);
+				fail();
+			} catch (Exception e) {
+				assertEquals("Response body empty", e.getMessage());
+			}
+		}
+		assertEquals(0, Utl.readQidoStudies(new StringReader("[]"), null).size());
+	}
+
+	@Test
+	public void testNotAnArray() throws Exception {
+		try {
+			Utl.readQidoStudies(new StringReader("{\"error\":\"nope\"}"), null);
+			fail();
+		} catch (IllegalStateException e) {
+			// good
+		}
+	}
+
+	/**
+	 * Each study reaches the handler as soon as it has been read, before the
+	 * rest of the body arrives
+	 */
+	@Test
+	public void testStudiesAreStreamed() throws Exception {
+		final String first = "[" + STUDY_1 + ",";
+		Reader in = new Reader() {
+			private int myPos;
+
+			@Override
+			public int read(char[] theBuf, int theOff, int theLen) throws IOException {
+				if (myPos == first.length()) throw new IOException("connection reset");
+				int len = Math.min(theLen, first.length() - myPos);
+				first.getChars(myPos, myPos + len, theBuf, theOff);
+				myPos += len;
+				return len;
+			}
+
+			@Override
+			public void close() {
+				// nothing
+			}
+		};
+
+		final List<String> uids = new ArrayList<String>();
+		try {
+			Utl.readQidoStudies(in, null, new QidoStudy.Handler() {
+				@Override
+				public void handleStudy(QidoStudy theStudy) {
+					uids.add(theStudy.getFirstValue(DCM_TAG_STUDY_UID));
+				}
+			});
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("connection reset"));
+		}
+		assertEquals(Arrays.asList("1.1"), uids);
+	}
+
+}
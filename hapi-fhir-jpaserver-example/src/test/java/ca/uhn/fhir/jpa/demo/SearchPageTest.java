@@ -0,0 +1,99 @@
+package ca.uhn.fhir.jpa.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.junit.Test;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+public class SearchPageTest {
+
+	private static Map<String, String[]> params(String... theNameValues) {
+		Map<String, String[]> retVal = new HashMap<String, String[]>();
+		for (int i = 0; i < theNameValues.length; i += 2) {
+			retVal.put(theNameValues[i], new String[] {theNameValues[i + 1]});
+		}
+		return retVal;
+	}
+
+	@Test
+	public void testFromParameters() {
+		assertNull(SearchPage.fromParameters(params("patient", "123")));
+
+		SearchPage page = SearchPage.fromParameters(params("patient", "123", "_count", "20"));
+		assertEquals(20, page.getCount());
+		assertEquals(0, page.getOffset());
+
+		page = SearchPage.fromParameters(params("_count", "20", "_offset", "40"));
+		assertEquals(40, page.getOffset());
+
+		page = SearchPage.fromParameters(params("_count", "100000"));
+		assertEquals(Utl.getMaxPageSize(), page.getCount());
+	}
+
+	@Test
+	public void testFromParametersInvalid() {
+		for (String[] next : Arrays.asList(new String[] {"_count", "0"}, new String[] {"_count", "abc"}, new String[] {"_count", "-1"})) {
+			try {
+				SearchPage.fromParameters(params(next));
+				fail(Arrays.toString(next));
+			} catch (InvalidRequestException e) {
+				// good
+			}
+		}
+		try {
+			SearchPage.fromParameters(params("_count", "10", "_offset", "-10"));
+			fail();
+		} catch (InvalidRequestException e) {
+			// good
+		}
+	}
+
+	@Test
+	public void testGetUrl() {
+		assertEquals("http://h/ImagingStudy?patient=1&_count=10&_offset=20",
+			SearchPage.getUrl("http://h/ImagingStudy?patient=1&_count=10", 20));
+		assertEquals("http://h/ImagingStudy?patient=1&_count=10&_offset=30",
+			SearchPage.getUrl("http://h/ImagingStudy?patient=1&_offset=20&_count=10", 30));
+		assertEquals("http://h/ImagingStudy?_offset=0", SearchPage.getUrl("http://h/ImagingStudy", 0));
+	}
+
+	@Test
+	public void testKeyIncludesPage() {
+		assertEquals("ImagingStudy|MRN1|null|20|10", new SearchPage(10, 20).getKey("ImagingStudy", "MRN1", null));
+	}
+
+	@Test
+	public void testLinks() throws Exception {
+		String url = "http://h/DiagnosticReport?patient=1&_count=10&_offset=10";
+		StringWriter out = new StringWriter();
+		SearchsetWriter writer = new SearchsetWriter(out, url);
+		new SearchPage(10, 10).addLinks(writer, url, true);
+		writer.finish(null);
+
+		Bundle bundle = Utl.getFhirContext().newJsonParser().parseResource(Bundle.class, out.toString());
+		assertEquals(url, bundle.getLink("self").getUrl());
+		assertEquals("http://h/DiagnosticReport?patient=1&_count=10&_offset=0", bundle.getLink("previous").getUrl());
+		assertEquals("http://h/DiagnosticReport?patient=1&_count=10&_offset=20", bundle.getLink("next").getUrl());
+		assertEquals(false, bundle.hasTotal());
+	}
+
+	@Test
+	public void testSnapshot() {
+		String key = new SearchPage(10, 0).getKey("SearchPageTest", "MRN1");
+		assertNull(SearchPage.getSnapshot(key));
+		SearchPage.putSnapshot(key, new SearchPage.Snapshot(Arrays.asList("{}"), true));
+		assertEquals(1, SearchPage.getSnapshot(key).getEntries().size());
+		SearchPage.invalidateAll();
+		assertNull(SearchPage.getSnapshot(key));
+	}
+
+}
@@ -0,0 +1,237 @@
+package ca.uhn.fhir.jpa.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Endpoint;
+import org.hl7.fhir.dstu3.model.ImagingStudy;
+import org.hl7.fhir.dstu3.model.OidType;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.junit.Test;
+
+public class SearchsetWriterTest {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchsetWriterTest.class);
+
+	private static ImagingStudy newStudy(int theIndex) {
+		ImagingStudy study = new ImagingStudy();
+		study.setPatient(new Reference("Patient/123"));
+		study.setUidElement(new OidType("urn:oid:1.2.3." + theIndex));
+		Endpoint ce = new Endpoint();
+		ce.setId("wado-endpoint-id");
+		ce.setStatus(Endpoint.EndpointStatus.ACTIVE);
+		ce.setAddress("http://localhost/studies/1.2.3." + theIndex);
+		study.addContained(ce);
+		study.addEndpoint(new Reference().setReference("#wado-endpoint-id"));
+		study.setNumberOfSeries(2);
+		study.setNumberOfInstances(100 + theIndex);
+		return study;
+	}
+
+	@Test
+	public void testEntriesParseAsBundle() throws Exception {
+		StringWriter out = new StringWriter();
+		SearchsetWriter writer = new SearchsetWriter(out, "http://localhost/ImagingStudy?patient=123&a=\"b\"");
+		for (int i = 0; i < 3; i++) {
+			writer.add(newStudy(i));
+		}
+		assertEquals(3, writer.finish());
+
+		Bundle bundle = Utl.getFhirContext().newJsonParser().parseResource(Bundle.class, out.toString());
+		assertEquals(Bundle.BundleType.SEARCHSET, bundle.getType());
+		assertEquals(3, bundle.getTotal());
+		assertEquals(3, bundle.getEntry().size());
+		assertEquals("http://localhost/ImagingStudy?patient=123&a=\"b\"", bundle.getLink("self").getUrl());
+		ImagingStudy study = (ImagingStudy) bundle.getEntry().get(2).getResource();
+		assertEquals("urn:oid:1.2.3.2", study.getUid());
+		assertEquals(102, study.getNumberOfInstances());
+		assertEquals(1, study.getContained().size());
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		StringWriter out = new StringWriter();
+		assertEquals(0, new SearchsetWriter(out, "http://localhost/ImagingStudy?patient=123").finish());
+
+		assertFalse(out.toString().contains("\"entry\""));
+		Bundle bundle = Utl.getFhirContext().newJsonParser().parseResource(Bundle.class, out.toString());
+		assertEquals(0, bundle.getTotal());
+		assertEquals(0, bundle.getEntry().size());
+	}
+
+	@Test
+	public void testOutcomeIsNotCounted() throws Exception {
+		StringWriter out = new StringWriter();
+		SearchsetWriter writer = new SearchsetWriter(out, "http://localhost/ImagingStudy?patient=123");
+		writer.add(newStudy(0));
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.WARNING).setDiagnostics("Archive b did not answer");
+		writer.addOutcome(outcome);
+		assertEquals(1, writer.finish());
+
+		Bundle bundle = Utl.getFhirContext().newJsonParser().parseResource(Bundle.class, out.toString());
+		assertEquals(1, bundle.getTotal());
+		assertEquals(2, bundle.getEntry().size());
+		assertEquals(Bundle.SearchEntryMode.OUTCOME, bundle.getEntry().get(1).getSearch().getMode());
+		assertEquals("Archive b did not answer", ((OperationOutcome) bundle.getEntry().get(1).getResource()).getIssueFirstRep().getDiagnostics());
+	}
+
+	/**
+	 * A search failing after its first entry was sent leaves the client with a
+	 * broken transfer, not a 200 with a truncated Bundle
+	 */
+	@Test
+	public void testFailureAfterCommitAbortsResponse() throws Exception {
+		int port = RandomServerPortProvider.findFreePort();
+		Server server = new Server(port);
+		ServletContextHandler context = new ServletContextHandler();
+		context.addServlet(new ServletHolder(new HttpServlet() {
+			@Override
+			protected void doGet(HttpServletRequest theReq, HttpServletResponse theResp) throws ServletException, IOException {
+				Exception failure = new Exception("archive went away");
+				// Nothing sent yet, so an error response can still be given
+				SearchsetWriter.abortIfCommitted(theResp, failure);
+				theResp.setContentType("application/fhir+json");
+				SearchsetWriter writer = new SearchsetWriter(theResp.getWriter(), "http://localhost/ImagingStudy?patient=123");
+				writer.add(newStudy(0));
+				SearchsetWriter.abortIfCommitted(theResp, failure);
+				writer.finish();
+			}
+		}), "/*");
+		server.setHandler(context);
+		server.start();
+		try {
+			HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/ImagingStudy").openConnection();
+			conn.setReadTimeout(10000);
+			assertEquals(200, conn.getResponseCode());
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (InputStream in = conn.getInputStream()) {
+				byte[] buffer = new byte[1024];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					body.write(buffer, 0, read);
+				}
+				fail(body.toString(StandardCharsets.UTF_8.name()));
+			} catch (IOException e) {
+				// good
+			}
+			assertTrue(body.toString(StandardCharsets.UTF_8.name()), body.toString(StandardCharsets.UTF_8.name()).contains("urn:oid:1.2.3.0"));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Not a pass/fail test: logs time to first byte, total time and bytes allocated for
+	 * building and encoding a whole Bundle versus streaming it, by bundle size. Only
+	 * run when benchmarking, with <code>-Dhapi.test.benchmark=true</code>.
+	 */
+	@Test
+	public void testEncodingCostBySize() throws Exception {
+		assumeTrue(Boolean.getBoolean("hapi.test.benchmark"));
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		// Warm up both paths
+		encodeWhole(new SinkWriter(), 200);
+		encodeStreaming(new SinkWriter(), 200);
+
+		for (int size : new int[] {10, 100, 1000, 10000}) {
+			SinkWriter sink = new SinkWriter();
+			long alloc = threads.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			encodeWhole(sink, size);
+			long wholeNanos = System.nanoTime() - start;
+			long wholeFirst = sink.firstWrite - start;
+			long wholeAlloc = threads.getThreadAllocatedBytes(threadId) - alloc;
+
+			sink = new SinkWriter();
+			alloc = threads.getThreadAllocatedBytes(threadId);
+			start = System.nanoTime();
+			encodeStreaming(sink, size);
+			long streamNanos = System.nanoTime() - start;
+			long streamFirst = sink.firstWrite - start;
+			long streamAlloc = threads.getThreadAllocatedBytes(threadId) - alloc;
+
+			ourLog.info("{} entries, {} chars: whole bundle {}ms (first byte {}ms, {}KB allocated), streamed {}ms (first byte {}ms, {}KB allocated)",
+				size, sink.count, wholeNanos / 1000000, wholeFirst / 1000000, wholeAlloc / 1024,
+				streamNanos / 1000000, streamFirst / 1000000, streamAlloc / 1024);
+		}
+	}
+
+	private static void encodeWhole(Writer theOut, int theSize) throws IOException {
+		Bundle bundle = new Bundle();
+		bundle.setId(UUID.randomUUID().toString());
+		bundle.addLink(new Bundle.BundleLinkComponent().setRelation("self").setUrl("http://localhost/ImagingStudy?patient=123"));
+		bundle.setType(Bundle.BundleType.SEARCHSET);
+		for (int i = 0; i < theSize; i++) {
+			bundle.addEntry().setResource(newStudy(i));
+		}
+		bundle.setTotal(theSize);
+		theOut.write(Utl.getFhirContext().newJsonParser().encodeResourceToString(bundle));
+	}
+
+	private static void encodeStreaming(Writer theOut, int theSize) throws IOException {
+		SearchsetWriter writer = new SearchsetWriter(theOut, "http://localhost/ImagingStudy?patient=123");
+		for (int i = 0; i < theSize; i++) {
+			writer.add(newStudy(i));
+		}
+		writer.finish();
+	}
+
+	/**
+	 * Discards output, recording when the first character arrived and how many there were.
+	 */
+	private static class SinkWriter extends Writer {
+		private long firstWrite;
+		private long count;
+
+		@Override
+		public void write(char[] theBuf, int theOff, int theLen) {
+			if (count == 0) firstWrite = System.nanoTime();
+			count += theLen;
+		}
+
+		@Override
+		public void write(String theStr, int theOff, int theLen) {
+			if (count == 0) firstWrite = System.nanoTime();
+			count += theLen;
+		}
+
+		@Override
+		public void flush() {
+			// nothing
+		}
+
+		@Override
+		public void close() {
+			// nothing
+		}
+	}
+
+}
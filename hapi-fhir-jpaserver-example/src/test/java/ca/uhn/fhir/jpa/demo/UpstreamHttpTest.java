@@ -0,0 +1,85 @@
+package ca.uhn.fhir.jpa.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class UpstreamHttpTest {
+
+	private final Set<Integer> myClientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+	private HttpServer myServer;
+	private String myUrl;
+
+	@Before
+	public void before() throws Exception {
+		myServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		myServer.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange theExchange) throws IOException {
+				myClientPorts.add(theExchange.getRemoteAddress().getPort());
+				byte[] body = "[]".getBytes(StandardCharsets.UTF_8);
+				theExchange.getResponseHeaders().add("Content-Type", "application/json");
+				theExchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = theExchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		myServer.start();
+		myUrl = "http://localhost:" + myServer.getAddress().getPort() + "/rs/studies";
+	}
+
+	@After
+	public void after() {
+		myServer.stop(0);
+	}
+
+	/**
+	 * Sequential requests to one upstream service share a single kept-alive connection
+	 */
+	@Test
+	public void testConnectionIsReused() throws Exception {
+		long requests = ((Number) UpstreamHttp.getMetrics().get("requests")).longValue();
+
+		for (int i = 0; i < 10; i++) {
+			try (CloseableHttpResponse response = UpstreamHttp.execute(new HttpGet(myUrl))) {
+				assertEquals(200, response.getStatusLine().getStatusCode());
+				EntityUtils.consume(response.getEntity());
+			}
+		}
+
+		assertEquals(myClientPorts.toString(), 1, myClientPorts.size());
+		assertEquals(requests + 10, ((Number) UpstreamHttp.getMetrics().get("requests")).longValue());
+		assertTrue(((Number) UpstreamHttp.getMetrics().get("poolAvailable")).intValue() >= 1);
+	}
+
+	/**
+	 * The broker's own QIDO queries go through the pool too
+	 */
+	@Test
+	public void testQueriesReuseConnection() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			assertEquals(0, Utl.wadoQuery(myUrl, null).size());
+		}
+		assertEquals(myClientPorts.toString(), 1, myClientPorts.size());
+	}
+
+}
@@ -0,0 +1,185 @@
+package ca.uhn.fhir.jpa.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class WadoRsProxyTest {
+
+	private static final byte[] BODY = "--boundary\r\n\r\nDICM\r\n--boundary--".getBytes(StandardCharsets.UTF_8);
+
+	private final AtomicInteger myArchiveRequests = new AtomicInteger();
+	private HttpServer myArchive;
+	private Server myProxy;
+	private int myProxyPort;
+	private String myMaxRetries;
+	private String myRetryDelay;
+	private String myTimeout;
+
+	@Before
+	public void before() {
+		myMaxRetries = Utl.WADO_PROXY_MAX_RETRIES;
+		myRetryDelay = Utl.WADO_PROXY_RETRY_DELAY;
+		myTimeout = Utl.WADO_PROXY_TIMEOUT;
+		Utl.WADO_PROXY_RETRY_DELAY = "10";
+	}
+
+	@After
+	public void after() throws Exception {
+		Utl.WADO_PROXY_MAX_RETRIES = myMaxRetries;
+		Utl.WADO_PROXY_RETRY_DELAY = myRetryDelay;
+		Utl.WADO_PROXY_TIMEOUT = myTimeout;
+		if (myProxy != null) myProxy.stop();
+		if (myArchive != null) myArchive.stop(0);
+	}
+
+	/**
+	 * Starts a stub archive which answers 503 (images not yet in its cache)
+	 * to the first requests, then 200 with a body.
+	 * @param theUnavailable number of requests answered with 503
+	 * @param theDelay milliseconds to wait before answering
+	 */
+	private void startArchive(final int theUnavailable, final long theDelay) throws Exception {
+		myArchive = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		myArchive.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange theExchange) throws IOException {
+				int request = myArchiveRequests.incrementAndGet();
+				try {
+					Thread.sleep(theDelay);
+				} catch (InterruptedException e) {
+					// answer now
+				}
+				try (OutputStream out = theExchange.getResponseBody()) {
+					if (request <= theUnavailable) {
+						theExchange.sendResponseHeaders(503, -1);
+						return;
+					}
+					theExchange.getResponseHeaders().add("Content-Type", "multipart/related; type=\"application/dicom\"; boundary=boundary");
+					theExchange.sendResponseHeaders(200, BODY.length);
+					out.write(BODY);
+				}
+			}
+		});
+		myArchive.start();
+
+		final String archiveUrl = "http://localhost:" + myArchive.getAddress().getPort() + "/rs";
+		myProxyPort = RandomServerPortProvider.findFreePort();
+		myProxy = new Server(myProxyPort);
+		ServletContextHandler context = new ServletContextHandler();
+		ServletHolder holder = new ServletHolder(new HttpServlet() {
+			@Override
+			protected void doGet(HttpServletRequest theReq, HttpServletResponse theResp) {
+				WadoRsProxy.forward(archiveUrl + theReq.getPathInfo(), theReq, theResp);
+			}
+		});
+		holder.setAsyncSupported(true);
+		context.addServlet(holder, "/wado/*");
+		myProxy.setHandler(context);
+		myProxy.start();
+	}
+
+	private HttpURLConnection get(String thePath) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + myProxyPort + "/wado" + thePath).openConnection();
+		conn.setReadTimeout(10000);
+		return conn;
+	}
+
+	private static byte[] read(InputStream theIn) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = theIn.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		theIn.close();
+		return out.toByteArray();
+	}
+
+	private static long metric(String theName) {
+		return ((Number) WadoRsProxy.getMetrics().get(theName)).longValue();
+	}
+
+	@Test
+	public void testRetrieve() throws Exception {
+		startArchive(0, 0);
+
+		HttpURLConnection conn = get("/studies/1.1");
+		assertEquals(200, conn.getResponseCode());
+		assertTrue(conn.getContentType(), conn.getContentType().startsWith("multipart/related"));
+		assertEquals(new String(BODY, StandardCharsets.UTF_8), new String(read(conn.getInputStream()), StandardCharsets.UTF_8));
+		assertEquals(1, myArchiveRequests.get());
+	}
+
+	/**
+	 * A 503 from the archive is retried, and the client only sees the final answer
+	 */
+	@Test
+	public void testUnavailableIsRetried() throws Exception {
+		startArchive(2, 0);
+		long retries = metric("retries");
+
+		HttpURLConnection conn = get("/studies/1.1");
+		assertEquals(200, conn.getResponseCode());
+		assertEquals(new String(BODY, StandardCharsets.UTF_8), new String(read(conn.getInputStream()), StandardCharsets.UTF_8));
+		assertEquals(3, myArchiveRequests.get());
+		assertEquals(retries + 2, metric("retries"));
+	}
+
+	/**
+	 * Once the retries are used up the archive's 503 is returned, with a Retry-After
+	 */
+	@Test
+	public void testUnavailableAfterRetries() throws Exception {
+		Utl.WADO_PROXY_MAX_RETRIES = "1";
+		startArchive(10, 0);
+
+		HttpURLConnection conn = get("/studies/1.1");
+		assertEquals(503, conn.getResponseCode());
+		assertEquals("5", conn.getHeaderField("Retry-After"));
+		assertEquals(2, myArchiveRequests.get());
+	}
+
+	/**
+	 * A retrieve which takes longer than the proxy timeout is aborted and the
+	 * client told so
+	 */
+	@Test
+	public void testSlowArchiveTimesOut() throws Exception {
+		Utl.WADO_PROXY_TIMEOUT = "500";
+		startArchive(0, 5000);
+		long timeouts = metric("timeouts");
+
+		long start = System.currentTimeMillis();
+		HttpURLConnection conn = get("/studies/1.1");
+		assertEquals(504, conn.getResponseCode());
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("took " + elapsed + "ms", elapsed < 4000);
+		assertEquals(timeouts + 1, metric("timeouts"));
+	}
+
+}